@@ -16,29 +16,49 @@
 
 package com.example.android.batchstepsensor;
 
-import android.os.Build;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.ServiceConnection;
+import android.os.AsyncTask;
 import android.os.Bundle;
-import android.os.SystemClock;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
 import android.support.v4.app.Fragment;
+import android.widget.Toast;
 
 import com.example.android.batchstepsensor.cardstream.Card;
 import com.example.android.batchstepsensor.cardstream.CardStream;
 import com.example.android.batchstepsensor.cardstream.CardStreamFragment;
 import com.example.android.batchstepsensor.cardstream.OnCardClickListener;
+import com.example.android.batchstepsensor.cardstream.OnRestoreListener;
 import com.example.android.common.logger.Log;
-
-import org.apache.commons.collections4.queue.CircularFifoQueue;
-
-import java.util.concurrent.TimeUnit;
+import com.example.android.stepcore.CadenceStats;
+import com.example.android.stepcore.FixedPointFormat;
+import com.example.android.stepcore.LabelRing;
+import com.example.android.stepcore.LongRing;
+import com.example.android.stepcore.OrientationDecoder;
+import com.example.android.stepcore.PathBuffer;
+import com.example.android.stepcore.Polyline;
+import com.example.android.stepcore.PowerStats;
+import com.example.android.stepcore.SessionIndex;
+import com.example.android.stepcore.StageWatchdog;
+import com.example.android.stepcore.StepExporter;
+import com.example.android.stepcore.StepRing;
+import com.example.android.stepcore.StepRollups;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.DateFormat;
+import java.util.Date;
+import java.util.TimeZone;
 
 import edu.usf.csee.hardware.Sensor;
-import edu.usf.csee.hardware.SensorEvent;
-import edu.usf.csee.hardware.SensorEventListener;
-import edu.usf.csee.hardware.SensorManager;
-import edu.usf.csee.trackingsteps.data.Orientation;
-import edu.usf.csee.trackingsteps.util.TimeUtil;
 
-public class BatchStepSensorFragment extends Fragment implements OnCardClickListener {
+public class BatchStepSensorFragment extends Fragment
+        implements OnCardClickListener, OnRestoreListener {
 
     public static final String TAG = "StepSensorSample";
     // Cards
@@ -48,8 +68,12 @@ public class BatchStepSensorFragment extends Fragment implements OnCardClickList
     public static final String CARD_INTRO = "intro";
     public static final String CARD_REGISTER_DETECTOR = "register_detector";
     public static final String CARD_REGISTER_COUNTER = "register_counter";
+    public static final String CARD_REGISTER_BOTH = "register_both";
     public static final String CARD_BATCHING_DESCRIPTION = "register_batching_description";
     public static final String CARD_COUNTING = "counting";
+    public static final String CARD_PATH = "path";
+    public static final String CARD_SESSIONS = "sessions";
+    public static final String CARD_POWER = "power";
     public static final String CARD_EXPLANATION = "explanation";
     public static final String CARD_NOBATCHSUPPORT = "error";
 
@@ -60,8 +84,17 @@ public class BatchStepSensorFragment extends Fragment implements OnCardClickList
     public static final int ACTION_REGISTER_COUNT_NOBATCHING = 21;
     public static final int ACTION_REGISTER_COUNT_BATCHING_5s = 22;
     public static final int ACTION_REGISTER_COUNT_BATCHING_10s = 23;
-    // Action from COUNTING card
+    public static final int ACTION_REGISTER_BOTH_BATCHING_5s = 31;
+    public static final int ACTION_REGISTER_BOTH_BATCHING_10s = 32;
+    // Actions from COUNTING card
     public static final int ACTION_UNREGISTER = 1;
+    public static final int ACTION_EXPORT_CSV = 4;
+    public static final int ACTION_EXPORT_JSON = 5;
+    // Actions from SESSIONS card
+    private static final int ACTION_SESSIONS_NEWER = 6;
+    private static final int ACTION_SESSIONS_OLDER = 7;
+    // Action from POWER card
+    private static final int ACTION_EXPORT_POWER = 8;
     // Actions from description cards
     private static final int ACTION_BATCHING_DESCRIPTION_DISMISS = 2;
     private static final int ACTION_EXPLANATION_DISMISS = 3;
@@ -70,11 +103,13 @@ public class BatchStepSensorFragment extends Fragment implements OnCardClickList
     public static final int STATE_OTHER = 0;
     public static final int STATE_COUNTER = 1;
     public static final int STATE_DETECTOR = 2;
+    public static final int STATE_BOTH = 3;
 
     // Bundle tags used to store data when restoring application state
     private static final String BUNDLE_STATE = "state";
     private static final String BUNDLE_LATENCY = "latency";
     private static final String BUNDLE_STEPS = "steps";
+    private static final String BUNDLE_BATCHMODE = "batchmode";
 
     // max batch latency is specified in microseconds
     private static final int BATCH_LATENCY_0 = 0; // no batching
@@ -84,43 +119,105 @@ public class BatchStepSensorFragment extends Fragment implements OnCardClickList
     /*
     For illustration we keep track of the last few events and show their delay from when the
     event occurred until it was received by the event listener.
-    These variables keep track of the list of timestamps and the number of events.
-     */
-    // Number of events to keep in queue and display on card
-    private static final int EVENT_QUEUE_LENGTH = 10;
-    // List of timestamps when sensor events occurred
-    private CircularFifoQueue<Long> mEventDelays = new CircularFifoQueue<Long>(EVENT_QUEUE_LENGTH);
-    // Number of orientations to keep in queue and display on card
-    private static final int ORIENTATION_QUEUE_LENGTH = 15;
-    // List of orientations for the last ORIENTATION_QUEUE_LENGTH steps
-    private CircularFifoQueue<Float> mStepOrientations = new CircularFifoQueue<Float>(ORIENTATION_QUEUE_LENGTH);
-
-    // Steps counted in current session
+    Steps are counted by the StepCollectorService, which keeps running while the UI is gone. The
+    service writes a record for every step to the shared StepChannel, the fragment reads the new
+    records whenever it is notified and keeps the number of steps, the delays of the last events
+    and the orientations of the last steps.
+     */
+    private static final int EVENT_QUEUE_LENGTH = StepCollectorService.EVENT_QUEUE_LENGTH;
+    private static final int ORIENTATION_QUEUE_LENGTH =
+            StepCollectorService.ORIENTATION_QUEUE_LENGTH;
+
     private int mSteps = 0;
-    // Value of the step counter sensor when the listener was registered.
-    // (Total steps are calculated from this value.)
-    private int mCounterSteps = 0;
-    // Used to detect whether onSensorChanged() has been previously called for TYPE_STEP_COUNTER
-    private boolean mFirstExecution = true;
-    // Steps counted by the step counter previously. Used to keep counter consistent across rotation
-    // changes
-    private int mPreviousCounterSteps = 0;
+    private final LongRing mDelays = new LongRing(EVENT_QUEUE_LENGTH);
+    // Directions of the last steps as text, decoded and rendered once when their record is read
+    private final LabelRing mDirectionLabels =
+            new LabelRing(Orientations.getLabels(), ", ", ORIENTATION_QUEUE_LENGTH);
+    private final OrientationDecoder mDecoder = Orientations.getDecoder();
+    // Cadence of the current walking segment, computed from the step records
+    private final CadenceStats mCadence = new CadenceStats(StepCollectorService.CADENCE_WINDOW,
+            StepCollectorService.IDLE_GAP_NANOS);
+    // Walking segments and the idle time between them, reported by the service
+    private int mSegments = 0;
+    private long mIdleTime = 0;
+    // Step history of the service, null until the rollups have been opened
+    private StepRollups mRollups = null;
+    // Reads the step records of the service, null until the channel has been opened
+    private StepRing.Reader mReader = null;
+    // Number of records read by the current call of readRecords()
+    private int mRecordsRead = 0;
+    // Dead reckoning path of the service, read along with the step records
+    private final Polyline mPath = new Polyline();
+    private PathBuffer mPathChannel = null;
+    private PathBuffer.Reader mPathReader = null;
+    // Whether the path has been cleared since it was last handed to the view
+    private boolean mPathReset = true;
+
+    // Number of sessions listed on one page of the sessions card
+    private static final int SESSIONS_PAGE_SIZE = 5;
+    // Sessions of the service, null until the index has been opened
+    private SessionIndex mSessions = null;
+    private final SessionIndex.Session mSession = new SessionIndex.Session();
+    // Active session of the service and the page of the sessions card
+    private int mActiveSession = SessionIndex.NO_SESSION;
+    private int mSessionsPage = 0;
+    // Walking segments of the active session when the sessions card was updated from a snapshot
+    private int mSessionsSegments = 0;
+    private final StringBuilder mSessionsBuffer = new StringBuilder();
+    private final DateFormat mSessionDateFormat =
+            DateFormat.getDateTimeInstance(DateFormat.SHORT, DateFormat.SHORT);
+    private final Date mSessionDate = new Date();
+
+    // Wakeups and CPU time per batch latency mode, null until the stats have been opened
+    private PowerStats mPower = null;
+    private final PowerStats.Mode mPowerMode = new PowerStats.Mode();
+    private final StringBuilder mPowerBuffer = new StringBuilder();
+    // Fingerprint of the values shown on the power card, see getPowerFingerprint()
+    private long mPowerFingerprint = 0;
+
     // State of the app (STATE_OTHER, STATE_COUNTER or STATE_DETECTOR)
     private int mState = STATE_OTHER;
-    // When a listener is registered, the batch sensor delay in microseconds
+    // When a listener is registered, the batch sensor delay in microseconds. The delay of the step
+    // counter if both sensors are registered, the step detector is not batched then.
     private int mMaxDelay = 0;
+    // When a listener is registered, whether batch mode could be enabled
+    private boolean mBatchMode = true;
+    // When both sensors are registered, steps counted by the step counter but not the detector
+    private int mDiscrepancy = 0;
+
+    // Messenger of the bound StepCollectorService, null while not connected
+    private Messenger mService = null;
+    // Receives the snapshots of the service
+    private final Messenger mMessenger = new Messenger(new IncomingHandler());
+    // Whether the registration cards should be shown with the next snapshot
+    private boolean mShowRegistrationCards = false;
+    // Export that is running, null if there is none
+    private ExportTask mExportTask = null;
 
-    // Keep track of avg time between updates
-    private long mLastUpdateTime = Long.MIN_VALUE;
-    private long mTotalTimeDiff = 0;  // in nanoseconds
-    private int mNumUpdates = 0;
+    @Override
+    public void onStart() {
+        super.onStart();
+        // Steps are only shown while the fragment is started, the service keeps counting
+        getActivity().bindService(StepCollectorService.getIntent(getActivity()), mConnection,
+                Context.BIND_AUTO_CREATE);
+    }
+
+    @Override
+    public void onStop() {
+        super.onStop();
+        if (mService != null) {
+            sendToService(Message.obtain(null, StepCollectorService.MSG_UNREGISTER_CLIENT));
+            mService = null;
+        }
+        getActivity().unbindService(mConnection);
+    }
 
     @Override
     public void onResume() {
         super.onResume();
 
         CardStreamFragment stream = getCardStream();
-        if (stream.getVisibleCardCount() < 1) {
+        if (!stream.isRestoring() && stream.getVisibleCardCount() < 1) {
             // No cards are visible, started for the first time
             // Prepare all cards and show the intro card.
             initialiseCards();
@@ -129,12 +226,28 @@ public class BatchStepSensorFragment extends Fragment implements OnCardClickList
         }
     }
 
+    /**
+     * Called once the cards have been restored after the activity was recreated. The service has
+     * kept counting while the cards were being restored, update the cards to match.
+     */
     @Override
-    public void onDestroy() {
-        super.onDestroy();
-
-        // Unregister the listener when the application is destroyed
-        unregisterListeners();
+    public void onCardStreamRestored() {
+        if (getCardStream().getVisibleCardCount() < 1) {
+            // Nothing could be restored, start over
+            unregisterListeners();
+            mState = STATE_OTHER;
+            initialiseCards();
+            showIntroCard();
+            showRegisterCard();
+        } else if (mState != STATE_OTHER) {
+            showRegistrationCards(mMaxDelay, mBatchMode);
+            updateCountingCard();
+            // The path view of a restored card has not drawn the path yet
+            mPathReset = true;
+            updatePathCard();
+        }
+        updateSessionsCard();
+        updatePowerCard();
     }
 
     /**
@@ -173,6 +286,14 @@ public class BatchStepSensorFragment extends Fragment implements OnCardClickList
                 registerEventListener(BATCH_LATENCY_10s, Sensor.TYPE_STEP_DETECTOR);
                 break;
 
+            // Register both sensors card
+            case ACTION_REGISTER_BOTH_BATCHING_5s:
+                registerBothListeners(BATCH_LATENCY_5s);
+                break;
+            case ACTION_REGISTER_BOTH_BATCHING_10s:
+                registerBothListeners(BATCH_LATENCY_10s);
+                break;
+
             // Unregister card
             case ACTION_UNREGISTER:
                 showRegisterCard();
@@ -181,6 +302,28 @@ public class BatchStepSensorFragment extends Fragment implements OnCardClickList
                 mState = STATE_OTHER;
                 break;
 
+            case ACTION_EXPORT_CSV:
+                requestExport(StepExporter.FORMAT_CSV);
+                break;
+            case ACTION_EXPORT_JSON:
+                requestExport(StepExporter.FORMAT_JSON);
+                break;
+
+            // Sessions card
+            case ACTION_SESSIONS_NEWER:
+                mSessionsPage = Math.max(0, mSessionsPage - 1);
+                updateSessionsCard();
+                break;
+            case ACTION_SESSIONS_OLDER:
+                mSessionsPage++;
+                updateSessionsCard();
+                break;
+
+            // Power card
+            case ACTION_EXPORT_POWER:
+                startExport(ExportTask.POWER);
+                break;
+
             // Explanation cards
             case ACTION_BATCHING_DESCRIPTION_DISMISS:
                 // permanently remove the batch description card, it will not be shown again
@@ -192,7 +335,8 @@ public class BatchStepSensorFragment extends Fragment implements OnCardClickList
         }
 
         // For register cards, display the counting card
-        if (cardTag.equals(CARD_REGISTER_COUNTER) || cardTag.equals(CARD_REGISTER_DETECTOR)) {
+        if (cardTag.equals(CARD_REGISTER_COUNTER) || cardTag.equals(CARD_REGISTER_DETECTOR)
+                || cardTag.equals(CARD_REGISTER_BOTH)) {
             showCountingCards();
         }
     }
@@ -209,41 +353,73 @@ public class BatchStepSensorFragment extends Fragment implements OnCardClickList
      * continuous mode.
      * The optimium batch delay depends on the application. For example, a delay of 5 seconds or
      * higher may be appropriate for an  application that does not update the UI in real time.
+     * <p/>
+     * The listener is registered by the {@link StepCollectorService}, the registration cards are
+     * shown once the service has reported whether batch mode could be enabled.
      *
      * @param maxdelay
      * @param sensorType
      */
     private void registerEventListener(int maxdelay, int sensorType) {
-
-
-        // Keep track of state so that the correct sensor type and batch delay can be set up when
+        // Keep track of state so that the correct sensor type and batch delay can be shown when
         // the app is restored (for example on screen rotation).
         mMaxDelay = maxdelay;
         if (sensorType == Sensor.TYPE_STEP_COUNTER) {
             mState = STATE_COUNTER;
-            /*
-            Reset the initial step counter value, the first event received by the event listener is
-            stored in mCounterSteps and used to calculate the total number of steps taken.
-             */
-            mCounterSteps = 0;
-            Log.i(TAG, "Event listener for step counter sensor registered with a max delay of "
-                    + mMaxDelay);
         } else {
             mState = STATE_DETECTOR;
-            Log.i(TAG, "Event listener for step detector sensor registered with a max delay of "
-                    + mMaxDelay);
         }
+        mShowRegistrationCards = true;
+        startCollecting(-1);
+    }
 
-        // Get the default sensor for the sensor type from the SenorManager
-        SensorManager sensorManager = SensorManager.getSystemService(getActivity());
-        // sensorType is either Sensor.TYPE_STEP_COUNTER or Sensor.TYPE_STEP_DETECTOR
-        Sensor sensor = sensorManager.getDefaultSensor(sensorType);
+    /**
+     * Registers the step detector without batching for low latency updates, and the step counter
+     * with the given max batch delay for an accurate total. The service merges both sensors, see
+     * {@link #registerEventListener(int, int)}.
+     *
+     * @param counterDelay
+     */
+    private void registerBothListeners(int counterDelay) {
+        mMaxDelay = counterDelay;
+        mState = STATE_BOTH;
+        mShowRegistrationCards = true;
+        startCollecting(-1);
+    }
 
-        // Register the listener for this sensor in batch mode.
-        // If the max delay is 0, events will be delivered in continuous mode without batching.
-        final boolean batchMode = sensorManager.registerListener(
-                mListener, sensor, SensorManager.SENSOR_DELAY_NORMAL, maxdelay);
+    /**
+     * Asks the service to register the listener for the current state and delay.
+     *
+     * @param restoredSteps number of steps to continue counting from, or -1 to start at 0
+     */
+    private void startCollecting(int restoredSteps) {
+        int detectorDelay = StepCollectorService.DELAY_OFF;
+        int counterDelay = StepCollectorService.DELAY_OFF;
+        if (mState == STATE_DETECTOR) {
+            detectorDelay = mMaxDelay;
+        } else if (mState == STATE_COUNTER) {
+            counterDelay = mMaxDelay;
+        } else if (mState == STATE_BOTH) {
+            detectorDelay = BATCH_LATENCY_0;
+            counterDelay = mMaxDelay;
+        }
+        final Message msg = Message.obtain(null, StepCollectorService.MSG_START,
+                detectorDelay, counterDelay);
+        if (restoredSteps >= 0) {
+            final Bundle data = new Bundle();
+            data.putInt(StepCollectorService.KEY_STEPS, restoredSteps);
+            msg.setData(data);
+        }
+        sendToService(msg);
+    }
 
+    /**
+     * Shows the cards describing a newly registered listener.
+     *
+     * @param maxdelay
+     * @param batchMode true if the listener was registered in batch mode
+     */
+    private void showRegistrationCards(int maxdelay, boolean batchMode) {
         if (!batchMode) {
             // Batch mode could not be enabled, show a warning message and switch to continuous mode
             getCardStream().getCard(CARD_NOBATCHSUPPORT)
@@ -263,282 +439,589 @@ public class BatchStepSensorFragment extends Fragment implements OnCardClickList
     }
 
     /**
-     * Unregisters the sensor listener if it is registered.
+     * Asks the service to unregister the sensor listener and stop counting.
      */
     private void unregisterListeners() {
-        SensorManager sensorManager = SensorManager.getSystemService(getActivity());
-        sensorManager.unregisterListener(mListener);
-        Log.i(TAG, "Sensor listener unregistered.");
+        mShowRegistrationCards = false;
+        sendToService(Message.obtain(null, StepCollectorService.MSG_STOP));
     }
 
     /**
-     * Resets the step counter by clearing all counting variables and lists.
+     * Clears the step count, delays and orientations shown on the counting card and the path.
      */
     private void resetCounter() {
-        mFirstExecution = true;
-        mLastUpdateTime = Long.MIN_VALUE;
-        mTotalTimeDiff = 0;
-        mNumUpdates = 0;
         mSteps = 0;
-        mCounterSteps = 0;
-        mEventDelays = new CircularFifoQueue<Long>(EVENT_QUEUE_LENGTH);
-        mStepOrientations = new CircularFifoQueue<Float>(ORIENTATION_QUEUE_LENGTH);
-        mPreviousCounterSteps = 0;
+        mDiscrepancy = 0;
+        mDelays.clear();
+        mDirectionLabels.clear();
+        mCadence.reset();
+        mSegments = 0;
+        mIdleTime = 0;
+        mPath.clear();
+        mPathReset = true;
+        if (mPathReader != null) {
+            // Read the whole path of the service again
+            mPathReader.rewind();
+        }
+    }
+
+    /**
+     * Exports the archived step records. The service is asked to write the records it holds back
+     * first, the export starts once it has replied. If the service is not connected, the records
+     * that are already in the archive are exported right away.
+     *
+     * @param format StepExporter.FORMAT_CSV or StepExporter.FORMAT_JSON
+     */
+    private void requestExport(int format) {
+        if (mExportTask != null) {
+            return;
+        }
+        if (mService == null) {
+            startExport(format);
+            return;
+        }
+        final Message msg = Message.obtain(null, StepCollectorService.MSG_FLUSH_ARCHIVE, format, 0);
+        msg.replyTo = mMessenger;
+        sendToService(msg);
     }
 
+    private void startExport(int format) {
+        if (mExportTask != null || !isAdded()) {
+            return;
+        }
+        mExportTask = new ExportTask(format);
+        mExportTask.execute();
+    }
 
     /**
-     * Listener that handles step sensor events for step detector and step counter sensors.
+     * Streams the whole archive, or the power stats for {@link #POWER}, to a file on a worker
+     * thread, then offers to share the file.
      */
-    private final SensorEventListener mListener = new SensorEventListener() {
+    private class ExportTask extends AsyncTask<Void, Void, File> {
+
+        // Format of an export of the power stats instead of the step records
+        static final int POWER = -1;
+
+        private final int mFormat;
+        private final Context mContext;
+
+        ExportTask(int format) {
+            mFormat = format;
+            mContext = getActivity().getApplicationContext();
+        }
+
         @Override
-        public void onSensorChanged(SensorEvent event) {
-            // Record time between updates
-            recordTimeBetweenUpdates();
-
-            // store the delay of this event
-            recordDelay(event);
-            final String delayString = getDelayString();
-
-            if (event.sensor.getType() == Sensor.TYPE_STEP_DETECTOR) {
-                // A step detector event is received for each step.
-                // This means we need to count steps ourselves
-
-                mSteps += event.values[0];
-
-                // store the step orientations for this event
-                recordOrientations(event);
-
-                final String orientationString = getOrientationString();
-
-                // Update the card with the latest step count
-                getCardStream().getCard(CARD_COUNTING)
-                        .setTitle(getString(R.string.counting_title, mSteps))
-                        .setDescription(getString(R.string.counting_description,
-                                getString(R.string.sensor_detector), mMaxDelay,
-                                EVENT_QUEUE_LENGTH, delayString,
-                                ORIENTATION_QUEUE_LENGTH, orientationString));
-
-                Log.i(TAG,
-                        "New step detected by STEP_DETECTOR sensor. Total step count: " + mSteps);
-
-            } else if (event.sensor.getType() == Sensor.TYPE_STEP_COUNTER) {
-                /**
-                 *                      ** USF TYPE_STEP_COUNTER sensor **
-                 *
-                 * TYPE_STEP_COUNTER values are defined in Android as:
-                 *
-                 *     event.values[0] = the number of steps taken by the user since the last reboot while
-                 *     activated. The value is returned as a float (with the fractional part set to zero).
-                 *     The timestamp of the event is set to the time when the last step for that event was
-                 *     taken.
-                 *
-                 * The Android definition of event.timestamp is unclear
-                 * (see https://code.google.com/p/android/issues/detail?id=7981).
-                 *
-                 * For the USF sensors, the event.timestamp values is set to the time when the last step for
-                 * that event was taken, in nanoseconds and as the SystemClock.elapsedRealtimeNanos() value
-                 * (i.e., elapsed nanoseconds since last boot, including time spent in sleep).  For API levels,
-                 * less than 17 (Build.VERSION_CODES.JELLY_BEAN_MR1), we use SystemClock.elapsedRealtime(),
-                 * converted to nanoseconds.
-                 *
-                 * When a listener is first registered, onSensorChanged() will immediately be called with
-                 * the current step total (which may be 0), so the listener can initialize itself and
-                 * count the number of steps that happen since initial registration.
-                 *
-                 * Since the USF step counter is implemented in software at the application level, it will be
-                 * reset whenever the Service collecting the data stops and this class is GC'd.  This MAY be
-                 * sooner than on reboot.
-                 *
-                 * Since the USF step counter also has an orientation for each step, we add them as
-                 * elements event.values[1] to event.values[X], where X is the number of samples since
-                 * the last notification.  So, the total array size is X + 1.
-                 *
-                 * For example, if there are 3 steps taken since the last time that listeners were notified
-                 * with the total step count of 5:
-                 * - Step A, orientation 25
-                 * - Step B, orientation 30
-                 * - Step C, orientation 45
-                 *
-                 * event.values would contain the following four values:
-                 * values[0] = 8;   // Total step counter since service was started
-                 * values[1] = 25;  // orientation for Step A
-                 * values[2] = 30;  // orientation for Step B
-                 * values[3] = 45;  // orientation for Step C
-                 */
-
-                /*
-                A step counter event contains the total number of steps since the listener
-                was first registered. We need to keep track of this initial value to calculate the
-                number of steps taken.
-                 */
-                if (mFirstExecution) {
-                    // initial value
-                    mCounterSteps = (int) event.values[0];
-                    mFirstExecution = false;
+        protected File doInBackground(Void... params) {
+            try {
+                if (mFormat == POWER) {
+                    return StepExport.exportPower(mContext);
                 }
+                return StepExport.export(mContext, mFormat, Long.MIN_VALUE, Long.MAX_VALUE);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not export the step records.", e);
+                return null;
+            }
+        }
+
+        @Override
+        protected void onPostExecute(File file) {
+            mExportTask = null;
+            if (file == null) {
+                Toast.makeText(mContext, R.string.export_failed, Toast.LENGTH_SHORT).show();
+            } else if (isAdded()) {
+                startActivity(StepExport.getShareIntent(mContext, file,
+                        mFormat == POWER ? StepExporter.FORMAT_CSV : mFormat));
+            }
+        }
+    }
+
+    /**
+     * Sends a message to the service. Messages sent while the service is not connected are
+     * dropped, the state is synchronised when the service connects.
+     *
+     * @param msg
+     */
+    private void sendToService(Message msg) {
+        if (mService == null) {
+            return;
+        }
+        try {
+            mService.send(msg);
+        } catch (RemoteException e) {
+            Log.w(TAG, "Step collector service has died.");
+            mService = null;
+        }
+    }
+
+    private final ServiceConnection mConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            mService = new Messenger(service);
+
+            // Register for snapshots, the service replies with its current state
+            Message msg = Message.obtain(null, StepCollectorService.MSG_REGISTER_CLIENT);
+            msg.replyTo = mMessenger;
+            sendToService(msg);
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mService = null;
+        }
+    };
+
+    /**
+     * Handles the snapshots and notifications sent by the service.
+     */
+    private class IncomingHandler extends Handler {
+        @Override
+        public void handleMessage(Message msg) {
+            if (msg.what == StepCollectorService.MSG_STATE) {
+                onSnapshot(msg.getData());
+            } else if (msg.what == StepCollectorService.MSG_DATA) {
+                readRecords();
+            } else if (msg.what == StepCollectorService.MSG_ARCHIVE_FLUSHED) {
+                startExport(msg.arg1);
+            } else {
+                super.handleMessage(msg);
+            }
+        }
+    }
+
+    /**
+     * Updates the counting card with a snapshot of the service.
+     *
+     * @param snapshot
+     */
+    private void onSnapshot(Bundle snapshot) {
+        if (!isAdded()) {
+            return;
+        }
+
+        // The sessions card is updated when a session starts, ends or a walking segment starts
+        final int session = snapshot.getInt(StepCollectorService.KEY_SESSION,
+                SessionIndex.NO_SESSION);
+        final int segments = snapshot.getInt(StepCollectorService.KEY_SEGMENTS);
+        if (session != mActiveSession || segments != mSessionsSegments) {
+            if (session != mActiveSession) {
+                mActiveSession = session;
+                mSessionsPage = 0;
+            }
+            mSessionsSegments = segments;
+            updateSessionsCard();
+        }
+        if (mPower == null || getPowerFingerprint() != mPowerFingerprint) {
+            updatePowerCard();
+        }
+
+        final int detectorDelay = snapshot.getInt(StepCollectorService.KEY_DETECTOR_DELAY);
+        final int counterDelay = snapshot.getInt(StepCollectorService.KEY_COUNTER_DELAY);
+        if (detectorDelay == StepCollectorService.DELAY_OFF
+                && counterDelay == StepCollectorService.DELAY_OFF) {
+            if (mState != STATE_OTHER) {
+                // The service is not counting, but the UI is. The service has been restarted
+                // (for example after the process was killed), register again and continue from
+                // the last known number of steps.
+                startCollecting(mSteps);
+            }
+            return;
+        }
+
+        final boolean wasCounting = mState != STATE_OTHER;
+        if (counterDelay == StepCollectorService.DELAY_OFF) {
+            mState = STATE_DETECTOR;
+            mMaxDelay = detectorDelay;
+        } else {
+            mState = detectorDelay == StepCollectorService.DELAY_OFF ? STATE_COUNTER : STATE_BOTH;
+            mMaxDelay = counterDelay;
+        }
+        mBatchMode = snapshot.getBoolean(StepCollectorService.KEY_BATCHMODE);
+        mDiscrepancy = snapshot.getInt(StepCollectorService.KEY_DISCREPANCY);
+        mSegments = snapshot.getInt(StepCollectorService.KEY_SEGMENTS);
+        mIdleTime = snapshot.getLong(StepCollectorService.KEY_IDLE_TIME);
+
+        if (!wasCounting && !getCardStream().isRestoring()) {
+            // The service is still counting from an earlier session of the UI, for example after
+            // the activity was finished and started again. Show its counting card.
+            showCountingCards();
+            mShowRegistrationCards = true;
+        }
+
+        mSteps = snapshot.getInt(StepCollectorService.KEY_STEPS);
+
+        if (mShowRegistrationCards) {
+            mShowRegistrationCards = false;
+            showRegistrationCards(mMaxDelay, mBatchMode);
+        }
 
-                Log.d(TAG, "event.values[0]=" + event.values[0]);
+        // Catch up on the records of the service, this also updates the card
+        readRecords();
+    }
 
-                // Calculate steps taken based on first counter value received.
-                mSteps = (int) event.values[0] - mCounterSteps;
+    /**
+     * Reads all step records and path points the service has published since the last read and
+     * updates the counting and path cards once.
+     */
+    private void readRecords() {
+        if (!isAdded() || mState == STATE_OTHER) {
+            return;
+        }
+        // The batch size of the stage is the number of records read
+        final StageWatchdog watchdog = MainThreadWatchdog.get(getActivity());
+        mRecordsRead = 0;
+        watchdog.begin("readRecords", 0);
+        try {
+            readRecordsAndUpdateCards();
+        } finally {
+            watchdog.setBatchSize(mRecordsRead);
+            watchdog.end();
+        }
+    }
 
-                // Add the number of steps previously taken, otherwise the counter would start at 0.
-                // This is needed to keep the counter consistent across rotation changes.
-                mSteps = mSteps + mPreviousCounterSteps;
+    private void readRecordsAndUpdateCards() {
+        if (mReader == null) {
+            try {
+                mReader = new StepRing.Reader(StepChannel.open(getActivity()));
+            } catch (IOException e) {
+                Log.w(TAG, "Could not open the step channel: " + e.getMessage());
+                return;
+            }
+        }
 
-                // store the step orientations for this event
-                recordOrientations(event);
+        mReader.read(mRecordHandler);
+        if (mRollups == null) {
+            try {
+                mRollups = StepChannel.openRollups(getActivity());
+            } catch (IOException e) {
+                Log.w(TAG, "Could not open the step rollups: " + e.getMessage());
+            }
+        }
+        updateCountingCard();
+
+        if (mPathReader == null) {
+            try {
+                mPathChannel = StepChannel.openPath(getActivity());
+                mPathReader = new PathBuffer.Reader(mPathChannel);
+            } catch (IOException e) {
+                Log.w(TAG, "Could not open the path channel: " + e.getMessage());
+                return;
+            }
+        }
+        mPathReader.read(mPointHandler);
+        updatePathCard();
+    }
 
-                final String orientationString = getOrientationString();
+    private final StepRing.RecordHandler mRecordHandler = new StepRing.RecordHandler() {
+        @Override
+        public void onRingReset() {
+            // The service has started a new count
+            mDelays.clear();
+            mDirectionLabels.clear();
+            mCadence.reset();
+        }
 
-                // Update the card with the latest step count
-                getCardStream().getCard(CARD_COUNTING)
-                        .setTitle(getString(R.string.counting_title, mSteps))
-                        .setDescription(getString(R.string.counting_description,
-                                getString(R.string.sensor_counter), mMaxDelay,
-                                EVENT_QUEUE_LENGTH, delayString,
-                                ORIENTATION_QUEUE_LENGTH, orientationString));
-                Log.i(TAG, "New step(s) detected by STEP_COUNTER sensor. Total step count: " + mSteps);
+        @Override
+        public void onRecord(long timestamp, int count, float orientation, int delay) {
+            mRecordsRead++;
+            mSteps = count;
+            mCadence.add(timestamp, count);
+            if (!Float.isNaN(orientation)) {
+                mDirectionLabels.add(mDecoder.decode(orientation));
+            }
+            if (delay >= 0) {
+                mDelays.add(delay);
             }
         }
+    };
 
+    private final PathBuffer.PointHandler mPointHandler = new PathBuffer.PointHandler() {
         @Override
-        public void onAccuracyChanged(Sensor sensor, int accuracy) {
+        public void onPathReset() {
+            // The service has started a new path or downsampled it
+            mPath.clear();
+            mPathReset = true;
+        }
 
+        @Override
+        public void onPoint(float x, float y) {
+            mPath.add(x, y);
         }
     };
 
     /**
-     * Keeps track of the average time between updates
+     * Updates the path card with the walked distance and draws the new points of the path. Nothing
+     * is updated if the card is not available.
      */
-    public void recordTimeBetweenUpdates() {
-        long currentTime = TimeUtil.getElapsedRealtimeNanos();
-        if (mLastUpdateTime != Long.MIN_VALUE) {
-            long timeDiffNanos = currentTime - mLastUpdateTime;
-            mTotalTimeDiff += timeDiffNanos;
-            mNumUpdates++;
+    private void updatePathCard() {
+        final Card card = getCardStream().getCard(CARD_PATH);
+        if (card == null) {
+            return;
+        }
+        card.setDescription(getString(R.string.path_description,
+                mPathChannel != null ? mPathChannel.getDistance() : 0.f));
 
-            float avgTimeDiffSec = (mTotalTimeDiff / mNumUpdates) / 1000000000f;
+        final PathView view = (PathView) card.getView().findViewById(R.id.card_path);
+        if (view == null) {
+            return;
+        }
+        if (mPathReset || view.getPath() != mPath) {
+            // Fit and draw the whole path again
+            mPathReset = false;
+            view.setPath(mPath);
+        } else {
+            view.onPathChanged();
+        }
+    }
 
-            Log.d(TAG, "Avg time between updates = " + String.format("%.2f", avgTimeDiffSec) + "s");
+    /**
+     * Lists the current page of sessions on the sessions card. The sessions are read from the
+     * index of the service, the step records are not read. Nothing is updated if the card is not
+     * available.
+     */
+    private void updateSessionsCard() {
+        final Card card = getCardStream().getCard(CARD_SESSIONS);
+        if (card == null) {
+            return;
+        }
+        if (mSessions == null) {
+            try {
+                mSessions = StepChannel.openSessions(getActivity());
+            } catch (IOException e) {
+                // The service has not created the index yet
+                card.setDescription(getString(R.string.sessions_none));
+                return;
+            }
+        }
+
+        final int count = mSessions.getSessionCount();
+        if (count == 0) {
+            card.setDescription(getString(R.string.sessions_none));
+            return;
         }
-        mLastUpdateTime = currentTime;
+        final int pages = (count + SESSIONS_PAGE_SIZE - 1) / SESSIONS_PAGE_SIZE;
+        mSessionsPage = Math.min(mSessionsPage, pages - 1);
+        final int first = mSessionsPage * SESSIONS_PAGE_SIZE;
+
+        mSessionsBuffer.setLength(0);
+        final int listed = mSessions.list(first, SESSIONS_PAGE_SIZE, mSession, mSessionHandler);
+        mSessionsBuffer.append(getString(R.string.sessions_page, first + 1, first + listed,
+                count));
+        card.setDescription(mSessionsBuffer.toString());
     }
 
+    private final SessionIndex.SessionHandler mSessionHandler = new SessionIndex.SessionHandler() {
+        @Override
+        public void onSession(SessionIndex.Session session) {
+            mSessionDate.setTime(session.getStart());
+            mSessionsBuffer.append(getString(R.string.session_line, session.getId() + 1,
+                    mSessionDateFormat.format(mSessionDate),
+                    session.isActive() ? getString(R.string.session_active) : "",
+                    session.getSteps(), Math.round(session.getDuration() / 60000.f),
+                    session.getDistance(), Math.round(session.getCadence()),
+                    getModeString(session.getDetectorDelay(), session.getCounterDelay())))
+                    .append("\n\n");
+        }
+    };
+
     /**
-     * Records the delay for the event.
-     * <p/>
-     * The exact Android definition of event.timestamp is unclear
-     * (see https://code.google.com/p/android/issues/detail?id=7981).
-     * <p/>
-     * For the USF sensors, the event.timestamp values is set to the time when the last step for
-     * that event was taken, in nanoseconds and as the SystemClock.elapsedRealtimeNanos() value
-     * (i.e., elapsed nanoseconds since last boot, including time spent in sleep).  For API levels,
-     * less than 17 (Build.VERSION_CODES.JELLY_BEAN_MR1), we use SystemClock.elapsedRealtime(),
-     * converted to nanoseconds.
-     *
-     * @param event
+     * Compares the wakeups and CPU time of the batch latency modes on the power card. Nothing is
+     * updated if the card is not available.
      */
-    private void recordDelay(SensorEvent event) {
-        if (mFirstExecution && event.sensor.getType() == Sensor.TYPE_STEP_COUNTER) {
-            // We want to discard the first value, since its not a new step, just a notification
-            // to the listener of the current step count
+    private void updatePowerCard() {
+        final Card card = getCardStream().getCard(CARD_POWER);
+        if (card == null) {
             return;
         }
+        if (mPower == null) {
+            try {
+                mPower = StepChannel.openPower(getActivity());
+            } catch (IOException e) {
+                // The service has not created the stats yet
+                card.setDescription(getString(R.string.power_none));
+                return;
+            }
+        }
 
-        // Calculate the delay from when event was recorded until it was received here, in ms
-        final long timeDiffNano;
+        final StringBuilder b = mPowerBuffer;
+        b.setLength(0);
+        for (int i = 0; mPower.getMode(i, mPowerMode); i++) {
+            final PowerStats.Mode mode = mPowerMode;
+            final int wakeups = mode.getWakeups();
+            b.append(getString(R.string.power_line,
+                    getModeString(mode.getDetectorDelay(), mode.getCounterDelay()),
+                    Math.round(mode.getWakeupsPerHour()), mode.getEventsPerWakeup(),
+                    mode.getProcessCpuPerHour() / 1000.f,
+                    wakeups == 0 ? 0.f : mode.getCallbackCpuTime() / 1e6f / wakeups,
+                    Math.round(mode.getActiveTime() / 60e9f)))
+                    .append("\n\n");
+        }
+        card.setDescription(b.length() == 0 ? getString(R.string.power_none) : b.toString());
+        mPowerFingerprint = getPowerFingerprint();
+    }
+
+    /**
+     * Returns a fingerprint of the modes, their deliveries, wakeups and active minutes. The other
+     * values on the power card only change along with them. The stats must have been opened.
+     *
+     * @return
+     */
+    private long getPowerFingerprint() {
+        long fingerprint = 1;
+        for (int i = 0; mPower.getMode(i, mPowerMode); i++) {
+            fingerprint = fingerprint * 31 + mPowerMode.getDetectorDelay();
+            fingerprint = fingerprint * 31 + mPowerMode.getCounterDelay();
+            fingerprint = fingerprint * 31 + mPowerMode.getWakeups();
+            fingerprint = fingerprint * 31 + mPowerMode.getDeliveries();
+            fingerprint = fingerprint * 31 + mPowerMode.getActiveTime() / 60000000000L;
+        }
+        return fingerprint;
+    }
 
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
-            timeDiffNano = SystemClock.elapsedRealtimeNanos() - event.timestamp;
+    /**
+     * Returns the sensors and the batch delay of a batch latency mode.
+     *
+     * @param detectorDelay max batch delay of the step detector, or a negative value
+     * @param counterDelay  max batch delay of the step counter, or a negative value
+     * @return
+     */
+    private String getModeString(int detectorDelay, int counterDelay) {
+        final String sensor;
+        if (counterDelay < 0) {
+            sensor = getString(R.string.sensor_detector);
+        } else if (detectorDelay < 0) {
+            sensor = getString(R.string.sensor_counter);
         } else {
-            timeDiffNano = SystemClock.elapsedRealtime() - (TimeUnit.NANOSECONDS.toMillis(event.timestamp));
+            sensor = getString(R.string.sensor_both_short);
         }
+        // The delay of the batched sensor, the step counter if both are registered
+        final int delay = counterDelay < 0 ? detectorDelay : counterDelay;
+        return getString(R.string.session_mode, sensor, delay / 1000000);
+    }
 
-        // Convert from nanoseconds to milliseconds, and store
-        mEventDelays.add(TimeUnit.NANOSECONDS.toMillis(timeDiffNano));
+    /**
+     * Updates the step counting card with the current step count, event delays and orientations.
+     * Nothing is updated if the card is not available, for example while the cards are still being
+     * restored.
+     */
+    private void updateCountingCard() {
+        final Card card = getCardStream().getCard(CARD_COUNTING);
+        if (card == null) {
+            return;
+        }
+        card.setTitle(getString(R.string.counting_title, mSteps))
+                .setDescription(getString(R.string.counting_description,
+                        getSensorName(), mMaxDelay,
+                        EVENT_QUEUE_LENGTH, getDelayString(),
+                        ORIENTATION_QUEUE_LENGTH, getOrientationString(),
+                        getCadenceString(), getVariabilityString(), mSegments,
+                        getIdleTimeString(), getHistoryString()));
+    }
 
-        Log.d(TAG, "Age of most recent data = " + TimeUnit.NANOSECONDS.toMillis(timeDiffNano) + "ms");
+    /**
+     * Returns the name of the registered sensors, including the difference between both sensors
+     * if both are registered.
+     *
+     * @return
+     */
+    private String getSensorName() {
+        switch (mState) {
+            case STATE_COUNTER:
+                return getString(R.string.sensor_counter);
+            case STATE_DETECTOR:
+                return getString(R.string.sensor_detector);
+            case STATE_BOTH:
+                return getString(R.string.sensor_both, mDiscrepancy);
+            default:
+                return "-";
+        }
     }
 
-    private final StringBuffer mDelayStringBuffer = new StringBuffer();
+    private final StringBuilder mDelayStringBuffer = new StringBuilder();
 
     /**
-     * Returns a string describing the sensor delays recorded in
-     * {@link #recordDelay(edu.usf.csee.hardware.SensorEvent)}.
+     * Returns a string describing the delays of the last events.
      *
      * @return
      */
     private String getDelayString() {
-        // Empty the StringBuffer
+        // Empty the StringBuilder
         mDelayStringBuffer.setLength(0);
 
-        for (Long delay : mEventDelays) {
-            if (delay != mEventDelays.peek()) {
+        for (int i = 0; i < mDelays.size(); i++) {
+            if (i > 0) {
                 mDelayStringBuffer.append(", ");
             }
             // Convert delay from ms into s, and format to 2 decimal places
-            mDelayStringBuffer.append(String.format("%.2f", delay / 1000f));
+            FixedPointFormat.append(mDelayStringBuffer, mDelays.get(i), 3, 2);
         }
 
         return mDelayStringBuffer.toString();
     }
 
+    private final StringBuilder mCadenceStringBuffer = new StringBuilder();
+
     /**
-     * Records the step orientations for the event.
-     * <p/>
-     * Since the USF step counter also has an orientation for each step, we add them as
-     * elements event.values[1] to event.values[X], where X is the number of samples since
-     * the last notification.  So, the total array size is X + 1.
-     *
-     * For example, if there are 3 steps taken since the last time that listeners were notified
-     * with the total step count of 5:
-     * - Step A, orientation 25
-     * - Step B, orientation 30
-     * - Step C, orientation 45
+     * Returns the cadence of the current walking segment in steps per minute, or "-" if it is not
+     * known yet.
      *
-     * event.values would contain the following four values:
-     * values[0] = 8;   // Total step counter since service was started
-     * values[1] = 25;  // orientation for Step A
-     * values[2] = 30;  // orientation for Step B
-     * values[3] = 45;  // orientation for Step C
+     * @return
+     */
+    private String getCadenceString() {
+        final float cadence = mCadence.getCadence();
+        return Float.isNaN(cadence) ? "-" : Integer.toString(Math.round(cadence));
+    }
+
+    /**
+     * Returns the variability of the step interval of the current walking segment in percent,
+     * formatted to 1 decimal place, or "-" if it is not known yet.
      *
-     * @param event
-     */
-    private void recordOrientations(SensorEvent event) {
-        if (event.values.length > 1) {
-            // There is at least one orientation value, starting at event.values[1]
-            for (int i = 1; i < event.values.length; i++) {
-                Log.d(TAG, "Raw orientation for new step " + i + "=" + event.values[i]);
-                Orientation orientation = Orientation.toDirection(event.values[i]);
-                Log.d(TAG, "Direction for new step " + i + "=" + orientation.text);
-                mStepOrientations.add(event.values[i]);
-            }
+     * @return
+     */
+    private String getVariabilityString() {
+        final float variability = mCadence.getCadenceVariability();
+        if (Float.isNaN(variability)) {
+            return "-";
         }
+        mCadenceStringBuffer.setLength(0);
+        FixedPointFormat.append(mCadenceStringBuffer, Math.round(variability * 1000), 1, 1);
+        return mCadenceStringBuffer.toString();
     }
 
-    private final StringBuffer mOrientationStringBuffer = new StringBuffer();
-
     /**
-     * Returns a string describing the orientations recorded in
-     * {@link #recordOrientations(edu.usf.csee.hardware.SensorEvent)}.
+     * Returns the idle time between the walking segments in s, formatted to 1 decimal place.
      *
      * @return
      */
-    private String getOrientationString() {
-        // Empty the StringBuffer
-        mOrientationStringBuffer.setLength(0);
-
-        for (Float orient : mStepOrientations) {
-            if (orient != mStepOrientations.peek()) {
-                mOrientationStringBuffer.append(", ");
-            }
+    private String getIdleTimeString() {
+        mCadenceStringBuffer.setLength(0);
+        FixedPointFormat.append(mCadenceStringBuffer, mIdleTime, 9, 1);
+        return mCadenceStringBuffer.toString();
+    }
 
-            mOrientationStringBuffer.append(Orientation.toDirection(orient));
+    /**
+     * Returns the steps of today and of the last 7 days from the rollups of the service, or "-"
+     * if they are not available.
+     *
+     * @return
+     */
+    private String getHistoryString() {
+        if (mRollups == null) {
+            return "-";
         }
+        final long now = System.currentTimeMillis();
+        final long local = now + TimeZone.getDefault().getOffset(now);
+        return getString(R.string.counting_history, mRollups.getStepsOfDay(local),
+                mRollups.getStepsOfDays(local, 7));
+    }
 
-        return mOrientationStringBuffer.toString();
+    /**
+     * Returns a string describing the orientations of the last steps. The text is maintained
+     * incrementally as records are read, see {@link LabelRing}.
+     *
+     * @return
+     */
+    private String getOrientationString() {
+        return mDirectionLabels.toString();
     }
 
     /**
@@ -553,6 +1036,7 @@ public class BatchStepSensorFragment extends Fragment implements OnCardClickList
         outState.putInt(BUNDLE_LATENCY, mMaxDelay);
         outState.putInt(BUNDLE_STATE, mState);
         outState.putInt(BUNDLE_STEPS, mSteps);
+        outState.putBoolean(BUNDLE_BATCHMODE, mBatchMode);
     }
 
     @Override
@@ -561,18 +1045,17 @@ public class BatchStepSensorFragment extends Fragment implements OnCardClickList
 
         // Fragment is being restored, reinitialise its state with data from the bundle
         if (savedInstanceState != null) {
-            resetCounter();
+            // The service keeps counting across configuration changes and is not registered
+            // again. These values are shown until the first snapshot arrives, and are used to
+            // continue counting if the service has been killed in the meantime.
             mSteps = savedInstanceState.getInt(BUNDLE_STEPS);
             mState = savedInstanceState.getInt(BUNDLE_STATE);
             mMaxDelay = savedInstanceState.getInt(BUNDLE_LATENCY);
+            mBatchMode = savedInstanceState.getBoolean(BUNDLE_BATCHMODE, true);
 
-            // Register listeners again if in detector or counter states with restored delay
-            if (mState == STATE_DETECTOR) {
-                registerEventListener(mMaxDelay, Sensor.TYPE_STEP_DETECTOR);
-            } else if (mState == STATE_COUNTER) {
-                // store the previous number of steps to keep  step counter count consistent
-                mPreviousCounterSteps = mSteps;
-                registerEventListener(mMaxDelay, Sensor.TYPE_STEP_COUNTER);
+            // If no cards are being restored, update them right away
+            if (!getCardStream().isRestoring()) {
+                onCardStreamRestored();
             }
         }
     }
@@ -584,6 +1067,7 @@ public class BatchStepSensorFragment extends Fragment implements OnCardClickList
         // Hide the registration cards
         getCardStream().hideCard(CARD_REGISTER_DETECTOR);
         getCardStream().hideCard(CARD_REGISTER_COUNTER);
+        getCardStream().hideCard(CARD_REGISTER_BOTH);
 
         // Show the explanation card if it has not been dismissed
         getCardStream().showCard(CARD_EXPLANATION);
@@ -591,22 +1075,25 @@ public class BatchStepSensorFragment extends Fragment implements OnCardClickList
         // Reset the step counter, then show the step counting card
         resetCounter();
 
-        // Set the inital text for the step counting card before a step is recorded
-        String sensor = "-";
-        if (mState == STATE_COUNTER) {
-            sensor = getString(R.string.sensor_counter);
-        } else if (mState == STATE_DETECTOR) {
-            sensor = getString(R.string.sensor_detector);
-        }
-        // Set initial text
+        // Set initial text for the step counting card before a step is recorded
         getCardStream().getCard(CARD_COUNTING)
                 .setTitle(getString(R.string.counting_title, 0))
-                .setDescription(getString(R.string.counting_description, sensor, mMaxDelay,
-                        EVENT_QUEUE_LENGTH, "-",
-                        ORIENTATION_QUEUE_LENGTH, "-"));
+                .setDescription(getString(R.string.counting_description, getSensorName(),
+                        mMaxDelay, EVENT_QUEUE_LENGTH, "-",
+                        ORIENTATION_QUEUE_LENGTH, "-", "-", "-", 0, "0", getHistoryString()));
 
         // Show the counting card and make it undismissable
         getCardStream().showCard(CARD_COUNTING, false);
+
+        // Show the path card below it
+        getCardStream().showCard(CARD_PATH);
+        updatePathCard();
+
+        // Show the sessions below, including the one that is starting
+        getCardStream().showCard(CARD_SESSIONS);
+        updateSessionsCard();
+        getCardStream().showCard(CARD_POWER);
+        updatePowerCard();
     }
 
     /**
@@ -621,17 +1108,25 @@ public class BatchStepSensorFragment extends Fragment implements OnCardClickList
     }
 
     /**
-     * Show two registration cards, one for the step detector and counter sensors.
+     * Show the registration cards, one for each step sensor and one for both sensors.
      */
     private void showRegisterCard() {
         // Hide the counting and explanation cards
         getCardStream().hideCard(CARD_BATCHING_DESCRIPTION);
         getCardStream().hideCard(CARD_EXPLANATION);
         getCardStream().hideCard(CARD_COUNTING);
+        getCardStream().hideCard(CARD_PATH);
 
-        // Show two undismissable registration cards, one for each step sensor
-        //getCardStream().showCard(CARD_REGISTER_DETECTOR, false);
+        // Show undismissable registration cards, one for each step sensor and one for both
+        getCardStream().showCard(CARD_REGISTER_DETECTOR, false);
         getCardStream().showCard(CARD_REGISTER_COUNTER, false);
+        getCardStream().showCard(CARD_REGISTER_BOTH, false);
+
+        // Show the recorded sessions and the batching costs below the registration cards
+        getCardStream().showCard(CARD_SESSIONS);
+        updateSessionsCard();
+        getCardStream().showCard(CARD_POWER);
+        updatePowerCard();
     }
 
     /**
@@ -650,6 +1145,38 @@ public class BatchStepSensorFragment extends Fragment implements OnCardClickList
                 .setTitle("Steps")
                 .setDescription("")
                 .addAction("Unregister Listener", ACTION_UNREGISTER, Card.ACTION_NEGATIVE)
+                .addAction(getString(R.string.action_export_csv), ACTION_EXPORT_CSV,
+                        Card.ACTION_NEUTRAL)
+                .addAction(getString(R.string.action_export_json), ACTION_EXPORT_JSON,
+                        Card.ACTION_NEUTRAL)
+                .build(getActivity());
+        getCardStream().addCard(c);
+
+        // Dead reckoning path
+        c = new Card.Builder(this, CARD_PATH)
+                .setTitle(getString(R.string.path_title))
+                .setDescription("")
+                .setLayout(R.layout.card_path)
+                .build(getActivity());
+        getCardStream().addCard(c);
+
+        // Recorded sessions
+        c = new Card.Builder(this, CARD_SESSIONS)
+                .setTitle(getString(R.string.sessions_title))
+                .setDescription("")
+                .addAction(getString(R.string.action_sessions_newer), ACTION_SESSIONS_NEWER,
+                        Card.ACTION_NEUTRAL)
+                .addAction(getString(R.string.action_sessions_older), ACTION_SESSIONS_OLDER,
+                        Card.ACTION_NEUTRAL)
+                .build(getActivity());
+        getCardStream().addCard(c);
+
+        // Wakeups and CPU time per batch latency mode
+        c = new Card.Builder(this, CARD_POWER)
+                .setTitle(getString(R.string.power_title))
+                .setDescription("")
+                .addAction(getString(R.string.action_export_csv), ACTION_EXPORT_POWER,
+                        Card.ACTION_NEUTRAL)
                 .build(getActivity());
         getCardStream().addCard(c);
 
@@ -679,6 +1206,17 @@ public class BatchStepSensorFragment extends Fragment implements OnCardClickList
                 .build(getActivity());
         getCardStream().addCard(c);
 
+        // Register step detector and step counter listeners
+        c = new Card.Builder(this, CARD_REGISTER_BOTH)
+                .setTitle(getString(R.string.register_both_title))
+                .setDescription(getString(R.string.register_both_description))
+                .addAction(getString(R.string.register_both_5),
+                        ACTION_REGISTER_BOTH_BATCHING_5s, Card.ACTION_NEUTRAL)
+                .addAction(getString(R.string.register_both_10),
+                        ACTION_REGISTER_BOTH_BATCHING_10s, Card.ACTION_NEUTRAL)
+                .build(getActivity());
+        getCardStream().addCard(c);
+
 
         // Batching description
         c = new Card.Builder(this, CARD_BATCHING_DESCRIPTION)
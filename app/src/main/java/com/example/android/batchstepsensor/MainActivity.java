@@ -25,7 +25,6 @@ import com.example.android.batchstepsensor.cardstream.CardStream;
 import com.example.android.batchstepsensor.cardstream.CardStreamFragment;
 import com.example.android.batchstepsensor.cardstream.CardStreamState;
 import com.example.android.batchstepsensor.cardstream.OnCardClickListener;
-import com.example.android.batchstepsensor.cardstream.StreamRetentionFragment;
 import com.example.android.common.activities.SampleActivityBase;
 
 public class MainActivity extends SampleActivityBase implements CardStream {
@@ -34,13 +33,15 @@ public class MainActivity extends SampleActivityBase implements CardStream {
 
     private CardStreamFragment mCardStreamFragment;
 
-    private StreamRetentionFragment mRetentionFragment;
-    private static final String RETENTION_TAG = "retention";
+    // Bundle tag of the card stream state
+    private static final String BUNDLE_CARDSTREAM = "cardstream";
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
+        // Report card operations that keep the main thread busy for too long
+        getCardStream().setWatchdog(MainThreadWatchdog.get(this));
 
         FragmentManager fm = getSupportFragmentManager();
         BatchStepSensorFragment fragment =
@@ -60,19 +61,16 @@ public class MainActivity extends SampleActivityBase implements CardStream {
         }
         OnCardClickListener clickListener = (OnCardClickListener) fm.findFragmentByTag(FRAGTAG);
 
-        mRetentionFragment = (StreamRetentionFragment) fm.findFragmentByTag(RETENTION_TAG);
-        if (mRetentionFragment == null) {
-            mRetentionFragment = new StreamRetentionFragment();
-            fm.beginTransaction().add(mRetentionFragment, RETENTION_TAG).commit();
-        } else {
-            // If the retention fragment already existed, we need to pull some state.
-            // pull state out
-            CardStreamState state = mRetentionFragment.getCardStream();
+        if (savedInstanceState != null) {
+            // The activity is recreated after a configuration change or after the process was
+            // killed, pull the card stream state out of the saved instance state.
+            CardStreamState state = savedInstanceState.getParcelable(BUNDLE_CARDSTREAM);
 
-            // dump it in CardStreamFragment.
-            mCardStreamFragment =
-                    (CardStreamFragment) fm.findFragmentById(R.id.fragment_cardstream);
-            mCardStreamFragment.restoreState(state, clickListener);
+            // dump it in CardStreamFragment. Cards are restored in the background, the fragment
+            // is notified once they are all available.
+            if (state != null) {
+                getCardStream().restoreState(state, clickListener, fragment);
+            }
         }
     }
 
@@ -88,6 +86,6 @@ public class MainActivity extends SampleActivityBase implements CardStream {
     protected void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
         CardStreamState state = getCardStream().dumpState();
-        mRetentionFragment.storeCardStream(state);
+        outState.putParcelable(BUNDLE_CARDSTREAM, state);
     }
 }
@@ -0,0 +1,91 @@
+/*
+* Copyright 2014 The Android Open Source Project, University of South Florida
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.example.android.batchstepsensor;
+
+import android.content.Context;
+import android.os.Looper;
+
+import com.example.android.common.logger.Log;
+import com.example.android.stepcore.StageWatchdog;
+
+/**
+ * Holds the {@link StageWatchdog} of the main thread of the current process. The service and the
+ * UI run in different processes, each of them gets its own watchdog.
+ * <p/>
+ * Stages that exceed the budget set in {@code R.integer.watchdog_budget_us} are reported to the
+ * log, together with the batch size of the stage and the stack of the main thread that was
+ * sampled once the budget had passed.
+ */
+final class MainThreadWatchdog {
+
+    private static final String TAG = "MainThreadWatchdog";
+
+    // Number of frames of a sampled stack that are logged
+    private static final int MAX_FRAMES = 16;
+
+    private static StageWatchdog sWatchdog = null;
+
+    private MainThreadWatchdog() {
+    }
+
+    /**
+     * Returns the watchdog of the main thread, it is created and started on the first call.
+     *
+     * @param context
+     * @return
+     */
+    static synchronized StageWatchdog get(Context context) {
+        if (sWatchdog == null) {
+            final long budget = context.getResources().getInteger(R.integer.watchdog_budget_us)
+                    * 1000L;
+            sWatchdog = new StageWatchdog(Looper.getMainLooper().getThread(), budget,
+                    sOverrunListener);
+            sWatchdog.start();
+        }
+        return sWatchdog;
+    }
+
+    private static final StageWatchdog.OverrunListener sOverrunListener =
+            new StageWatchdog.OverrunListener() {
+                @Override
+                public void onOverrun(String stage, String innerStage, long durationNanos,
+                                      int batchSize, StackTraceElement[] stack) {
+                    final StringBuilder sb = new StringBuilder(256);
+                    sb.append("Main thread overrun in ").append(stage);
+                    if (innerStage != null && !innerStage.equals(stage)) {
+                        sb.append(" (in ").append(innerStage).append(')');
+                    }
+                    sb.append(": ").append(durationNanos / 1000L).append("us, batch of ")
+                            .append(batchSize).append(", overruns: ")
+                            .append(sWatchdog.getOverrunCount()).append(", max: ")
+                            .append(sWatchdog.getMaxDuration() / 1000L).append("us");
+                    if (stack == null) {
+                        sb.append("\n\tno stack sampled");
+                    } else {
+                        final int frames = Math.min(stack.length, MAX_FRAMES);
+                        for (int i = 0; i < frames; i++) {
+                            sb.append("\n\tat ").append(stack[i]);
+                        }
+                        if (stack.length > frames) {
+                            sb.append("\n\t... ").append(stack.length - frames).append(" more");
+                        }
+                    }
+                    Log.w(TAG, sb.toString());
+                }
+            };
+}
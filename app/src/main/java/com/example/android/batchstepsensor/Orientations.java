@@ -0,0 +1,87 @@
+/*
+* Copyright 2014 The Android Open Source Project, University of South Florida
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.example.android.batchstepsensor;
+
+import com.example.android.stepcore.OrientationDecoder;
+
+import edu.usf.csee.trackingsteps.data.Orientation;
+
+/**
+ * Decoding of USF step orientations into {@link Orientation} directions. The decoder is built once
+ * per process from {@link Orientation#toDirection(float)}, directions are the ordinals of the
+ * enum.
+ */
+class Orientations {
+
+    // Range and resolution of the lookup table, in degrees
+    private static final float TABLE_MIN = -360.f;
+    private static final float TABLE_MAX = 360.f;
+    private static final float TABLE_RESOLUTION = 0.25f;
+
+    private static final Orientation[] DIRECTIONS = Orientation.values();
+
+    private static final OrientationDecoder.Fallback EXACT = new OrientationDecoder.Fallback() {
+        @Override
+        public int getDirection(float orientation) {
+            return Orientation.toDirection(orientation).ordinal();
+        }
+    };
+
+    private static OrientationDecoder sDecoder = null;
+    private static String[] sLabels = null;
+
+    private Orientations() {
+    }
+
+    /**
+     * Returns the shared decoder, the lookup table is built on the first call.
+     *
+     * @return
+     */
+    static synchronized OrientationDecoder getDecoder() {
+        if (sDecoder == null) {
+            sDecoder = OrientationDecoder.create(TABLE_MIN, TABLE_MAX, TABLE_RESOLUTION, EXACT);
+        }
+        return sDecoder;
+    }
+
+    /**
+     * Returns the text of every direction, indexed by direction.
+     *
+     * @return
+     */
+    static synchronized String[] getLabels() {
+        if (sLabels == null) {
+            sLabels = new String[DIRECTIONS.length];
+            for (int i = 0; i < DIRECTIONS.length; i++) {
+                sLabels[i] = DIRECTIONS[i].toString();
+            }
+        }
+        return sLabels;
+    }
+
+    /**
+     * Returns the {@link Orientation} of a direction returned by the decoder.
+     *
+     * @param direction
+     * @return
+     */
+    static Orientation get(int direction) {
+        return DIRECTIONS[direction];
+    }
+}
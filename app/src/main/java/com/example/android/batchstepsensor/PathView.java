@@ -0,0 +1,372 @@
+/*
+* Copyright 2014 The Android Open Source Project, University of South Florida
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.example.android.batchstepsensor;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.View;
+
+import com.example.android.stepcore.PathLod;
+import com.example.android.stepcore.Polyline;
+
+/**
+ * Draws a dead reckoning {@link Polyline} scaled to fit the view, with the current position at
+ * the end of the path. The path can be zoomed with a pinch and moved by dragging, a double tap
+ * fits the whole path into the view again.
+ * <p/>
+ * The path is rendered incrementally into an offscreen bitmap: when new points have been appended
+ * only the new segments are drawn, every frame just draws the bitmap and the position. Segments
+ * shorter than {@link #MIN_SEGMENT_PX} on screen are merged. While the whole path is shown, it is
+ * only fitted and drawn again when it leaves the visible area, the fitted area has a margin
+ * around the path so that this happens rarely.
+ * <p/>
+ * The path is drawn again from a {@link PathLod} index: the level of detail is chosen by the size
+ * of a pixel and only the chunks of the path within the view are drawn, so the cost of a redraw
+ * depends on the size of the view and not on the length of the path.
+ */
+public class PathView extends View implements PathLod.SegmentHandler {
+
+    // Points closer than this on screen are merged into one segment
+    private static final float MIN_SEGMENT_PX = 2.f;
+    // Margin around the path when it is fitted into the view, as a fraction of its extent
+    private static final float FIT_MARGIN = 0.5f;
+    // Smallest extent shown, in meters
+    private static final float MIN_EXTENT = 10.f;
+    // Segments are drawn in batches of this size
+    private static final int BATCH_SEGMENTS = 256;
+    // Tolerance of the first simplified level of detail, in meters, and number of levels
+    private static final float LOD_TOLERANCE = 0.1f;
+    private static final int LOD_LEVELS = 12;
+    // Zoom limits, in pixels per meter
+    private static final float MIN_SCALE = 0.01f;
+    private static final float MAX_SCALE = 500.f;
+
+    private Polyline mPath = null;
+    private PathLod mLod = null;
+
+    private final Paint mPathPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mPositionPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final float mPositionRadius;
+
+    // Rendered path
+    private Bitmap mBitmap = null;
+    private Canvas mBitmapCanvas = null;
+    // Number of points of the path rendered into the bitmap
+    private int mDrawnCount = 0;
+    // Screen position of the last rendered point
+    private float mLastDrawnX;
+    private float mLastDrawnY;
+
+    // Transformation from path coordinates to the screen: x * scale + offsetX, -y * scale + offsetY
+    private boolean mFitted = false;
+    // Whether the whole path is shown, false after it has been zoomed or moved
+    private boolean mFollow = true;
+    // Whether the bitmap has to be drawn again, after the view was zoomed or moved
+    private boolean mRedraw = false;
+    private float mScale = 1.f;
+    private float mOffsetX = 0.f;
+    private float mOffsetY = 0.f;
+
+    private final float[] mSegments = new float[4 * BATCH_SEGMENTS];
+    private int mSegmentCount = 0;
+
+    private final ScaleGestureDetector mScaleDetector;
+    private final GestureDetector mGestureDetector;
+
+    public PathView(Context context) {
+        this(context, null);
+    }
+
+    public PathView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        final float density = context.getResources().getDisplayMetrics().density;
+        mPathPaint.setColor(getResources().getColor(R.color.card_action));
+        mPathPaint.setStrokeWidth(2.f * density);
+        mPathPaint.setStrokeCap(Paint.Cap.ROUND);
+        mPositionPaint.setColor(getResources().getColor(R.color.card_action_negative));
+        mPositionRadius = 4.f * density;
+
+        mScaleDetector = new ScaleGestureDetector(context, mScaleListener);
+        mGestureDetector = new GestureDetector(context, mGestureListener);
+    }
+
+    /**
+     * Set the path to draw. The path is owned by the caller, {@link #onPathChanged()} must be
+     * called whenever points have been added or the path has been cleared.
+     *
+     * @param path
+     */
+    public void setPath(Polyline path) {
+        mPath = path;
+        if (mLod == null) {
+            mLod = new PathLod(path, LOD_TOLERANCE, LOD_LEVELS);
+        } else {
+            mLod.reset(path);
+        }
+        mFitted = false;
+        mFollow = true;
+        invalidate();
+    }
+
+    public Polyline getPath() {
+        return mPath;
+    }
+
+    /**
+     * Draws the points that have been added to the path since the last frame.
+     */
+    public void onPathChanged() {
+        invalidate();
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        if (mBitmap != null) {
+            mBitmap.recycle();
+            mBitmap = null;
+            mBitmapCanvas = null;
+        }
+        if (w > 0 && h > 0) {
+            mBitmap = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+            mBitmapCanvas = new Canvas(mBitmap);
+        }
+        mFitted = false;
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        if (mBitmap != null) {
+            mBitmap.recycle();
+            mBitmap = null;
+            mBitmapCanvas = null;
+        }
+        mFitted = false;
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (mPath == null || mPath.size() == 0) {
+            return;
+        }
+        if (mBitmap == null) {
+            if (getWidth() == 0 || getHeight() == 0) {
+                return;
+            }
+            onSizeChanged(getWidth(), getHeight(), 0, 0);
+        }
+
+        mLod.update();
+        if (!mFitted || mPath.size() < mDrawnCount || (mFollow && !isInView())) {
+            // First frame, the path was cleared or it has left the visible area
+            fit();
+            redraw();
+        } else if (mRedraw) {
+            redraw();
+        }
+        drawNewPoints();
+
+        canvas.drawBitmap(mBitmap, 0, 0, null);
+        final int last = mPath.size() - 1;
+        canvas.drawCircle(toScreenX(mPath.getX(last)), toScreenY(mPath.getY(last)),
+                mPositionRadius, mPositionPaint);
+    }
+
+    /**
+     * Returns true if the bounding box of the path is within the view.
+     */
+    private boolean isInView() {
+        return toScreenX(mPath.getMinX()) >= 0 && toScreenX(mPath.getMaxX()) <= getWidth()
+                && toScreenY(mPath.getMaxY()) >= 0 && toScreenY(mPath.getMinY()) <= getHeight();
+    }
+
+    /**
+     * Fits the bounding box of the path and a margin into the view.
+     */
+    private void fit() {
+        final float extentX = Math.max(MIN_EXTENT, mPath.getMaxX() - mPath.getMinX());
+        final float extentY = Math.max(MIN_EXTENT, mPath.getMaxY() - mPath.getMinY());
+        final float width = getWidth() - getPaddingLeft() - getPaddingRight();
+        final float height = getHeight() - getPaddingTop() - getPaddingBottom();
+        mScale = Math.min(width / (extentX * (1.f + 2.f * FIT_MARGIN)),
+                height / (extentY * (1.f + 2.f * FIT_MARGIN)));
+
+        final float centerX = (mPath.getMinX() + mPath.getMaxX()) / 2.f;
+        final float centerY = (mPath.getMinY() + mPath.getMaxY()) / 2.f;
+        mOffsetX = getPaddingLeft() + width / 2.f - centerX * mScale;
+        mOffsetY = getPaddingTop() + height / 2.f + centerY * mScale;
+        mFitted = true;
+    }
+
+    /**
+     * Draws the visible part of the path into the cleared bitmap, at the level of detail of the
+     * current scale.
+     */
+    private void redraw() {
+        mRedraw = false;
+        mBitmap.eraseColor(Color.TRANSPARENT);
+
+        final int level = mLod.selectLevel(MIN_SEGMENT_PX / mScale);
+        mLod.query(level, toPathX(0), toPathY(getHeight()), toPathX(getWidth()), toPathY(0), this);
+        flushSegments();
+
+        final int last = mPath.size() - 1;
+        mDrawnCount = mPath.size();
+        mLastDrawnX = toScreenX(mPath.getX(last));
+        mLastDrawnY = toScreenY(mPath.getY(last));
+    }
+
+    @Override
+    public void onSegment(float x0, float y0, float x1, float y1) {
+        addSegment(toScreenX(x0), toScreenY(y0), toScreenX(x1), toScreenY(y1));
+    }
+
+    /**
+     * Renders the points that have not been drawn yet into the bitmap.
+     */
+    private void drawNewPoints() {
+        final int size = mPath.size();
+        int i = mDrawnCount;
+        if (i == 0) {
+            mLastDrawnX = toScreenX(mPath.getX(0));
+            mLastDrawnY = toScreenY(mPath.getY(0));
+            i = 1;
+        }
+        for (; i < size; i++) {
+            final float x = toScreenX(mPath.getX(i));
+            final float y = toScreenY(mPath.getY(i));
+            final float dx = x - mLastDrawnX;
+            final float dy = y - mLastDrawnY;
+            if (dx * dx + dy * dy < MIN_SEGMENT_PX * MIN_SEGMENT_PX) {
+                continue;
+            }
+            addSegment(mLastDrawnX, mLastDrawnY, x, y);
+            mLastDrawnX = x;
+            mLastDrawnY = y;
+        }
+        flushSegments();
+        mDrawnCount = size;
+    }
+
+    private void addSegment(float x0, float y0, float x1, float y1) {
+        if (mSegmentCount == BATCH_SEGMENTS) {
+            flushSegments();
+        }
+        final int offset = 4 * mSegmentCount;
+        mSegments[offset] = x0;
+        mSegments[offset + 1] = y0;
+        mSegments[offset + 2] = x1;
+        mSegments[offset + 3] = y1;
+        mSegmentCount++;
+    }
+
+    private void flushSegments() {
+        if (mSegmentCount > 0) {
+            mBitmapCanvas.drawLines(mSegments, 0, 4 * mSegmentCount, mPathPaint);
+            mSegmentCount = 0;
+        }
+    }
+
+    private float toScreenX(float x) {
+        return x * mScale + mOffsetX;
+    }
+
+    private float toScreenY(float y) {
+        // The y axis of the path points north, up on the screen
+        return -y * mScale + mOffsetY;
+    }
+
+    private float toPathX(float screenX) {
+        return (screenX - mOffsetX) / mScale;
+    }
+
+    private float toPathY(float screenY) {
+        return (mOffsetY - screenY) / mScale;
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        if (mPath == null || !mFitted) {
+            return super.onTouchEvent(event);
+        }
+        if (event.getActionMasked() == MotionEvent.ACTION_DOWN) {
+            // Keep the card stream from scrolling or swiping the card while the path is moved
+            getParent().requestDisallowInterceptTouchEvent(true);
+        }
+        mScaleDetector.onTouchEvent(event);
+        mGestureDetector.onTouchEvent(event);
+        return true;
+    }
+
+    private final ScaleGestureDetector.SimpleOnScaleGestureListener mScaleListener =
+            new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+                @Override
+                public boolean onScale(ScaleGestureDetector detector) {
+                    final float scale = Math.max(MIN_SCALE,
+                            Math.min(MAX_SCALE, mScale * detector.getScaleFactor()));
+                    // Keep the path under the focus point in place
+                    final float factor = scale / mScale;
+                    mOffsetX = detector.getFocusX() - (detector.getFocusX() - mOffsetX) * factor;
+                    mOffsetY = detector.getFocusY() - (detector.getFocusY() - mOffsetY) * factor;
+                    mScale = scale;
+                    moved();
+                    return true;
+                }
+            };
+
+    private final GestureDetector.SimpleOnGestureListener mGestureListener =
+            new GestureDetector.SimpleOnGestureListener() {
+                @Override
+                public boolean onDown(MotionEvent e) {
+                    return true;
+                }
+
+                @Override
+                public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX,
+                                        float distanceY) {
+                    mOffsetX -= distanceX;
+                    mOffsetY -= distanceY;
+                    moved();
+                    return true;
+                }
+
+                @Override
+                public boolean onDoubleTap(MotionEvent e) {
+                    // Show the whole path again
+                    mFollow = true;
+                    mFitted = false;
+                    invalidate();
+                    return true;
+                }
+            };
+
+    private void moved() {
+        mFollow = false;
+        mRedraw = true;
+        invalidate();
+    }
+}
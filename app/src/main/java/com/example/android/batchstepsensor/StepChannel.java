@@ -0,0 +1,283 @@
+/*
+* Copyright 2014 The Android Open Source Project, University of South Florida
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.example.android.batchstepsensor;
+
+import android.content.Context;
+
+import com.example.android.stepcore.CounterBaseline;
+import com.example.android.stepcore.PathBuffer;
+import com.example.android.stepcore.PowerStats;
+import com.example.android.stepcore.SessionIndex;
+import com.example.android.stepcore.StepArchive;
+import com.example.android.stepcore.StepRing;
+import com.example.android.stepcore.StepRollups;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Shared memory channel between the {@link StepCollectorService} and the UI. The step records are
+ * kept in a {@link StepRing} in a memory mapped file, the service writes the records and the UI
+ * maps the same file read only. Only a small notification without payload is sent through the
+ * Binder for every batch, so the cost of refreshing the UI does not depend on the batch size.
+ * The dead reckoning path of the service is shared the same way in a {@link PathBuffer}.
+ * <p/>
+ * The {@link StepRollups} are shared the same way, but are kept in the files directory of the
+ * application instead of the cache, they hold the step history and are never reset. The raw step
+ * records are kept next to them in a compressed {@link StepArchive}, which is written by the
+ * service and read from the file by the UI, and the counting sessions in a {@link SessionIndex}.
+ * The service also keeps a {@link CounterBaseline} checkpoint there, which is only used by the
+ * service itself, and the {@link PowerStats} of the batch latency modes.
+ */
+class StepChannel {
+
+    private static final String FILE_NAME = "steps.ring";
+    // Number of step records kept in the ring, a UI that falls further behind skips records
+    private static final int CAPACITY = 512;
+
+    private static final String PATH_FILE_NAME = "steps.path";
+    // Number of path points (512KB), longer paths are downsampled
+    private static final int PATH_CAPACITY = 65536;
+
+    private static final String ROLLUPS_FILE_NAME = "steps.rollups";
+    private static final String ARCHIVE_FILE_NAME = "steps.archive";
+    private static final String SESSIONS_FILE_NAME = "steps.sessions";
+    private static final String CHECKPOINT_FILE_NAME = "steps.checkpoint";
+    private static final String POWER_FILE_NAME = "steps.power";
+
+    private StepChannel() {
+    }
+
+    /**
+     * Maps the channel file for writing and formats it as an empty ring.
+     *
+     * @param context
+     * @return
+     * @throws IOException
+     */
+    static StepRing create(Context context) throws IOException {
+        return StepRing.format(
+                map(getCacheFile(context, FILE_NAME), StepRing.getBufferSize(CAPACITY)),
+                CAPACITY);
+    }
+
+    /**
+     * Maps the channel file read only. The file must have been created by the service.
+     *
+     * @param context
+     * @return
+     * @throws IOException if the file does not exist or is not a ring
+     */
+    static StepRing open(Context context) throws IOException {
+        try {
+            return StepRing.attach(map(getCacheFile(context, FILE_NAME), -1));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid step channel: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Maps the path file for writing and formats it as an empty path.
+     *
+     * @param context
+     * @return
+     * @throws IOException
+     */
+    static PathBuffer createPath(Context context) throws IOException {
+        return PathBuffer.format(map(getCacheFile(context, PATH_FILE_NAME),
+                PathBuffer.getBufferSize(PATH_CAPACITY)), PATH_CAPACITY);
+    }
+
+    /**
+     * Maps the path file read only. The file must have been created by the service.
+     *
+     * @param context
+     * @return
+     * @throws IOException if the file does not exist or is not a path
+     */
+    static PathBuffer openPath(Context context) throws IOException {
+        try {
+            return PathBuffer.attach(map(getCacheFile(context, PATH_FILE_NAME), -1));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid path channel: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Maps the rollups file for writing. Existing rollups are kept.
+     *
+     * @param context
+     * @return
+     * @throws IOException
+     */
+    static StepRollups createRollups(Context context) throws IOException {
+        return StepRollups.open(map(getRollupsFile(context), StepRollups.getBufferSize()));
+    }
+
+    /**
+     * Maps the rollups file read only. The file must have been created by the service.
+     *
+     * @param context
+     * @return
+     * @throws IOException if the file does not exist or does not hold rollups
+     */
+    static StepRollups openRollups(Context context) throws IOException {
+        try {
+            return StepRollups.attach(map(getRollupsFile(context), -1));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid rollups file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Maps the session index for writing. Existing sessions are kept.
+     *
+     * @param context
+     * @return
+     * @throws IOException
+     */
+    static SessionIndex createSessions(Context context) throws IOException {
+        return SessionIndex.open(map(getSessionsFile(context), SessionIndex.getBufferSize()));
+    }
+
+    /**
+     * Maps the session index read only. The file must have been created by the service.
+     *
+     * @param context
+     * @return
+     * @throws IOException if the file does not exist or does not hold a session index
+     */
+    static SessionIndex openSessions(Context context) throws IOException {
+        try {
+            return SessionIndex.attach(map(getSessionsFile(context), -1));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid session index: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Maps the step counter checkpoint for reading and writing. An existing checkpoint is kept.
+     *
+     * @param context
+     * @return
+     * @throws IOException
+     */
+    static ByteBuffer createCheckpoint(Context context) throws IOException {
+        return map(new File(context.getFilesDir(), CHECKPOINT_FILE_NAME),
+                CounterBaseline.CHECKPOINT_SIZE);
+    }
+
+    /**
+     * Maps the power stats for writing. Existing stats are kept.
+     *
+     * @param context
+     * @return
+     * @throws IOException
+     */
+    static PowerStats createPower(Context context) throws IOException {
+        return PowerStats.open(map(getPowerFile(context), PowerStats.getBufferSize()));
+    }
+
+    /**
+     * Maps the power stats read only. The file must have been created by the service.
+     *
+     * @param context
+     * @return
+     * @throws IOException if the file does not exist or does not hold power stats
+     */
+    static PowerStats openPower(Context context) throws IOException {
+        try {
+            return PowerStats.attach(map(getPowerFile(context), -1));
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid power stats: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Opens the step archive for appending, it is created if it does not exist.
+     *
+     * @param context
+     * @return
+     * @throws IOException
+     */
+    static StepArchive.Writer createArchive(Context context) throws IOException {
+        return new StepArchive.Writer(getArchiveFile(context));
+    }
+
+    /**
+     * Opens the step archive for reading. It holds the blocks written until now.
+     *
+     * @param context
+     * @return
+     * @throws IOException if the archive does not exist
+     */
+    static StepArchive.Reader openArchive(Context context) throws IOException {
+        return new StepArchive.Reader(getArchiveFile(context));
+    }
+
+    private static File getCacheFile(Context context, String name) {
+        return new File(context.getCacheDir(), name);
+    }
+
+    private static File getRollupsFile(Context context) {
+        return new File(context.getFilesDir(), ROLLUPS_FILE_NAME);
+    }
+
+    private static File getArchiveFile(Context context) {
+        return new File(context.getFilesDir(), ARCHIVE_FILE_NAME);
+    }
+
+    private static File getSessionsFile(Context context) {
+        return new File(context.getFilesDir(), SESSIONS_FILE_NAME);
+    }
+
+    private static File getPowerFile(Context context) {
+        return new File(context.getFilesDir(), POWER_FILE_NAME);
+    }
+
+    /**
+     * Maps a file of the channel in native byte order.
+     *
+     * @param path
+     * @param size size to map the file for writing with, or -1 to map the file read only
+     * @return
+     * @throws IOException
+     */
+    private static MappedByteBuffer map(File path, int size) throws IOException {
+        final RandomAccessFile file = new RandomAccessFile(path, size < 0 ? "r" : "rw");
+        try {
+            final MappedByteBuffer buffer;
+            if (size < 0) {
+                buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            } else {
+                file.setLength(size);
+                buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+            buffer.order(ByteOrder.nativeOrder());
+            return buffer;
+        } finally {
+            // The mapping stays valid after the file has been closed
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,1059 @@
+/*
+* Copyright 2014 The Android Open Source Project, University of South Florida
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.batchstepsensor;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.Process;
+import android.os.RemoteException;
+import android.support.v4.app.NotificationCompat;
+
+import com.example.android.common.logger.Log;
+import com.example.android.common.logger.LogWrapper;
+import com.example.android.stepcore.ByteRing;
+import com.example.android.stepcore.CadenceStats;
+import com.example.android.stepcore.CounterBaseline;
+import com.example.android.stepcore.EventReorderBuffer;
+import com.example.android.stepcore.FixedPointFormat;
+import com.example.android.stepcore.FloatRing;
+import com.example.android.stepcore.HeadingStats;
+import com.example.android.stepcore.LongRing;
+import com.example.android.stepcore.PathBuffer;
+import com.example.android.stepcore.PathBuilder;
+import com.example.android.stepcore.PowerStats;
+import com.example.android.stepcore.SessionIndex;
+import com.example.android.stepcore.StageWatchdog;
+import com.example.android.stepcore.StepArchive;
+import com.example.android.stepcore.StepEngine;
+import com.example.android.stepcore.StepRecorder;
+import com.example.android.stepcore.StepRing;
+import com.example.android.stepcore.StepRollups;
+import com.example.android.stepcore.StrideModel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.TimeZone;
+
+import edu.usf.csee.hardware.Sensor;
+import edu.usf.csee.hardware.SensorEvent;
+import edu.usf.csee.hardware.SensorEventListener;
+import edu.usf.csee.hardware.SensorManager;
+import edu.usf.csee.trackingsteps.data.Orientation;
+import edu.usf.csee.trackingsteps.util.TimeUtil;
+
+/**
+ * Foreground service that owns the step sensor registration and the {@link StepEngine}.
+ * <p/>
+ * Collection is started with {@link #MSG_START} and keeps running until {@link #MSG_STOP} is
+ * received, independent of the lifecycle of the UI. The listener stays registered while the
+ * screen is off, so the sensor keeps batching events and the device can sleep through the batch
+ * windows. Starting the service again with the same sensors and delays does not re-register the
+ * listener, the counter baseline is kept.
+ * <p/>
+ * The service runs in its own process. Clients talk to it through a {@link Messenger} and
+ * receive a {@link #MSG_STATE} snapshot when they register, whenever the registration changes,
+ * whenever the cross-validation of both step sensors changes and whenever a walking segment
+ * starts. The steps themselves are written
+ * to the shared memory {@link StepChannel}, registered clients are sent an empty
+ * {@link #MSG_DATA} notification after every processed sensor event and read all new records from
+ * the channel at once. The dead reckoning path of the steps is shared through the channel as
+ * well. Every counted step is also added to the persistent per minute, hour and day
+ * {@link StepRollups}, and every record is appended to the compressed {@link StepArchive} with
+ * its wall clock time. Archive blocks are written when they are full and when collection stops.
+ * <p/>
+ * Every count is a session in the persistent {@link SessionIndex}. A session is started when
+ * collection is started, continued when collection is restarted with {@link #KEY_STEPS} or by
+ * the system after the service was killed, and ended when collection stops. Its summary is
+ * updated with every batch.
+ * <p/>
+ * The step total and the {@link CounterBaseline} of the engine are saved to a checkpoint with
+ * every batch. When collection of the active session is restarted after the process was killed,
+ * counting continues from the checkpoint instead of the steps restored by the client. The USF
+ * step counter runs in this process and was reset with it, the steps it has counted since are
+ * added to the total.
+ * <p/>
+ * Every delivery of a sensor event, the CPU time of the sensor callback and the CPU time of the
+ * process are attributed to the batch latency mode in the persistent {@link PowerStats}.
+ */
+public class StepCollectorService extends Service {
+
+    private static final String TAG = "StepCollectorService";
+
+    // Messages from clients
+    /**
+     * Register the client in {@link Message#replyTo} for snapshots.
+     */
+    public static final int MSG_REGISTER_CLIENT = 1;
+    /**
+     * Unregister the client in {@link Message#replyTo}.
+     */
+    public static final int MSG_UNREGISTER_CLIENT = 2;
+    /**
+     * Start collecting, arg1 is the max batch delay of the step detector and arg2 the max batch
+     * delay of the step counter in microseconds, or {@link #DELAY_OFF} to not register the sensor.
+     * Continues counting from {@link #KEY_STEPS} if it is set in the data of the message.
+     */
+    public static final int MSG_START = 3;
+    /**
+     * Stop collecting and unregister the sensor listener.
+     */
+    public static final int MSG_STOP = 4;
+    /**
+     * Write the records that are held back by the {@link StepArchive}, the service replies with
+     * {@link #MSG_ARCHIVE_FLUSHED} to {@link Message#replyTo} and the same arg1.
+     */
+    public static final int MSG_FLUSH_ARCHIVE = 5;
+
+    // Messages to clients
+    /**
+     * Snapshot of the collection state, the data of the message contains the KEY_ values.
+     */
+    public static final int MSG_STATE = 10;
+    /**
+     * New step records and path points have been published to the {@link StepChannel}.
+     */
+    public static final int MSG_DATA = 11;
+    /**
+     * All records counted until {@link #MSG_FLUSH_ARCHIVE} was received are in the archive.
+     */
+    public static final int MSG_ARCHIVE_FLUSHED = 12;
+
+    // Keys of a snapshot
+    public static final String KEY_DETECTOR_DELAY = "detector_delay";
+    public static final String KEY_COUNTER_DELAY = "counter_delay";
+    public static final String KEY_BATCHMODE = "batchmode";
+    public static final String KEY_STEPS = "steps";
+    public static final String KEY_DISCREPANCY = "discrepancy";
+    public static final String KEY_SEGMENTS = "segments";
+    public static final String KEY_IDLE_TIME = "idle_time";
+    public static final String KEY_SESSION = "session";
+
+    /**
+     * Max batch delay of a sensor that is not registered.
+     */
+    public static final int DELAY_OFF = -1;
+
+    // Number of events to keep in queue and display on card
+    public static final int EVENT_QUEUE_LENGTH = 10;
+    // Number of orientations to keep in queue and display on card
+    public static final int ORIENTATION_QUEUE_LENGTH = 15;
+
+    private static final int NOTIFICATION_ID = 1;
+    // The step count of the notification is updated at most this often
+    private static final long NOTIFICATION_INTERVAL_NANOS = 5000000000L; // 5s
+    // Time zone offsets only change on quarter hours, the cached offset is checked again then
+    private static final long ZONE_OFFSET_CHECK_MS = 15 * 60 * 1000L;
+
+    // Events are held back this long after they were received, on top of the max batch delay, to
+    // put overlapping batches back into order
+    private static final long REORDER_WINDOW_NANOS = 200000000L; // 200ms
+    // Holds two batches of 10s of the step detector and step counter events
+    private static final int REORDER_CAPACITY = 128;
+    // Step count and up to 32 orientations per slot, longer events are split over several slots
+    private static final int REORDER_MAX_VALUES = 33;
+
+    // Heading statistics are computed over windows of this many steps
+    private static final int HEADING_WINDOW = 8;
+    // Difference of the mean headings of two windows that is reported as a turn, in degrees
+    private static final float TURN_THRESHOLD = 45.f;
+    // Both windows must be this concentrated (mean resultant length) to detect a turn
+    private static final float TURN_MIN_CONCENTRATION = 0.6f;
+
+    // Cadence is computed over this many events of the current walking segment
+    public static final int CADENCE_WINDOW = 32;
+    // A walking segment ends after this long without steps
+    public static final long IDLE_GAP_NANOS = 5000000000L; // 5s
+
+    // Stride length in meters grows with the step frequency, 0.69m at 2 steps per second
+    private static final StrideModel STRIDE_MODEL =
+            StrideModel.linear(0.25f, 0.22f, 0.4f, 1.0f, 0.7f);
+
+    // Counts steps and keeps the delays and orientations of the last events
+    private final StepEngine mEngine = new StepEngine(EVENT_QUEUE_LENGTH, ORIENTATION_QUEUE_LENGTH);
+    // Circular mean, variance and turns over the headings of all counted steps
+    private final HeadingStats mHeading =
+            new HeadingStats(HEADING_WINDOW, TURN_THRESHOLD, TURN_MIN_CONCENTRATION);
+    private int mReportedTurns = 0;
+    // Cadence and walking segments of the step timeline
+    private final CadenceStats mCadence = new CadenceStats(CADENCE_WINDOW, IDLE_GAP_NANOS);
+    private int mReportedSegments = 0;
+    private int mReportedResets = 0;
+
+    // Batch delays of the registered sensors in microseconds, or DELAY_OFF
+    private int mDetectorDelay = DELAY_OFF;
+    private int mCounterDelay = DELAY_OFF;
+    // When a listener is registered, whether batch mode could be enabled for all sensors
+    private boolean mBatchMode = true;
+    // Last reported difference between step counter and step detector
+    private int mReportedDiscrepancy = 0;
+
+    // Orders and deduplicates the events before they are counted
+    private final EventReorderBuffer mReorderBuffer = new EventReorderBuffer(REORDER_CAPACITY,
+            REORDER_MAX_VALUES, REORDER_WINDOW_NANOS,
+            new StepRecorder(mEngine, new StepRecorder.Listener() {
+                @Override
+                public void onEventReleased(long timestamp) {
+                    updateClockOffsets();
+                }
+
+                @Override
+                public void onEventCounted(long timestamp) {
+                    accountEvent(timestamp);
+                }
+
+                @Override
+                public void onRecord(long timestamp, int count, float orientation, int delay) {
+                    writeRecord(timestamp, count, orientation, delay);
+                }
+            }));
+    // Whether events have been released since the clients were last notified
+    private boolean mEventsReleased = false;
+    private final Handler mHandler = new Handler();
+
+    private final ArrayList<Messenger> mClients = new ArrayList<Messenger>();
+    private final Messenger mMessenger = new Messenger(new IncomingHandler());
+
+    // Step records shared with the clients, null if the channel could not be created
+    private StepRing mRing = null;
+    // Dead reckoning path shared with the clients, null if the channel could not be created
+    private PathBuffer mPath = null;
+    private PathBuilder mPathBuilder = null;
+    // Step history rollups, null if the file could not be mapped
+    private StepRollups mRollups = null;
+    // Archive of all step records, null if it could not be opened
+    private StepArchive.Writer mArchive = null;
+    // Counting sessions, null if the index could not be mapped
+    private SessionIndex mSessions = null;
+    // Active session read when the service is restarted by the system
+    private final SessionIndex.Session mResumedSession = new SessionIndex.Session();
+    // Checkpoint of the step total and the step counter baseline, null if it could not be mapped
+    private ByteBuffer mCheckpoint = null;
+    private final CounterBaseline mCheckpointBaseline = new CounterBaseline();
+    // Wakeups and CPU time per batch latency mode, null if the file could not be mapped
+    private PowerStats mPower = null;
+    // Reports sensor callbacks that keep the main thread busy for too long
+    private StageWatchdog mWatchdog = null;
+    // Elapsed time and CPU time of the process when power was last accounted, in nanoseconds
+    private long mPowerTime = 0;
+    private long mPowerCpuTime = 0;
+    // Offset from the sensor timestamps to the wall clock time of the current event in ms
+    private long mWallClockOffset = 0;
+    // Offset of the local time zone in ms and the wall clock time until which it is valid
+    private int mZoneOffset = 0;
+    private long mZoneOffsetExpiry = Long.MIN_VALUE;
+    // Whether the debug logs of every event are built, checked when collecting starts
+    private boolean mDebugLog = false;
+
+    private NotificationCompat.Builder mNotificationBuilder = null;
+    // Time the notification was last posted and whether a delayed update is posted
+    private long mNotificationTime = 0;
+    private boolean mNotificationPending = false;
+
+    /**
+     * Invalidates the cached time zone offset when the time zone is changed.
+     */
+    private final BroadcastReceiver mTimeZoneReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            mZoneOffsetExpiry = Long.MIN_VALUE;
+        }
+    };
+
+    /**
+     * Returns the intent used to bind to and start the service.
+     *
+     * @param context
+     * @return
+     */
+    public static Intent getIntent(Context context) {
+        return new Intent(context, StepCollectorService.class);
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        // The service runs in its own process, log to logcat
+        Log.setLogNode(new LogWrapper());
+        mWatchdog = MainThreadWatchdog.get(this);
+        registerReceiver(mTimeZoneReceiver, new IntentFilter(Intent.ACTION_TIMEZONE_CHANGED));
+
+        // Decode the orientations of new steps with a lookup table
+        mEngine.setOrientationDecoder(Orientations.getDecoder());
+        // Heading statistics are updated with every step on the thread that delivers the events
+        mEngine.addOrientationListener(mHeading);
+
+        try {
+            mRing = StepChannel.create(this);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not create the step channel, steps are not shared with the UI.", e);
+        }
+        try {
+            mPath = StepChannel.createPath(this);
+            mPathBuilder = new PathBuilder(STRIDE_MODEL, mPath);
+            mEngine.addOrientationListener(mPathBuilder);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not create the path channel, the path is not tracked.", e);
+        }
+        try {
+            mRollups = StepChannel.createRollups(this);
+            mEngine.addOrientationListener(mRollups);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not open the step rollups, the step history is not kept.", e);
+        }
+        try {
+            mArchive = StepChannel.createArchive(this);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not open the step archive, the step records are not kept.", e);
+        }
+        try {
+            mSessions = StepChannel.createSessions(this);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not open the session index, sessions are not kept.", e);
+        }
+        try {
+            mCheckpoint = StepChannel.createCheckpoint(this);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not open the checkpoint, steps are restored by the clients.", e);
+        }
+        try {
+            mPower = StepChannel.createPower(this);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not open the power stats, batching costs are not measured.", e);
+        }
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        // The system restarts the service with a null intent after it killed the process. The
+        // active session is continued from its checkpoint, nothing is counted if there is none.
+        if (intent == null && !isCollecting()) {
+            resumeSession();
+        }
+        return START_STICKY;
+    }
+
+    /**
+     * Restarts collection of the active session with its batch delays, or stops the service if no
+     * session is active.
+     */
+    private void resumeSession() {
+        if (mSessions == null || !mSessions.getActive(mResumedSession)) {
+            Log.i(TAG, "Restarted without an active session.");
+            stopSelf();
+            return;
+        }
+        Log.i(TAG, "Restarted, resuming session " + mResumedSession.getId() + ".");
+        startCollecting(mResumedSession.getDetectorDelay(), mResumedSession.getCounterDelay(),
+                mResumedSession.getSteps());
+        sendToClients(MSG_STATE);
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return mMessenger.getBinder();
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        stopCollecting();
+        unregisterReceiver(mTimeZoneReceiver);
+        if (mArchive != null) {
+            try {
+                mArchive.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Could not close the step archive.", e);
+            }
+            mArchive = null;
+        }
+    }
+
+    /**
+     * Handles the messages of the clients.
+     */
+    private class IncomingHandler extends Handler {
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case MSG_REGISTER_CLIENT:
+                    mClients.add(msg.replyTo);
+                    sendState(msg.replyTo);
+                    break;
+                case MSG_UNREGISTER_CLIENT:
+                    mClients.remove(msg.replyTo);
+                    break;
+                case MSG_START:
+                    final Bundle data = msg.peekData();
+                    startCollecting(msg.arg1, msg.arg2,
+                            data != null && data.containsKey(KEY_STEPS)
+                                    ? data.getInt(KEY_STEPS) : -1);
+                    sendToClients(MSG_STATE);
+                    break;
+                case MSG_STOP:
+                    stopCollecting();
+                    sendToClients(MSG_STATE);
+                    stopSelf();
+                    break;
+                case MSG_FLUSH_ARCHIVE:
+                    flushArchive();
+                    try {
+                        msg.replyTo.send(Message.obtain(null, MSG_ARCHIVE_FLUSHED, msg.arg1, 0));
+                    } catch (RemoteException e) {
+                        // The client has died
+                    }
+                    break;
+                default:
+                    super.handleMessage(msg);
+            }
+        }
+    }
+
+    /**
+     * Registers the {@link SensorEventListener} for the step sensors with their max batch delays
+     * and moves the service to the foreground. Both sensors are delivered to the same listener and
+     * merged by one {@link StepEngine}: the step detector provides the low latency steps and the
+     * step counter the authoritative total. Nothing changes if the listener is already registered
+     * with the same delays.
+     *
+     * @param detectorDelay max batch delay of the step detector in microseconds, or DELAY_OFF
+     * @param counterDelay  max batch delay of the step counter in microseconds, or DELAY_OFF
+     * @param restoredSteps number of steps to continue counting from, or -1 to start at 0
+     */
+    private void startCollecting(int detectorDelay, int counterDelay, int restoredSteps) {
+        if (detectorDelay == mDetectorDelay && counterDelay == mCounterDelay) {
+            Log.i(TAG, "Listener already registered, keeping the current baseline.");
+            return;
+        }
+
+        final SensorManager sensorManager = SensorManager.getSystemService(this);
+        if (isCollecting()) {
+            sensorManager.unregisterListener(mListener);
+            accountPower();
+        }
+
+        final int checkpointSteps = restoredSteps >= 0 ? loadCheckpoint() : -1;
+        if (checkpointSteps >= 0) {
+            mEngine.restore(checkpointSteps, mCheckpointBaseline);
+            Log.i(TAG, "Continuing from the checkpoint at " + checkpointSteps
+                    + " steps instead of " + restoredSteps + " steps.");
+        } else if (restoredSteps >= 0) {
+            mEngine.restore(restoredSteps);
+        } else {
+            mEngine.reset();
+        }
+        mReportedResets = mEngine.getCounterBaseline().getResetCount();
+        mDebugLog = Log.isLoggable(TAG, Log.DEBUG);
+        mEngine.setCombined(detectorDelay != DELAY_OFF && counterDelay != DELAY_OFF);
+        mReorderBuffer.reset();
+        // The events of a batch are as old as the max batch delay when they are delivered
+        mReorderBuffer.setWindowNanos(REORDER_WINDOW_NANOS
+                + Math.max(0, Math.max(detectorDelay, counterDelay)) * 1000L);
+        mHandler.removeCallbacks(mReleaseRunnable);
+        mReportedDiscrepancy = 0;
+        mHeading.reset();
+        mReportedTurns = 0;
+        mCadence.reset();
+        mCadence.add(0, mEngine.getSteps());
+        mReportedSegments = 0;
+        if (mRing != null) {
+            mRing.reset();
+        }
+        if (mPath != null) {
+            mPath.reset();
+            mPathBuilder.reset();
+        }
+        if (mSessions != null
+                && (restoredSteps < 0 || mSessions.getActiveId() == SessionIndex.NO_SESSION)) {
+            final int id = mSessions.begin(System.currentTimeMillis(), detectorDelay,
+                    counterDelay);
+            Log.i(TAG, "Session " + id + " started.");
+        }
+
+        mDetectorDelay = detectorDelay;
+        mCounterDelay = counterDelay;
+
+        // Register the listener for each sensor in batch mode.
+        // If the max delay is 0, events will be delivered in continuous mode without batching.
+        mBatchMode = true;
+        if (detectorDelay != DELAY_OFF) {
+            mBatchMode &= registerSensor(sensorManager, Sensor.TYPE_STEP_DETECTOR, detectorDelay);
+        }
+        if (counterDelay != DELAY_OFF) {
+            mBatchMode &= registerSensor(sensorManager, Sensor.TYPE_STEP_COUNTER, counterDelay);
+        }
+        if (mPower != null) {
+            mPower.setMode(detectorDelay, counterDelay);
+            mPowerTime = TimeUtil.getElapsedRealtimeNanos();
+            mPowerCpuTime = getProcessCpuTime();
+        }
+
+        // Keep collecting after all clients have unbound
+        startService(getIntent(this));
+        startForeground(NOTIFICATION_ID, buildNotification());
+        mNotificationTime = TimeUtil.getElapsedRealtimeNanos();
+    }
+
+    /**
+     * @param sensorManager
+     * @param sensorType    Sensor.TYPE_STEP_COUNTER or Sensor.TYPE_STEP_DETECTOR
+     * @param maxdelay      max batch delay in microseconds
+     * @return true if the listener was registered in batch mode
+     */
+    private boolean registerSensor(SensorManager sensorManager, int sensorType, int maxdelay) {
+        Sensor sensor = sensorManager.getDefaultSensor(sensorType);
+        final boolean batchMode = sensorManager.registerListener(
+                mListener, sensor, SensorManager.SENSOR_DELAY_NORMAL, maxdelay);
+        Log.i(TAG, "Event listener for sensor " + sensorType
+                + " registered with a max delay of " + maxdelay);
+        return batchMode;
+    }
+
+    private boolean isCollecting() {
+        return mDetectorDelay != DELAY_OFF || mCounterDelay != DELAY_OFF;
+    }
+
+    /**
+     * Unregisters the sensor listener if it is registered and leaves the foreground.
+     */
+    private void stopCollecting() {
+        if (!isCollecting()) {
+            return;
+        }
+        SensorManager.getSystemService(this).unregisterListener(mListener);
+        // Count the events that are still held back
+        mHandler.removeCallbacks(mReleaseRunnable);
+        mReorderBuffer.flush();
+        publishEvents();
+        mHandler.removeCallbacks(mNotificationRunnable);
+        mNotificationPending = false;
+        if (mSessions != null) {
+            updateSession();
+            mSessions.end();
+        }
+        if (mPower != null) {
+            accountPower();
+            mPower.clearMode();
+        }
+        Log.i(TAG, "Reordering dropped " + mReorderBuffer.getDuplicateCount() + " duplicate and "
+                + mReorderBuffer.getStaleCount() + " stale events, "
+                + mReorderBuffer.getLateCount() + " events arrived late, "
+                + mReorderBuffer.getSplitCount() + " long events were split.");
+        if (mReorderBuffer.getTruncatedCount() > 0) {
+            Log.w(TAG, mReorderBuffer.getTruncatedCount()
+                    + " events had more orientations than the reorder buffer holds, the "
+                    + "remaining orientations were dropped.");
+        }
+        flushArchive();
+        mDetectorDelay = DELAY_OFF;
+        mCounterDelay = DELAY_OFF;
+        stopForeground(true);
+        Log.i(TAG, "Sensor listener unregistered.");
+    }
+
+    /**
+     * Listener that handles step sensor events for step detector and step counter sensors.
+     */
+    private final SensorEventListener mListener = new SensorEventListener() {
+        @Override
+        public void onSensorChanged(SensorEvent event) {
+            /**
+             *                      ** USF TYPE_STEP_COUNTER sensor **
+             *
+             * TYPE_STEP_COUNTER values are defined in Android as:
+             *
+             *     event.values[0] = the number of steps taken by the user since the last reboot while
+             *     activated. The value is returned as a float (with the fractional part set to zero).
+             *     The timestamp of the event is set to the time when the last step for that event was
+             *     taken.
+             *
+             * For the USF sensors, the event.timestamp values is set to the time when the last step for
+             * that event was taken, in nanoseconds and as the SystemClock.elapsedRealtimeNanos() value
+             * (i.e., elapsed nanoseconds since last boot, including time spent in sleep).  For API levels,
+             * less than 17 (Build.VERSION_CODES.JELLY_BEAN_MR1), we use SystemClock.elapsedRealtime(),
+             * converted to nanoseconds. The receive time passed to the engine uses the same time base.
+             *
+             * When a listener is first registered, onSensorChanged() will immediately be called with
+             * the current step total (which may be 0), so the listener can initialize itself and
+             * count the number of steps that happen since initial registration.
+             *
+             * Since the USF step counter is implemented in software at the application level, it will be
+             * reset whenever the Service collecting the data stops and this class is GC'd.  This MAY be
+             * sooner than on reboot.
+             *
+             * Since the USF step counter also has an orientation for each step, we add them as
+             * elements event.values[1] to event.values[X], where X is the number of samples since
+             * the last notification.  So, the total array size is X + 1.
+             */
+            final long cpuStart = Debug.threadCpuTimeNanos();
+            final int type = event.sensor.getType();
+            final long received = TimeUtil.getElapsedRealtimeNanos();
+            final int sensor;
+            if (type == Sensor.TYPE_STEP_DETECTOR) {
+                sensor = StepEngine.SENSOR_STEP_DETECTOR;
+            } else if (type == Sensor.TYPE_STEP_COUNTER) {
+                if (mDebugLog) {
+                    Log.d(TAG, "event.values[0]=" + event.values[0]);
+                }
+                sensor = StepEngine.SENSOR_STEP_COUNTER;
+            } else {
+                return;
+            }
+            // The batch size is the number of steps delivered with the event
+            mWatchdog.begin("onSensorChanged", Math.max(1, event.values.length - 1));
+            try {
+                // The event is counted once it has been released in order by the reorder buffer
+                mReorderBuffer.offer(sensor, event.values, event.timestamp, received);
+                publishEvents();
+                scheduleRelease();
+                if (mPower != null) {
+                    // Threads without CPU time support report -1, the delivery is counted anyway
+                    mPower.addDelivery(received,
+                            cpuStart < 0 ? 0 : Debug.threadCpuTimeNanos() - cpuStart);
+                }
+            } finally {
+                mWatchdog.end();
+            }
+        }
+
+        @Override
+        public void onAccuracyChanged(Sensor sensor, int accuracy) {
+
+        }
+    };
+
+    /**
+     * Updates the wall clock offsets of the archive and the rollups before an event released by
+     * the reorder buffer is counted.
+     */
+    private void updateClockOffsets() {
+        mWallClockOffset = getWallClockOffset();
+        if (mRollups != null) {
+            // The headings are added to the rollups while the event is processed
+            mRollups.setClockOffset(mWallClockOffset + getZoneOffset(System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Adds the steps of a counted event to the statistics. Its records are written to the channel
+     * next and published by {@link #publishEvents()}.
+     *
+     * @param timestamp
+     */
+    private void accountEvent(long timestamp) {
+        if (mRollups != null) {
+            mRollups.addSteps(timestamp, mEngine.getNewSteps());
+        }
+        if (mPower != null) {
+            mPower.addSteps(mEngine.getNewSteps());
+        }
+        mCadence.add(timestamp, mEngine.getSteps());
+        if (mDebugLog) {
+            logEvent();
+            Log.d(TAG, "New step(s) detected. Total step count: " + mEngine.getSteps());
+        }
+        logHeading();
+        mEventsReleased = true;
+    }
+
+    /**
+     * Returns the offset of the local time zone at the wall clock time in ms. The offset is cached
+     * until the next quarter hour or until the time zone is changed.
+     *
+     * @param now wall clock time in ms
+     * @return
+     */
+    private int getZoneOffset(long now) {
+        if (now >= mZoneOffsetExpiry || now < mZoneOffsetExpiry - ZONE_OFFSET_CHECK_MS) {
+            mZoneOffset = TimeZone.getDefault().getOffset(now);
+            mZoneOffsetExpiry = (now / ZONE_OFFSET_CHECK_MS + 1) * ZONE_OFFSET_CHECK_MS;
+        }
+        return mZoneOffset;
+    }
+
+    /**
+     * Returns the offset from the time base of the sensor timestamps to the wall clock time in ms.
+     *
+     * @return
+     */
+    private static long getWallClockOffset() {
+        return System.currentTimeMillis() - TimeUtil.getElapsedRealtimeNanos() / 1000000L;
+    }
+
+    /**
+     * Writes the archived records that are still held in the current block.
+     */
+    private void flushArchive() {
+        if (mArchive == null) {
+            return;
+        }
+        try {
+            mArchive.flush();
+            Log.i(TAG, "Step archive flushed, " + mArchive.getBytesPerRecord()
+                    + " bytes per record.");
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write the step archive, the step records are not kept.", e);
+            mArchive = null;
+        }
+    }
+
+    /**
+     * Publishes the records of all events released since the last call and notifies the clients.
+     */
+    private void publishEvents() {
+        if (!mEventsReleased) {
+            return;
+        }
+        mEventsReleased = false;
+
+        if (mRing != null) {
+            mRing.publish();
+        }
+        if (mPath != null) {
+            mPath.publish();
+        }
+        updateSession();
+        saveCheckpoint();
+        accountPower();
+        updateNotification();
+        boolean stateChanged = false;
+        if (mEngine.getCountDiscrepancy() != mReportedDiscrepancy) {
+            // Cross-validation of both sensors changed, the clients show the difference
+            mReportedDiscrepancy = mEngine.getCountDiscrepancy();
+            Log.i(TAG, "Step counter and step detector differ by " + mReportedDiscrepancy
+                    + " steps");
+            stateChanged = true;
+        }
+        if (mCadence.getSegmentCount() != mReportedSegments) {
+            // A walking segment has started, the clients show the segments and idle time
+            mReportedSegments = mCadence.getSegmentCount();
+            mLogBuilder.setLength(0);
+            mLogBuilder.append("Walking segment ").append(mReportedSegments)
+                    .append(" started, idle for ");
+            FixedPointFormat.append(mLogBuilder, mCadence.getIdleTime(), 9, 1).append('s');
+            Log.i(TAG, mLogBuilder.toString());
+            stateChanged = true;
+        }
+        if (stateChanged) {
+            sendToClients(MSG_STATE);
+        }
+        sendToClients(MSG_DATA);
+    }
+
+    /**
+     * Updates the summary of the active session.
+     */
+    private void updateSession() {
+        if (mSessions == null) {
+            return;
+        }
+        mSessions.update(System.currentTimeMillis(), mEngine.getSteps(),
+                mCadence.getSegmentCount(), mCadence.getWalkingTime() / 1000000L,
+                mCadence.getIdleTime() / 1000000L, mPath != null ? mPath.getDistance() : 0.f);
+    }
+
+    /**
+     * Adds the elapsed time and the CPU time of the process since the last call to the active
+     * batch latency mode.
+     */
+    private void accountPower() {
+        if (mPower == null) {
+            return;
+        }
+        final long now = TimeUtil.getElapsedRealtimeNanos();
+        final long cpuTime = getProcessCpuTime();
+        mPower.addTime(now - mPowerTime, cpuTime - mPowerCpuTime);
+        mPowerTime = now;
+        mPowerCpuTime = cpuTime;
+    }
+
+    /**
+     * Returns the CPU time of the process in nanoseconds.
+     */
+    private static long getProcessCpuTime() {
+        return Process.getElapsedCpuTime() * 1000000L;
+    }
+
+    /**
+     * Loads the checkpoint of the active session into {@link #mCheckpointBaseline}.
+     *
+     * @return the steps of the checkpoint, or -1 if there is no checkpoint of the active session
+     */
+    private int loadCheckpoint() {
+        if (mCheckpoint == null || mSessions == null
+                || mSessions.getActiveId() == SessionIndex.NO_SESSION) {
+            return -1;
+        }
+        return mCheckpointBaseline.load(mCheckpoint, mSessions.getActiveId(), Process.myPid());
+    }
+
+    /**
+     * Saves the step total and the step counter baseline of the active session.
+     */
+    private void saveCheckpoint() {
+        final CounterBaseline baseline = mEngine.getCounterBaseline();
+        if (baseline.getResetCount() != mReportedResets) {
+            mReportedResets = baseline.getResetCount();
+            Log.w(TAG, "Step counter reset detected (" + mReportedResets
+                    + " so far), the total continues at " + mEngine.getSteps() + " steps.");
+        }
+        if (mCheckpoint == null || mSessions == null
+                || mSessions.getActiveId() == SessionIndex.NO_SESSION) {
+            return;
+        }
+        baseline.save(mCheckpoint, mSessions.getActiveId(), Process.myPid(), mEngine.getSteps());
+    }
+
+    /**
+     * Schedules the release of the held back events once the next of them has been held for the
+     * window after it was received, so that the last events are counted without waiting for the
+     * next delivery.
+     */
+    private void scheduleRelease() {
+        mHandler.removeCallbacks(mReleaseRunnable);
+        if (mReorderBuffer.size() == 0) {
+            return;
+        }
+        final long waitNanos = mReorderBuffer.getReleaseTime()
+                - TimeUtil.getElapsedRealtimeNanos();
+        mHandler.postDelayed(mReleaseRunnable, Math.max(0, waitNanos / 1000000L) + 1);
+    }
+
+    private final Runnable mReleaseRunnable = new Runnable() {
+        @Override
+        public void run() {
+            // The rest of a sensor callback, the batch size is the number of buffered events
+            mWatchdog.begin("releaseEvents", mReorderBuffer.size());
+            try {
+                mReorderBuffer.release(TimeUtil.getElapsedRealtimeNanos());
+                publishEvents();
+                scheduleRelease();
+            } finally {
+                mWatchdog.end();
+            }
+        }
+    };
+
+    /**
+     * Logs the average time between updates, the age of the most recent event and the
+     * orientations of the new steps recorded by the engine.
+     */
+    private void logEvent() {
+        final long avgTimeDiff = mEngine.getAverageUpdateInterval();
+        if (avgTimeDiff >= 0) {
+            // Convert from ns into s, and format to 2 decimal places
+            mLogBuilder.setLength(0);
+            mLogBuilder.append("Avg time between updates = ");
+            FixedPointFormat.append(mLogBuilder, avgTimeDiff, 9, 2).append('s');
+            Log.d(TAG, mLogBuilder.toString());
+        }
+
+        final LongRing delays = mEngine.getEventDelays();
+        if (delays.size() > 0) {
+            Log.d(TAG, "Age of most recent data = " + delays.get(delays.size() - 1) + "ms");
+        }
+
+        // The orientations of the new steps are the newest values in the list of orientations,
+        // they have already been decoded by the engine. Log them in a single line.
+        final FloatRing orientations = mEngine.getStepOrientations();
+        final ByteRing directions = mEngine.getStepDirections();
+        final int count = Math.min(mEngine.getNewOrientationCount(), directions.size());
+        if (count > 0) {
+            mLogBuilder.setLength(0);
+            mLogBuilder.append("Directions of new steps: ");
+            for (int i = 0; i < count; i++) {
+                if (i > 0) {
+                    mLogBuilder.append(", ");
+                }
+                final Orientation direction =
+                        Orientations.get(directions.get(directions.size() - count + i));
+                mLogBuilder.append(direction.text)
+                        .append(" (")
+                        .append(orientations.get(orientations.size() - count + i))
+                        .append(')');
+            }
+            Log.d(TAG, mLogBuilder.toString());
+        }
+    }
+
+    /**
+     * Logs the mean heading, circular variance and cadence of the last steps and any new turn.
+     */
+    private void logHeading() {
+        if (mEngine.getNewOrientationCount() == 0 || mHeading.getCount() == 0) {
+            return;
+        }
+        if (mDebugLog) {
+            mLogBuilder.setLength(0);
+            mLogBuilder.append("Mean heading = ");
+            FixedPointFormat.append(mLogBuilder, Math.round(mHeading.getMeanHeading() * 10), 1, 1);
+            mLogBuilder.append(", circular variance = ");
+            FixedPointFormat.append(mLogBuilder,
+                    Math.round(mHeading.getCircularVariance() * 1000), 3, 2);
+            if (!Float.isNaN(mCadence.getCadence())) {
+                mLogBuilder.append(", cadence = ").append(Math.round(mCadence.getCadence()))
+                        .append(" steps/min");
+            }
+            Log.d(TAG, mLogBuilder.toString());
+        }
+
+        if (mHeading.getTurnCount() != mReportedTurns) {
+            mReportedTurns = mHeading.getTurnCount();
+            Log.i(TAG, "Turn detected: " + Math.round(mHeading.getLastTurn())
+                    + " degrees, " + mReportedTurns + " turns so far.");
+        }
+    }
+
+    private final StringBuilder mLogBuilder = new StringBuilder();
+
+    /**
+     * Writes a record to the channel and the archive.
+     *
+     * @param timestamp
+     * @param steps
+     * @param orientation
+     * @param delay
+     */
+    private void writeRecord(long timestamp, int steps, float orientation, int delay) {
+        if (mRing != null) {
+            mRing.append(timestamp, steps, orientation, delay);
+        }
+        if (mArchive != null) {
+            try {
+                mArchive.append(timestamp / 1000000L + mWallClockOffset, steps, orientation,
+                        delay);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not write the step archive, the step records are not kept.", e);
+                mArchive = null;
+            }
+        }
+    }
+
+    /**
+     * Sends a {@link #MSG_STATE} or {@link #MSG_DATA} message to all registered clients. Clients
+     * that have died are removed.
+     *
+     * @param what
+     */
+    private void sendToClients(int what) {
+        if (mClients.isEmpty()) {
+            return;
+        }
+        for (int i = mClients.size() - 1; i >= 0; i--) {
+            final Messenger client = mClients.get(i);
+            final boolean alive = what == MSG_STATE
+                    ? sendState(client) : send(client, Message.obtain(null, MSG_DATA));
+            if (!alive) {
+                mClients.remove(i);
+            }
+        }
+    }
+
+    /**
+     * Sends a snapshot of the collection state to a client.
+     *
+     * @param client
+     * @return false if the client has died
+     */
+    private boolean sendState(Messenger client) {
+        final Bundle data = new Bundle();
+        data.putInt(KEY_DETECTOR_DELAY, mDetectorDelay);
+        data.putInt(KEY_COUNTER_DELAY, mCounterDelay);
+        data.putBoolean(KEY_BATCHMODE, mBatchMode);
+        data.putInt(KEY_STEPS, mEngine.getSteps());
+        data.putInt(KEY_DISCREPANCY, mEngine.getCountDiscrepancy());
+        data.putInt(KEY_SEGMENTS, mCadence.getSegmentCount());
+        data.putLong(KEY_IDLE_TIME, mCadence.getIdleTime());
+        data.putInt(KEY_SESSION,
+                mSessions != null ? mSessions.getActiveId() : SessionIndex.NO_SESSION);
+
+        final Message msg = Message.obtain(null, MSG_STATE);
+        msg.setData(data);
+        return send(client, msg);
+    }
+
+    /**
+     * @param client
+     * @param msg
+     * @return false if the client has died
+     */
+    private boolean send(Messenger client, Message msg) {
+        try {
+            client.send(msg);
+            return true;
+        } catch (RemoteException e) {
+            return false;
+        }
+    }
+
+    private Notification buildNotification() {
+        if (mNotificationBuilder == null) {
+            final PendingIntent contentIntent = PendingIntent.getActivity(this, 0,
+                    new Intent(this, MainActivity.class), 0);
+            mNotificationBuilder = new NotificationCompat.Builder(this)
+                    .setSmallIcon(R.drawable.ic_launcher)
+                    .setContentTitle(getString(R.string.notification_title))
+                    .setContentIntent(contentIntent)
+                    .setOngoing(true);
+        }
+        mNotificationBuilder.setContentText(
+                getString(R.string.notification_text, mEngine.getSteps()));
+        return mNotificationBuilder.build();
+    }
+
+    /**
+     * Posts the notification with the current step count. Updates are throttled to
+     * {@link #NOTIFICATION_INTERVAL_NANOS}, an update that comes too early is delayed.
+     */
+    private void updateNotification() {
+        if (!isCollecting()) {
+            return;
+        }
+        final long wait = mNotificationTime + NOTIFICATION_INTERVAL_NANOS
+                - TimeUtil.getElapsedRealtimeNanos();
+        if (wait > 0) {
+            if (!mNotificationPending) {
+                mNotificationPending = true;
+                mHandler.postDelayed(mNotificationRunnable, wait / 1000000L + 1);
+            }
+            return;
+        }
+        mNotificationTime = TimeUtil.getElapsedRealtimeNanos();
+        NotificationManager nm = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
+        nm.notify(NOTIFICATION_ID, buildNotification());
+    }
+
+    private final Runnable mNotificationRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mNotificationPending = false;
+            updateNotification();
+        }
+    };
+}
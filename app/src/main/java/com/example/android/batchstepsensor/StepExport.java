@@ -0,0 +1,164 @@
+/*
+* Copyright 2014 The Android Open Source Project, University of South Florida
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.example.android.batchstepsensor;
+
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+import android.support.v4.content.FileProvider;
+
+import com.example.android.common.logger.Log;
+import com.example.android.stepcore.PowerStats;
+import com.example.android.stepcore.StepArchive;
+import com.example.android.stepcore.StepExporter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Exports the records of the {@link StepArchive} to a file and shares it. The archive is decoded
+ * one block at a time and streamed through a {@link StepExporter}, only a block of records and a
+ * chunk of text are held in memory however long the exported range is. The {@link PowerStats} of
+ * the batch latency modes can be exported as well. Exports are written to the cache directory
+ * and shared through a {@link FileProvider}, only the last export is kept.
+ * <p/>
+ * Exports do block, they must not run on the UI thread.
+ */
+class StepExport {
+
+    private static final String TAG = "StepExport";
+
+    // Directory of the exports in the cache directory, must match res/xml/export_paths.xml
+    private static final String EXPORT_DIR = "exports";
+
+    private StepExport() {
+    }
+
+    /**
+     * Writes the archived records from {@code fromMillis} to {@code toMillis} to a new file.
+     *
+     * @param context
+     * @param format     StepExporter.FORMAT_CSV or StepExporter.FORMAT_JSON
+     * @param fromMillis
+     * @param toMillis
+     * @return the written file
+     * @throws IOException if the archive could not be read or the file could not be written
+     */
+    static File export(Context context, int format, long fromMillis, long toMillis)
+            throws IOException {
+        final File file = createExportFile(context, "steps",
+                format == StepExporter.FORMAT_JSON ? ".json" : ".csv");
+
+        final StepArchive.Reader archive = StepChannel.openArchive(context);
+        try {
+            final Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+            try {
+                final StepExporter exporter = new StepExporter(writer, format);
+                archive.read(fromMillis, toMillis, exporter);
+                final long records = exporter.finish();
+                Log.i(TAG, "Exported " + records + " records to " + file + ".");
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        } finally {
+            archive.close();
+        }
+        return file;
+    }
+
+    /**
+     * Writes the power stats of the batch latency modes as CSV to a new file.
+     *
+     * @param context
+     * @return the written file
+     * @throws IOException if the stats could not be read or the file could not be written
+     */
+    static File exportPower(Context context) throws IOException {
+        final PowerStats power = StepChannel.openPower(context);
+        final File file = createExportFile(context, "power", ".csv");
+        final Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            power.writeCsv(writer);
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        } finally {
+            writer.close();
+        }
+        return file;
+    }
+
+    /**
+     * Deletes the previous export and returns a new file for an export.
+     *
+     * @param context
+     * @param prefix
+     * @param extension
+     * @return
+     * @throws IOException if the export directory could not be created
+     */
+    private static File createExportFile(Context context, String prefix, String extension)
+            throws IOException {
+        final File dir = new File(context.getCacheDir(), EXPORT_DIR);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        // Only the last export is kept
+        final File[] previous = dir.listFiles();
+        if (previous != null) {
+            for (File file : previous) {
+                file.delete();
+            }
+        }
+        return new File(dir, prefix + "-"
+                + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date())
+                + extension);
+    }
+
+    /**
+     * Returns an intent to share an exported file with another app.
+     *
+     * @param context
+     * @param file    file returned by {@link #export(Context, int, long, long)}
+     * @param format
+     * @return
+     */
+    static Intent getShareIntent(Context context, File file, int format) {
+        final Uri uri = FileProvider.getUriForFile(context, getAuthority(context), file);
+        final Intent intent = new Intent(Intent.ACTION_SEND)
+                .setType(format == StepExporter.FORMAT_JSON ? "application/json" : "text/csv")
+                .putExtra(Intent.EXTRA_STREAM, uri)
+                .putExtra(Intent.EXTRA_SUBJECT, file.getName())
+                .addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        return Intent.createChooser(intent, context.getString(R.string.export_chooser));
+    }
+
+    // Must match the authority of the provider in the manifest
+    private static String getAuthority(Context context) {
+        return context.getPackageName() + ".exports";
+    }
+}
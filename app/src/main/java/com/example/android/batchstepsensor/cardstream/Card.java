@@ -339,36 +339,43 @@ public class Card {
 
 
     /**
-     * Creates a shallow clone of the card.  Shallow means all values are present, but no views.
-     * This is useful for saving/restoring in the case of configuration changes, like screen
-     * rotation.
+     * Creates a compact record of the card model for a {@link CardStreamState}. The record
+     * contains all values but no views.
      *
-     * @return A shallow clone of the card instance
+     * @param flags {@link CardStreamState#FLAG_VISIBLE} and
+     *              {@link CardStreamState#FLAG_DISMISSIBLE}
+     * @return The record of the card
      */
-    public Card createShallowClone() {
-        Card cloneCard = new Card();
-
-        // Outer card values
-        cloneCard.mTitle = mTitle;
-        cloneCard.mDescription = mDescription;
-        cloneCard.mTag = mTag;
-        cloneCard.mLayoutId = mLayoutId;
-        cloneCard.mCardState = mCardState;
-
-        // Progress
-        if (mCardProgress != null) {
-            cloneCard.mCardProgress = mCardProgress.createShallowClone();
+    CardStreamState.CardRecord createRecord(int flags) {
+        CardStreamState.CardRecord record = new CardStreamState.CardRecord();
+        record.tag = mTag;
+        record.title = mTitle;
+        record.description = mDescription;
+        record.layoutId = mLayoutId;
+        record.state = mCardState;
+        record.flags = flags;
+
+        final int actionCount = mCardActions.size();
+        record.actionLabels = new String[actionCount];
+        record.actionIds = new int[actionCount];
+        record.actionTypes = new int[actionCount];
+        for (int i = 0; i < actionCount; i++) {
+            final CardAction action = mCardActions.get(i);
+            record.actionLabels[i] = action.label;
+            record.actionIds[i] = action.id;
+            record.actionTypes[i] = action.type;
         }
 
-        // Actions
-        for (CardAction action : mCardActions) {
-            cloneCard.mCardActions.add(action.createShallowClone());
+        if (mCardProgress != null) {
+            record.progressType = mCardProgress.progressType;
+            record.progressLabel = mCardProgress.label;
+            record.progress = mCardProgress.currProgress;
+            record.maxProgress = mCardProgress.maxValue;
         }
 
-        return cloneCard;
+        return record;
     }
 
-
     /**
      * Prepare the card to be stored for configuration change.
      */
@@ -388,15 +395,34 @@ public class Card {
         private Card mCard;
 
         /**
-         * Instantiate the builder with data from a shallow clone.
+         * Instantiate the builder with data from a record of a {@link CardStreamState}.
          *
          * @param listener
-         * @param card
-         * @see Card#createShallowClone()
+         * @param record
+         * @see Card#createRecord(int)
          */
-        protected Builder(OnCardClickListener listener, Card card) {
-            mCard = card;
+        protected Builder(OnCardClickListener listener, CardStreamState.CardRecord record) {
+            mCard = new Card();
             mCard.mClickListener = listener;
+            mCard.mTag = record.tag;
+            mCard.mTitle = record.title;
+            mCard.mDescription = record.description;
+            mCard.mLayoutId = record.layoutId;
+            mCard.mCardState = record.state;
+
+            for (int i = 0; i < record.actionIds.length; i++) {
+                mCard.addAction(record.actionLabels[i], record.actionIds[i],
+                        record.actionTypes[i]);
+            }
+
+            if (record.progressType >= 0) {
+                CardProgress progress = mCard.new CardProgress();
+                progress.progressType = record.progressType;
+                progress.label = record.progressLabel;
+                progress.currProgress = record.progress;
+                progress.maxValue = record.maxProgress;
+                mCard.mCardProgress = progress;
+            }
         }
 
         /**
@@ -532,18 +558,6 @@ public class Card {
             return mCard;
         }
 
-        /**
-         * Initialize data from the given card.
-         *
-         * @param card
-         * @return
-         * @see Card#createShallowClone()
-         */
-        public Builder cloneFromCard(Card card) {
-            mCard = card.createShallowClone();
-            return this;
-        }
-
         /**
          * Build the action views by inflating the appropriate layouts and setting the text and
          * values.
@@ -627,17 +641,6 @@ public class Card {
         public int id;
         public int type;
         public View actionView;
-
-        public CardAction createShallowClone() {
-            CardAction actionClone = new CardAction();
-            actionClone.label = label;
-            actionClone.id = id;
-            actionClone.type = type;
-            return actionClone;
-            // Not the view.  Never the view (don't want to hold view references for
-            // onConfigurationChange.
-        }
-
     }
 
     /**
@@ -658,15 +661,6 @@ public class Card {
         private ProgressBar progressBar = null;
         private TextView progressLabel = null;
 
-        public CardProgress createShallowClone() {
-            CardProgress progressClone = new CardProgress();
-            progressClone.label = label;
-            progressClone.currProgress = currProgress;
-            progressClone.maxValue = maxValue;
-            progressClone.progressType = progressType;
-            return progressClone;
-        }
-
         /**
          * Set the progress. Only useful for the type {@link #PROGRESS_TYPE_NORMAL}.
          *
@@ -29,6 +29,10 @@ import android.widget.Button;
  */
 public class CardActionButton extends Button {
 
+    // Interpolators are stateless, they are shared by all buttons instead of created per touch
+    private static final DecelerateInterpolator PRESS_INTERPOLATOR = new DecelerateInterpolator();
+    private static final BounceInterpolator RELEASE_INTERPOLATOR = new BounceInterpolator();
+
     public CardActionButton(Context context) {
         super(context);
     }
@@ -48,15 +52,15 @@ public class CardActionButton extends Button {
             case MotionEvent.ACTION_DOWN:
                 setPressed(true);
                 animate().scaleX(0.98f).scaleY(0.98f).alpha(0.8f).setDuration(100).
-                        setInterpolator(new DecelerateInterpolator());
+                        setInterpolator(PRESS_INTERPOLATOR);
                 break;
             case MotionEvent.ACTION_UP:
                 animate().scaleX(1.0f).scaleY(1.f).alpha(1.0f).setDuration(50).
-                        setInterpolator(new BounceInterpolator());
+                        setInterpolator(RELEASE_INTERPOLATOR);
                 break;
             case MotionEvent.ACTION_CANCEL:
                 animate().scaleX(1.0f).scaleY(1.f).alpha(1.0f).setDuration(50).
-                        setInterpolator(new BounceInterpolator());
+                        setInterpolator(RELEASE_INTERPOLATOR);
                 break;
         }
 
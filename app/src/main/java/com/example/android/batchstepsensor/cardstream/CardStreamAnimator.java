@@ -26,7 +26,23 @@ import android.view.View;
  */
 abstract class CardStreamAnimator {
 
+    /**
+     * Full animations, as defined by the implementation.
+     */
+    public static final int QUALITY_FULL = 0;
+    /**
+     * Cheaper animations (e.g. alpha only) for devices that cannot keep up with the full set.
+     */
+    public static final int QUALITY_REDUCED = 1;
+    /**
+     * No animations at all, all animator getters return null.
+     */
+    public static final int QUALITY_OFF = 2;
+
     protected float mSpeedFactor = 1.f;
+    protected int mQuality = QUALITY_FULL;
+
+    private OnQualityChangedListener mQualityListener = null;
 
     /**
      * Set speed factor of animations. Higher value means longer duration & slow animation.
@@ -37,8 +53,40 @@ abstract class CardStreamAnimator {
         mSpeedFactor = speedFactor;
     }
 
+    /**
+     * Set the quality level of the animations, either {@link #QUALITY_FULL},
+     * {@link #QUALITY_REDUCED} or {@link #QUALITY_OFF}.
+     * Animators that have already been handed out are not changed, the registered
+     * {@link OnQualityChangedListener} is notified so that they can be fetched again.
+     *
+     * @param quality
+     */
+    public void setQuality(int quality) {
+        if (quality == mQuality) {
+            return;
+        }
+        mQuality = quality;
+        if (mQualityListener != null) {
+            mQualityListener.onQualityChanged(this);
+        }
+    }
+
+    public int getQuality() {
+        return mQuality;
+    }
+
+    /**
+     * Set a listener which is called when the quality level of this animator has changed.
+     *
+     * @param listener
+     */
+    public void setOnQualityChangedListener(OnQualityChangedListener listener) {
+        mQualityListener = listener;
+    }
+
     /**
      * Define initial animation of each child which fired when a user rotate a screen.
+     * A new instance has to be returned for every call, the caller sets its target.
      *
      * @param context
      * @return ObjectAnimator for initial animation
@@ -64,6 +112,8 @@ abstract class CardStreamAnimator {
     /**
      * Define swipe-in (back to the origin position) animation of a child
      * which fired when a view is not moved enough to be removed.
+     * The returned animator already targets the view, implementations may return the same
+     * instance for following swipes.
      *
      * @param view   target view
      * @param deltaX delta distance by x-axis
@@ -75,6 +125,8 @@ abstract class CardStreamAnimator {
     /**
      * Define swipe-out animation of a child
      * which fired when a view is removing by a user swipe action.
+     * The returned animator already targets the view, implementations may return the same
+     * instance for following swipes.
      *
      * @param view   target view
      * @param deltaX delta distance by x-axis
@@ -83,6 +135,13 @@ abstract class CardStreamAnimator {
      */
     public abstract ObjectAnimator getSwipeOutAnimator(View view, float deltaX, float deltaY);
 
+    /**
+     * Listener that is notified when the quality level of a {@link CardStreamAnimator} changes.
+     */
+    interface OnQualityChangedListener {
+        public void onQualityChanged(CardStreamAnimator animator);
+    }
+
     /**
      * A simple CardStreamAnimator implementation which is used to turn animations off.
      */
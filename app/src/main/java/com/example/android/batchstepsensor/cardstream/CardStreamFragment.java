@@ -17,13 +17,20 @@
 
 package com.example.android.batchstepsensor.cardstream;
 
+import android.app.Activity;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.support.v4.app.Fragment;
+import android.support.v4.view.ViewCompat;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewTreeObserver;
 
 import com.example.android.batchstepsensor.R;
+import com.example.android.common.logger.Log;
+import com.example.android.stepcore.StageWatchdog;
 
 import java.util.Collection;
 import java.util.HashMap;
@@ -37,7 +44,11 @@ import java.util.LinkedHashMap;
  */
 public class CardStreamFragment extends Fragment {
 
+    private static final String TAG = "CardStreamFragment";
     private static final int INITIAL_SIZE = 15;
+    // Time in ms that may be spent inflating restored cards per frame
+    private static final long RESTORE_FRAME_BUDGET_MS = 8;
+
     private CardStreamLinearLayout mLayout = null;
     private LinkedHashMap<String, Card> mVisibleCards = new LinkedHashMap<String, Card>(INITIAL_SIZE);
     private HashMap<String, Card> mHiddenCards = new HashMap<String, Card>(INITIAL_SIZE);
@@ -52,6 +63,67 @@ public class CardStreamFragment extends Fragment {
                 }
             };
 
+    // State of a restore that is in progress, see restoreState()
+    private CardStreamState mRestoreState = null;
+    private Card.Builder[] mRestoreBuilders = null;
+    private int mRestoreIndex = 0;
+    private OnRestoreListener mRestoreListener = null;
+    private RestoreTask mRestoreTask = null;
+    private long mRestoreStartTime = 0;
+
+    // Times the card operations on the main thread, see setWatchdog()
+    private StageWatchdog mWatchdog = null;
+
+    /**
+     * Inflates restored cards, as many as fit into the time budget of a frame. The remaining cards
+     * are inflated in the following frames.
+     */
+    private final Runnable mRestoreStep = new Runnable() {
+        @Override
+        public void run() {
+            final Activity activity = getActivity();
+            if (mRestoreBuilders == null || activity == null) {
+                return;
+            }
+
+            final long frameStart = SystemClock.uptimeMillis();
+            final CardStreamState.CardRecord[] records = mRestoreState.cards;
+            final int firstIndex = mRestoreIndex;
+            beginStage("restoreCards", 0);
+            try {
+                do {
+                    restoreCard(records[mRestoreIndex],
+                            mRestoreBuilders[mRestoreIndex].build(activity));
+                    mRestoreIndex++;
+                    setStageBatchSize(mRestoreIndex - firstIndex);
+                } while (mRestoreIndex < records.length
+                        && SystemClock.uptimeMillis() - frameStart < RESTORE_FRAME_BUDGET_MS);
+            } finally {
+                endStage();
+            }
+
+            if (mRestoreIndex < records.length) {
+                ViewCompat.postOnAnimation(mLayout, this);
+            } else {
+                finishRestore();
+            }
+        }
+    };
+
+    /**
+     * Logs the time from the start of a restore until the first frame is drawn.
+     */
+    private final ViewTreeObserver.OnPreDrawListener mFirstFrameListener =
+            new ViewTreeObserver.OnPreDrawListener() {
+                @Override
+                public boolean onPreDraw() {
+                    mLayout.getViewTreeObserver().removeOnPreDrawListener(this);
+                    Log.i(TAG, "Time to first frame after restore: "
+                            + (SystemClock.uptimeMillis() - mRestoreStartTime) + "ms");
+                    return true;
+                }
+            };
+
 
     @Override
     public View onCreateView(LayoutInflater inflater, ViewGroup container,
@@ -64,6 +136,28 @@ public class CardStreamFragment extends Fragment {
         return view;
     }
 
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        // Abandon a restore in progress, its state is still returned by dumpState()
+        if (mRestoreTask != null) {
+            mRestoreTask.cancel(false);
+            mRestoreTask = null;
+        }
+        mLayout.removeCallbacks(mRestoreStep);
+    }
+
+    /**
+     * Set the watchdog that times the card operations of this fragment. Operations that take
+     * longer than its budget are reported with a batch size of 1, restored cards are reported with
+     * the number of cards inflated in a frame.
+     *
+     * @param watchdog watchdog of the main thread, or null to stop timing card operations
+     */
+    public void setWatchdog(StageWatchdog watchdog) {
+        mWatchdog = watchdog;
+    }
+
     /**
      * Add a visible, dismissible card to the card stream.
      *
@@ -72,10 +166,15 @@ public class CardStreamFragment extends Fragment {
     public void addCard(Card card) {
         final String tag = card.getTag();
 
-        if (!mVisibleCards.containsKey(tag) && !mHiddenCards.containsKey(tag)) {
-            final View view = card.getView();
-            view.setTag(tag);
-            mHiddenCards.put(tag, card);
+        beginStage("addCard", 1);
+        try {
+            if (!mVisibleCards.containsKey(tag) && !mHiddenCards.containsKey(tag)) {
+                final View view = card.getView();
+                view.setTag(tag);
+                mHiddenCards.put(tag, card);
+            }
+        } finally {
+            endStage();
         }
     }
 
@@ -99,17 +198,22 @@ public class CardStreamFragment extends Fragment {
      * @return
      */
     public boolean removeCard(String tag) {
-        // Attempt to remove a visible card first
-        Card card = mVisibleCards.get(tag);
-        if (card != null) {
-            // Card is visible, also remove from layout
-            mVisibleCards.remove(tag);
-            mLayout.removeView(card.getView());
-            return true;
-        } else {
-            // Card is hidden, no need to remove from layout
-            card = mHiddenCards.remove(tag);
-            return card != null;
+        beginStage("removeCard", 1);
+        try {
+            // Attempt to remove a visible card first
+            Card card = mVisibleCards.get(tag);
+            if (card != null) {
+                // Card is visible, also remove from layout
+                mVisibleCards.remove(tag);
+                mLayout.removeView(card.getView());
+                return true;
+            } else {
+                // Card is hidden, no need to remove from layout
+                card = mHiddenCards.remove(tag);
+                return card != null;
+            }
+        } finally {
+            endStage();
         }
     }
 
@@ -131,18 +235,23 @@ public class CardStreamFragment extends Fragment {
      * @return
      */
     public boolean showCard(String tag, boolean dismissible) {
-        final Card card = mHiddenCards.get(tag);
-        // ensure the card is hidden and not already visible
-        if (card != null && !mVisibleCards.containsValue(tag)) {
-            mHiddenCards.remove(tag);
-            mVisibleCards.put(tag, card);
-            mLayout.addCard(card.getView(), dismissible);
-            if (dismissible) {
-                mDismissibleCards.add(tag);
+        beginStage("showCard", 1);
+        try {
+            final Card card = mHiddenCards.get(tag);
+            // ensure the card is hidden and not already visible
+            if (card != null && !mVisibleCards.containsValue(tag)) {
+                mHiddenCards.remove(tag);
+                mVisibleCards.put(tag, card);
+                mLayout.addCard(card.getView(), dismissible);
+                if (dismissible) {
+                    mDismissibleCards.add(tag);
+                }
+                return true;
             }
-            return true;
+            return false;
+        } finally {
+            endStage();
         }
-        return false;
     }
 
     /**
@@ -152,16 +261,39 @@ public class CardStreamFragment extends Fragment {
      * @return
      */
     public boolean hideCard(String tag) {
-        final Card card = mVisibleCards.get(tag);
-        if (card != null) {
-            mVisibleCards.remove(tag);
-            mDismissibleCards.remove(tag);
-            mHiddenCards.put(tag, card);
+        beginStage("hideCard", 1);
+        try {
+            final Card card = mVisibleCards.get(tag);
+            if (card != null) {
+                mVisibleCards.remove(tag);
+                mDismissibleCards.remove(tag);
+                mHiddenCards.put(tag, card);
+
+                mLayout.removeView(card.getView());
+                return true;
+            }
+            return mHiddenCards.containsValue(tag);
+        } finally {
+            endStage();
+        }
+    }
+
+    private void beginStage(String stage, int batchSize) {
+        if (mWatchdog != null) {
+            mWatchdog.begin(stage, batchSize);
+        }
+    }
+
+    private void setStageBatchSize(int batchSize) {
+        if (mWatchdog != null) {
+            mWatchdog.setBatchSize(batchSize);
+        }
+    }
 
-            mLayout.removeView(card.getView());
-            return true;
+    private void endStage() {
+        if (mWatchdog != null) {
+            mWatchdog.end();
         }
-        return mHiddenCards.containsValue(tag);
     }
 
 
@@ -225,50 +357,138 @@ public class CardStreamFragment extends Fragment {
         return mVisibleCards.values();
     }
 
-    public void restoreState(CardStreamState state, OnCardClickListener callback) {
-        // restore hidden cards
-        for (Card c : state.hiddenCards) {
-            Card card = new Card.Builder(callback, c).build(getActivity());
-            mHiddenCards.put(card.getTag(), card);
-        }
+    /**
+     * Returns true while cards from a {@link CardStreamState} are being restored. Cards that have
+     * not been restored yet are not returned by {@link #getCard(String)}.
+     *
+     * @return
+     */
+    public boolean isRestoring() {
+        return mRestoreState != null;
+    }
 
-        // temporarily set up list of dismissible
-        final HashSet<String> dismissibleCards = state.dismissibleCards;
+    /**
+     * Restores the cards of a {@link CardStreamState}.
+     * The card models are restored on a worker thread, afterwards the cards are inflated on the
+     * UI thread, spread over as many frames as needed to keep each frame within its budget.
+     * The listener is called once all cards have been restored.
+     *
+     * @param state
+     * @param callback        click listener of the restored cards
+     * @param restoreListener listener that is called once all cards have been restored, may be null
+     */
+    public void restoreState(CardStreamState state, OnCardClickListener callback,
+                             OnRestoreListener restoreListener) {
+        mRestoreStartTime = SystemClock.uptimeMillis();
+        mRestoreState = state;
+        mRestoreListener = restoreListener;
+        mRestoreIndex = 0;
+
+        mLayout.getViewTreeObserver().addOnPreDrawListener(mFirstFrameListener);
+        mLayout.triggerShowInitialAnimation();
+
+        mRestoreTask = new RestoreTask(callback);
+        mRestoreTask.execute(state);
+    }
 
-        //restore shown cards
-        for (Card c : state.visibleCards) {
-            Card card = new Card.Builder(callback, c).build(getActivity());
+    /**
+     * Adds a restored card as a visible or hidden card.
+     *
+     * @param record
+     * @param card
+     */
+    private void restoreCard(CardStreamState.CardRecord record, Card card) {
+        if (record.isVisible()) {
+            // restore shown cards in their original order
             addCard(card);
-            final String tag = card.getTag();
-            showCard(tag, dismissibleCards.contains(tag));
+            showCard(card.getTag(), record.isDismissible());
+        } else {
+            // restore hidden cards
+            mHiddenCards.put(card.getTag(), card);
         }
+    }
 
+    private void finishRestore() {
         // move to first visible card
-        final String firstShown = state.shownTag;
+        final String firstShown = mRestoreState.shownTag;
         if (firstShown != null) {
             mLayout.setFirstVisibleCard(firstShown);
         }
 
-        mLayout.triggerShowInitialAnimation();
+        Log.i(TAG, "Restored " + mRestoreState.cards.length + " cards in "
+                + (SystemClock.uptimeMillis() - mRestoreStartTime) + "ms");
+
+        final OnRestoreListener listener = mRestoreListener;
+        mRestoreState = null;
+        mRestoreBuilders = null;
+        mRestoreListener = null;
+        if (listener != null) {
+            listener.onCardStreamRestored();
+        }
     }
 
     public CardStreamState dumpState() {
-        final Card[] visible = cloneCards(mVisibleCards.values());
-        final Card[] hidden = cloneCards(mHiddenCards.values());
-        final HashSet<String> dismissible = new HashSet<String>(mDismissibleCards);
-        final String firstVisible = mLayout.getFirstVisibleCardTag();
+        // Cards of a restore in progress that have not been inflated yet are kept as they are
+        final int pending = mRestoreState != null ? mRestoreState.cards.length - mRestoreIndex : 0;
+        final CardStreamState.CardRecord[] records = new CardStreamState.CardRecord[
+                mVisibleCards.size() + mHiddenCards.size() + pending];
+        int i = 0;
+        for (Card c : mVisibleCards.values()) {
+            int flags = CardStreamState.FLAG_VISIBLE;
+            if (mDismissibleCards.contains(c.getTag())) {
+                flags |= CardStreamState.FLAG_DISMISSIBLE;
+            }
+            records[i++] = c.createRecord(flags);
+        }
+        for (Card c : mHiddenCards.values()) {
+            records[i++] = c.createRecord(0);
+        }
+        for (int j = 0; j < pending; j++) {
+            records[i++] = mRestoreState.cards[mRestoreIndex + j];
+        }
 
-        return new CardStreamState(visible, hidden, dismissible, firstVisible);
+        String firstVisible = mLayout.getFirstVisibleCardTag();
+        if (mRestoreState != null && firstVisible == null) {
+            firstVisible = mRestoreState.shownTag;
+        }
+        return new CardStreamState(records, firstVisible);
     }
 
-    private Card[] cloneCards(Collection<Card> cards) {
-        Card[] cardArray = new Card[cards.size()];
-        int i = 0;
-        for (Card c : cards) {
-            cardArray[i++] = c.createShallowClone();
+    /**
+     * Restores the card models of a {@link CardStreamState} on a worker thread, then starts
+     * inflating them on the UI thread.
+     */
+    private class RestoreTask extends AsyncTask<CardStreamState, Void, Card.Builder[]> {
+
+        private final OnCardClickListener mCallback;
+
+        RestoreTask(OnCardClickListener callback) {
+            mCallback = callback;
         }
 
-        return cardArray;
+        @Override
+        protected Card.Builder[] doInBackground(CardStreamState... states) {
+            final CardStreamState.CardRecord[] records = states[0].cards;
+            final Card.Builder[] builders = new Card.Builder[records.length];
+            for (int i = 0; i < records.length; i++) {
+                builders[i] = new Card.Builder(mCallback, records[i]);
+            }
+            return builders;
+        }
+
+        @Override
+        protected void onPostExecute(Card.Builder[] builders) {
+            mRestoreTask = null;
+            if (getActivity() == null) {
+                return;
+            }
+            mRestoreBuilders = builders;
+            if (builders.length == 0) {
+                finishRestore();
+            } else {
+                mRestoreStep.run();
+            }
+        }
     }
 
 }
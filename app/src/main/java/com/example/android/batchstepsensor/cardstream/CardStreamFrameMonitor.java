@@ -0,0 +1,182 @@
+/*
+* Copyright 2014 The Android Open Source Project, University of South Florida
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.example.android.batchstepsensor.cardstream;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.view.Choreographer;
+
+import com.example.android.common.logger.Log;
+
+import java.util.Arrays;
+
+/**
+ * Measures frame times with the {@link Choreographer} while card stream animations are running.
+ * Animations are announced through {@link #begin()} and {@link #end()}, frames are only observed
+ * while at least one animation is running.
+ * <p/>
+ * Frame times are collected in a histogram with one millisecond buckets. Once all running
+ * animations have ended, the frame time percentiles of the run are reported to the log and the
+ * {@link OnJankListener} is called if too many frames were dropped during the run. The histogram
+ * is cleared for the next run.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+class CardStreamFrameMonitor implements Choreographer.FrameCallback {
+
+    private static final String TAG = "CardStreamFrameMonitor";
+
+    // Frame times are recorded in one millisecond buckets, the last bucket holds all longer frames
+    private static final int HISTOGRAM_SIZE = 101;
+    // Minimum number of frames in a run of animations before it is judged
+    private static final int MIN_FRAMES = 8;
+    // Fraction of dropped frames in a run of animations that is reported as jank
+    private static final float JANK_THRESHOLD = 0.25f;
+
+    private final long mFrameIntervalNanos;
+    private final int[] mHistogram = new int[HISTOGRAM_SIZE];
+    private int mHistogramCount = 0;
+
+    private OnJankListener mJankListener = null;
+
+    // Number of animations that are currently running
+    private int mActive = 0;
+    private long mLastFrameTimeNanos = 0;
+    // Frames drawn and dropped during the current run of animations
+    private int mFrames = 0;
+    private int mDroppedFrames = 0;
+
+    /**
+     * @param refreshRate refresh rate of the display in frames per second
+     */
+    public CardStreamFrameMonitor(float refreshRate) {
+        if (refreshRate < 1.f) {
+            refreshRate = 60.f;
+        }
+        mFrameIntervalNanos = (long) (1000000000L / refreshRate);
+    }
+
+    public void setOnJankListener(OnJankListener listener) {
+        mJankListener = listener;
+    }
+
+    /**
+     * Announce that an animation has started. Frames are observed until all animations that have
+     * been started have also ended.
+     */
+    public void begin() {
+        if (mActive++ == 0) {
+            mLastFrameTimeNanos = 0;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+    /**
+     * Announce that an animation has ended.
+     */
+    public void end() {
+        if (mActive > 0 && --mActive == 0) {
+            Choreographer.getInstance().removeFrameCallback(this);
+            finishRun();
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        if (mActive == 0) {
+            return;
+        }
+
+        if (mLastFrameTimeNanos != 0) {
+            final long frameTime = frameTimeNanos - mLastFrameTimeNanos;
+            recordFrame(frameTime);
+        }
+        mLastFrameTimeNanos = frameTimeNanos;
+
+        Choreographer.getInstance().postFrameCallback(this);
+    }
+
+    /**
+     * Returns the frame time in milliseconds below which the given fraction of the frames of the
+     * current run fall, for example 0.9 for the 90th percentile. Returns -1 if no frames have been
+     * recorded.
+     *
+     * @param percentile fraction between 0 and 1
+     * @return
+     */
+    public int getFrameTimePercentile(float percentile) {
+        if (mHistogramCount == 0) {
+            return -1;
+        }
+
+        final int rank = (int) Math.ceil(percentile * mHistogramCount);
+        int seen = 0;
+        for (int i = 0; i < HISTOGRAM_SIZE; i++) {
+            seen += mHistogram[i];
+            if (seen >= rank) {
+                return i;
+            }
+        }
+        return HISTOGRAM_SIZE - 1;
+    }
+
+    private void recordFrame(long frameTimeNanos) {
+        int bucket = (int) (frameTimeNanos / 1000000L);
+        if (bucket >= HISTOGRAM_SIZE) {
+            bucket = HISTOGRAM_SIZE - 1;
+        }
+        mHistogram[bucket]++;
+        mHistogramCount++;
+
+        mFrames++;
+        // Every vsync that passed without a new frame counts as a dropped frame
+        final long missed = frameTimeNanos / mFrameIntervalNanos - 1;
+        if (missed > 0) {
+            mDroppedFrames += missed;
+        }
+    }
+
+    private void finishRun() {
+        if (mFrames > 0) {
+            Log.i(TAG, "Animation frames: " + mFrames + ", dropped: " + mDroppedFrames
+                    + ", frame time p50=" + getFrameTimePercentile(0.5f)
+                    + "ms p90=" + getFrameTimePercentile(0.9f)
+                    + "ms p99=" + getFrameTimePercentile(0.99f) + "ms");
+        }
+
+        final int expected = mFrames + mDroppedFrames;
+        final boolean jank = expected >= MIN_FRAMES
+                && mDroppedFrames > expected * JANK_THRESHOLD;
+
+        mFrames = 0;
+        mDroppedFrames = 0;
+        // Percentiles are reported per run of animations
+        Arrays.fill(mHistogram, 0);
+        mHistogramCount = 0;
+
+        if (jank && mJankListener != null) {
+            mJankListener.onJank(this);
+        }
+    }
+
+    /**
+     * Listener that is called when too many frames were dropped during a run of animations.
+     */
+    interface OnJankListener {
+        public void onJank(CardStreamFrameMonitor monitor);
+    }
+}
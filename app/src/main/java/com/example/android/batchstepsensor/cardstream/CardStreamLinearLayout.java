@@ -18,6 +18,7 @@
 package com.example.android.batchstepsensor.cardstream;
 
 import android.animation.Animator;
+import android.animation.AnimatorListenerAdapter;
 import android.animation.LayoutTransition;
 import android.animation.ObjectAnimator;
 import android.annotation.SuppressLint;
@@ -32,6 +33,7 @@ import android.view.View;
 import android.view.ViewConfiguration;
 import android.view.ViewGroup;
 import android.view.ViewParent;
+import android.view.WindowManager;
 import android.widget.LinearLayout;
 import android.widget.ScrollView;
 
@@ -58,6 +60,7 @@ public class CardStreamLinearLayout extends LinearLayout {
     private boolean mSwiping = false;
     private String mFirstVisibleCardTag = null;
     private boolean mShowInitialAnimation = false;
+    private CardStreamFrameMonitor mFrameMonitor = null;
 
     /**
      * Handle touch events to fade/move dragged items as they are swiped out
@@ -77,6 +80,9 @@ public class CardStreamLinearLayout extends LinearLayout {
                     break;
                 case MotionEvent.ACTION_CANCEL:
                     resetAnimatedView(v);
+                    if (mSwiping) {
+                        endFrameMonitoring();
+                    }
                     mSwiping = false;
                     mDownX = 0.f;
                     mDownY = 0.f;
@@ -95,6 +101,9 @@ public class CardStreamLinearLayout extends LinearLayout {
                     if (!mSwiping && isSwiping(deltaX, deltaY)) {
                         mSwiping = true;
                         v.getParent().requestDisallowInterceptTouchEvent(true);
+                        // Render the card into a hardware layer while it is being dragged
+                        v.setLayerType(LAYER_TYPE_HARDWARE, null);
+                        beginFrameMonitoring();
                     } else {
                         swipeView(v, deltaX, deltaY);
                     }
@@ -116,6 +125,7 @@ public class CardStreamLinearLayout extends LinearLayout {
                             handleViewSwipingOut(v, deltaX, deltaY);
                         else
                             handleViewSwipingIn(v, deltaX, deltaY);
+                        endFrameMonitoring();
                     }
                     mDownX = 0.f;
                     mDownY = 0.f;
@@ -139,6 +149,7 @@ public class CardStreamLinearLayout extends LinearLayout {
         public void startTransition(LayoutTransition transition, ViewGroup container, View
                 view, int transitionType) {
             //Log.d(TAG, "Start LayoutTransition animation:" + transitionType);
+            beginFrameMonitoring();
         }
 
         @Override
@@ -146,6 +157,7 @@ public class CardStreamLinearLayout extends LinearLayout {
                                   final View view, int transitionType) {
 
             //Log.d(TAG, "End LayoutTransition animation:" + transitionType);
+            endFrameMonitoring();
             if (transitionType == LayoutTransition.APPEARING) {
                 final View area = view.findViewById(R.id.card_actionarea);
                 if (area != null) {
@@ -183,6 +195,79 @@ public class CardStreamLinearLayout extends LinearLayout {
             mFixedViewList.remove(child);
         }
     };
+    /**
+     * Fetch the transition animators again when the quality of the animators has changed.
+     */
+    private CardStreamAnimator.OnQualityChangedListener mQualityListener
+            = new CardStreamAnimator.OnQualityChangedListener() {
+        @Override
+        public void onQualityChanged(CardStreamAnimator animator) {
+            Log.d(TAG, "Animation quality changed: " + animator.getQuality());
+            LayoutTransition layoutTransition = getLayoutTransition();
+            if (layoutTransition != null) {
+                applyTransitionAnimators(layoutTransition);
+            }
+        }
+    };
+    /**
+     * Lower the quality of the animations when frames are dropped. Once the lowest quality has
+     * been reached, animations are turned off.
+     */
+    private CardStreamFrameMonitor.OnJankListener mJankListener
+            = new CardStreamFrameMonitor.OnJankListener() {
+        @Override
+        public void onJank(CardStreamFrameMonitor monitor) {
+            if (mAnimators.getQuality() == CardStreamAnimator.QUALITY_FULL) {
+                Log.w(TAG, "Frames dropped during animations, reducing animation quality.");
+                mAnimators.setQuality(CardStreamAnimator.QUALITY_REDUCED);
+            } else if (!(mAnimators instanceof CardStreamAnimator.EmptyAnimator)) {
+                Log.w(TAG, "Frames dropped during animations, turning animations off.");
+                setCardStreamAnimator(new CardStreamAnimator.EmptyAnimator());
+            }
+        }
+    };
+    /**
+     * Notify the frame monitor when an animation started by this layout has ended.
+     */
+    private Animator.AnimatorListener mFrameMonitorListener = new AnimatorListenerAdapter() {
+        @Override
+        public void onAnimationEnd(Animator animation) {
+            endFrameMonitoring();
+        }
+    };
+    // Views that are currently animated by a swipe animator
+    private View mSwipingOutView = null;
+    private View mSwipingInView = null;
+    /**
+     * Remove a card once it has been swiped out.
+     */
+    private Animator.AnimatorListener mSwipeOutListener = new EndAnimationWrapper() {
+        @Override
+        public void onAnimationEnd(Animator animation) {
+            final View child = mSwipingOutView;
+            mSwipingOutView = null;
+            if (child != null) {
+                removeView(child);
+                notifyOnDismissEvent(child);
+            }
+            endFrameMonitoring();
+        }
+    };
+    /**
+     * Reset the position of a card once it has been swiped back in.
+     */
+    private Animator.AnimatorListener mSwipeInListener = new EndAnimationWrapper() {
+        @Override
+        public void onAnimationEnd(Animator animation) {
+            final View child = mSwipingInView;
+            mSwipingInView = null;
+            if (child != null) {
+                child.setTranslationY(0.f);
+                child.setTranslationX(0.f);
+            }
+            endFrameMonitoring();
+        }
+    };
     private int mLastDownX;
 
     public CardStreamLinearLayout(Context context) {
@@ -236,20 +321,10 @@ public class CardStreamLinearLayout extends LinearLayout {
         if (changed && !mLayouted) {
             mLayouted = true;
 
-            ObjectAnimator animator;
             LayoutTransition layoutTransition = new LayoutTransition();
-
-            animator = mAnimators.getDisappearingAnimator(getContext());
-            layoutTransition.setAnimator(LayoutTransition.DISAPPEARING, animator);
-
-            animator = mAnimators.getAppearingAnimator(getContext());
-            layoutTransition.setAnimator(LayoutTransition.APPEARING, animator);
-
+            applyTransitionAnimators(layoutTransition);
             layoutTransition.addTransitionListener(mTransitionListener);
 
-            if (animator != null)
-                layoutTransition.setDuration(animator.getDuration());
-
             setLayoutTransition(layoutTransition);
 
             if (mShowInitialAnimation)
@@ -367,18 +442,20 @@ public class CardStreamLinearLayout extends LinearLayout {
     @TargetApi(Build.VERSION_CODES.HONEYCOMB)
     public void setCardStreamAnimator(CardStreamAnimator animators) {
 
+        if (mAnimators != null)
+            mAnimators.setOnQualityChangedListener(null);
+
         if (animators == null)
             mAnimators = new CardStreamAnimator.EmptyAnimator();
         else
             mAnimators = animators;
 
+        mAnimators.setOnQualityChangedListener(mQualityListener);
+
         LayoutTransition layoutTransition = getLayoutTransition();
 
         if (layoutTransition != null) {
-            layoutTransition.setAnimator(LayoutTransition.APPEARING,
-                    mAnimators.getAppearingAnimator(getContext()));
-            layoutTransition.setAnimator(LayoutTransition.DISAPPEARING,
-                    mAnimators.getDisappearingAnimator(getContext()));
+            applyTransitionAnimators(layoutTransition);
         }
     }
 
@@ -431,6 +508,14 @@ public class CardStreamLinearLayout extends LinearLayout {
         }
 
         mAnimators.setSpeedFactor(speedFactor);
+        mAnimators.setOnQualityChangedListener(mQualityListener);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            // Frame times can only be observed through the Choreographer from Jelly Bean
+            WindowManager wm =
+                    (WindowManager) getContext().getSystemService(Context.WINDOW_SERVICE);
+            mFrameMonitor = new CardStreamFrameMonitor(wm.getDefaultDisplay().getRefreshRate());
+            mFrameMonitor.setOnJankListener(mJankListener);
+        }
         mSwipeSlop = ViewConfiguration.get(getContext()).getScaledTouchSlop();
         setOnHierarchyChangeListener(mOnHierarchyChangeListener);
     }
@@ -447,6 +532,7 @@ public class CardStreamLinearLayout extends LinearLayout {
     }
 
     private void resetAnimatedView(View child) {
+        child.setLayerType(LAYER_TYPE_NONE, null);
         child.setAlpha(1.f);
         child.setTranslationX(0.f);
         child.setTranslationY(0.f);
@@ -457,6 +543,26 @@ public class CardStreamLinearLayout extends LinearLayout {
         child.setScaleY(1.f);
     }
 
+    /**
+     * Set the appearing and disappearing animators of the current {@link CardStreamAnimator} on the
+     * layout transition.
+     *
+     * @param layoutTransition
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private void applyTransitionAnimators(LayoutTransition layoutTransition) {
+        ObjectAnimator animator;
+
+        animator = mAnimators.getDisappearingAnimator(getContext());
+        layoutTransition.setAnimator(LayoutTransition.DISAPPEARING, animator);
+
+        animator = mAnimators.getAppearingAnimator(getContext());
+        layoutTransition.setAnimator(LayoutTransition.APPEARING, animator);
+
+        if (animator != null)
+            layoutTransition.setDuration(animator.getDuration());
+    }
+
     @TargetApi(Build.VERSION_CODES.HONEYCOMB)
     private void runInitialAnimations() {
         if (mAnimators == null)
@@ -469,11 +575,27 @@ public class CardStreamLinearLayout extends LinearLayout {
             ObjectAnimator animator = mAnimators.getInitalAnimator(getContext());
             if (animator != null) {
                 animator.setTarget(child);
+                animator.addListener(mFrameMonitorListener);
+                beginFrameMonitoring();
                 animator.start();
             }
         }
     }
 
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void beginFrameMonitoring() {
+        if (mFrameMonitor != null) {
+            mFrameMonitor.begin();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void endFrameMonitoring() {
+        if (mFrameMonitor != null) {
+            mFrameMonitor.end();
+        }
+    }
+
     private void runShowActionAreaAnimation(View parent, View area) {
         area.setPivotY(0.f);
         area.setPivotX(parent.getWidth() / 2.f);
@@ -483,45 +605,45 @@ public class CardStreamLinearLayout extends LinearLayout {
         area.animate().rotationX(0.f).alpha(1.f).setDuration(400);
     }
 
-    private void handleViewSwipingOut(final View child, float deltaX, float deltaY) {
+    private void handleViewSwipingOut(View child, float deltaX, float deltaY) {
         ObjectAnimator animator = mAnimators.getSwipeOutAnimator(child, deltaX, deltaY);
         if (animator != null) {
-            animator.addListener(new EndAnimationWrapper() {
-                @Override
-                public void onAnimationEnd(Animator animation) {
-                    removeView(child);
-                    notifyOnDismissEvent(child);
-                }
-            });
+            mSwipingOutView = child;
+            addListenerOnce(animator, mSwipeOutListener);
+            beginFrameMonitoring();
+            animator.start();
         } else {
+            child.setLayerType(LAYER_TYPE_NONE, null);
             removeView(child);
             notifyOnDismissEvent(child);
         }
-
-        if (animator != null) {
-            animator.setTarget(child);
-            animator.start();
-        }
     }
 
-    private void handleViewSwipingIn(final View child, float deltaX, float deltaY) {
+    private void handleViewSwipingIn(View child, float deltaX, float deltaY) {
         ObjectAnimator animator = mAnimators.getSwipeInAnimator(child, deltaX, deltaY);
         if (animator != null) {
-            animator.addListener(new EndAnimationWrapper() {
-                @Override
-                public void onAnimationEnd(Animator animation) {
-                    child.setTranslationY(0.f);
-                    child.setTranslationX(0.f);
-                }
-            });
+            mSwipingInView = child;
+            addListenerOnce(animator, mSwipeInListener);
+            beginFrameMonitoring();
+            animator.start();
         } else {
+            child.setLayerType(LAYER_TYPE_NONE, null);
             child.setTranslationY(0.f);
             child.setTranslationX(0.f);
         }
+    }
 
-        if (animator != null) {
-            animator.setTarget(child);
-            animator.start();
+    /**
+     * Add a listener to an animator unless it has already been added. Swipe animators may be
+     * reused by the {@link CardStreamAnimator}, this avoids adding the same listener on every swipe.
+     *
+     * @param animator
+     * @param listener
+     */
+    private static void addListenerOnce(Animator animator, Animator.AnimatorListener listener) {
+        final ArrayList<Animator.AnimatorListener> listeners = animator.getListeners();
+        if (listeners == null || !listeners.contains(listener)) {
+            animator.addListener(listener);
         }
     }
 
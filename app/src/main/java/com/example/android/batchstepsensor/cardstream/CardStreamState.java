@@ -17,22 +17,150 @@
 
 package com.example.android.batchstepsensor.cardstream;
 
-import java.util.HashSet;
+import android.os.Parcel;
+import android.os.Parcelable;
 
 /**
- * A struct object that holds the state of a {@link CardStreamFragment}.
+ * A compact snapshot of the state of a {@link CardStreamFragment}.
+ * Only the card models are stored (tags, text, actions, progress, visibility and whether a card is
+ * dismissible), no views. The snapshot is {@link Parcelable} so that it can be written into the
+ * saved instance state and survives both configuration changes and process death.
  */
-public class CardStreamState {
-    protected Card[] visibleCards;
-    protected Card[] hiddenCards;
-    protected HashSet<String> dismissibleCards;
+public class CardStreamState implements Parcelable {
+
+    // Version of the parcel layout, snapshots written with a different version are discarded
+    private static final int VERSION = 1;
+
+    static final int FLAG_VISIBLE = 1;
+    static final int FLAG_DISMISSIBLE = 2;
+
+    // Visible cards in the order they are shown, followed by hidden cards
+    protected CardRecord[] cards;
     protected String shownTag;
 
-    protected CardStreamState(Card[] visible, Card[] hidden, HashSet<String> dismissible, String shownTag) {
-        visibleCards = visible;
-        hiddenCards = hidden;
-        dismissibleCards = dismissible;
+    protected CardStreamState(CardRecord[] cards, String shownTag) {
+        this.cards = cards;
         this.shownTag = shownTag;
     }
 
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeInt(VERSION);
+        dest.writeString(shownTag);
+        dest.writeInt(cards.length);
+        for (CardRecord card : cards) {
+            card.writeToParcel(dest);
+        }
+    }
+
+    public static final Parcelable.Creator<CardStreamState> CREATOR =
+            new Parcelable.Creator<CardStreamState>() {
+                @Override
+                public CardStreamState createFromParcel(Parcel source) {
+                    if (source.readInt() != VERSION) {
+                        // Unknown layout, start with an empty card stream
+                        return new CardStreamState(new CardRecord[0], null);
+                    }
+                    final String shownTag = source.readString();
+                    final CardRecord[] cards = new CardRecord[source.readInt()];
+                    for (int i = 0; i < cards.length; i++) {
+                        cards[i] = new CardRecord(source);
+                    }
+                    return new CardStreamState(cards, shownTag);
+                }
+
+                @Override
+                public CardStreamState[] newArray(int size) {
+                    return new CardStreamState[size];
+                }
+            };
+
+    /**
+     * The model of a single {@link Card}, see {@link Card#createRecord(int)}.
+     */
+    static class CardRecord {
+        String tag;
+        String title;
+        String description;
+        int layoutId;
+        int state;
+        // FLAG_VISIBLE and FLAG_DISMISSIBLE
+        int flags;
+
+        String[] actionLabels;
+        int[] actionIds;
+        int[] actionTypes;
+
+        // -1 if the card has no progress indicator
+        int progressType = -1;
+        String progressLabel;
+        int progress;
+        int maxProgress;
+
+        CardRecord() {
+        }
+
+        private CardRecord(Parcel source) {
+            tag = source.readString();
+            title = source.readString();
+            description = source.readString();
+            layoutId = source.readInt();
+            state = source.readInt();
+            flags = source.readInt();
+
+            final int actionCount = source.readInt();
+            actionLabels = new String[actionCount];
+            actionIds = new int[actionCount];
+            actionTypes = new int[actionCount];
+            for (int i = 0; i < actionCount; i++) {
+                actionLabels[i] = source.readString();
+                actionIds[i] = source.readInt();
+                actionTypes[i] = source.readInt();
+            }
+
+            progressType = source.readInt();
+            if (progressType >= 0) {
+                progressLabel = source.readString();
+                progress = source.readInt();
+                maxProgress = source.readInt();
+            }
+        }
+
+        private void writeToParcel(Parcel dest) {
+            dest.writeString(tag);
+            dest.writeString(title);
+            dest.writeString(description);
+            dest.writeInt(layoutId);
+            dest.writeInt(state);
+            dest.writeInt(flags);
+
+            dest.writeInt(actionIds.length);
+            for (int i = 0; i < actionIds.length; i++) {
+                dest.writeString(actionLabels[i]);
+                dest.writeInt(actionIds[i]);
+                dest.writeInt(actionTypes[i]);
+            }
+
+            dest.writeInt(progressType);
+            if (progressType >= 0) {
+                dest.writeString(progressLabel);
+                dest.writeInt(progress);
+                dest.writeInt(maxProgress);
+            }
+        }
+
+        boolean isVisible() {
+            return (flags & FLAG_VISIBLE) != 0;
+        }
+
+        boolean isDismissible() {
+            return (flags & FLAG_DISMISSIBLE) != 0;
+        }
+    }
+
 }
@@ -17,6 +17,8 @@
 
 package com.example.android.batchstepsensor.cardstream;
 
+import android.animation.Animator;
+import android.animation.AnimatorListenerAdapter;
 import android.animation.ObjectAnimator;
 import android.animation.PropertyValuesHolder;
 import android.annotation.TargetApi;
@@ -27,75 +29,153 @@ import android.view.View;
 import android.view.WindowManager;
 import android.view.animation.BounceInterpolator;
 
+/**
+ * Default animators for {@link CardStreamLinearLayout}.
+ * The appearing, disappearing and initial animators are built once and cached as templates, the
+ * display size is only queried the first time it is needed. The swipe animators are created once
+ * and retargeted for every swipe. All animated views are rendered into a hardware layer while their
+ * animation is running.
+ */
 class DefaultCardStreamAnimator extends CardStreamAnimator {
 
+    private static final long BASE_DURATION = 200;
+
+    private ObjectAnimator mAppearingAnimator = null;
+    private ObjectAnimator mDisappearingAnimator = null;
+    private ObjectAnimator mInitialAnimator = null;
+    private ObjectAnimator mSwipeInAnimator = null;
+    private ObjectAnimator mSwipeOutAnimator = null;
+    private final SwipeTransform mSwipeInTransform = new SwipeTransform();
+    private final SwipeTransform mSwipeOutTransform = new SwipeTransform();
+    private float mDisplayHeight = -1.f;
+
+    private final BounceInterpolator mBounceInterpolator = new BounceInterpolator();
+    private final AnimationLayerListener mLayerListener = new AnimationLayerListener();
+
+    @Override
+    public void setSpeedFactor(float speedFactor) {
+        super.setSpeedFactor(speedFactor);
+        final long duration = getDuration();
+        if (mAppearingAnimator != null) {
+            mAppearingAnimator.setDuration(duration);
+        }
+        if (mDisappearingAnimator != null) {
+            mDisappearingAnimator.setDuration(duration);
+        }
+        if (mInitialAnimator != null) {
+            mInitialAnimator.setDuration(duration);
+        }
+    }
+
+    @Override
+    public void setQuality(int quality) {
+        if (quality != mQuality) {
+            // Templates are rebuilt for the new quality level the next time they are requested
+            mAppearingAnimator = null;
+            mDisappearingAnimator = null;
+            mInitialAnimator = null;
+        }
+        super.setQuality(quality);
+    }
+
     @TargetApi(Build.VERSION_CODES.HONEYCOMB)
     @Override
     public ObjectAnimator getDisappearingAnimator(Context context) {
+        if (mQuality == QUALITY_OFF) {
+            return null;
+        }
 
-        ObjectAnimator animator = ObjectAnimator.ofPropertyValuesHolder(new Object(),
-                PropertyValuesHolder.ofFloat("alpha", 1.f, 0.f),
-                PropertyValuesHolder.ofFloat("scaleX", 1.f, 0.f),
-                PropertyValuesHolder.ofFloat("scaleY", 1.f, 0.f),
-                PropertyValuesHolder.ofFloat("rotation", 0.f, 270.f));
-
-        animator.setDuration((long) (200 * mSpeedFactor));
-        return animator;
+        if (mDisappearingAnimator == null) {
+            if (mQuality == QUALITY_REDUCED) {
+                mDisappearingAnimator = createTemplate(
+                        PropertyValuesHolder.ofFloat("alpha", 1.f, 0.f));
+            } else {
+                mDisappearingAnimator = createTemplate(
+                        PropertyValuesHolder.ofFloat("alpha", 1.f, 0.f),
+                        PropertyValuesHolder.ofFloat("scaleX", 1.f, 0.f),
+                        PropertyValuesHolder.ofFloat("scaleY", 1.f, 0.f),
+                        PropertyValuesHolder.ofFloat("rotation", 0.f, 270.f));
+            }
+        }
+        return mDisappearingAnimator;
     }
 
     @TargetApi(Build.VERSION_CODES.HONEYCOMB_MR2)
     @Override
     public ObjectAnimator getAppearingAnimator(Context context) {
+        if (mQuality == QUALITY_OFF) {
+            return null;
+        }
 
-        final Point outPoint = new Point();
-        WindowManager wm = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
-        wm.getDefaultDisplay().getSize(outPoint);
-
-        ObjectAnimator animator = ObjectAnimator.ofPropertyValuesHolder(new Object(),
-                PropertyValuesHolder.ofFloat("alpha", 0.f, 1.f),
-                PropertyValuesHolder.ofFloat("translationY", outPoint.y / 2.f, 0.f),
-                PropertyValuesHolder.ofFloat("rotation", -45.f, 0.f));
-
-        animator.setDuration((long) (200 * mSpeedFactor));
-        return animator;
+        if (mAppearingAnimator == null) {
+            if (mQuality == QUALITY_REDUCED) {
+                mAppearingAnimator = createTemplate(
+                        PropertyValuesHolder.ofFloat("alpha", 0.f, 1.f));
+            } else {
+                mAppearingAnimator = createTemplate(
+                        PropertyValuesHolder.ofFloat("alpha", 0.f, 1.f),
+                        PropertyValuesHolder.ofFloat("translationY",
+                                getDisplayHeight(context) / 2.f, 0.f),
+                        PropertyValuesHolder.ofFloat("rotation", -45.f, 0.f));
+            }
+        }
+        return mAppearingAnimator;
     }
 
     @TargetApi(Build.VERSION_CODES.HONEYCOMB_MR2)
     @Override
     public ObjectAnimator getInitalAnimator(Context context) {
+        if (mQuality == QUALITY_OFF) {
+            return null;
+        }
 
-        ObjectAnimator animator = ObjectAnimator.ofPropertyValuesHolder(new Object(),
-                PropertyValuesHolder.ofFloat("alpha", 0.5f, 1.f),
-                PropertyValuesHolder.ofFloat("rotation", 60.f, 0.f));
-
-        animator.setDuration((long) (200 * mSpeedFactor));
-        return animator;
+        if (mInitialAnimator == null) {
+            if (mQuality == QUALITY_REDUCED) {
+                mInitialAnimator = createTemplate(
+                        PropertyValuesHolder.ofFloat("alpha", 0.5f, 1.f));
+            } else {
+                mInitialAnimator = createTemplate(
+                        PropertyValuesHolder.ofFloat("alpha", 0.5f, 1.f),
+                        PropertyValuesHolder.ofFloat("rotation", 60.f, 0.f));
+            }
+        }
+        // The initial animation runs on all children at once, each needs its own instance
+        return mInitialAnimator.clone();
     }
 
     @TargetApi(Build.VERSION_CODES.HONEYCOMB)
     @Override
     public ObjectAnimator getSwipeInAnimator(View view, float deltaX, float deltaY) {
+        if (mQuality == QUALITY_OFF) {
+            return null;
+        }
 
         float deltaXAbs = Math.abs(deltaX);
 
         float fractionCovered = 1.f - (deltaXAbs / view.getWidth());
-        long duration = Math.abs((int) ((1 - fractionCovered) * 200 * mSpeedFactor));
-
-        // Animate position and alpha of swiped item
+        long duration = Math.abs((int) ((1 - fractionCovered) * BASE_DURATION * mSpeedFactor));
 
-        ObjectAnimator animator = ObjectAnimator.ofPropertyValuesHolder(view,
-                PropertyValuesHolder.ofFloat("alpha", 1.f),
-                PropertyValuesHolder.ofFloat("translationX", 0.f),
-                PropertyValuesHolder.ofFloat("rotationY", 0.f));
+        if (mSwipeInAnimator == null) {
+            mSwipeInAnimator = createSwipeAnimator(mSwipeInTransform);
+            mSwipeInAnimator.setInterpolator(mBounceInterpolator);
+        } else if (mSwipeInAnimator.isRunning()) {
+            // Finish the previous swipe before the animator is reused
+            mSwipeInAnimator.end();
+        }
 
-        animator.setDuration(duration).setInterpolator(new BounceInterpolator());
+        // Animate position and alpha of swiped item
+        mSwipeInTransform.set(view, 1.f, 0.f, 0.f);
+        mSwipeInAnimator.setDuration(duration);
 
-        return animator;
+        return mSwipeInAnimator;
     }
 
     @TargetApi(Build.VERSION_CODES.HONEYCOMB)
     @Override
     public ObjectAnimator getSwipeOutAnimator(View view, float deltaX, float deltaY) {
+        if (mQuality == QUALITY_OFF) {
+            return null;
+        }
 
         float endX;
         float endRotationY;
@@ -103,7 +183,7 @@ class DefaultCardStreamAnimator extends CardStreamAnimator {
         float deltaXAbs = Math.abs(deltaX);
 
         float fractionCovered = 1.f - (deltaXAbs / view.getWidth());
-        long duration = Math.abs((int) ((1 - fractionCovered) * 200 * mSpeedFactor));
+        long duration = Math.abs((int) ((1 - fractionCovered) * BASE_DURATION * mSpeedFactor));
 
         endX = deltaX < 0 ? -view.getWidth() : view.getWidth();
         if (deltaX > 0)
@@ -111,12 +191,143 @@ class DefaultCardStreamAnimator extends CardStreamAnimator {
         else
             endRotationY = 15.f;
 
+        if (mSwipeOutAnimator == null) {
+            mSwipeOutAnimator = createSwipeAnimator(mSwipeOutTransform);
+        } else if (mSwipeOutAnimator.isRunning()) {
+            // Finish the previous swipe before the animator is reused
+            mSwipeOutAnimator.end();
+        }
+
         // Animate position and alpha of swiped item
-        return ObjectAnimator.ofPropertyValuesHolder(view,
-                PropertyValuesHolder.ofFloat("alpha", 0.f),
-                PropertyValuesHolder.ofFloat("translationX", endX),
-                PropertyValuesHolder.ofFloat("rotationY", endRotationY)).setDuration(duration);
+        mSwipeOutTransform.set(view, 0.f, endX, endRotationY);
+        mSwipeOutAnimator.setDuration(duration);
+
+        return mSwipeOutAnimator;
+    }
+
+    private long getDuration() {
+        return (long) (BASE_DURATION * mSpeedFactor);
+    }
+
+    /**
+     * Returns the height of the default display. The display is only queried on the first call.
+     *
+     * @param context
+     * @return
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB_MR2)
+    private float getDisplayHeight(Context context) {
+        if (mDisplayHeight < 0.f) {
+            final Point outPoint = new Point();
+            WindowManager wm = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
+            wm.getDefaultDisplay().getSize(outPoint);
+            mDisplayHeight = outPoint.y;
+        }
+        return mDisplayHeight;
+    }
+
+    /**
+     * Creates an animator template without a target. The template is cloned by the
+     * {@link android.animation.LayoutTransition}, clones keep the listeners of the template.
+     *
+     * @param values
+     * @return
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private ObjectAnimator createTemplate(PropertyValuesHolder... values) {
+        ObjectAnimator animator = ObjectAnimator.ofPropertyValuesHolder(new Object(), values);
+        animator.setDuration(getDuration());
+        animator.addListener(mLayerListener);
+        return animator;
+    }
+
+    /**
+     * Creates an animator that drives the given transform from 0 to 1. The animator is kept and
+     * reused for all following swipes.
+     *
+     * @param transform
+     * @return
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private ObjectAnimator createSwipeAnimator(SwipeTransform transform) {
+        ObjectAnimator animator = ObjectAnimator.ofFloat(transform, "fraction", 0.f, 1.f);
+        animator.addListener(mLayerListener);
+        return animator;
+    }
+
+    /**
+     * Target of the reusable swipe animators. It interpolates the swiped properties of a view
+     * between the values at the start of the animation and the end values, so that the animators
+     * do not have to be rebuilt for every swipe.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    static class SwipeTransform {
+        private View mView = null;
+        private float mStartAlpha;
+        private float mEndAlpha;
+        private float mStartTranslationX;
+        private float mEndTranslationX;
+        private float mStartRotationY;
+        private float mEndRotationY;
+
+        void set(View view, float alpha, float translationX, float rotationY) {
+            mView = view;
+            mStartAlpha = view.getAlpha();
+            mStartTranslationX = view.getTranslationX();
+            mStartRotationY = view.getRotationY();
+            mEndAlpha = alpha;
+            mEndTranslationX = translationX;
+            mEndRotationY = rotationY;
+        }
+
+        View getView() {
+            return mView;
+        }
+
+        // Called by the animator through the float setter found by name, which does not box the
+        // fraction on every frame. It must stay public for the lookup.
+        public void setFraction(float fraction) {
+            if (mView == null) {
+                return;
+            }
+            mView.setAlpha(mStartAlpha + (mEndAlpha - mStartAlpha) * fraction);
+            mView.setTranslationX(
+                    mStartTranslationX + (mEndTranslationX - mStartTranslationX) * fraction);
+            mView.setRotationY(mStartRotationY + (mEndRotationY - mStartRotationY) * fraction);
+        }
+    }
+
+    /**
+     * Renders the target view of an animation into a hardware layer while it is running.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static class AnimationLayerListener extends AnimatorListenerAdapter {
+
+        @Override
+        public void onAnimationStart(Animator animation) {
+            final View view = getTargetView(animation);
+            if (view != null) {
+                view.setLayerType(View.LAYER_TYPE_HARDWARE, null);
+            }
+        }
+
+        @Override
+        public void onAnimationEnd(Animator animation) {
+            final View view = getTargetView(animation);
+            if (view != null) {
+                view.setLayerType(View.LAYER_TYPE_NONE, null);
+            }
+        }
 
+        private View getTargetView(Animator animation) {
+            final Object target = ((ObjectAnimator) animation).getTarget();
+            if (target instanceof View) {
+                return (View) target;
+            } else if (target instanceof SwipeTransform) {
+                return ((SwipeTransform) target).getView();
+            }
+            return null;
+        }
     }
 
 }
@@ -17,24 +17,10 @@
 
 package com.example.android.batchstepsensor.cardstream;
 
-import android.os.Bundle;
-import android.support.v4.app.Fragment;
-
-public class StreamRetentionFragment extends Fragment {
-
-    CardStreamState mState;
-
-    @Override
-    public void onActivityCreated(Bundle savedInstanceState) {
-        super.onActivityCreated(savedInstanceState);
-        setRetainInstance(true);
-    }
-
-    public void storeCardStream(CardStreamState state) {
-        mState = state;
-    }
-
-    public CardStreamState getCardStream() {
-        return mState;
-    }
+/**
+ * Listener that is called once all cards of a {@link CardStreamState} have been restored by
+ * {@link CardStreamFragment#restoreState(CardStreamState, OnCardClickListener, OnRestoreListener)}.
+ */
+public interface OnRestoreListener {
+    public void onCardStreamRestored();
 }
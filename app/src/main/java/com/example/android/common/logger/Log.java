@@ -51,6 +51,19 @@ public class Log {
         mLogNode = node;
     }
 
+    /**
+     * Checks whether messages of the tag are printed at the priority, see
+     * {@link android.util.Log#isLoggable(String, int)}. Use it to skip building messages that are
+     * not printed on hot paths.
+     *
+     * @param tag      Tag for for the log data.
+     * @param priority Log level of the data being logged.
+     * @return
+     */
+    public static boolean isLoggable(String tag, int priority) {
+        return android.util.Log.isLoggable(tag, priority);
+    }
+
     /**
      * Instructs the LogNode to print the log data provided. Other LogNodes can
      * be chained to the end of the LogNode as desired.
@@ -0,0 +1,123 @@
+/*
+* Copyright 2014 The Android Open Source Project, University of South Florida
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.example.android.stepcore;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Compares {@link FixedPointFormat} with {@code String.format("%.2f", ...)} for the delays shown
+ * on the counting card: time per formatted value and bytes allocated per formatted value. Run it
+ * with the {@code benchmark} task of this module.
+ */
+public class FixedPointFormatBenchmark {
+
+    private static final int VALUES = 1024;
+    private static final int WARMUP_ROUNDS = 200;
+    private static final int ROUNDS = 1000;
+
+    private final long[] mDelays = new long[VALUES];
+    private final StringBuilder mBuilder = new StringBuilder(32);
+    // Keeps the results alive so the formatting is not optimized away
+    private long mSink = 0;
+
+    private FixedPointFormatBenchmark() {
+        final Random random = new Random(38);
+        for (int i = 0; i < VALUES; i++) {
+            // Batch delays of up to 20s in ms
+            mDelays[i] = random.nextInt(20000);
+        }
+    }
+
+    private void formatFixedPoint() {
+        for (int i = 0; i < VALUES; i++) {
+            mBuilder.setLength(0);
+            FixedPointFormat.append(mBuilder, mDelays[i], 3, 2);
+            mSink += mBuilder.length();
+        }
+    }
+
+    private void formatString() {
+        for (int i = 0; i < VALUES; i++) {
+            mBuilder.setLength(0);
+            mBuilder.append(String.format(Locale.US, "%.2f", mDelays[i] / 1000f));
+            mSink += mBuilder.length();
+        }
+    }
+
+    /**
+     * Runs one of the formatters and prints the time and allocated bytes per value.
+     *
+     * @param name
+     * @param fixedPoint whether the fixed-point formatter or String.format is run
+     */
+    private void run(String name, boolean fixedPoint) {
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            if (fixedPoint) {
+                formatFixedPoint();
+            } else {
+                formatString();
+            }
+        }
+
+        final long allocatedStart = getAllocatedBytes();
+        final long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            if (fixedPoint) {
+                formatFixedPoint();
+            } else {
+                formatString();
+            }
+        }
+        final long elapsed = System.nanoTime() - start;
+        final long allocated = getAllocatedBytes() - allocatedStart;
+
+        final long operations = (long) ROUNDS * VALUES;
+        final StringBuilder line = new StringBuilder(name).append(": ");
+        FixedPointFormat.append(line, elapsed * 10 / operations, 1, 1).append(" ns/op");
+        if (allocated >= 0) {
+            line.append(", ");
+            FixedPointFormat.append(line, allocated * 10 / operations, 1, 1).append(" bytes/op");
+        }
+        System.out.println(line);
+    }
+
+    /**
+     * Returns the bytes allocated by the current thread, or a negative value if the JVM does not
+     * measure them.
+     */
+    private static long getAllocatedBytes() {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    public static void main(String[] args) {
+        final FixedPointFormatBenchmark benchmark = new FixedPointFormatBenchmark();
+        benchmark.run("String.format", false);
+        benchmark.run("FixedPointFormat", true);
+        if (benchmark.mSink == 0) {
+            System.out.println();
+        }
+    }
+}
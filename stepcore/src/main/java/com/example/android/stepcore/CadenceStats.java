@@ -0,0 +1,250 @@
+/*
+* Copyright 2014 The Android Open Source Project, University of South Florida
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.example.android.stepcore;
+
+/**
+ * Streaming cadence statistics and walking/idle segmentation over the step timeline.
+ * <p/>
+ * Steps are added with their timestamp and the total number of steps, see
+ * {@link #add(long, int)}. The steps of a sensor event share the timestamp of the last step, steps
+ * with the same timestamp are merged into one entry. The most recent entries of the current
+ * walking segment are kept in a fixed window of primitive arrays with running sums, so the cadence
+ * (steps per minute) and its variability (coefficient of variation of the step interval) are
+ * updated in O(1) per step without scanning the history.
+ * <p/>
+ * A walking segment ends when no step has been taken for the idle gap. The time spent walking and
+ * the number of walking segments are accumulated, the gaps between segments are idle time.
+ */
+public class CadenceStats {
+
+    private static final double NANOS_PER_MINUTE = 60e9;
+
+    private final long mIdleGapNanos;
+
+    // Entries of the current segment: timestamp, total steps, and the interval per step since the
+    // previous entry weighted by the number of steps, oldest first
+    private final long[] mTimestamps;
+    private final int[] mTotals;
+    private final double[] mIntervals;
+    private final int[] mWeights;
+    private int mHead = 0;
+    private int mSize = 0;
+
+    // Running sums of the weighted intervals in the window
+    private double mIntervalSum = 0;
+    private double mIntervalSquareSum = 0;
+    private int mWeightSum = 0;
+
+    // Total steps of the last entry, also across segments
+    private int mLastTotal = -1;
+    private long mLastTimestamp = Long.MIN_VALUE;
+
+    // Segmentation
+    private long mSegmentStart = Long.MIN_VALUE;
+    private long mWalkingNanos = 0;
+    private long mIdleNanos = 0;
+    private int mSegments = 0;
+
+    /**
+     * @param window       number of entries the cadence is computed over
+     * @param idleGapNanos time without steps that ends a walking segment, in nanoseconds
+     */
+    public CadenceStats(int window, long idleGapNanos) {
+        if (window < 2) {
+            throw new IllegalArgumentException("window must be at least 2");
+        }
+        mIdleGapNanos = idleGapNanos;
+        mTimestamps = new long[window];
+        mTotals = new int[window];
+        mIntervals = new double[window];
+        mWeights = new int[window];
+    }
+
+    /**
+     * Adds steps to the timeline. The first call and events without new steps (e.g. the step
+     * counter baseline) only update the total, steps out of order are ignored.
+     *
+     * @param timestamp  time of the last step in nanoseconds
+     * @param totalSteps total number of steps after this step
+     */
+    public void add(long timestamp, int totalSteps) {
+        final int steps = mLastTotal < 0 ? 0 : totalSteps - mLastTotal;
+        mLastTotal = totalSteps;
+        if (steps <= 0) {
+            return;
+        }
+        if (mSize > 0 && timestamp < mLastTimestamp) {
+            return;
+        }
+
+        if (mSize > 0 && timestamp == mLastTimestamp) {
+            // More steps of the same event
+            final int last = index(mSize - 1);
+            mTotals[last] = totalSteps;
+            if (mSize > 1) {
+                removeInterval(last);
+                setInterval(last, mTimestamps[index(mSize - 2)], mTotals[index(mSize - 2)]);
+            }
+            return;
+        }
+
+        if (mSize > 0 && timestamp - mLastTimestamp > mIdleGapNanos) {
+            // The previous walking segment has ended
+            endSegment();
+            mIdleNanos += timestamp - mLastTimestamp;
+        }
+        if (mSize == 0) {
+            mSegmentStart = timestamp;
+            mSegments++;
+        } else {
+            mWalkingNanos += timestamp - mLastTimestamp;
+        }
+
+        if (mSize == mTimestamps.length) {
+            // Evict the oldest entry, the interval of the next entry leaves the window with it
+            mHead = (mHead + 1) % mTimestamps.length;
+            mSize--;
+            removeInterval(mHead);
+            mWeights[mHead] = 0;
+            mIntervals[mHead] = 0;
+        }
+
+        final int newest = index(mSize);
+        mTimestamps[newest] = timestamp;
+        mTotals[newest] = totalSteps;
+        mWeights[newest] = 0;
+        mIntervals[newest] = 0;
+        if (mSize > 0) {
+            final int previous = index(mSize - 1);
+            setInterval(newest, mTimestamps[previous], mTotals[previous]);
+        }
+        mSize++;
+        mLastTimestamp = timestamp;
+    }
+
+    private int index(int i) {
+        return (mHead + i) % mTimestamps.length;
+    }
+
+    private void setInterval(int entry, long previousTimestamp, int previousTotal) {
+        final int steps = mTotals[entry] - previousTotal;
+        if (steps <= 0) {
+            return;
+        }
+        final double interval = (double) (mTimestamps[entry] - previousTimestamp) / steps;
+        mIntervals[entry] = interval;
+        mWeights[entry] = steps;
+        mIntervalSum += interval * steps;
+        mIntervalSquareSum += interval * interval * steps;
+        mWeightSum += steps;
+    }
+
+    private void removeInterval(int entry) {
+        final int steps = mWeights[entry];
+        final double interval = mIntervals[entry];
+        mIntervalSum -= interval * steps;
+        mIntervalSquareSum -= interval * interval * steps;
+        mWeightSum -= steps;
+        if (mWeightSum == 0) {
+            // Drop the rounding errors of an empty window
+            mIntervalSum = 0;
+            mIntervalSquareSum = 0;
+        }
+    }
+
+    private void endSegment() {
+        mHead = 0;
+        mSize = 0;
+        mIntervalSum = 0;
+        mIntervalSquareSum = 0;
+        mWeightSum = 0;
+    }
+
+    /**
+     * Returns the cadence of the current walking segment in steps per minute, or NaN if it is not
+     * known yet.
+     */
+    public float getCadence() {
+        if (mWeightSum == 0 || mIntervalSum <= 0) {
+            return Float.NaN;
+        }
+        return (float) (NANOS_PER_MINUTE * mWeightSum / mIntervalSum);
+    }
+
+    /**
+     * Returns the coefficient of variation (standard deviation / mean) of the step interval of the
+     * current walking segment, or NaN if it is not known yet. Regular walking is below 0.1.
+     */
+    public float getCadenceVariability() {
+        if (mWeightSum < 2 || mIntervalSum <= 0) {
+            return Float.NaN;
+        }
+        final double mean = mIntervalSum / mWeightSum;
+        final double variance = Math.max(0, mIntervalSquareSum / mWeightSum - mean * mean);
+        return (float) (Math.sqrt(variance) / mean);
+    }
+
+    /**
+     * Returns true if the last step is less than the idle gap before the given time.
+     *
+     * @param nowNanos current time in the time base of the timestamps
+     * @return
+     */
+    public boolean isWalking(long nowNanos) {
+        return mSize > 0 && nowNanos - mLastTimestamp <= mIdleGapNanos;
+    }
+
+    /**
+     * Returns the time from the first to the last step of all walking segments, in nanoseconds.
+     */
+    public long getWalkingTime() {
+        return mWalkingNanos;
+    }
+
+    /**
+     * Returns the time between walking segments, in nanoseconds.
+     */
+    public long getIdleTime() {
+        return mIdleNanos;
+    }
+
+    /**
+     * Returns the number of walking segments, including the current one.
+     */
+    public int getSegmentCount() {
+        return mSegments;
+    }
+
+    /**
+     * Returns the timestamp of the first step of the current walking segment, or Long.MIN_VALUE if
+     * no step has been added.
+     */
+    public long getSegmentStart() {
+        return mSegmentStart;
+    }
+
+    public void reset() {
+        endSegment();
+        mLastTotal = -1;
+        mLastTimestamp = Long.MIN_VALUE;
+        mSegmentStart = Long.MIN_VALUE;
+        mWalkingNanos = 0;
+        mIdleNanos = 0;
+        mSegments = 0;
+    }
+}
@@ -0,0 +1,210 @@
+/*
+* Copyright 2014 The Android Open Source Project, University of South Florida
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.example.android.stepcore;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Turns the raw values of a step counter into a total that keeps growing across resets of the
+ * counter. The USF step counter is implemented in software and starts again at 0 whenever its
+ * service stops, which can happen long before the device is rebooted.
+ * <p/>
+ * The counter is tracked in runs: a run starts at a raw value and lasts until the raw value
+ * drops, which is detected as a reset. The steps of all finished runs are kept as the base of the
+ * total, a new run starts at 0 because the counter counts the steps since it was reset.
+ * <p/>
+ * The state is small and can be saved to a checkpoint in a {@link ByteBuffer}, typically a memory
+ * mapped file, after every event. A counter that is resumed from a checkpoint compares the next
+ * raw value with the last saved one, so the steps taken while the writer was not running are
+ * counted once, whether the counter was reset in the meantime or not, and no step history has to
+ * be replayed. A reset is not visible in the raw value if the counter has already counted more
+ * steps than the last saved value, the checkpoint therefore also records which instance of the
+ * counter it was saved from; a checkpoint loaded for another instance starts a new run.
+ */
+public class CounterBaseline {
+
+    /**
+     * Size of a checkpoint in bytes.
+     */
+    public static final int CHECKPOINT_SIZE = 36;
+
+    // Checkpoint layout
+    private static final int MAGIC = 0x53544243; // "STBC"
+    private static final int OFFSET_MAGIC = 0;
+    // Odd while the checkpoint is being written
+    private static final int OFFSET_SEQUENCE = 4;
+    private static final int OFFSET_TAG = 8;
+    private static final int OFFSET_STEPS = 12;
+    private static final int OFFSET_BASE = 16;
+    private static final int OFFSET_RUN_START = 20;
+    private static final int OFFSET_LAST = 24;
+    private static final int OFFSET_RESETS = 28;
+    private static final int OFFSET_INSTANCE = 32;
+
+    // Whether a raw value has been seen since the baseline was reset
+    private boolean mStarted = false;
+    // Total of the steps before the current run
+    private int mBase = 0;
+    // Raw value at the start of the current run
+    private int mRunStart = 0;
+    // Last raw value
+    private int mLast = 0;
+    // Number of resets of the counter that have been detected
+    private int mResets = 0;
+
+    /**
+     * Forgets the counter, the next raw value starts a new baseline.
+     */
+    public void reset() {
+        mStarted = false;
+        mBase = 0;
+        mRunStart = 0;
+        mLast = 0;
+        mResets = 0;
+    }
+
+    /**
+     * Starts a new baseline, the total continues from the given number of steps at the given raw
+     * value.
+     *
+     * @param steps total at the raw value
+     * @param raw   raw value of the counter
+     */
+    public void start(int steps, int raw) {
+        mStarted = true;
+        mBase = steps;
+        mRunStart = raw;
+        mLast = raw;
+        mResets = 0;
+    }
+
+    /**
+     * Copies the state of another baseline, for example one loaded from a checkpoint.
+     *
+     * @param other
+     */
+    public void set(CounterBaseline other) {
+        mStarted = other.mStarted;
+        mBase = other.mBase;
+        mRunStart = other.mRunStart;
+        mLast = other.mLast;
+        mResets = other.mResets;
+    }
+
+    /**
+     * Returns whether a baseline has been started.
+     */
+    public boolean isStarted() {
+        return mStarted;
+    }
+
+    /**
+     * Adds a raw value of the counter and returns the total. A value below the last value is a
+     * reset of the counter, the steps counted since the reset are added to the total. The
+     * baseline must have been started.
+     *
+     * @param raw raw value of the counter
+     * @return total number of steps
+     */
+    public int update(int raw) {
+        if (!mStarted) {
+            throw new IllegalStateException("Baseline not started");
+        }
+        if (raw < mLast) {
+            // The counter started again at 0
+            mBase += mLast - mRunStart;
+            mRunStart = 0;
+            mResets++;
+        }
+        mLast = raw;
+        return getTotal();
+    }
+
+    /**
+     * Returns the total number of steps at the last raw value.
+     */
+    public int getTotal() {
+        return mBase + mLast - mRunStart;
+    }
+
+    /**
+     * Returns the number of detected resets of the counter.
+     */
+    public int getResetCount() {
+        return mResets;
+    }
+
+    /**
+     * Saves the baseline to a checkpoint.
+     *
+     * @param buffer buffer of at least {@link #CHECKPOINT_SIZE} bytes
+     * @param tag      identifies what the checkpoint belongs to, for example a session
+     * @param instance identifies the instance of the counter, for example the process it runs in
+     * @param steps    total number of steps including steps that are not counted by the counter
+     */
+    public void save(ByteBuffer buffer, int tag, int instance, int steps) {
+        final int sequence = buffer.getInt(OFFSET_SEQUENCE) | 1;
+        buffer.putInt(OFFSET_SEQUENCE, sequence);
+        buffer.putInt(OFFSET_TAG, tag);
+        buffer.putInt(OFFSET_STEPS, steps);
+        buffer.putInt(OFFSET_BASE, mStarted ? mBase : -1);
+        buffer.putInt(OFFSET_RUN_START, mRunStart);
+        buffer.putInt(OFFSET_LAST, mLast);
+        buffer.putInt(OFFSET_RESETS, mResets);
+        buffer.putInt(OFFSET_INSTANCE, instance);
+        buffer.putInt(OFFSET_MAGIC, MAGIC);
+        buffer.putInt(OFFSET_SEQUENCE, sequence + 1);
+    }
+
+    /**
+     * Loads the baseline from a checkpoint. If the checkpoint was saved before a baseline was
+     * started, this baseline is not started and the next raw value starts it.
+     *
+     * @param buffer
+     * @param tag      tag the checkpoint must have been saved with
+     * @param instance instance of the counter, if the checkpoint was saved from another instance
+     *                 the counter has been reset since
+     * @return the number of steps saved with the checkpoint, or -1 if the buffer does not hold a
+     * complete checkpoint with the tag, the baseline is not changed then
+     */
+    public int load(ByteBuffer buffer, int tag, int instance) {
+        if (buffer.capacity() < CHECKPOINT_SIZE || buffer.getInt(OFFSET_MAGIC) != MAGIC
+                || (buffer.getInt(OFFSET_SEQUENCE) & 1) != 0
+                || buffer.getInt(OFFSET_TAG) != tag) {
+            return -1;
+        }
+        final int base = buffer.getInt(OFFSET_BASE);
+        if (base < 0) {
+            reset();
+        } else {
+            mStarted = true;
+            mBase = base;
+            mRunStart = buffer.getInt(OFFSET_RUN_START);
+            mLast = buffer.getInt(OFFSET_LAST);
+            mResets = buffer.getInt(OFFSET_RESETS);
+            if (buffer.getInt(OFFSET_INSTANCE) != instance) {
+                // The new instance counts from 0, finish the run of the old one
+                mBase += mLast - mRunStart;
+                mRunStart = 0;
+                mLast = 0;
+                mResets++;
+            }
+        }
+        return buffer.getInt(OFFSET_STEPS);
+    }
+}
@@ -0,0 +1,412 @@
+/*
+* Copyright 2014 The Android Open Source Project, University of South Florida
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.example.android.stepcore;
+
+/**
+ * Reorders step sensor events by timestamp within a bounded window and removes duplicates, so that
+ * a {@link StepEngine} receives a clean stream. Batched deliveries can overlap or arrive late
+ * relative to each other, the buffer holds each event for the window after it was received and
+ * releases the events in timestamp order to an {@link EventSink}. The timestamps of a batch are
+ * older than its delivery by up to the max report latency, so the window must be at least that
+ * long to order overlapping batches.
+ * <p/>
+ * The released stream is monotone per sensor:
+ * <ul>
+ * <li>Events of the same sensor with the same timestamp and first value are duplicates and are
+ * dropped. Step detector events with the timestamp of a recently released step detector event
+ * are duplicates as well, for example a batch that is delivered again.</li>
+ * <li>Step counter events that are older than the last released step counter event, or that repeat
+ * its timestamp and total, are stale and are dropped. A newer event with a smaller total is a
+ * reset of the counter, it is released and stitched by the {@link StepEngine}. The first step
+ * counter event after a reset of the buffer is the baseline of the counter, it is released right
+ * away.</li>
+ * <li>Other step detector events that arrive after a newer step detector event has been
+ * released are late. They are still released since they are real steps, with the timestamp of
+ * the last released step detector event.</li>
+ * </ul>
+ * All memory is allocated up front. Values of an event are copied into fixed slots. An event with
+ * more orientations than fit into a slot, for example a long batch, is split into chunks of
+ * consecutive slots with the same timestamp; each chunk is released as an event of its own with
+ * the steps of its orientations. Only orientations that do not fit into the whole buffer are
+ * dropped, see {@link #getTruncatedCount()}.
+ */
+public class EventReorderBuffer {
+
+    /**
+     * Receives the events released by the buffer.
+     */
+    public interface EventSink {
+        /**
+         * @param sensor        {@link StepEngine#SENSOR_STEP_DETECTOR} or
+         *                      {@link StepEngine#SENSOR_STEP_COUNTER}
+         * @param values        values of the event, only valid during this call
+         * @param length        number of values
+         * @param timestamp     timestamp of the event in nanoseconds
+         * @param receivedNanos time the event was received
+         */
+        public void onEvent(int sensor, float[] values, int length, long timestamp,
+                            long receivedNanos);
+    }
+
+    private final EventSink mSink;
+    private long mWindowNanos;
+
+    // Event slots
+    private final int[] mSensors;
+    private final long[] mTimestamps;
+    private final long[] mReceived;
+    private final float[][] mValues;
+    private final int[] mLengths;
+    // Whether a slot continues the event of the previous slot
+    private final boolean[] mContinued;
+    // First value of the whole event of a slot, used to detect duplicates
+    private final float[] mEventValues;
+    // Indices of the occupied slots, ordered by timestamp
+    private final int[] mOrder;
+    private int mSize = 0;
+    // Indices of the free slots
+    private final int[] mFree;
+    private int mFreeCount;
+
+    // Last released events
+    private long mLastDetectorTimestamp = Long.MIN_VALUE;
+    // Ring of the timestamps of the recently released step detector events
+    private final long[] mDetectorHistory;
+    private int mHistoryNext = 0;
+    private int mHistorySize = 0;
+    private long mLastCounterTimestamp = Long.MIN_VALUE;
+    private float mLastCounterValue = 0.f;
+    private boolean mWaitingForBaseline = true;
+    // Whether the last released event was dropped, its chunks are dropped along with it
+    private boolean mDroppedEvent = false;
+
+    // Statistics
+    private int mDuplicateCount = 0;
+    private int mStaleCount = 0;
+    private int mLateCount = 0;
+    private int mTruncatedCount = 0;
+    private int mSplitCount = 0;
+
+    /**
+     * @param capacity    maximum number of buffered events, the oldest event is released early
+     *                    when the buffer is full. Twice as many step detector timestamps are kept
+     *                    to drop deliveries of events that have already been released.
+     * @param maxValues   number of values of a slot (step count and orientations), longer events
+     *                    are split into chunks
+     * @param windowNanos how long events are held back after they were received to wait for older
+     *                    events, in nanoseconds
+     * @param sink        receives the released events
+     */
+    public EventReorderBuffer(int capacity, int maxValues, long windowNanos, EventSink sink) {
+        if (capacity < 1 || maxValues < 2) {
+            throw new IllegalArgumentException(
+                    "capacity must be at least 1 and maxValues at least 2");
+        }
+        mSink = sink;
+        mWindowNanos = windowNanos;
+        mSensors = new int[capacity];
+        mTimestamps = new long[capacity];
+        mReceived = new long[capacity];
+        mValues = new float[capacity][maxValues];
+        mLengths = new int[capacity];
+        mContinued = new boolean[capacity];
+        mEventValues = new float[capacity];
+        mOrder = new int[capacity];
+        mFree = new int[capacity];
+        mDetectorHistory = new long[2 * capacity];
+        reset();
+    }
+
+    /**
+     * Drops all buffered events and forgets the released events, the next step counter event is
+     * a new baseline.
+     */
+    public void reset() {
+        mSize = 0;
+        mFreeCount = mFree.length;
+        for (int i = 0; i < mFree.length; i++) {
+            mFree[i] = i;
+        }
+        mLastDetectorTimestamp = Long.MIN_VALUE;
+        mHistoryNext = 0;
+        mHistorySize = 0;
+        mLastCounterTimestamp = Long.MIN_VALUE;
+        mLastCounterValue = 0.f;
+        mWaitingForBaseline = true;
+        mDroppedEvent = false;
+        mDuplicateCount = 0;
+        mStaleCount = 0;
+        mLateCount = 0;
+        mTruncatedCount = 0;
+        mSplitCount = 0;
+    }
+
+    /**
+     * Set how long events are held back after they were received. It should be at least the max
+     * report latency of the sensors, the buffered events keep their release times.
+     *
+     * @param windowNanos
+     */
+    public void setWindowNanos(long windowNanos) {
+        mWindowNanos = windowNanos;
+    }
+
+    /**
+     * Adds an event and releases the events that have been held for the window, relative to the
+     * time the event was received.
+     *
+     * @param sensor        {@link StepEngine#SENSOR_STEP_DETECTOR} or
+     *                      {@link StepEngine#SENSOR_STEP_COUNTER}
+     * @param values        values of the event, they are copied
+     * @param timestamp     timestamp of the event in nanoseconds
+     * @param receivedNanos time the event was received, in the same time base as the timestamp
+     */
+    public void offer(int sensor, float[] values, long timestamp, long receivedNanos) {
+        if (sensor == StepEngine.SENSOR_STEP_COUNTER && mWaitingForBaseline) {
+            // The baseline is the current total of the counter, it is not ordered with the steps
+            mWaitingForBaseline = false;
+            mLastCounterTimestamp = timestamp;
+            mLastCounterValue = values[0];
+            mSink.onEvent(sensor, values, values.length, timestamp, receivedNanos);
+            release(receivedNanos);
+            return;
+        }
+
+        if (isBuffered(sensor, values[0], timestamp)) {
+            mDuplicateCount++;
+            release(receivedNanos);
+            return;
+        }
+
+        // Orientations that fit into a slot, longer events are split into chunks
+        final int chunkSize = mValues[0].length - 1;
+        final int orientations = values.length - 1;
+        int chunks = Math.max(1, (orientations + chunkSize - 1) / chunkSize);
+        if (chunks > 1 && sensor == StepEngine.SENSOR_STEP_COUNTER && values[0] < orientations) {
+            // The totals of the chunks would look like a reset of the counter
+            chunks = 1;
+        }
+        if (chunks > mOrder.length) {
+            chunks = mOrder.length;
+        }
+        if (chunks * chunkSize < orientations) {
+            mTruncatedCount++;
+        }
+        if (chunks > 1) {
+            mSplitCount++;
+        }
+        while (mFreeCount < chunks) {
+            // Full, release the oldest events to make room
+            releaseFirst();
+        }
+
+        int offset = 1;
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            final int count = Math.min(chunkSize, orientations - offset + 1);
+            final int slot = mFree[--mFreeCount];
+            mSensors[slot] = sensor;
+            mTimestamps[slot] = timestamp;
+            mReceived[slot] = receivedNanos;
+            mContinued[slot] = chunk > 0;
+            mEventValues[slot] = values[0];
+            final float[] slotValues = mValues[slot];
+            System.arraycopy(values, offset, slotValues, 1, count);
+            mLengths[slot] = count + 1;
+            offset += count;
+            if (chunk == chunks - 1) {
+                // The last chunk completes the event: the total of the counter, or the steps
+                // of the detector that are not in the previous chunks
+                slotValues[0] = sensor == StepEngine.SENSOR_STEP_COUNTER
+                        ? values[0] : Math.max(0.f, values[0] - (offset - 1 - count));
+            } else if (sensor == StepEngine.SENSOR_STEP_COUNTER) {
+                // The total after the steps of this chunk
+                slotValues[0] = values[0] - (orientations - offset + 1);
+            } else {
+                // One step per orientation of the chunk
+                slotValues[0] = count;
+            }
+            insert(slot, timestamp);
+        }
+
+        release(receivedNanos);
+    }
+
+    /**
+     * Inserts a slot into the ordered slots, after the slots with the same timestamp.
+     *
+     * @param slot
+     * @param timestamp
+     */
+    private void insert(int slot, long timestamp) {
+        int i = mSize;
+        while (i > 0 && mTimestamps[mOrder[i - 1]] > timestamp) {
+            mOrder[i] = mOrder[i - 1];
+            i--;
+        }
+        mOrder[i] = slot;
+        mSize++;
+    }
+
+    /**
+     * Releases the buffered events in timestamp order while the oldest of them has been held for
+     * the window. A newer event that has been held longer waits for the older events.
+     *
+     * @param nowNanos current time, in the same time base as the receive times
+     */
+    public void release(long nowNanos) {
+        while (mSize > 0 && mReceived[mOrder[0]] + mWindowNanos <= nowNanos) {
+            releaseFirst();
+        }
+    }
+
+    /**
+     * Releases all buffered events.
+     */
+    public void flush() {
+        while (mSize > 0) {
+            releaseFirst();
+        }
+    }
+
+    /**
+     * Returns the number of buffered events.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the time at which the next event is released, in the time base of the receive
+     * times. The buffer must not be empty.
+     */
+    public long getReleaseTime() {
+        if (mSize == 0) {
+            throw new IllegalStateException("buffer is empty");
+        }
+        return mReceived[mOrder[0]] + mWindowNanos;
+    }
+
+    public long getWindowNanos() {
+        return mWindowNanos;
+    }
+
+    public int getDuplicateCount() {
+        return mDuplicateCount;
+    }
+
+    public int getStaleCount() {
+        return mStaleCount;
+    }
+
+    public int getLateCount() {
+        return mLateCount;
+    }
+
+    /**
+     * Returns the number of events that were split into chunks.
+     */
+    public int getSplitCount() {
+        return mSplitCount;
+    }
+
+    /**
+     * Returns the number of events whose orientations did not fit into the buffer, even when split
+     * into chunks. Their remaining orientations were dropped.
+     */
+    public int getTruncatedCount() {
+        return mTruncatedCount;
+    }
+
+    private boolean isBuffered(int sensor, float value, long timestamp) {
+        for (int i = 0; i < mSize; i++) {
+            final int slot = mOrder[i];
+            if (!mContinued[slot] && mSensors[slot] == sensor && mTimestamps[slot] == timestamp
+                    && mEventValues[slot] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isReleased(long timestamp) {
+        for (int i = 0; i < mHistorySize; i++) {
+            if (mDetectorHistory[i] == timestamp) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void addReleased(long timestamp) {
+        mDetectorHistory[mHistoryNext] = timestamp;
+        mHistoryNext = (mHistoryNext + 1) % mDetectorHistory.length;
+        mHistorySize = Math.min(mHistorySize + 1, mDetectorHistory.length);
+    }
+
+    private void releaseFirst() {
+        final int slot = mOrder[0];
+        mSize--;
+        System.arraycopy(mOrder, 1, mOrder, 0, mSize);
+        mFree[mFreeCount++] = slot;
+
+        final int sensor = mSensors[slot];
+        long timestamp = mTimestamps[slot];
+        final float[] values = mValues[slot];
+
+        if (mContinued[slot]) {
+            // A chunk of the last released event, it shares its fate and timestamp
+            if (mDroppedEvent) {
+                return;
+            }
+            if (sensor == StepEngine.SENSOR_STEP_DETECTOR) {
+                timestamp = mLastDetectorTimestamp;
+            }
+            mSink.onEvent(sensor, values, mLengths[slot], timestamp, mReceived[slot]);
+            return;
+        }
+
+        mDroppedEvent = true;
+        if (sensor == StepEngine.SENSOR_STEP_COUNTER) {
+            final float total = mEventValues[slot];
+            if (timestamp < mLastCounterTimestamp
+                    || (timestamp == mLastCounterTimestamp && total == mLastCounterValue)) {
+                // An older or repeated total, the steps have already been counted
+                mStaleCount++;
+                return;
+            }
+            // A smaller total is a reset of the counter, it is stitched by the engine
+            mLastCounterTimestamp = timestamp;
+            mLastCounterValue = total;
+        } else {
+            if (timestamp <= mLastDetectorTimestamp && isReleased(timestamp)) {
+                mDuplicateCount++;
+                return;
+            }
+            addReleased(timestamp);
+            if (timestamp < mLastDetectorTimestamp) {
+                mLateCount++;
+                timestamp = mLastDetectorTimestamp;
+            }
+            mLastDetectorTimestamp = timestamp;
+        }
+        mDroppedEvent = false;
+
+        // The slot is free again, but it is not reused before the sink returns
+        mSink.onEvent(sensor, values, mLengths[slot], timestamp, mReceived[slot]);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+* Copyright 2014 The Android Open Source Project, University of South Florida
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.example.android.stepcore;
+
+/**
+ * Formats fixed-point numbers into a {@link StringBuilder} without allocating, as a replacement for
+ * {@code String.format("%.2f", value)} on hot paths. Values are integers in a decimal unit, for
+ * example milliseconds, and are written in a larger unit, for example seconds. The output does not
+ * depend on the default locale: the decimal separator is always '.' and there is no grouping.
+ * Rounding is half up (away from zero), like {@link java.util.Formatter}.
+ */
+public final class FixedPointFormat {
+
+    private static final long[] POWERS_OF_TEN = {
+            1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L,
+            1000000000L, 10000000000L, 100000000000L, 1000000000000L, 10000000000000L,
+            100000000000000L, 1000000000000000L, 10000000000000000L, 100000000000000000L,
+            1000000000000000000L};
+
+    private FixedPointFormat() {
+    }
+
+    /**
+     * Appends {@code value / 10^scale} with the given number of decimals, e.g.
+     * {@code append(builder, 1234, 3, 2)} appends "1.23" for 1234ms in seconds.
+     *
+     * @param builder  destination
+     * @param value    value in units of 10^-scale
+     * @param scale    number of decimal digits of the value's unit, between 0 and 18
+     * @param decimals number of decimals to write, between 0 and scale
+     * @return the builder
+     */
+    public static StringBuilder append(StringBuilder builder, long value, int scale,
+                                       int decimals) {
+        if (scale < 0 || scale >= POWERS_OF_TEN.length || decimals < 0 || decimals > scale) {
+            throw new IllegalArgumentException(
+                    "Invalid scale " + scale + " or decimals " + decimals);
+        }
+
+        if (value < 0) {
+            builder.append('-');
+        }
+        // Long.MIN_VALUE has no positive counterpart, it is clamped
+        final long magnitude = value == Long.MIN_VALUE ? Long.MAX_VALUE : Math.abs(value);
+
+        // Round to the number of decimals
+        final long divisor = POWERS_OF_TEN[scale - decimals];
+        long rounded = magnitude / divisor;
+        if (magnitude % divisor >= (divisor + 1) / 2) {
+            rounded++;
+        }
+
+        final long unit = POWERS_OF_TEN[decimals];
+        builder.append(rounded / unit);
+        if (decimals > 0) {
+            builder.append('.');
+            final long fraction = rounded % unit;
+            // Leading zeros of the fraction
+            for (int i = decimals - 1; i > 0 && fraction < POWERS_OF_TEN[i]; i--) {
+                builder.append('0');
+            }
+            builder.append(fraction);
+        }
+        return builder;
+    }
+}
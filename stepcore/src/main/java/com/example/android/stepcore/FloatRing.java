@@ -0,0 +1,80 @@
+/*
+* Copyright 2014 The Android Open Source Project, University of South Florida
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.stepcore;
+
+/**
+ * A fixed size ring of float values. Once the ring is full, adding a value evicts the oldest one.
+ * Values are indexed from oldest (0) to newest (size() - 1).
+ */
+public class FloatRing {
+
+    private final float[] mValues;
+    private int mHead = 0;
+    private int mSize = 0;
+
+    public FloatRing(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        mValues = new float[capacity];
+    }
+
+    /**
+     * Adds a value, evicting the oldest value if the ring is full.
+     *
+     * @param value
+     */
+    public void add(float value) {
+        final int capacity = mValues.length;
+        mValues[(mHead + mSize) % capacity] = value;
+        if (mSize < capacity) {
+            mSize++;
+        } else {
+            mHead = (mHead + 1) % capacity;
+        }
+    }
+
+    /**
+     * Returns the value at the index, where 0 is the oldest value.
+     *
+     * @param index
+     * @return
+     */
+    public float get(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + mSize);
+        }
+        return mValues[(mHead + index) % mValues.length];
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int capacity() {
+        return mValues.length;
+    }
+
+    public boolean isFull() {
+        return mSize == mValues.length;
+    }
+
+    public void clear() {
+        mHead = 0;
+        mSize = 0;
+    }
+}
@@ -0,0 +1,241 @@
+/*
+* Copyright 2014 The Android Open Source Project, University of South Florida
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.example.android.stepcore;
+
+/**
+ * Streaming circular statistics over the headings of the most recent steps.
+ * <p/>
+ * Headings are kept as unit vectors in a fixed ring that covers two adjacent windows of steps:
+ * the current window (the newest steps) and the previous window (the steps before). Running sums of
+ * the vectors of both windows are updated when a step is added, so the circular mean and variance
+ * are available in O(1) without scanning the history.
+ * <p/>
+ * A turn is detected when the mean headings of both windows differ by more than the turn
+ * threshold while the headings in both windows are concentrated, i.e. the user walked straight,
+ * turned, and walks straight again. Each turn is counted once.
+ */
+public class HeadingStats implements StepEngine.OrientationListener {
+
+    // Recompute the running sums from the ring after this many windows, to drop rounding errors
+    private static final int RESUM_INTERVAL = 64;
+
+    private final int mWindow;
+    private final double mTurnThreshold;
+    private final double mMinConcentration;
+
+    // Unit vectors of the last 2 * window headings, oldest first
+    private final double[] mSin;
+    private final double[] mCos;
+    private int mHead = 0;
+    private int mSize = 0;
+
+    // Running sums of the current (newest) and previous window
+    private double mCurrentSin = 0;
+    private double mCurrentCos = 0;
+    private double mPreviousSin = 0;
+    private double mPreviousCos = 0;
+    private int mUpdates = 0;
+
+    private boolean mTurning = false;
+    private int mTurnCount = 0;
+    private double mLastTurn = 0;
+
+    /**
+     * @param window           number of steps in a window
+     * @param turnThreshold    minimum difference of the mean headings of two windows that is a
+     *                         turn, in degrees
+     * @param minConcentration minimum mean resultant length (0..1) of both windows for a turn
+     */
+    public HeadingStats(int window, float turnThreshold, float minConcentration) {
+        if (window < 1) {
+            throw new IllegalArgumentException("window must be at least 1");
+        }
+        mWindow = window;
+        mTurnThreshold = Math.toRadians(turnThreshold);
+        mMinConcentration = minConcentration;
+        mSin = new double[2 * window];
+        mCos = new double[2 * window];
+    }
+
+    @Override
+    public void onOrientations(float[] values, int offset, int count, long timestamp) {
+        for (int i = 0; i < count; i++) {
+            add(values[offset + i]);
+        }
+    }
+
+    /**
+     * Adds the heading of a step.
+     *
+     * @param heading in degrees
+     */
+    public void add(float heading) {
+        if (Float.isNaN(heading)) {
+            return;
+        }
+        final double radians = Math.toRadians(heading);
+        final double sin = Math.sin(radians);
+        final double cos = Math.cos(radians);
+        final int capacity = mSin.length;
+
+        if (mSize == capacity) {
+            // The oldest step leaves the previous window
+            mPreviousSin -= mSin[mHead];
+            mPreviousCos -= mCos[mHead];
+            mHead = (mHead + 1) % capacity;
+            mSize--;
+        }
+        if (mSize >= mWindow) {
+            // The oldest step of the current window moves to the previous window
+            final int index = (mHead + mSize - mWindow) % capacity;
+            mCurrentSin -= mSin[index];
+            mCurrentCos -= mCos[index];
+            mPreviousSin += mSin[index];
+            mPreviousCos += mCos[index];
+        }
+
+        final int index = (mHead + mSize) % capacity;
+        mSin[index] = sin;
+        mCos[index] = cos;
+        mCurrentSin += sin;
+        mCurrentCos += cos;
+        mSize++;
+
+        if (++mUpdates >= RESUM_INTERVAL * mWindow) {
+            resum();
+        }
+        detectTurn();
+    }
+
+    private void resum() {
+        mUpdates = 0;
+        mCurrentSin = 0;
+        mCurrentCos = 0;
+        mPreviousSin = 0;
+        mPreviousCos = 0;
+        final int capacity = mSin.length;
+        for (int i = 0; i < mSize; i++) {
+            final int index = (mHead + i) % capacity;
+            if (i < mSize - mWindow) {
+                mPreviousSin += mSin[index];
+                mPreviousCos += mCos[index];
+            } else {
+                mCurrentSin += mSin[index];
+                mCurrentCos += mCos[index];
+            }
+        }
+    }
+
+    private void detectTurn() {
+        if (mSize < mSin.length) {
+            return;
+        }
+        final boolean concentrated =
+                Math.hypot(mCurrentSin, mCurrentCos) / mWindow >= mMinConcentration
+                        && Math.hypot(mPreviousSin, mPreviousCos) / mWindow >= mMinConcentration;
+        final double difference = angleDifference(Math.atan2(mCurrentSin, mCurrentCos),
+                Math.atan2(mPreviousSin, mPreviousCos));
+        final boolean turning = concentrated && Math.abs(difference) >= mTurnThreshold;
+        if (turning && !mTurning) {
+            mTurnCount++;
+            mLastTurn = Math.toDegrees(difference);
+        } else if (turning && Math.abs(Math.toDegrees(difference)) > Math.abs(mLastTurn)) {
+            // The windows drift apart until the turn has been completed
+            mLastTurn = Math.toDegrees(difference);
+        }
+        mTurning = turning;
+    }
+
+    /**
+     * Returns the signed difference a - b of two angles in radians, between -pi and pi.
+     */
+    private static double angleDifference(double a, double b) {
+        double difference = a - b;
+        if (difference > Math.PI) {
+            difference -= 2 * Math.PI;
+        } else if (difference < -Math.PI) {
+            difference += 2 * Math.PI;
+        }
+        return difference;
+    }
+
+    /**
+     * Returns the number of steps in the current window.
+     */
+    public int getCount() {
+        return Math.min(mSize, mWindow);
+    }
+
+    /**
+     * Returns the circular mean heading of the current window in degrees between 0 and 360, or NaN
+     * if no heading has been added.
+     */
+    public float getMeanHeading() {
+        if (mSize == 0) {
+            return Float.NaN;
+        }
+        final double mean = Math.toDegrees(Math.atan2(mCurrentSin, mCurrentCos));
+        return (float) (mean < 0 ? mean + 360 : mean);
+    }
+
+    /**
+     * Returns the circular variance of the current window, between 0 (all steps in the same
+     * direction) and 1 (no common direction), or NaN if no heading has been added.
+     */
+    public float getCircularVariance() {
+        if (mSize == 0) {
+            return Float.NaN;
+        }
+        return (float) (1.0 - Math.hypot(mCurrentSin, mCurrentCos) / getCount());
+    }
+
+    /**
+     * Returns true while the current and previous window point in different directions.
+     */
+    public boolean isTurning() {
+        return mTurning;
+    }
+
+    /**
+     * Returns the number of turns detected since the last reset.
+     */
+    public int getTurnCount() {
+        return mTurnCount;
+    }
+
+    /**
+     * Returns the angle of the last detected turn in degrees, positive for a turn towards larger
+     * headings.
+     */
+    public float getLastTurn() {
+        return (float) mLastTurn;
+    }
+
+    public void reset() {
+        mHead = 0;
+        mSize = 0;
+        mCurrentSin = 0;
+        mCurrentCos = 0;
+        mPreviousSin = 0;
+        mPreviousCos = 0;
+        mUpdates = 0;
+        mTurning = false;
+        mTurnCount = 0;
+        mLastTurn = 0;
+    }
+}
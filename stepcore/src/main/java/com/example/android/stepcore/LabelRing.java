@@ -0,0 +1,140 @@
+/*
+* Copyright 2014 The Android Open Source Project, University of South Florida
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.example.android.stepcore;
+
+/**
+ * Renders the most recent labels of a fixed set, for example step directions, as a separated list
+ * ("N, NE, E"). The text is kept in a single char buffer and updated incrementally: adding a label
+ * appends one segment and, once the ring is full, evicts the oldest segment. The labels are
+ * rendered once up front, so the cost of an update does not depend on the number of labels shown.
+ */
+public class LabelRing {
+
+    private final String[] mLabels;
+    private final String mSeparator;
+
+    // Label indices of the segments, oldest first
+    private final int[] mSegments;
+    private int mHead = 0;
+    private int mSize = 0;
+
+    // Text of the segments in mChars[mStart, mEnd). The buffer has room for twice the longest text,
+    // so the text only has to be moved to the front once per capacity of appended segments.
+    private final char[] mChars;
+    private int mStart = 0;
+    private int mEnd = 0;
+
+    // Text returned by toString(), until the ring changes
+    private String mText = "";
+
+    /**
+     * @param labels    rendered labels, indexed by the values passed to {@link #add(int)}
+     * @param separator text between two labels
+     * @param capacity  number of labels to show
+     */
+    public LabelRing(String[] labels, String separator, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        mLabels = labels;
+        mSeparator = separator;
+        mSegments = new int[capacity];
+
+        int maxLength = 0;
+        for (String label : labels) {
+            maxLength = Math.max(maxLength, label.length());
+        }
+        mChars = new char[2 * capacity * (maxLength + separator.length())];
+    }
+
+    /**
+     * Appends a label, evicting the oldest label if the ring is full.
+     *
+     * @param label index of the label
+     */
+    public void add(int label) {
+        final int capacity = mSegments.length;
+        if (mSize == capacity) {
+            // Drop the oldest label and the separator that follows it
+            mStart += mLabels[mSegments[mHead]].length();
+            if (mSize > 1) {
+                mStart += mSeparator.length();
+            }
+            mHead = (mHead + 1) % capacity;
+            mSize--;
+        }
+
+        final String text = mLabels[label];
+        final int needed = (mSize > 0 ? mSeparator.length() : 0) + text.length();
+        if (mEnd + needed > mChars.length) {
+            // Move the text to the front of the buffer
+            System.arraycopy(mChars, mStart, mChars, 0, mEnd - mStart);
+            mEnd -= mStart;
+            mStart = 0;
+        }
+        if (mSize > 0) {
+            mSeparator.getChars(0, mSeparator.length(), mChars, mEnd);
+            mEnd += mSeparator.length();
+        }
+        text.getChars(0, text.length(), mChars, mEnd);
+        mEnd += text.length();
+
+        mSegments[(mHead + mSize) % capacity] = label;
+        mSize++;
+        mText = null;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the length of the rendered text.
+     */
+    public int length() {
+        return mEnd - mStart;
+    }
+
+    /**
+     * Appends the rendered text to a builder without creating a String.
+     *
+     * @param builder
+     */
+    public void appendTo(StringBuilder builder) {
+        builder.append(mChars, mStart, mEnd - mStart);
+    }
+
+    public void clear() {
+        mHead = 0;
+        mSize = 0;
+        mStart = 0;
+        mEnd = 0;
+        mText = "";
+    }
+
+    /**
+     * Returns the rendered text. The String is only created again after the ring has changed.
+     */
+    @Override
+    public String toString() {
+        if (mText == null) {
+            mText = new String(mChars, mStart, mEnd - mStart);
+        }
+        return mText;
+    }
+}
@@ -0,0 +1,123 @@
+/*
+* Copyright 2014 The Android Open Source Project, University of South Florida
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.example.android.stepcore;
+
+/**
+ * Decodes step orientations into direction indices with a lookup table over quantized angles.
+ * <p/>
+ * The table covers the angles from {@code min} in steps of {@code resolution}. Each entry holds
+ * the direction of all angles in its step, or {@link #UNKNOWN} if the direction changes within
+ * the step. Angles with an unknown entry, angles outside of the table and NaN are decoded by the
+ * {@link Fallback}, so the result is always the same as the exact decoding.
+ */
+public class OrientationDecoder {
+
+    /**
+     * Table entry of a step that contains a direction boundary.
+     */
+    public static final byte UNKNOWN = -1;
+
+    /**
+     * Exact decoding of a single orientation, used for the angles the table cannot decode.
+     */
+    public interface Fallback {
+        public int getDirection(float orientation);
+    }
+
+    private final byte[] mTable;
+    private final float mMin;
+    private final float mScale;
+    private final Fallback mFallback;
+
+    /**
+     * Builds the table by sampling the fallback at both ends of every step.
+     *
+     * @param min        smallest angle of the table
+     * @param max        largest angle of the table
+     * @param resolution size of a step of the table
+     * @param fallback   exact decoding, directions must be between 0 and 127
+     * @return
+     */
+    public static OrientationDecoder create(float min, float max, float resolution,
+                                            Fallback fallback) {
+        final int size = (int) Math.ceil((max - min) / resolution);
+        final byte[] table = new byte[size];
+        for (int i = 0; i < size; i++) {
+            final float start = min + i * resolution;
+            // Largest angle that still falls into this step
+            final float end = Math.nextAfter(min + (i + 1) * resolution, Double.NEGATIVE_INFINITY);
+            final int direction = fallback.getDirection(start);
+            table[i] = direction == fallback.getDirection(end) ? (byte) direction : UNKNOWN;
+        }
+        return new OrientationDecoder(table, min, resolution, fallback);
+    }
+
+    public OrientationDecoder(byte[] table, float min, float resolution, Fallback fallback) {
+        mTable = table;
+        mMin = min;
+        mScale = 1.f / resolution;
+        mFallback = fallback;
+    }
+
+    /**
+     * Returns the direction of a single orientation.
+     *
+     * @param orientation
+     * @return
+     */
+    public int decode(float orientation) {
+        final float position = (orientation - mMin) * mScale;
+        // NaN fails both comparisons
+        if (position >= 0.f && position < mTable.length) {
+            final byte direction = mTable[(int) position];
+            if (direction != UNKNOWN) {
+                return direction;
+            }
+        }
+        return mFallback.getDirection(orientation);
+    }
+
+    /**
+     * Decodes a slice of orientations into direction indices.
+     *
+     * @param orientations source array
+     * @param offset       index of the first orientation
+     * @param directions   destination array
+     * @param dstOffset    index of the first direction in the destination
+     * @param count        number of orientations
+     */
+    public void decode(float[] orientations, int offset, byte[] directions, int dstOffset,
+                       int count) {
+        final byte[] table = mTable;
+        final int size = table.length;
+        final float min = mMin;
+        final float scale = mScale;
+        for (int i = 0; i < count; i++) {
+            final float orientation = orientations[offset + i];
+            final float position = (orientation - min) * scale;
+            byte direction = UNKNOWN;
+            if (position >= 0.f && position < size) {
+                direction = table[(int) position];
+            }
+            if (direction == UNKNOWN) {
+                direction = (byte) mFallback.getDirection(orientation);
+            }
+            directions[dstOffset + i] = direction;
+        }
+    }
+}
@@ -0,0 +1,281 @@
+/*
+* Copyright 2014 The Android Open Source Project, University of South Florida
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.example.android.stepcore;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A dead reckoning path of x/y points in a {@link ByteBuffer}, written by a single writer and read
+ * by any number of readers. Like the {@link StepRing}, the buffer is typically a memory mapped
+ * file shared between processes.
+ * <p/>
+ * The buffer starts with a header followed by {@code capacity} points of two floats. The writer
+ * appends points and publishes the number of points and the walked distance in the header with
+ * {@link #publish()}. Readers keep the index of the next point they want to read and catch up on
+ * all published points at once, see {@link Reader}.
+ * <p/>
+ * When the buffer is full, the writer downsamples the path in place by dropping every second
+ * point, so that a path of any length fits into the buffer with a resolution that degrades
+ * gracefully. The epoch in the header is incremented whenever the points are rewritten (on a
+ * reset or after downsampling) and readers start over from the first point.
+ * <p/>
+ * As for the {@link StepRing}, readers must only read after they have been notified about new
+ * points through a channel that orders memory accesses.
+ */
+public class PathBuffer {
+
+    // Header layout
+    private static final int MAGIC = 0x53545050; // "STPP"
+    private static final int VERSION = 1;
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_VERSION = 4;
+    private static final int OFFSET_CAPACITY = 8;
+    private static final int OFFSET_EPOCH = 12;
+    private static final int OFFSET_COUNT = 16;
+    private static final int OFFSET_DISTANCE = 20;
+    private static final int HEADER_SIZE = 32;
+
+    /**
+     * Size of a point in bytes.
+     */
+    public static final int POINT_SIZE = 8;
+
+    private final ByteBuffer mBuffer;
+    private final int mCapacity;
+
+    // Number of points and walked distance, only used by the writer
+    private int mCount;
+    private float mDistance;
+
+    /**
+     * Returns the size of a buffer that holds the given number of points.
+     *
+     * @param capacity
+     * @return
+     */
+    public static int getBufferSize(int capacity) {
+        return HEADER_SIZE + capacity * POINT_SIZE;
+    }
+
+    /**
+     * Formats the buffer as an empty path and returns the path for writing. If the buffer already
+     * holds a path, the epoch is incremented so that attached readers start over.
+     *
+     * @param buffer   buffer of at least {@link #getBufferSize(int)} bytes
+     * @param capacity number of points, at least 2
+     * @return
+     */
+    public static PathBuffer format(ByteBuffer buffer, int capacity) {
+        if (capacity < 2 || buffer.capacity() < getBufferSize(capacity)) {
+            throw new IllegalArgumentException("Buffer too small for " + capacity + " points");
+        }
+        final int epoch = buffer.getInt(OFFSET_MAGIC) == MAGIC
+                && buffer.getInt(OFFSET_VERSION) == VERSION ? buffer.getInt(OFFSET_EPOCH) + 1 : 0;
+        buffer.putInt(OFFSET_CAPACITY, capacity);
+        buffer.putInt(OFFSET_EPOCH, epoch);
+        buffer.putInt(OFFSET_COUNT, 0);
+        buffer.putFloat(OFFSET_DISTANCE, 0);
+        buffer.putInt(OFFSET_VERSION, VERSION);
+        buffer.putInt(OFFSET_MAGIC, MAGIC);
+        return new PathBuffer(buffer, capacity);
+    }
+
+    /**
+     * Attaches to a buffer that has been formatted by {@link #format(ByteBuffer, int)}.
+     *
+     * @param buffer
+     * @return
+     * @throws IllegalArgumentException if the buffer is not a path
+     */
+    public static PathBuffer attach(ByteBuffer buffer) {
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(OFFSET_MAGIC) != MAGIC
+                || buffer.getInt(OFFSET_VERSION) != VERSION) {
+            throw new IllegalArgumentException("Buffer is not a path");
+        }
+        final int capacity = buffer.getInt(OFFSET_CAPACITY);
+        if (capacity < 2 || buffer.capacity() < getBufferSize(capacity)) {
+            throw new IllegalArgumentException("Path is truncated");
+        }
+        return new PathBuffer(buffer, capacity);
+    }
+
+    private PathBuffer(ByteBuffer buffer, int capacity) {
+        mBuffer = buffer;
+        mCapacity = capacity;
+        mCount = buffer.getInt(OFFSET_COUNT);
+        mDistance = buffer.getFloat(OFFSET_DISTANCE);
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Returns the current epoch, it changes every time the points are rewritten.
+     */
+    public int getEpoch() {
+        return mBuffer.getInt(OFFSET_EPOCH);
+    }
+
+    /**
+     * Returns the number of published points.
+     */
+    public int getCount() {
+        return mBuffer.getInt(OFFSET_COUNT);
+    }
+
+    /**
+     * Returns the published length of the walked path in meters. It is not affected by
+     * downsampling.
+     */
+    public float getDistance() {
+        return mBuffer.getFloat(OFFSET_DISTANCE);
+    }
+
+    /**
+     * Drops all points and starts a new epoch.
+     */
+    public void reset() {
+        mCount = 0;
+        mDistance = 0;
+        mBuffer.putInt(OFFSET_COUNT, 0);
+        mBuffer.putFloat(OFFSET_DISTANCE, 0);
+        mBuffer.putInt(OFFSET_EPOCH, getEpoch() + 1);
+    }
+
+    /**
+     * Appends a point. It is not visible to readers until {@link #publish()} is called. If the
+     * buffer is full, the path is downsampled first.
+     *
+     * @param x
+     * @param y
+     */
+    public void append(float x, float y) {
+        if (mCount > 0) {
+            final int last = getOffset(mCount - 1);
+            final float dx = x - mBuffer.getFloat(last);
+            final float dy = y - mBuffer.getFloat(last + 4);
+            mDistance += (float) Math.sqrt(dx * dx + dy * dy);
+        }
+        if (mCount == mCapacity) {
+            downsample();
+        }
+        final int offset = getOffset(mCount);
+        mBuffer.putFloat(offset, x);
+        mBuffer.putFloat(offset + 4, y);
+        mCount++;
+    }
+
+    /**
+     * Keeps every second point, including the first and the last one, and starts a new epoch.
+     */
+    private void downsample() {
+        int kept = 0;
+        for (int i = 0; i < mCount; i += 2) {
+            copyPoint(i, kept++);
+        }
+        if ((mCount - 1) % 2 != 0) {
+            // Keep the newest point, the path continues from there
+            copyPoint(mCount - 1, kept++);
+        }
+        mCount = kept;
+        // Readers must not mix points of both resolutions
+        mBuffer.putInt(OFFSET_COUNT, 0);
+        mBuffer.putInt(OFFSET_EPOCH, getEpoch() + 1);
+    }
+
+    private void copyPoint(int from, int to) {
+        if (from != to) {
+            mBuffer.putLong(getOffset(to), mBuffer.getLong(getOffset(from)));
+        }
+    }
+
+    /**
+     * Makes all appended points and the walked distance visible to readers.
+     */
+    public void publish() {
+        mBuffer.putFloat(OFFSET_DISTANCE, mDistance);
+        mBuffer.putInt(OFFSET_COUNT, mCount);
+    }
+
+    private static int getOffset(int index) {
+        return HEADER_SIZE + index * POINT_SIZE;
+    }
+
+    /**
+     * Receives the points read by a {@link Reader}.
+     */
+    public interface PointHandler {
+        /**
+         * Called when the points have been rewritten since the last read, before all points of
+         * the new epoch are delivered again.
+         */
+        public void onPathReset();
+
+        public void onPoint(float x, float y);
+    }
+
+    /**
+     * Reads the points of a path in bulk. A reader keeps its position between reads and does not
+     * allocate.
+     */
+    public static class Reader {
+        private final PathBuffer mPath;
+        private int mEpoch = -1;
+        private int mReadIndex = 0;
+
+        public Reader(PathBuffer path) {
+            mPath = path;
+        }
+
+        /**
+         * Delivers all points that have been published since the last read.
+         *
+         * @param handler
+         * @return the number of points delivered
+         */
+        public int read(PointHandler handler) {
+            final ByteBuffer buffer = mPath.mBuffer;
+
+            final int epoch = mPath.getEpoch();
+            if (epoch != mEpoch) {
+                mEpoch = epoch;
+                mReadIndex = 0;
+                handler.onPathReset();
+            }
+
+            final int count = Math.min(mPath.getCount(), mPath.mCapacity);
+            int read = 0;
+            while (mReadIndex < count) {
+                final int offset = getOffset(mReadIndex);
+                handler.onPoint(buffer.getFloat(offset), buffer.getFloat(offset + 4));
+                mReadIndex++;
+                read++;
+            }
+            return read;
+        }
+
+        /**
+         * Delivers all points again with the next read, starting with
+         * {@link PointHandler#onPathReset()}.
+         */
+        public void rewind() {
+            mEpoch = -1;
+        }
+    }
+}
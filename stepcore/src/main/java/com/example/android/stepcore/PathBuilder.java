@@ -0,0 +1,93 @@
+/*
+* Copyright 2014 The Android Open Source Project, University of South Florida
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.example.android.stepcore;
+
+/**
+ * Pedestrian dead reckoning from the steps and orientations of a {@link StepEngine}.
+ * <p/>
+ * Every step moves the position by the stride length of the {@link StrideModel} in the direction
+ * of its orientation, measured in degrees clockwise from the y axis (north): a step with an
+ * orientation of 90 moves along the x axis (east). The position after each step is appended to a
+ * {@link PathBuffer}, starting at the origin.
+ * <p/>
+ * The steps of an event share the timestamp of the last step, the time since the previous event
+ * is spread evenly over them to estimate the step interval.
+ */
+public class PathBuilder implements StepEngine.OrientationListener {
+
+    // Steps further apart than this are not part of the same walk, their interval is unknown
+    private static final long MAX_STEP_INTERVAL_NANOS = 2000000000L; // 2s
+
+    private final StrideModel mStrideModel;
+    private final PathBuffer mPath;
+
+    private float mX = 0;
+    private float mY = 0;
+    private long mLastTimestamp = Long.MIN_VALUE;
+    // Whether the origin has been appended to the path
+    private boolean mStarted = false;
+
+    /**
+     * @param strideModel
+     * @param path        path the positions are appended to
+     */
+    public PathBuilder(StrideModel strideModel, PathBuffer path) {
+        mStrideModel = strideModel;
+        mPath = path;
+    }
+
+    @Override
+    public void onOrientations(float[] values, int offset, int count, long timestamp) {
+        long interval = 0;
+        if (mLastTimestamp != Long.MIN_VALUE && timestamp > mLastTimestamp) {
+            interval = (timestamp - mLastTimestamp) / count;
+            if (interval > MAX_STEP_INTERVAL_NANOS) {
+                interval = 0;
+            }
+        }
+        mLastTimestamp = timestamp;
+
+        if (!mStarted) {
+            // Start of the walk
+            mPath.append(mX, mY);
+            mStarted = true;
+        }
+
+        final float stride = mStrideModel.getStrideLength(interval);
+        for (int i = 0; i < count; i++) {
+            final float orientation = values[offset + i];
+            if (Float.isNaN(orientation)) {
+                continue;
+            }
+            final double radians = Math.toRadians(orientation);
+            mX += (float) (stride * Math.sin(radians));
+            mY += (float) (stride * Math.cos(radians));
+            mPath.append(mX, mY);
+        }
+    }
+
+    /**
+     * Moves the position back to the origin. The path buffer is not changed.
+     */
+    public void reset() {
+        mX = 0;
+        mY = 0;
+        mLastTimestamp = Long.MIN_VALUE;
+        mStarted = false;
+    }
+}
@@ -0,0 +1,331 @@
+/*
+* Copyright 2014 The Android Open Source Project, University of South Florida
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.example.android.stepcore;
+
+/**
+ * Multi-resolution index over a growing {@link Polyline}, so that any part of a path of any
+ * length can be drawn with a bounded number of segments.
+ * <p/>
+ * Level 0 holds all points of the path. Every following level is a simplification of the level
+ * below it with twice the tolerance of the level before, the first simplified level has the base
+ * tolerance. Levels are simplified incrementally as points are appended, see {@link #update()}: a
+ * point of the level below is dropped while all points since the last kept vertex lie within the
+ * tolerance of the chord from that vertex to the newest point, which bounds the error like a
+ * Douglas-Peucker pass over the same points. The number of points tested for a chord is limited,
+ * so the cost per appended point is constant.
+ * <p/>
+ * The vertices of every level are grouped into chunks of {@link #CHUNK_SIZE} segments with a
+ * bounding box, a query skips the chunks outside of the visible area. A zoomed out view selects a
+ * coarse level and draws few vertices, a zoomed in view selects a fine level and only draws the
+ * chunks it shows.
+ */
+public class PathLod {
+
+    /**
+     * Number of segments per chunk of a level.
+     */
+    public static final int CHUNK_SIZE = 32;
+    // Most points tested against a chord, the last point is kept as a vertex after this many
+    private static final int MAX_PENDING = 32;
+    private static final int INITIAL_CAPACITY = 256;
+
+    /**
+     * Receives the segments of a query.
+     */
+    public interface SegmentHandler {
+        public void onSegment(float x0, float y0, float x1, float y1);
+    }
+
+    private Polyline mPath;
+    private final Level[] mLevels;
+    // Number of points of the path that have been indexed
+    private int mIndexed = 0;
+
+    /**
+     * @param path          path to index
+     * @param baseTolerance tolerance of the first simplified level, in units of the path
+     * @param levels        number of levels including the full resolution level 0
+     */
+    public PathLod(Polyline path, float baseTolerance, int levels) {
+        if (levels < 1) {
+            throw new IllegalArgumentException("levels must be at least 1");
+        }
+        mPath = path;
+        mLevels = new Level[levels];
+        for (int i = 0; i < levels; i++) {
+            mLevels[i] = new Level(i == 0 ? 0.f : baseTolerance * (1 << (i - 1)));
+        }
+    }
+
+    /**
+     * Indexes a different path, or the same path after it has been cleared.
+     *
+     * @param path
+     */
+    public void reset(Polyline path) {
+        mPath = path;
+        mIndexed = 0;
+        for (Level level : mLevels) {
+            level.clear();
+        }
+    }
+
+    /**
+     * Indexes the points that have been appended to the path since the last update. The index is
+     * rebuilt if the path has shrunk, i.e. it has been cleared.
+     */
+    public void update() {
+        final int size = mPath.size();
+        if (size < mIndexed) {
+            reset(mPath);
+        }
+        for (int i = mIndexed; i < size; i++) {
+            addVertex(0, i);
+        }
+        mIndexed = size;
+    }
+
+    /**
+     * Adds a vertex to a level and passes the vertices kept by the simplification on to the next
+     * level.
+     */
+    private void addVertex(int levelIndex, int point) {
+        final Level level = mLevels[levelIndex];
+        level.append(point, mPath);
+        if (levelIndex + 1 < mLevels.length) {
+            final int kept = mLevels[levelIndex + 1].simplify(point, mPath);
+            if (kept >= 0) {
+                addVertex(levelIndex + 1, kept);
+            }
+        }
+    }
+
+    public int getLevelCount() {
+        return mLevels.length;
+    }
+
+    /**
+     * Returns the number of vertices of a level.
+     *
+     * @param level
+     * @return
+     */
+    public int getVertexCount(int level) {
+        return mLevels[level].mCount;
+    }
+
+    /**
+     * Returns the coarsest level whose tolerance does not exceed the given tolerance, for example
+     * the size of a pixel in units of the path.
+     *
+     * @param tolerance
+     * @return
+     */
+    public int selectLevel(float tolerance) {
+        int level = 0;
+        while (level + 1 < mLevels.length && mLevels[level + 1].mTolerance <= tolerance) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Delivers the segments of a level that may intersect the given area, followed by a segment to
+     * the newest point of the path if it has not become a vertex of the level yet.
+     *
+     * @param level
+     * @param minX
+     * @param minY
+     * @param maxX
+     * @param maxY
+     * @param handler
+     * @return the number of segments delivered
+     */
+    public int query(int level, float minX, float minY, float maxX, float maxY,
+                     SegmentHandler handler) {
+        final Level l = mLevels[level];
+        int segments = 0;
+        final int chunks = l.getChunkCount();
+        for (int c = 0; c < chunks; c++) {
+            if (!l.intersects(c, minX, minY, maxX, maxY)) {
+                continue;
+            }
+            final int end = Math.min((c + 1) * CHUNK_SIZE, l.mCount - 1);
+            for (int i = c * CHUNK_SIZE; i < end; i++) {
+                final int p0 = l.mVertices[i];
+                final int p1 = l.mVertices[i + 1];
+                handler.onSegment(mPath.getX(p0), mPath.getY(p0), mPath.getX(p1), mPath.getY(p1));
+                segments++;
+            }
+        }
+
+        // The tail of the path is within the tolerance of the chord from the last vertex
+        final int last = l.mCount > 0 ? l.mVertices[l.mCount - 1] : -1;
+        final int newest = mIndexed - 1;
+        if (last >= 0 && newest > last) {
+            handler.onSegment(mPath.getX(last), mPath.getY(last),
+                    mPath.getX(newest), mPath.getY(newest));
+            segments++;
+        }
+        return segments;
+    }
+
+    /**
+     * Vertices of one level of detail, with the bounding boxes of their chunks and the state of the
+     * incremental simplification that feeds it.
+     */
+    private static class Level {
+        private final float mTolerance;
+
+        // Point indices of the vertices
+        private int[] mVertices = new int[INITIAL_CAPACITY];
+        private int mCount = 0;
+        // Bounding box of each chunk: min x, min y, max x, max y
+        private float[] mChunkBounds = new float[4 * (INITIAL_CAPACITY / CHUNK_SIZE)];
+
+        // Last kept point and the points of the level below since then, the newest one last
+        private int mAnchor = -1;
+        private final int[] mPending = new int[MAX_PENDING];
+        private int mPendingCount = 0;
+
+        Level(float tolerance) {
+            mTolerance = tolerance;
+        }
+
+        void clear() {
+            mCount = 0;
+            mAnchor = -1;
+            mPendingCount = 0;
+        }
+
+        int getChunkCount() {
+            // Chunk c holds segments c * CHUNK_SIZE to (c + 1) * CHUNK_SIZE
+            return mCount < 2 ? 0 : (mCount - 2) / CHUNK_SIZE + 1;
+        }
+
+        boolean intersects(int chunk, float minX, float minY, float maxX, float maxY) {
+            final int offset = 4 * chunk;
+            return mChunkBounds[offset] <= maxX && mChunkBounds[offset + 1] <= maxY
+                    && mChunkBounds[offset + 2] >= minX && mChunkBounds[offset + 3] >= minY;
+        }
+
+        /**
+         * Appends a vertex and grows the bounding box of its chunks. A vertex at a chunk boundary
+         * ends one chunk and starts the next one.
+         */
+        void append(int point, Polyline path) {
+            if (mCount == mVertices.length) {
+                final int[] vertices = new int[2 * mVertices.length];
+                System.arraycopy(mVertices, 0, vertices, 0, mCount);
+                mVertices = vertices;
+            }
+            mVertices[mCount] = point;
+
+            final float x = path.getX(point);
+            final float y = path.getY(point);
+            if (mCount > 0) {
+                // Part of the chunk that ends with this vertex
+                include((mCount - 1) / CHUNK_SIZE, x, y, false);
+            }
+            if (mCount % CHUNK_SIZE == 0) {
+                // First vertex of a new chunk
+                include(mCount / CHUNK_SIZE, x, y, true);
+            }
+            mCount++;
+        }
+
+        private void include(int chunk, float x, float y, boolean first) {
+            final int offset = 4 * chunk;
+            if (offset + 4 > mChunkBounds.length) {
+                final float[] bounds = new float[2 * mChunkBounds.length];
+                System.arraycopy(mChunkBounds, 0, bounds, 0, mChunkBounds.length);
+                mChunkBounds = bounds;
+            }
+            if (first) {
+                mChunkBounds[offset] = x;
+                mChunkBounds[offset + 1] = y;
+                mChunkBounds[offset + 2] = x;
+                mChunkBounds[offset + 3] = y;
+            } else {
+                mChunkBounds[offset] = Math.min(mChunkBounds[offset], x);
+                mChunkBounds[offset + 1] = Math.min(mChunkBounds[offset + 1], y);
+                mChunkBounds[offset + 2] = Math.max(mChunkBounds[offset + 2], x);
+                mChunkBounds[offset + 3] = Math.max(mChunkBounds[offset + 3], y);
+            }
+        }
+
+        /**
+         * Takes the next vertex of the level below and returns the point that has to be kept as
+         * a vertex of this level, or -1 if no point is kept yet.
+         */
+        int simplify(int point, Polyline path) {
+            if (mAnchor < 0) {
+                // The first point is always kept
+                mAnchor = point;
+                return point;
+            }
+
+            if (mPendingCount > 0
+                    && (mPendingCount == MAX_PENDING || !isWithinTolerance(point, path))) {
+                // The newest pending point ends the simplified segment
+                final int kept = mPending[mPendingCount - 1];
+                mAnchor = kept;
+                mPending[0] = point;
+                mPendingCount = 1;
+                return kept;
+            }
+            mPending[mPendingCount++] = point;
+            return -1;
+        }
+
+        /**
+         * Returns true if all pending points are within the tolerance of the chord from the
+         * anchor to the point.
+         */
+        private boolean isWithinTolerance(int point, Polyline path) {
+            final float ax = path.getX(mAnchor);
+            final float ay = path.getY(mAnchor);
+            final float dx = path.getX(point) - ax;
+            final float dy = path.getY(point) - ay;
+            final float lengthSquared = dx * dx + dy * dy;
+            final float toleranceSquared = mTolerance * mTolerance;
+
+            for (int i = 0; i < mPendingCount; i++) {
+                final float px = path.getX(mPending[i]) - ax;
+                final float py = path.getY(mPending[i]) - ay;
+                float distanceSquared;
+                // Distance to the chord as a segment, so that points beyond its ends are caught
+                final float t = lengthSquared > 0 ? (px * dx + py * dy) / lengthSquared : 0.f;
+                if (t <= 0.f) {
+                    distanceSquared = px * px + py * py;
+                } else if (t >= 1.f) {
+                    final float ex = px - dx;
+                    final float ey = py - dy;
+                    distanceSquared = ex * ex + ey * ey;
+                } else {
+                    final float cross = px * dy - py * dx;
+                    distanceSquared = cross * cross / lengthSquared;
+                }
+                if (distanceSquared > toleranceSquared) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
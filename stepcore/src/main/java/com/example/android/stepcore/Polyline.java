@@ -0,0 +1,116 @@
+/*
+* Copyright 2014 The Android Open Source Project, University of South Florida
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.example.android.stepcore;
+
+/**
+ * A growable polyline of float x/y points stored in a single primitive array, with the bounding
+ * box of all points. Points are only ever appended, until the polyline is cleared.
+ */
+public class Polyline {
+
+    private static final int DEFAULT_CAPACITY = 256;
+
+    // Interleaved x and y coordinates
+    private float[] mPoints;
+    private int mSize = 0;
+
+    private float mMinX;
+    private float mMinY;
+    private float mMaxX;
+    private float mMaxY;
+
+    public Polyline() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity number of points that can be added before the polyline grows
+     */
+    public Polyline(int capacity) {
+        mPoints = new float[2 * Math.max(1, capacity)];
+    }
+
+    /**
+     * Appends a point. The storage doubles when it is full, so appending is amortized O(1).
+     *
+     * @param x
+     * @param y
+     */
+    public void add(float x, float y) {
+        if (2 * mSize == mPoints.length) {
+            final float[] points = new float[2 * mPoints.length];
+            System.arraycopy(mPoints, 0, points, 0, mPoints.length);
+            mPoints = points;
+        }
+        mPoints[2 * mSize] = x;
+        mPoints[2 * mSize + 1] = y;
+        if (mSize == 0) {
+            mMinX = mMaxX = x;
+            mMinY = mMaxY = y;
+        } else {
+            mMinX = Math.min(mMinX, x);
+            mMaxX = Math.max(mMaxX, x);
+            mMinY = Math.min(mMinY, y);
+            mMaxY = Math.max(mMaxY, y);
+        }
+        mSize++;
+    }
+
+    public float getX(int index) {
+        checkIndex(index);
+        return mPoints[2 * index];
+    }
+
+    public float getY(int index) {
+        checkIndex(index);
+        return mPoints[2 * index + 1];
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + mSize);
+        }
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Bounding box of all points, undefined while the polyline is empty.
+     */
+    public float getMinX() {
+        return mMinX;
+    }
+
+    public float getMinY() {
+        return mMinY;
+    }
+
+    public float getMaxX() {
+        return mMaxX;
+    }
+
+    public float getMaxY() {
+        return mMaxY;
+    }
+
+    public void clear() {
+        mSize = 0;
+    }
+}
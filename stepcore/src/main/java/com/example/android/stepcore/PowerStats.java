@@ -0,0 +1,383 @@
+/*
+* Copyright 2014 The Android Open Source Project, University of South Florida
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.example.android.stepcore;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+
+/**
+ * Wakeup and CPU accounting per batch latency mode, kept in a {@link ByteBuffer}. The buffer is
+ * typically a memory mapped file, so the numbers accumulate across sessions and restarts and can
+ * be compared by a reader in another process.
+ * <p/>
+ * A mode is the pair of max batch delays of the step detector and the step counter. For every
+ * mode the table keeps the time it was active, the number of sensor event deliveries, the number
+ * of wakeups, the number of steps, the CPU time spent in the sensor callback and the CPU time of
+ * the whole process while the mode was active. Deliveries that follow each other within
+ * {@link #WAKEUP_GAP_NANOS} belong to the same wakeup: a batch is delivered as a burst of events,
+ * but costs the device one wakeup.
+ * <p/>
+ * The table has {@link #MAX_MODES} slots, the mode that was active for the shortest time is
+ * replaced when a new mode does not fit.
+ */
+public class PowerStats {
+
+    /**
+     * Number of modes that are kept.
+     */
+    public static final int MAX_MODES = 16;
+    /**
+     * Deliveries closer than this belong to the same wakeup.
+     */
+    public static final long WAKEUP_GAP_NANOS = 200 * 1000000L;
+
+    // Header layout
+    private static final int MAGIC = 0x53545057; // "STPW"
+    private static final int VERSION = 1;
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_VERSION = 4;
+    private static final int HEADER_SIZE = 16;
+
+    // Slot layout
+    private static final int SLOT_USED = 0;
+    private static final int SLOT_DETECTOR_DELAY = 4;
+    private static final int SLOT_COUNTER_DELAY = 8;
+    private static final int SLOT_WAKEUPS = 12;
+    private static final int SLOT_ACTIVE_TIME = 16;
+    private static final int SLOT_DELIVERIES = 24;
+    private static final int SLOT_STEPS = 32;
+    private static final int SLOT_CALLBACK_CPU = 40;
+    private static final int SLOT_PROCESS_CPU = 48;
+    private static final int SLOT_SIZE = 56;
+
+    private final ByteBuffer mBuffer;
+    // Offset of the slot of the active mode, or -1
+    private int mActiveSlot = -1;
+    // Receive time of the last delivery in the active mode, in nanoseconds
+    private long mLastDelivery = Long.MIN_VALUE;
+
+    /**
+     * Totals of one mode. Instances are filled by the table and can be reused.
+     */
+    public static class Mode {
+        int mDetectorDelay;
+        int mCounterDelay;
+        long mActiveTime;
+        long mDeliveries;
+        int mWakeups;
+        long mSteps;
+        long mCallbackCpu;
+        long mProcessCpu;
+
+        /**
+         * Returns the max batch delay of the step detector in microseconds, or a negative value
+         * if it was not registered.
+         */
+        public int getDetectorDelay() {
+            return mDetectorDelay;
+        }
+
+        /**
+         * Returns the max batch delay of the step counter in microseconds, or a negative value if
+         * it was not registered.
+         */
+        public int getCounterDelay() {
+            return mCounterDelay;
+        }
+
+        /**
+         * Returns the time the mode was active in nanoseconds.
+         */
+        public long getActiveTime() {
+            return mActiveTime;
+        }
+
+        public long getDeliveries() {
+            return mDeliveries;
+        }
+
+        public int getWakeups() {
+            return mWakeups;
+        }
+
+        public long getSteps() {
+            return mSteps;
+        }
+
+        /**
+         * Returns the CPU time of the thread in the sensor callback in nanoseconds.
+         */
+        public long getCallbackCpuTime() {
+            return mCallbackCpu;
+        }
+
+        /**
+         * Returns the CPU time of the process while the mode was active in nanoseconds.
+         */
+        public long getProcessCpuTime() {
+            return mProcessCpu;
+        }
+
+        /**
+         * Returns the number of wakeups per hour of active time, or 0 if the mode has not been
+         * active.
+         */
+        public float getWakeupsPerHour() {
+            return mActiveTime <= 0 ? 0.f : mWakeups * 3.6e12f / mActiveTime;
+        }
+
+        /**
+         * Returns the average number of events delivered per wakeup.
+         */
+        public float getEventsPerWakeup() {
+            return mWakeups == 0 ? 0.f : (float) mDeliveries / mWakeups;
+        }
+
+        /**
+         * Returns the CPU time of the process per hour of active time in ms, or 0 if the mode
+         * has not been active.
+         */
+        public float getProcessCpuPerHour() {
+            return mActiveTime <= 0 ? 0.f : (float) mProcessCpu / mActiveTime * 3.6e6f;
+        }
+    }
+
+    /**
+     * Returns the size of a buffer that holds the table.
+     */
+    public static int getBufferSize() {
+        return HEADER_SIZE + MAX_MODES * SLOT_SIZE;
+    }
+
+    /**
+     * Attaches to the table in the buffer for writing, or formats the buffer as an empty table if
+     * it does not hold one yet.
+     *
+     * @param buffer buffer of at least {@link #getBufferSize()} bytes
+     * @return
+     */
+    public static PowerStats open(ByteBuffer buffer) {
+        if (buffer.capacity() < getBufferSize()) {
+            throw new IllegalArgumentException("Buffer too small for the power stats");
+        }
+        if (buffer.getInt(OFFSET_MAGIC) != MAGIC || buffer.getInt(OFFSET_VERSION) != VERSION) {
+            for (int i = 0; i < getBufferSize(); i++) {
+                buffer.put(i, (byte) 0);
+            }
+            buffer.putInt(OFFSET_VERSION, VERSION);
+            buffer.putInt(OFFSET_MAGIC, MAGIC);
+        }
+        return new PowerStats(buffer);
+    }
+
+    /**
+     * Attaches to a table that has been written by {@link #open(ByteBuffer)}, for reading.
+     *
+     * @param buffer
+     * @return
+     * @throws IllegalArgumentException if the buffer does not hold power stats
+     */
+    public static PowerStats attach(ByteBuffer buffer) {
+        if (buffer.capacity() < getBufferSize() || buffer.getInt(OFFSET_MAGIC) != MAGIC
+                || buffer.getInt(OFFSET_VERSION) != VERSION) {
+            throw new IllegalArgumentException("Buffer does not hold power stats");
+        }
+        return new PowerStats(buffer);
+    }
+
+    private PowerStats(ByteBuffer buffer) {
+        mBuffer = buffer;
+    }
+
+    private static int getSlotOffset(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    /**
+     * Selects the mode that following deliveries and times are added to.
+     *
+     * @param detectorDelay max batch delay of the step detector, or a negative value
+     * @param counterDelay  max batch delay of the step counter, or a negative value
+     */
+    public void setMode(int detectorDelay, int counterDelay) {
+        final ByteBuffer b = mBuffer;
+        int free = -1;
+        int shortest = -1;
+        for (int slot = 0; slot < MAX_MODES; slot++) {
+            final int offset = getSlotOffset(slot);
+            if (b.getInt(offset + SLOT_USED) == 0) {
+                if (free < 0) {
+                    free = offset;
+                }
+            } else if (b.getInt(offset + SLOT_DETECTOR_DELAY) == detectorDelay
+                    && b.getInt(offset + SLOT_COUNTER_DELAY) == counterDelay) {
+                mActiveSlot = offset;
+                mLastDelivery = Long.MIN_VALUE;
+                return;
+            } else if (shortest < 0 || b.getLong(offset + SLOT_ACTIVE_TIME)
+                    < b.getLong(shortest + SLOT_ACTIVE_TIME)) {
+                shortest = offset;
+            }
+        }
+
+        final int offset = free >= 0 ? free : shortest;
+        b.putInt(offset + SLOT_USED, 0);
+        b.putInt(offset + SLOT_DETECTOR_DELAY, detectorDelay);
+        b.putInt(offset + SLOT_COUNTER_DELAY, counterDelay);
+        b.putInt(offset + SLOT_WAKEUPS, 0);
+        b.putLong(offset + SLOT_ACTIVE_TIME, 0);
+        b.putLong(offset + SLOT_DELIVERIES, 0);
+        b.putLong(offset + SLOT_STEPS, 0);
+        b.putLong(offset + SLOT_CALLBACK_CPU, 0);
+        b.putLong(offset + SLOT_PROCESS_CPU, 0);
+        b.putInt(offset + SLOT_USED, 1);
+        mActiveSlot = offset;
+        mLastDelivery = Long.MIN_VALUE;
+    }
+
+    /**
+     * Deselects the mode, following deliveries and times are not added.
+     */
+    public void clearMode() {
+        mActiveSlot = -1;
+    }
+
+    /**
+     * Adds a delivery of a sensor event to the active mode.
+     *
+     * @param receivedNanos time the event was received, in nanoseconds
+     * @param cpuNanos      CPU time of the thread spent handling the event, in nanoseconds
+     */
+    public void addDelivery(long receivedNanos, long cpuNanos) {
+        if (mActiveSlot < 0) {
+            return;
+        }
+        final ByteBuffer b = mBuffer;
+        final int offset = mActiveSlot;
+        b.putLong(offset + SLOT_DELIVERIES, b.getLong(offset + SLOT_DELIVERIES) + 1);
+        if (cpuNanos > 0) {
+            b.putLong(offset + SLOT_CALLBACK_CPU,
+                    b.getLong(offset + SLOT_CALLBACK_CPU) + cpuNanos);
+        }
+        if (mLastDelivery == Long.MIN_VALUE || receivedNanos - mLastDelivery > WAKEUP_GAP_NANOS) {
+            b.putInt(offset + SLOT_WAKEUPS, b.getInt(offset + SLOT_WAKEUPS) + 1);
+        }
+        mLastDelivery = receivedNanos;
+    }
+
+    /**
+     * Adds counted steps to the active mode.
+     *
+     * @param steps
+     */
+    public void addSteps(int steps) {
+        if (mActiveSlot < 0 || steps <= 0) {
+            return;
+        }
+        mBuffer.putLong(mActiveSlot + SLOT_STEPS, mBuffer.getLong(mActiveSlot + SLOT_STEPS) + steps);
+    }
+
+    /**
+     * Adds active time and CPU time of the process to the active mode.
+     *
+     * @param activeNanos     time since the last call
+     * @param processCpuNanos CPU time of the process since the last call
+     */
+    public void addTime(long activeNanos, long processCpuNanos) {
+        if (mActiveSlot < 0) {
+            return;
+        }
+        final ByteBuffer b = mBuffer;
+        final int offset = mActiveSlot;
+        if (activeNanos > 0) {
+            b.putLong(offset + SLOT_ACTIVE_TIME,
+                    b.getLong(offset + SLOT_ACTIVE_TIME) + activeNanos);
+        }
+        if (processCpuNanos > 0) {
+            b.putLong(offset + SLOT_PROCESS_CPU,
+                    b.getLong(offset + SLOT_PROCESS_CPU) + processCpuNanos);
+        }
+    }
+
+    /**
+     * Returns the number of modes in the table.
+     */
+    public int getModeCount() {
+        int count = 0;
+        for (int slot = 0; slot < MAX_MODES; slot++) {
+            if (mBuffer.getInt(getSlotOffset(slot) + SLOT_USED) != 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Reads the i-th mode in the table, modes are kept in no particular order.
+     *
+     * @param index between 0 and {@link #getModeCount()}
+     * @param mode  filled with the totals of the mode
+     * @return false if there is no such mode
+     */
+    public boolean getMode(int index, Mode mode) {
+        final ByteBuffer b = mBuffer;
+        for (int slot = 0; slot < MAX_MODES; slot++) {
+            final int offset = getSlotOffset(slot);
+            if (b.getInt(offset + SLOT_USED) == 0) {
+                continue;
+            }
+            if (index-- > 0) {
+                continue;
+            }
+            mode.mDetectorDelay = b.getInt(offset + SLOT_DETECTOR_DELAY);
+            mode.mCounterDelay = b.getInt(offset + SLOT_COUNTER_DELAY);
+            mode.mWakeups = b.getInt(offset + SLOT_WAKEUPS);
+            mode.mActiveTime = b.getLong(offset + SLOT_ACTIVE_TIME);
+            mode.mDeliveries = b.getLong(offset + SLOT_DELIVERIES);
+            mode.mSteps = b.getLong(offset + SLOT_STEPS);
+            mode.mCallbackCpu = b.getLong(offset + SLOT_CALLBACK_CPU);
+            mode.mProcessCpu = b.getLong(offset + SLOT_PROCESS_CPU);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Writes the totals of all modes as CSV with a header line, times in ms.
+     *
+     * @param writer
+     * @throws IOException
+     */
+    public void writeCsv(Writer writer) throws IOException {
+        final StringBuilder b = new StringBuilder(128);
+        final Mode mode = new Mode();
+        writer.write("detector_delay_us,counter_delay_us,active_ms,deliveries,wakeups,steps,"
+                + "callback_cpu_ms,process_cpu_ms\n");
+        for (int i = 0; getMode(i, mode); i++) {
+            b.setLength(0);
+            b.append(mode.mDetectorDelay).append(',').append(mode.mCounterDelay).append(',');
+            FixedPointFormat.append(b, mode.mActiveTime, 6, 0).append(',');
+            b.append(mode.mDeliveries).append(',').append(mode.mWakeups).append(',')
+                    .append(mode.mSteps).append(',');
+            FixedPointFormat.append(b, mode.mCallbackCpu, 6, 3).append(',');
+            FixedPointFormat.append(b, mode.mProcessCpu, 6, 0).append('\n');
+            writer.append(b);
+        }
+    }
+}
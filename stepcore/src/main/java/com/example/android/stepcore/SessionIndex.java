@@ -0,0 +1,411 @@
+/*
+* Copyright 2014 The Android Open Source Project, University of South Florida
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.example.android.stepcore;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Index of counting sessions in a {@link ByteBuffer}, typically a memory mapped file that is
+ * written by one process and read by others.
+ * <p/>
+ * A session has an id, its start and end time, the max batch delays of the step sensors it was
+ * counted with and summary statistics that are updated while it is active. Sessions are stored
+ * in a table of {@link #CAPACITY} fixed size slots indexed by the id modulo the capacity, ids are
+ * assigned in ascending order. Looking up a session or the active session is O(1), listing
+ * sessions newest first is O(sessions listed), neither depends on the number of steps. The
+ * oldest sessions are overwritten.
+ * <p/>
+ * Every slot has a version that is odd while the slot is being written, readers retry until they
+ * read a slot with the same even version before and after copying it.
+ */
+public class SessionIndex {
+
+    /**
+     * Number of sessions that are kept.
+     */
+    public static final int CAPACITY = 1024;
+    /**
+     * Id of no session.
+     */
+    public static final int NO_SESSION = -1;
+
+    // Header layout
+    private static final int MAGIC = 0x53545353; // "STSS"
+    private static final int VERSION = 1;
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_VERSION = 4;
+    private static final int OFFSET_NEXT_ID = 8;
+    private static final int OFFSET_ACTIVE_ID = 12;
+    private static final int HEADER_SIZE = 16;
+
+    // Slot layout
+    private static final int SLOT_VERSION = 0;
+    private static final int SLOT_ID = 4;
+    private static final int SLOT_START = 8;
+    private static final int SLOT_END = 16;
+    private static final int SLOT_DETECTOR_DELAY = 24;
+    private static final int SLOT_COUNTER_DELAY = 28;
+    private static final int SLOT_STEPS = 32;
+    private static final int SLOT_SEGMENTS = 36;
+    private static final int SLOT_WALKING_TIME = 40;
+    private static final int SLOT_IDLE_TIME = 48;
+    private static final int SLOT_DISTANCE = 56;
+    private static final int SLOT_SIZE = 64;
+
+    // Number of attempts to read a slot that is being written
+    private static final int MAX_READ_ATTEMPTS = 16;
+
+    private final ByteBuffer mBuffer;
+
+    /**
+     * Summary of a session. Instances are filled by the index and can be reused.
+     */
+    public static class Session {
+        int mId = NO_SESSION;
+        long mStart;
+        long mEnd;
+        int mDetectorDelay;
+        int mCounterDelay;
+        int mSteps;
+        int mSegments;
+        long mWalkingTime;
+        long mIdleTime;
+        float mDistance;
+        boolean mActive;
+
+        public int getId() {
+            return mId;
+        }
+
+        /**
+         * Returns the wall clock time the session was started at, in ms.
+         */
+        public long getStart() {
+            return mStart;
+        }
+
+        /**
+         * Returns the wall clock time the session ended at, or was last updated at while it is
+         * active, in ms.
+         */
+        public long getEnd() {
+            return mEnd;
+        }
+
+        public long getDuration() {
+            return mEnd - mStart;
+        }
+
+        /**
+         * Returns the max batch delay of the step detector in microseconds, or a negative value
+         * if it was not registered.
+         */
+        public int getDetectorDelay() {
+            return mDetectorDelay;
+        }
+
+        /**
+         * Returns the max batch delay of the step counter in microseconds, or a negative value if
+         * it was not registered.
+         */
+        public int getCounterDelay() {
+            return mCounterDelay;
+        }
+
+        public int getSteps() {
+            return mSteps;
+        }
+
+        /**
+         * Returns the number of walking segments, see {@link CadenceStats}.
+         */
+        public int getSegments() {
+            return mSegments;
+        }
+
+        /**
+         * Returns the time spent walking in ms.
+         */
+        public long getWalkingTime() {
+            return mWalkingTime;
+        }
+
+        /**
+         * Returns the time spent idle between the walking segments in ms.
+         */
+        public long getIdleTime() {
+            return mIdleTime;
+        }
+
+        /**
+         * Returns the distance of the dead reckoning path in meters.
+         */
+        public float getDistance() {
+            return mDistance;
+        }
+
+        /**
+         * Returns the mean cadence while walking in steps per minute, or 0 if the walking time is
+         * unknown.
+         */
+        public float getCadence() {
+            return mWalkingTime <= 0 ? 0.f : mSteps * 60000.f / mWalkingTime;
+        }
+
+        public boolean isActive() {
+            return mActive;
+        }
+    }
+
+    /**
+     * Receives the sessions listed by {@link #list(int, int, SessionHandler)}.
+     */
+    public interface SessionHandler {
+        /**
+         * @param session summary of the session, only valid during the call
+         */
+        public void onSession(Session session);
+    }
+
+    /**
+     * Returns the size of a buffer that holds the index.
+     */
+    public static int getBufferSize() {
+        return HEADER_SIZE + CAPACITY * SLOT_SIZE;
+    }
+
+    /**
+     * Attaches to the index in the buffer for writing, or formats the buffer as an empty index if
+     * it does not hold one yet.
+     *
+     * @param buffer buffer of at least {@link #getBufferSize()} bytes
+     * @return
+     */
+    public static SessionIndex open(ByteBuffer buffer) {
+        if (buffer.capacity() < getBufferSize()) {
+            throw new IllegalArgumentException("Buffer too small for the session index");
+        }
+        if (buffer.getInt(OFFSET_MAGIC) != MAGIC || buffer.getInt(OFFSET_VERSION) != VERSION) {
+            for (int i = 0; i < CAPACITY; i++) {
+                final int offset = getSlotOffset(i);
+                buffer.putInt(offset + SLOT_VERSION, 0);
+                buffer.putInt(offset + SLOT_ID, NO_SESSION);
+            }
+            buffer.putInt(OFFSET_NEXT_ID, 0);
+            buffer.putInt(OFFSET_ACTIVE_ID, NO_SESSION);
+            buffer.putInt(OFFSET_VERSION, VERSION);
+            buffer.putInt(OFFSET_MAGIC, MAGIC);
+        }
+        return new SessionIndex(buffer);
+    }
+
+    /**
+     * Attaches to an index that has been written by {@link #open(ByteBuffer)}, for reading.
+     *
+     * @param buffer
+     * @return
+     * @throws IllegalArgumentException if the buffer does not hold a session index
+     */
+    public static SessionIndex attach(ByteBuffer buffer) {
+        if (buffer.capacity() < getBufferSize() || buffer.getInt(OFFSET_MAGIC) != MAGIC
+                || buffer.getInt(OFFSET_VERSION) != VERSION) {
+            throw new IllegalArgumentException("Buffer does not hold a session index");
+        }
+        return new SessionIndex(buffer);
+    }
+
+    private SessionIndex(ByteBuffer buffer) {
+        mBuffer = buffer;
+    }
+
+    private static int getSlotOffset(int id) {
+        return HEADER_SIZE + (id % CAPACITY) * SLOT_SIZE;
+    }
+
+    /**
+     * Starts a new session, it becomes the active session. A session that is still active, for
+     * example because the writer was killed, is ended at its last update first.
+     *
+     * @param startMillis   wall clock time in ms
+     * @param detectorDelay max batch delay of the step detector, or a negative value
+     * @param counterDelay  max batch delay of the step counter, or a negative value
+     * @return the id of the new session
+     */
+    public int begin(long startMillis, int detectorDelay, int counterDelay) {
+        final ByteBuffer b = mBuffer;
+        b.putInt(OFFSET_ACTIVE_ID, NO_SESSION);
+
+        final int id = b.getInt(OFFSET_NEXT_ID);
+        final int offset = getSlotOffset(id);
+        final int version = beginWrite(offset);
+        b.putInt(offset + SLOT_ID, id);
+        b.putLong(offset + SLOT_START, startMillis);
+        b.putLong(offset + SLOT_END, startMillis);
+        b.putInt(offset + SLOT_DETECTOR_DELAY, detectorDelay);
+        b.putInt(offset + SLOT_COUNTER_DELAY, counterDelay);
+        b.putInt(offset + SLOT_STEPS, 0);
+        b.putInt(offset + SLOT_SEGMENTS, 0);
+        b.putLong(offset + SLOT_WALKING_TIME, 0);
+        b.putLong(offset + SLOT_IDLE_TIME, 0);
+        b.putFloat(offset + SLOT_DISTANCE, 0.f);
+        endWrite(offset, version);
+
+        b.putInt(OFFSET_NEXT_ID, id + 1);
+        b.putInt(OFFSET_ACTIVE_ID, id);
+        return id;
+    }
+
+    /**
+     * Updates the statistics and the end time of the active session. Does nothing if no session
+     * is active.
+     *
+     * @param nowMillis   wall clock time in ms
+     * @param steps       number of steps
+     * @param segments    number of walking segments
+     * @param walkingTime time spent walking in ms
+     * @param idleTime    time spent idle between walking segments in ms
+     * @param distance    distance of the path in meters
+     */
+    public void update(long nowMillis, int steps, int segments, long walkingTime, long idleTime,
+                       float distance) {
+        final int id = getActiveId();
+        if (id == NO_SESSION) {
+            return;
+        }
+        final ByteBuffer b = mBuffer;
+        final int offset = getSlotOffset(id);
+        final int version = beginWrite(offset);
+        b.putLong(offset + SLOT_END, nowMillis);
+        b.putInt(offset + SLOT_STEPS, steps);
+        b.putInt(offset + SLOT_SEGMENTS, segments);
+        b.putLong(offset + SLOT_WALKING_TIME, walkingTime);
+        b.putLong(offset + SLOT_IDLE_TIME, idleTime);
+        b.putFloat(offset + SLOT_DISTANCE, distance);
+        endWrite(offset, version);
+    }
+
+    /**
+     * Ends the active session at its last update. Does nothing if no session is active.
+     */
+    public void end() {
+        mBuffer.putInt(OFFSET_ACTIVE_ID, NO_SESSION);
+    }
+
+    private int beginWrite(int offset) {
+        final int version = mBuffer.getInt(offset + SLOT_VERSION) | 1;
+        mBuffer.putInt(offset + SLOT_VERSION, version);
+        return version;
+    }
+
+    private void endWrite(int offset, int version) {
+        mBuffer.putInt(offset + SLOT_VERSION, version + 1);
+    }
+
+    /**
+     * Returns the id of the active session, or {@link #NO_SESSION}.
+     */
+    public int getActiveId() {
+        return mBuffer.getInt(OFFSET_ACTIVE_ID);
+    }
+
+    /**
+     * Returns the id the next session will get, the number of sessions that have been started.
+     */
+    public int getNextId() {
+        return mBuffer.getInt(OFFSET_NEXT_ID);
+    }
+
+    /**
+     * Reads a session.
+     *
+     * @param id
+     * @param session filled with the session
+     * @return false if the session does not exist or has been overwritten
+     */
+    public boolean get(int id, Session session) {
+        if (id < 0) {
+            return false;
+        }
+        final ByteBuffer b = mBuffer;
+        final int offset = getSlotOffset(id);
+        for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+            final int version = b.getInt(offset + SLOT_VERSION);
+            if ((version & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            if (b.getInt(offset + SLOT_ID) != id) {
+                return false;
+            }
+            session.mId = id;
+            session.mStart = b.getLong(offset + SLOT_START);
+            session.mEnd = b.getLong(offset + SLOT_END);
+            session.mDetectorDelay = b.getInt(offset + SLOT_DETECTOR_DELAY);
+            session.mCounterDelay = b.getInt(offset + SLOT_COUNTER_DELAY);
+            session.mSteps = b.getInt(offset + SLOT_STEPS);
+            session.mSegments = b.getInt(offset + SLOT_SEGMENTS);
+            session.mWalkingTime = b.getLong(offset + SLOT_WALKING_TIME);
+            session.mIdleTime = b.getLong(offset + SLOT_IDLE_TIME);
+            session.mDistance = b.getFloat(offset + SLOT_DISTANCE);
+            if (b.getInt(offset + SLOT_VERSION) == version) {
+                session.mActive = id == getActiveId();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads the active session.
+     *
+     * @param session filled with the session
+     * @return false if no session is active
+     */
+    public boolean getActive(Session session) {
+        return get(getActiveId(), session);
+    }
+
+    /**
+     * Lists a page of sessions, newest first.
+     *
+     * @param offset  number of newer sessions to skip
+     * @param count   maximum number of sessions to list
+     * @param session holder that is filled and passed to the handler for every session
+     * @param handler
+     * @return the number of listed sessions, less than count on the last page
+     */
+    public int list(int offset, int count, Session session, SessionHandler handler) {
+        final int nextId = getNextId();
+        final int oldest = Math.max(0, nextId - CAPACITY);
+        int listed = 0;
+        for (int id = nextId - 1 - offset; id >= oldest && listed < count; id--) {
+            if (get(id, session)) {
+                handler.onSession(session);
+                listed++;
+            }
+        }
+        return listed;
+    }
+
+    /**
+     * Returns the number of sessions that can be listed.
+     */
+    public int getSessionCount() {
+        return Math.min(getNextId(), CAPACITY);
+    }
+}
@@ -0,0 +1,288 @@
+/*
+* Copyright 2014 The Android Open Source Project, University of South Florida
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.example.android.stepcore;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Watches how long a thread, typically the main thread, spends in named stages and reports the
+ * stages that exceed a time budget.
+ * <p/>
+ * The watched thread marks a stage with {@link #begin(String, int)} and {@link #end()}. Stages
+ * may be nested, only the outermost stage is timed. Once a sampler thread notices a running
+ * stage, it waits until the budget of the stage has passed; if the stage is still running then,
+ * the stack of the watched thread is sampled, which shows where the time goes while it is spent.
+ * When the stage ends over budget, the {@link OverrunListener} is called on the watched thread
+ * with the duration, the batch size given for the stage, the innermost stage at the time of the
+ * sample and the sampled stack.
+ * <p/>
+ * Beginning and ending a stage does not allocate or lock. The sampler is armed lazily: while
+ * stages begin less than two poll intervals apart, for example the frames of an animation, it
+ * checks for a running stage once per poll interval and costs at most one wakeup per interval,
+ * plus one per stage that is still running at a check. A stage that begins after a quiet period
+ * wakes the parked sampler once, which then waits for the budget of the stage and parks again,
+ * at most two wakeups in total. While polling, a stage is noticed up to a poll interval late, so
+ * a stage that overruns its budget by less than that may be reported without a stack.
+ */
+public class StageWatchdog {
+
+    /**
+     * Receives the stages that exceeded the budget.
+     */
+    public interface OverrunListener {
+        /**
+         * Called on the watched thread after the stage has ended.
+         *
+         * @param stage         name of the outermost stage
+         * @param innerStage    innermost stage that was running when the stack was sampled, or
+         *                      null if no stack was sampled
+         * @param durationNanos duration of the outermost stage
+         * @param batchSize     batch size of the stage, see {@link #setBatchSize(int)}
+         * @param stack         stack of the watched thread sampled once the budget had passed,
+         *                      or null if it could not be sampled in time
+         */
+        public void onOverrun(String stage, String innerStage, long durationNanos, int batchSize,
+                              StackTraceElement[] stack);
+    }
+
+    // Deepest nesting of stages whose names are kept
+    private static final int MAX_DEPTH = 8;
+    // Interval at which the sampler checks for running stages while stages are frequent
+    private static final long POLL_NANOS = 16000000L; // 16ms, about one frame
+    // Stages that begin further apart wake the parked sampler instead of being polled for
+    private static final long IDLE_NANOS = 2 * POLL_NANOS;
+
+    private final Thread mWatched;
+    private final OverrunListener mListener;
+    private volatile long mBudgetNanos;
+    private Thread mSampler = null;
+    private volatile boolean mRunning = false;
+
+    // Only accessed by the watched thread
+    private final String[] mStages = new String[MAX_DEPTH];
+    private int mDepth = 0;
+    private int mBatchSize = 0;
+    private long mOverruns = 0;
+    private long mMaxDurationNanos = 0;
+
+    // Shared with the sampler thread: the running stage and its start, 0 while no stage runs
+    private volatile long mStageId = 0;
+    private volatile long mStageStart = 0;
+    private volatile int mInnerDepth = 0;
+    private volatile long mNextStageId = 1;
+    // Whether the sampler is parked until the next stage begins
+    private volatile boolean mSamplerParked = false;
+
+    // Written by the sampler thread: the sample of the stage with mSampledId
+    private volatile StackTraceElement[] mSampledStack = null;
+    private volatile String mSampledStage = null;
+    private volatile long mSampledId = 0;
+
+    /**
+     * @param watched     thread whose stages are timed
+     * @param budgetNanos time a stage may take before it is reported
+     * @param listener
+     */
+    public StageWatchdog(Thread watched, long budgetNanos, OverrunListener listener) {
+        mWatched = watched;
+        mBudgetNanos = budgetNanos;
+        mListener = listener;
+    }
+
+    /**
+     * Set the time a stage may take before it is reported.
+     *
+     * @param budgetNanos
+     */
+    public void setBudget(long budgetNanos) {
+        mBudgetNanos = budgetNanos;
+    }
+
+    public long getBudget() {
+        return mBudgetNanos;
+    }
+
+    /**
+     * Starts the sampler thread. Stages are timed without it, but no stacks are sampled.
+     */
+    public synchronized void start() {
+        if (mSampler != null) {
+            return;
+        }
+        mRunning = true;
+        mSampler = new Thread(mSampleLoop, "StageWatchdog");
+        mSampler.setDaemon(true);
+        mSampler.start();
+    }
+
+    /**
+     * Stops the sampler thread.
+     */
+    public synchronized void stop() {
+        if (mSampler == null) {
+            return;
+        }
+        mRunning = false;
+        LockSupport.unpark(mSampler);
+        mSampler = null;
+    }
+
+    /**
+     * Begins a stage on the watched thread. Every call must be followed by a call to
+     * {@link #end()}, nested stages are attributed to the outermost stage.
+     *
+     * @param stage     name of the stage
+     * @param batchSize number of items handled by the stage, for example the events of a batch
+     */
+    public void begin(String stage, int batchSize) {
+        if (mDepth < MAX_DEPTH) {
+            mStages[mDepth] = stage;
+        }
+        mDepth++;
+        mInnerDepth = Math.min(mDepth, MAX_DEPTH);
+        if (mDepth > 1) {
+            return;
+        }
+
+        mBatchSize = batchSize;
+        mStageStart = System.nanoTime();
+        // The id is published last, the sampler reads it first
+        final long id = mNextStageId;
+        mNextStageId = id + 1;
+        mStageId = id;
+        if (mSamplerParked) {
+            // The first stage after a quiet period
+            mSamplerParked = false;
+            final Thread sampler = mSampler;
+            if (sampler != null) {
+                LockSupport.unpark(sampler);
+            }
+        }
+    }
+
+    /**
+     * Sets the batch size of the outermost stage, if it is only known while the stage runs.
+     *
+     * @param batchSize
+     */
+    public void setBatchSize(int batchSize) {
+        if (mDepth > 0) {
+            mBatchSize = batchSize;
+        }
+    }
+
+    /**
+     * Ends the innermost stage. When the outermost stage ends over budget, the listener is
+     * called.
+     */
+    public void end() {
+        if (mDepth == 0) {
+            throw new IllegalStateException("No stage running");
+        }
+        mDepth--;
+        mInnerDepth = Math.min(mDepth, MAX_DEPTH);
+        if (mDepth > 0) {
+            return;
+        }
+
+        final long id = mStageId;
+        final long duration = System.nanoTime() - mStageStart;
+        mStageId = 0;
+        if (duration <= mBudgetNanos) {
+            return;
+        }
+
+        mOverruns++;
+        mMaxDurationNanos = Math.max(mMaxDurationNanos, duration);
+        StackTraceElement[] stack = null;
+        String innerStage = null;
+        if (mSampledId == id) {
+            stack = mSampledStack;
+            innerStage = mSampledStage;
+        }
+        mListener.onOverrun(mStages[0], innerStage, duration, mBatchSize, stack);
+    }
+
+    /**
+     * Returns the number of stages that exceeded the budget.
+     */
+    public long getOverrunCount() {
+        return mOverruns;
+    }
+
+    /**
+     * Returns the duration of the longest stage that exceeded the budget, in nanoseconds.
+     */
+    public long getMaxDuration() {
+        return mMaxDurationNanos;
+    }
+
+    private final Runnable mSampleLoop = new Runnable() {
+        @Override
+        public void run() {
+            // Stages that had begun at the last check, and when a new stage was last noticed
+            long seenStages = 0;
+            long seenTime = 0;
+            boolean frequent = false;
+            while (mRunning) {
+                final long now = System.nanoTime();
+                final long stages = mNextStageId;
+                if (stages != seenStages) {
+                    frequent = seenStages != 0 && now - seenTime < IDLE_NANOS;
+                    seenStages = stages;
+                    seenTime = now;
+                }
+
+                final long id = mStageId;
+                if (id == 0 || id == mSampledId) {
+                    if (frequent && now - seenTime < IDLE_NANOS) {
+                        // Check again instead of being woken by every stage
+                        LockSupport.parkNanos(this, POLL_NANOS);
+                        continue;
+                    }
+                    // Quiet, wait until begin() wakes the sampler. The stages are checked again
+                    // after the flag is set, begin() sets the id before it reads the flag.
+                    mSamplerParked = true;
+                    if (mNextStageId == seenStages && mRunning) {
+                        LockSupport.park(this);
+                    }
+                    mSamplerParked = false;
+                    frequent = false;
+                    continue;
+                }
+                final long wait = mStageStart + mBudgetNanos - now;
+                if (wait > 0) {
+                    LockSupport.parkNanos(this, wait);
+                    continue;
+                }
+
+                // The stage is over budget and still running, sample where it spends its time
+                final String stage = mStages[Math.max(0, mInnerDepth - 1)];
+                final StackTraceElement[] stack = mWatched.getStackTrace();
+                if (mStageId == id) {
+                    mSampledStack = stack;
+                    mSampledStage = stage;
+                    mSampledId = id;
+                } else {
+                    // The stage ended while it was sampled, the sample belongs to another stage
+                    mSampledId = id;
+                }
+            }
+        }
+    };
+}
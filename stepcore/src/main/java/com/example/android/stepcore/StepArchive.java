@@ -0,0 +1,535 @@
+/*
+* Copyright 2014 The Android Open Source Project, University of South Florida
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.example.android.stepcore;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * Compressed, append only archive of step records in a file, with a block index in a second file
+ * for range seeks.
+ * <p/>
+ * Records (time, total steps, orientation, delay) are collected into blocks of up to
+ * {@link #BLOCK_SIZE} records. A full block is encoded column by column and appended to the data
+ * file, then its index entry (file offset, length, number of records, time of the first and last
+ * record) is appended to the index file:
+ * <ul>
+ * <li>times are wall clock milliseconds, stored as the first time followed by the zigzag varint
+ * delta of delta of every following time, which is 1 byte for near regular steps</li>
+ * <li>totals are stored as runs of equal deltas, while walking they increase by 1 and the
+ * block is one run</li>
+ * <li>orientations are quantized to {@link #ORIENTATION_RESOLUTION} degrees and stored as runs of
+ * equal deltas, constant or steadily turning headings collapse into few runs</li>
+ * <li>delays are stored as runs of equal values, most step records have no delay</li>
+ * </ul>
+ * A run is the zigzag varint of its value shifted left by one bit, the lowest bit tells whether
+ * the varint length of the run follows; a single value takes no length. A realistic walk takes
+ * about 2 bytes per record instead of the 24 bytes of a {@link StepRing} record.
+ * A block is only visible to readers once its index entry has been written. After a crash, the
+ * data after the last indexed block is dropped when the archive is opened for writing again.
+ */
+public class StepArchive {
+
+    /**
+     * Number of records per block.
+     */
+    public static final int BLOCK_SIZE = 1024;
+    /**
+     * Resolution of the stored orientations, in degrees.
+     */
+    public static final float ORIENTATION_RESOLUTION = 0.1f;
+
+    private static final int BLOCK_MAGIC = 0x53544232; // "STB2"
+    private static final int BLOCK_HEADER_SIZE = 8;
+    // Largest encoded block: header, first time, then per record at most 10 bytes for the time and
+    // 5 each for the total, the orientation and the delay; a run length takes at most 5 bytes
+    // for two or more records
+    private static final int MAX_BLOCK_BYTES = BLOCK_HEADER_SIZE + 10 + BLOCK_SIZE * 25;
+    private static final int INDEX_ENTRY_SIZE = 32;
+    // Quantized orientation of a record without an orientation
+    private static final int NO_ORIENTATION = Short.MAX_VALUE;
+
+    /**
+     * Returns the index file of an archive.
+     *
+     * @param file data file of the archive
+     * @return
+     */
+    public static File getIndexFile(File file) {
+        return new File(file.getPath() + ".idx");
+    }
+
+    /**
+     * Receives the records read from an archive.
+     */
+    public interface RecordHandler {
+        /**
+         * @param timeMillis  wall clock time of the record
+         * @param count       total number of steps after the record
+         * @param orientation orientation of the step, or NaN
+         * @param delay       delay of the event in ms, or -1
+         */
+        public void onRecord(long timeMillis, int count, float orientation, int delay);
+    }
+
+    /**
+     * Records of one block as primitive columns.
+     */
+    private static class Block {
+        final long[] mTimes = new long[BLOCK_SIZE];
+        final int[] mCounts = new int[BLOCK_SIZE];
+        final int[] mOrientations = new int[BLOCK_SIZE];
+        final int[] mDelays = new int[BLOCK_SIZE];
+        int mSize = 0;
+    }
+
+    /**
+     * Appends records to an archive. Not thread safe, records must be appended by one thread.
+     */
+    public static class Writer {
+        private final RandomAccessFile mData;
+        private final RandomAccessFile mIndex;
+        private final Block mBlock = new Block();
+        private final ByteBuffer mEncoded = ByteBuffer.allocate(MAX_BLOCK_BYTES);
+        private final ByteBuffer mEntry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+        private long mDataLength;
+        private long mEncodedBytes = 0;
+        private long mEncodedRecords = 0;
+
+        /**
+         * Opens an archive for appending, it is created if it does not exist.
+         *
+         * @param file data file of the archive
+         * @throws IOException
+         */
+        public Writer(File file) throws IOException {
+            mData = new RandomAccessFile(file, "rw");
+            try {
+                mIndex = new RandomAccessFile(getIndexFile(file), "rw");
+            } catch (IOException e) {
+                mData.close();
+                throw e;
+            }
+            recover();
+        }
+
+        /**
+         * Drops the data and index entries that were not completely written.
+         */
+        private void recover() throws IOException {
+            long entries = mIndex.length() / INDEX_ENTRY_SIZE;
+            mDataLength = 0;
+            while (entries > 0) {
+                mIndex.seek((entries - 1) * INDEX_ENTRY_SIZE);
+                final long end = mIndex.readLong() + mIndex.readInt();
+                if (end <= mData.length()) {
+                    mDataLength = end;
+                    break;
+                }
+                entries--;
+            }
+            mIndex.setLength(entries * INDEX_ENTRY_SIZE);
+            mData.setLength(mDataLength);
+        }
+
+        /**
+         * Appends a record. It is written once its block is full or the writer is flushed.
+         *
+         * @param timeMillis  wall clock time of the record
+         * @param count       total number of steps after the record
+         * @param orientation orientation of the step, or NaN
+         * @param delay       delay of the event in ms, or -1
+         * @throws IOException
+         */
+        public void append(long timeMillis, int count, float orientation, int delay)
+                throws IOException {
+            final Block block = mBlock;
+            block.mTimes[block.mSize] = timeMillis;
+            block.mCounts[block.mSize] = count;
+            block.mOrientations[block.mSize] = quantize(orientation);
+            block.mDelays[block.mSize] = delay;
+            block.mSize++;
+            if (block.mSize == BLOCK_SIZE) {
+                flush();
+            }
+        }
+
+        /**
+         * Writes the records that have been appended as a block, even if it is not full.
+         *
+         * @throws IOException
+         */
+        public void flush() throws IOException {
+            final Block block = mBlock;
+            if (block.mSize == 0) {
+                return;
+            }
+            encode(block, mEncoded);
+            final int length = mEncoded.position();
+            mData.seek(mDataLength);
+            mData.write(mEncoded.array(), 0, length);
+
+            // The block is visible to readers once it is indexed
+            mEntry.clear();
+            mEntry.putLong(mDataLength);
+            mEntry.putInt(length);
+            mEntry.putInt(block.mSize);
+            mEntry.putLong(block.mTimes[0]);
+            mEntry.putLong(block.mTimes[block.mSize - 1]);
+            mIndex.seek(mIndex.length());
+            mIndex.write(mEntry.array(), 0, INDEX_ENTRY_SIZE);
+
+            mDataLength += length;
+            mEncodedBytes += length;
+            mEncodedRecords += block.mSize;
+            block.mSize = 0;
+        }
+
+        /**
+         * Returns the average size of a record written by this writer in bytes, or 0 if no block
+         * has been written.
+         */
+        public float getBytesPerRecord() {
+            return mEncodedRecords == 0 ? 0 : (float) mEncodedBytes / mEncodedRecords;
+        }
+
+        /**
+         * Flushes the appended records and closes the archive.
+         *
+         * @throws IOException
+         */
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                mData.close();
+                mIndex.close();
+            }
+        }
+    }
+
+    private static int quantize(float orientation) {
+        if (Float.isNaN(orientation)) {
+            return NO_ORIENTATION;
+        }
+        final int quantized = Math.round(orientation / ORIENTATION_RESOLUTION);
+        return Math.max(-NO_ORIENTATION + 1, Math.min(NO_ORIENTATION - 1, quantized));
+    }
+
+    private static float dequantize(int quantized) {
+        return quantized == NO_ORIENTATION ? Float.NaN : quantized * ORIENTATION_RESOLUTION;
+    }
+
+    private static void encode(Block block, ByteBuffer out) {
+        final int size = block.mSize;
+        out.clear();
+        out.putInt(BLOCK_MAGIC);
+        out.putInt(size);
+
+        // Times: first time, then delta of delta
+        out.putLong(block.mTimes[0]);
+        long previousDelta = 0;
+        for (int i = 1; i < size; i++) {
+            final long delta = block.mTimes[i] - block.mTimes[i - 1];
+            writeVarLong(out, zigzag(delta - previousDelta));
+            previousDelta = delta;
+        }
+
+        // Totals and orientations: runs of equal deltas
+        encodeDeltaRuns(block.mCounts, size, out);
+        encodeDeltaRuns(block.mOrientations, size, out);
+
+        // Delays: runs of equal values
+        int i = 0;
+        while (i < size) {
+            final int delay = block.mDelays[i];
+            int run = 1;
+            while (i + run < size && block.mDelays[i + run] == delay) {
+                run++;
+            }
+            writeRun(out, delay, run);
+            i += run;
+        }
+    }
+
+    private static void encodeDeltaRuns(int[] values, int size, ByteBuffer out) {
+        int previous = 0;
+        int i = 0;
+        while (i < size) {
+            final int delta = values[i] - previous;
+            int run = 1;
+            while (i + run < size && values[i + run] - values[i + run - 1] == delta) {
+                run++;
+            }
+            writeRun(out, delta, run);
+            previous = values[i + run - 1];
+            i += run;
+        }
+    }
+
+    private static void writeRun(ByteBuffer out, int value, int run) {
+        final long shifted = zigzag(value) << 1;
+        if (run == 1) {
+            writeVarLong(out, shifted);
+        } else {
+            writeVarLong(out, shifted | 1);
+            writeVarLong(out, run);
+        }
+    }
+
+    private static void decode(ByteBuffer in, Block block) throws IOException {
+        if (in.getInt() != BLOCK_MAGIC) {
+            throw new IOException("Invalid block");
+        }
+        final int size = in.getInt();
+        if (size < 1 || size > BLOCK_SIZE) {
+            throw new IOException("Invalid block size " + size);
+        }
+        block.mSize = size;
+
+        block.mTimes[0] = in.getLong();
+        long delta = 0;
+        for (int i = 1; i < size; i++) {
+            delta += unzigzag(readVarLong(in));
+            block.mTimes[i] = block.mTimes[i - 1] + delta;
+        }
+
+        decodeDeltaRuns(in, block.mCounts, size);
+        decodeDeltaRuns(in, block.mOrientations, size);
+
+        int i = 0;
+        while (i < size) {
+            final long value = readVarLong(in);
+            final int delay = (int) unzigzag(value >>> 1);
+            final int run = readRunLength(in, value, size - i);
+            for (int j = 0; j < run; j++) {
+                block.mDelays[i++] = delay;
+            }
+        }
+    }
+
+    private static void decodeDeltaRuns(ByteBuffer in, int[] values, int size)
+            throws IOException {
+        int previous = 0;
+        int i = 0;
+        while (i < size) {
+            final long value = readVarLong(in);
+            final int delta = (int) unzigzag(value >>> 1);
+            final int run = readRunLength(in, value, size - i);
+            for (int j = 0; j < run; j++) {
+                previous += delta;
+                values[i++] = previous;
+            }
+        }
+    }
+
+    private static int readRunLength(ByteBuffer in, long value, int remaining)
+            throws IOException {
+        if ((value & 1) == 0) {
+            return 1;
+        }
+        final long run = readVarLong(in);
+        if (run < 2 || run > remaining) {
+            throw new IOException("Invalid run length " + run);
+        }
+        return (int) run;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarLong(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private static long readVarLong(ByteBuffer in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Invalid varint");
+    }
+
+    /**
+     * Reads the records of an archive in a time range, block by block. Only the index is loaded
+     * into memory, the blocks are read and decoded one at a time into reused buffers. A reader
+     * sees the blocks that were indexed when it was opened.
+     */
+    public static class Reader {
+        private final RandomAccessFile mData;
+        // Index entries, in the order the blocks were written
+        private final long[] mOffsets;
+        private final int[] mLengths;
+        private final int[] mCounts;
+        private final long[] mFirstTimes;
+        private final long[] mLastTimes;
+
+        private final Block mBlock = new Block();
+        private final ByteBuffer mEncoded = ByteBuffer.allocate(MAX_BLOCK_BYTES);
+
+        /**
+         * Opens an archive for reading.
+         *
+         * @param file data file of the archive
+         * @throws IOException if the archive does not exist
+         */
+        public Reader(File file) throws IOException {
+            final File indexFile = getIndexFile(file);
+            final int entries = (int) (indexFile.length() / INDEX_ENTRY_SIZE);
+            final byte[] index = new byte[entries * INDEX_ENTRY_SIZE];
+            final FileInputStream in = new FileInputStream(indexFile);
+            try {
+                int read = 0;
+                while (read < index.length) {
+                    final int n = in.read(index, read, index.length - read);
+                    if (n < 0) {
+                        throw new EOFException("Index truncated");
+                    }
+                    read += n;
+                }
+            } finally {
+                in.close();
+            }
+
+            mOffsets = new long[entries];
+            mLengths = new int[entries];
+            mCounts = new int[entries];
+            mFirstTimes = new long[entries];
+            mLastTimes = new long[entries];
+            final ByteBuffer buffer = ByteBuffer.wrap(index);
+            for (int i = 0; i < entries; i++) {
+                mOffsets[i] = buffer.getLong();
+                mLengths[i] = buffer.getInt();
+                mCounts[i] = buffer.getInt();
+                mFirstTimes[i] = buffer.getLong();
+                mLastTimes[i] = buffer.getLong();
+            }
+            mData = new RandomAccessFile(file, "r");
+        }
+
+        /**
+         * Returns the number of blocks.
+         */
+        public int getBlockCount() {
+            return mOffsets.length;
+        }
+
+        /**
+         * Returns the number of records in all blocks, without reading them.
+         */
+        public long getRecordCount() {
+            long records = 0;
+            for (int count : mCounts) {
+                records += count;
+            }
+            return records;
+        }
+
+        /**
+         * Returns the time of the first record, or Long.MIN_VALUE if the archive is empty.
+         */
+        public long getFirstTime() {
+            return mOffsets.length == 0 ? Long.MIN_VALUE : mFirstTimes[0];
+        }
+
+        /**
+         * Returns the time of the last record, or Long.MIN_VALUE if the archive is empty.
+         */
+        public long getLastTime() {
+            return mOffsets.length == 0 ? Long.MIN_VALUE : mLastTimes[mOffsets.length - 1];
+        }
+
+        /**
+         * Delivers the records from {@code fromMillis} to {@code toMillis}, both included, in the
+         * order they were written. The first block is found with a binary search over the index.
+         *
+         * @param fromMillis
+         * @param toMillis
+         * @param handler
+         * @return the number of records delivered
+         * @throws IOException
+         */
+        public long read(long fromMillis, long toMillis, RecordHandler handler)
+                throws IOException {
+            // First block that ends at or after the start of the range
+            int low = 0;
+            int high = mOffsets.length;
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (mLastTimes[mid] < fromMillis) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+
+            long delivered = 0;
+            for (int b = low; b < mOffsets.length && mFirstTimes[b] <= toMillis; b++) {
+                readBlock(b);
+                final Block block = mBlock;
+                for (int i = 0; i < block.mSize; i++) {
+                    final long time = block.mTimes[i];
+                    if (time >= fromMillis && time <= toMillis) {
+                        handler.onRecord(time, block.mCounts[i],
+                                dequantize(block.mOrientations[i]), block.mDelays[i]);
+                        delivered++;
+                    }
+                }
+            }
+            return delivered;
+        }
+
+        private void readBlock(int index) throws IOException {
+            final int length = mLengths[index];
+            if (length > MAX_BLOCK_BYTES) {
+                throw new IOException("Invalid block length " + length);
+            }
+            mData.seek(mOffsets[index]);
+            mData.readFully(mEncoded.array(), 0, length);
+            mEncoded.clear();
+            mEncoded.limit(length);
+            try {
+                decode(mEncoded, mBlock);
+            } catch (RuntimeException e) {
+                // Buffer underflow of a corrupt block
+                throw new IOException("Corrupt block " + index + ": " + e);
+            }
+        }
+
+        public void close() throws IOException {
+            mData.close();
+        }
+    }
+}
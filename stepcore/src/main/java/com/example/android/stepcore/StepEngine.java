@@ -0,0 +1,443 @@
+/*
+* Copyright 2014 The Android Open Source Project, University of South Florida
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package com.example.android.stepcore;
+
+import java.util.ArrayList;
+
+/**
+ * Platform independent step counting engine.
+ * <p/>
+ * Sensor events are passed in through {@link #process(int, float[], long, long)}, the resulting
+ * state (total steps, event delays and step orientations) can be read back from the engine.
+ * The engine does not allocate while processing events.
+ * <p/>
+ * Values of the USF step sensors are laid out as follows:
+ * <ul>
+ * <li>values[0] is the number of steps of the event ({@link #SENSOR_STEP_DETECTOR}), or the total
+ * number of steps counted since the sensor service was started ({@link #SENSOR_STEP_COUNTER}).
+ * When a listener is first registered for the step counter, an event with the current total is
+ * delivered immediately; it is used as the baseline and not counted as a new step. The counter
+ * starts again at 0 when the sensor service is restarted, such resets are detected and stitched
+ * into the total by a {@link CounterBaseline}.</li>
+ * <li>values[1] to values[X] are the orientations of the X steps since the last event.</li>
+ * </ul>
+ * The timestamp of an event is the time of the last step of the event, in nanoseconds.
+ * <p/>
+ * Both sensors can be fed into the same engine, see {@link #setCombined(boolean)}. The step
+ * detector then provides the low latency steps and their orientations, the step counter provides
+ * the authoritative total: the total is the counter value plus the detector steps that are newer
+ * than the last counter event. The detector steps that are covered by the counter are used to
+ * cross-validate both sensors, see {@link #getCountDiscrepancy()}.
+ * <p/>
+ * The total never decreases. If the counter reports fewer steps than the detector, for example
+ * because the counter lags behind the detector, the total is held until the counter catches up.
+ */
+public class StepEngine {
+
+    /**
+     * Each event reports new steps.
+     */
+    public static final int SENSOR_STEP_DETECTOR = 1;
+    /**
+     * Each event reports the total number of steps.
+     */
+    public static final int SENSOR_STEP_COUNTER = 2;
+
+    private static final long NANOS_PER_MILLI = 1000000L;
+    // Number of detector steps whose timestamps are kept until the next step counter event
+    private static final int PENDING_CAPACITY = 128;
+
+    // Steps counted in current session
+    private int mSteps = 0;
+    // Steps added by the last processed event
+    private int mNewSteps = 0;
+    // Total of the step counter across resets of the counter
+    private final CounterBaseline mBaseline = new CounterBaseline();
+    // Whether the next step counter event is the first one after registration
+    private boolean mFirstExecution = true;
+    // Steps counted when the step counter baseline was taken
+    private int mPreviousCounterSteps = 0;
+
+    // Whether the step detector and step counter are both fed into the engine
+    private boolean mCombined = false;
+    // Timestamps of detector steps that are newer than the last step counter event
+    private final LongRing mPendingDetectorSteps = new LongRing(PENDING_CAPACITY);
+    // Oldest pending detector steps that did not fit into the ring. They are taken as covered by
+    // the next counter event, the discrepancy is off until the counter has caught up.
+    private int mPendingOverflow = 0;
+    // Detector steps since the baseline that are covered by step counter events
+    private int mCoveredDetectorSteps = 0;
+    // Step counter steps minus covered detector steps
+    private int mCountDiscrepancy = 0;
+
+    // Age of the most recent events in ms
+    private final LongRing mEventDelays;
+    // Orientations of the most recent steps
+    private final FloatRing mStepOrientations;
+    // Directions of the most recent steps, only kept if a decoder is set
+    private final ByteRing mStepDirections;
+    private final byte[] mDirectionBuffer;
+    private OrientationDecoder mDecoder = null;
+    // Listeners that receive all step orientations, not only the most recent ones
+    private final ArrayList<OrientationListener> mOrientationListeners =
+            new ArrayList<OrientationListener>();
+    // Number of orientations added by the last processed event
+    private int mNewOrientations = 0;
+    // Delay of the last processed event in ms, or -1 if it has no delay
+    private long mNewDelay = -1;
+
+    // Time between updates
+    private long mLastUpdateTime = Long.MIN_VALUE;
+    private long mTotalTimeDiff = 0;  // in nanoseconds
+    private int mNumUpdates = 0;
+
+    /**
+     * @param delayCapacity       number of event delays to keep
+     * @param orientationCapacity number of step orientations to keep
+     */
+    public StepEngine(int delayCapacity, int orientationCapacity) {
+        mEventDelays = new LongRing(delayCapacity);
+        mStepOrientations = new FloatRing(orientationCapacity);
+        mStepDirections = new ByteRing(orientationCapacity);
+        mDirectionBuffer = new byte[orientationCapacity];
+    }
+
+    /**
+     * Set a decoder to keep the directions of the most recent steps along with their orientations,
+     * see {@link #getStepDirections()}.
+     *
+     * @param decoder
+     */
+    public void setOrientationDecoder(OrientationDecoder decoder) {
+        mDecoder = decoder;
+        mStepDirections.clear();
+    }
+
+    /**
+     * Add a listener that receives the orientations of all counted steps as they are processed,
+     * for example to keep statistics over more steps than are kept by the engine.
+     *
+     * @param listener
+     */
+    public void addOrientationListener(OrientationListener listener) {
+        mOrientationListeners.add(listener);
+    }
+
+    public void removeOrientationListener(OrientationListener listener) {
+        mOrientationListeners.remove(listener);
+    }
+
+    /**
+     * Resets the engine by clearing all counting variables and lists.
+     */
+    public void reset() {
+        mFirstExecution = true;
+        mLastUpdateTime = Long.MIN_VALUE;
+        mTotalTimeDiff = 0;
+        mNumUpdates = 0;
+        mSteps = 0;
+        mNewSteps = 0;
+        mBaseline.reset();
+        mPreviousCounterSteps = 0;
+        mPendingDetectorSteps.clear();
+        mPendingOverflow = 0;
+        mCoveredDetectorSteps = 0;
+        mCountDiscrepancy = 0;
+        mNewOrientations = 0;
+        mNewDelay = -1;
+        mEventDelays.clear();
+        mStepOrientations.clear();
+        mStepDirections.clear();
+    }
+
+    /**
+     * Set whether the step detector and step counter are both fed into the engine. When combined,
+     * orientations are only taken from the step detector and detector steps are corrected by the
+     * step counter. Otherwise each sensor is counted on its own, which is the default.
+     *
+     * @param combined
+     */
+    public void setCombined(boolean combined) {
+        mCombined = combined;
+    }
+
+    public boolean isCombined() {
+        return mCombined;
+    }
+
+    /**
+     * Resets the engine and continues counting from a previously counted number of steps, for
+     * example after the state of the application was restored. The first step counter event
+     * after this call is used as the new baseline. The combined setting is kept.
+     *
+     * @param steps
+     */
+    public void restore(int steps) {
+        reset();
+        mSteps = steps;
+        mPreviousCounterSteps = steps;
+    }
+
+    /**
+     * Resets the engine and continues counting from a checkpoint of the step counter baseline,
+     * for example after the process was killed. Unlike {@link #restore(int)}, the first step
+     * counter event after this call is compared with the checkpoint, the steps taken in between
+     * are counted.
+     *
+     * @param steps    number of steps saved with the checkpoint
+     * @param baseline baseline loaded from the checkpoint, it is copied
+     */
+    public void restore(int steps, CounterBaseline baseline) {
+        restore(steps);
+        mBaseline.set(baseline);
+    }
+
+    /**
+     * Returns the baseline of the step counter, for example to save a checkpoint. It must not be
+     * modified.
+     */
+    public CounterBaseline getCounterBaseline() {
+        return mBaseline;
+    }
+
+    /**
+     * Processes a sensor event.
+     *
+     * @param sensor        {@link #SENSOR_STEP_DETECTOR} or {@link #SENSOR_STEP_COUNTER}
+     * @param values        values of the event
+     * @param timestamp     timestamp of the event in nanoseconds
+     * @param receivedNanos time the event was received, in the same time base as the timestamp
+     * @return the number of new steps
+     */
+    public int process(int sensor, float[] values, long timestamp, long receivedNanos) {
+        return process(sensor, values, values.length, timestamp, receivedNanos);
+    }
+
+    /**
+     * Processes a sensor event whose values are stored in the first {@code length} elements of the
+     * array, for example an event buffered by an {@link EventReorderBuffer}.
+     *
+     * @param sensor        {@link #SENSOR_STEP_DETECTOR} or {@link #SENSOR_STEP_COUNTER}
+     * @param values        values of the event
+     * @param length        number of values
+     * @param timestamp     timestamp of the event in nanoseconds
+     * @param receivedNanos time the event was received, in the same time base as the timestamp
+     * @return the number of new steps
+     */
+    public int process(int sensor, float[] values, int length, long timestamp,
+                       long receivedNanos) {
+        recordTimeBetweenUpdates(receivedNanos);
+
+        mNewSteps = 0;
+        mNewDelay = -1;
+        mNewOrientations = 0;
+        if (sensor == SENSOR_STEP_DETECTOR) {
+            recordDelay(timestamp, receivedNanos);
+            // A step detector event is received for each step.
+            // This means we need to count steps ourselves
+            mNewSteps = (int) values[0];
+            mSteps += mNewSteps;
+
+            if (mCombined && !mFirstExecution) {
+                // Keep the steps until a step counter event covers them. The oldest steps are
+                // counted without their timestamps once the ring is full.
+                for (int i = 0; i < mNewSteps; i++) {
+                    if (mPendingDetectorSteps.isFull()) {
+                        mPendingDetectorSteps.removeOldest();
+                        mPendingOverflow++;
+                    }
+                    mPendingDetectorSteps.add(timestamp);
+                }
+            }
+            recordOrientations(values, length, timestamp);
+        } else if (sensor == SENSOR_STEP_COUNTER) {
+            if (mFirstExecution) {
+                // The first value is not a new step, just a notification of the current total.
+                // Continue from the steps counted so far, restored or detected before the
+                // baseline. A baseline restored from a checkpoint is continued instead.
+                if (!mBaseline.isStarted()) {
+                    mBaseline.start(mSteps, (int) values[0]);
+                }
+                mPreviousCounterSteps = mSteps;
+                mFirstExecution = false;
+            } else {
+                recordDelay(timestamp, receivedNanos);
+            }
+
+            // Detector steps up to this event are now included in the step counter value
+            mCoveredDetectorSteps += mPendingOverflow;
+            mPendingOverflow = 0;
+            while (mPendingDetectorSteps.size() > 0
+                    && mPendingDetectorSteps.get(0) <= timestamp) {
+                mPendingDetectorSteps.removeOldest();
+                mCoveredDetectorSteps++;
+            }
+
+            // Calculate steps taken based on first counter value received, and add the number of
+            // steps previously taken, otherwise the counter would start at 0.
+            final int counterTotal = mBaseline.update((int) values[0]);
+            final int counterSteps = counterTotal - mPreviousCounterSteps;
+            final int steps = counterTotal + mPendingDetectorSteps.size();
+            // Hold the total while the counter has counted fewer steps than the detector
+            if (steps > mSteps) {
+                mNewSteps = steps - mSteps;
+                mSteps = steps;
+            }
+            if (mCombined) {
+                mCountDiscrepancy = counterSteps - mCoveredDetectorSteps;
+            } else {
+                // The step detector provides the orientations when combined
+                recordOrientations(values, length, timestamp);
+            }
+        } else {
+            throw new IllegalArgumentException("Unknown sensor " + sensor);
+        }
+
+        return mNewSteps;
+    }
+
+    private void recordTimeBetweenUpdates(long currentTime) {
+        if (mLastUpdateTime != Long.MIN_VALUE) {
+            mTotalTimeDiff += currentTime - mLastUpdateTime;
+            mNumUpdates++;
+        }
+        mLastUpdateTime = currentTime;
+    }
+
+    private void recordDelay(long timestamp, long receivedNanos) {
+        mNewDelay = (receivedNanos - timestamp) / NANOS_PER_MILLI;
+        mEventDelays.add(mNewDelay);
+    }
+
+    private void recordOrientations(float[] values, int length, long timestamp) {
+        // Orientations start at values[1]
+        mNewOrientations = length > 1 ? length - 1 : 0;
+        for (int i = 1; i < length; i++) {
+            mStepOrientations.add(values[i]);
+        }
+
+        if (mDecoder != null && mNewOrientations > 0) {
+            // Only the newest orientations remain in the ring, decode them in one pass
+            final int count = Math.min(mNewOrientations, mDirectionBuffer.length);
+            mDecoder.decode(values, length - count, mDirectionBuffer, 0, count);
+            for (int i = 0; i < count; i++) {
+                mStepDirections.add(mDirectionBuffer[i]);
+            }
+        }
+
+        if (mNewOrientations > 0) {
+            for (int i = 0; i < mOrientationListeners.size(); i++) {
+                mOrientationListeners.get(i).onOrientations(values, 1, mNewOrientations,
+                        timestamp);
+            }
+        }
+    }
+
+    /**
+     * Returns the total number of steps counted since the engine was reset.
+     */
+    public int getSteps() {
+        return mSteps;
+    }
+
+    /**
+     * Returns the number of steps added by the last processed event, never negative.
+     */
+    public int getNewSteps() {
+        return mNewSteps;
+    }
+
+    /**
+     * Returns the difference between the steps reported by the step counter and the step detector
+     * steps covered by the same events, since the step counter baseline. A positive value means
+     * that the step detector missed steps. Always 0 unless the engine is combined.
+     */
+    public int getCountDiscrepancy() {
+        return mCountDiscrepancy;
+    }
+
+    /**
+     * Returns true if no step counter event has been processed since the engine was reset.
+     */
+    public boolean isWaitingForBaseline() {
+        return mFirstExecution;
+    }
+
+    /**
+     * Returns the average time between processed events in nanoseconds, or -1 if fewer than two
+     * events have been processed.
+     */
+    public long getAverageUpdateInterval() {
+        if (mNumUpdates == 0) {
+            return -1;
+        }
+        return mTotalTimeDiff / mNumUpdates;
+    }
+
+    /**
+     * Returns the delays of the most recent events in ms, from oldest to newest.
+     * The first step counter event after a reset is not a step and has no delay.
+     */
+    public LongRing getEventDelays() {
+        return mEventDelays;
+    }
+
+    /**
+     * Returns the delay of the last processed event in ms, or -1 if no delay was recorded for it.
+     */
+    public long getNewDelay() {
+        return mNewDelay;
+    }
+
+    /**
+     * Returns the orientations of the most recent steps, from oldest to newest.
+     */
+    public FloatRing getStepOrientations() {
+        return mStepOrientations;
+    }
+
+    /**
+     * Returns the directions of the most recent steps, from oldest to newest. The directions are
+     * only kept while an {@link OrientationDecoder} is set, they match the newest values of
+     * {@link #getStepOrientations()}.
+     */
+    public ByteRing getStepDirections() {
+        return mStepDirections;
+    }
+
+    /**
+     * Returns the number of orientations added by the last processed event. They are the newest
+     * values of {@link #getStepOrientations()}.
+     */
+    public int getNewOrientationCount() {
+        return mNewOrientations;
+    }
+
+    /**
+     * Receives the orientations of the steps processed by a {@link StepEngine}. Listeners are
+     * called on the thread that processes the events and must not keep a reference to the values.
+     */
+    public interface OrientationListener {
+        /**
+         * @param values    array holding the orientations
+         * @param offset    index of the first orientation
+         * @param count     number of orientations, from oldest to newest
+         * @param timestamp timestamp of the event in nanoseconds, the time of the newest step
+         */
+        public void onOrientations(float[] values, int offset, int count, long timestamp);
+    }
+}
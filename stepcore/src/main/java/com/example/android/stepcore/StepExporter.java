@@ -0,0 +1,158 @@
+/*
+* Copyright 2014 The Android Open Source Project, University of South Florida
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.example.android.stepcore;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Streams step records as CSV or JSON to a {@link Writer}. Records are formatted into a bounded
+ * buffer without allocating, the buffer is written to the writer in chunks of about
+ * {@link #CHUNK_SIZE} characters, so the size of an export does not depend on the heap.
+ * <p/>
+ * Both formats use '\n' line endings and a '.' decimal separator independent of the locale, with
+ * one record per line:
+ * <ul>
+ * <li>CSV has a header line and the columns {@code time_ms,count,orientation,delay_ms}, a missing
+ * orientation or delay is an empty field</li>
+ * <li>JSON is an array of objects with the same names, a missing orientation or delay is null</li>
+ * </ul>
+ * Times are wall clock milliseconds since the epoch, orientations are in degrees and delays are
+ * the age of the sensor event when it was received, in milliseconds.
+ */
+public class StepExporter implements StepArchive.RecordHandler {
+
+    public static final int FORMAT_CSV = 0;
+    public static final int FORMAT_JSON = 1;
+
+    /**
+     * Number of characters after which the buffer is written to the writer.
+     */
+    public static final int CHUNK_SIZE = 8192;
+    // Longest formatted record, the buffer never grows beyond the chunk size and one record
+    private static final int MAX_RECORD_LENGTH = 128;
+
+    private final Writer mWriter;
+    private final int mFormat;
+    private final StringBuilder mBuffer = new StringBuilder(CHUNK_SIZE + MAX_RECORD_LENGTH);
+    private final char[] mChunk = new char[CHUNK_SIZE + MAX_RECORD_LENGTH];
+    private long mRecords = 0;
+    // First error of the writer, records are dropped after it
+    private IOException mError = null;
+
+    /**
+     * @param writer destination, it is not closed by the exporter
+     * @param format {@link #FORMAT_CSV} or {@link #FORMAT_JSON}
+     */
+    public StepExporter(Writer writer, int format) {
+        if (format != FORMAT_CSV && format != FORMAT_JSON) {
+            throw new IllegalArgumentException("Invalid format " + format);
+        }
+        mWriter = writer;
+        mFormat = format;
+        if (format == FORMAT_CSV) {
+            mBuffer.append("time_ms,count,orientation,delay_ms\n");
+        } else {
+            mBuffer.append("[\n");
+        }
+    }
+
+    @Override
+    public void onRecord(long timeMillis, int count, float orientation, int delay) {
+        if (mError != null) {
+            return;
+        }
+        final StringBuilder b = mBuffer;
+        if (mFormat == FORMAT_CSV) {
+            b.append(timeMillis).append(',').append(count).append(',');
+            if (!Float.isNaN(orientation)) {
+                appendOrientation(b, orientation);
+            }
+            b.append(',');
+            if (delay >= 0) {
+                b.append(delay);
+            }
+            b.append('\n');
+        } else {
+            if (mRecords > 0) {
+                b.append(",\n");
+            }
+            b.append("{\"time_ms\":").append(timeMillis).append(",\"count\":").append(count)
+                    .append(",\"orientation\":");
+            if (Float.isNaN(orientation)) {
+                b.append("null");
+            } else {
+                appendOrientation(b, orientation);
+            }
+            b.append(",\"delay_ms\":");
+            if (delay >= 0) {
+                b.append(delay);
+            } else {
+                b.append("null");
+            }
+            b.append('}');
+        }
+        mRecords++;
+
+        if (b.length() >= CHUNK_SIZE) {
+            writeChunk();
+        }
+    }
+
+    /**
+     * Writes the end of the document and all buffered records and flushes the writer.
+     *
+     * @return the number of exported records
+     * @throws IOException the first error of the writer
+     */
+    public long finish() throws IOException {
+        if (mFormat == FORMAT_JSON) {
+            mBuffer.append(mRecords > 0 ? "\n]\n" : "]\n");
+        }
+        writeChunk();
+        if (mError == null) {
+            try {
+                mWriter.flush();
+            } catch (IOException e) {
+                mError = e;
+            }
+        }
+        if (mError != null) {
+            throw mError;
+        }
+        return mRecords;
+    }
+
+    private static void appendOrientation(StringBuilder b, float orientation) {
+        // The archive keeps orientations with a resolution of 0.1 degrees
+        FixedPointFormat.append(b, Math.round(orientation * 10.f), 1, 1);
+    }
+
+    private void writeChunk() {
+        final int length = mBuffer.length();
+        if (mError == null && length > 0) {
+            try {
+                mBuffer.getChars(0, length, mChunk, 0);
+                mWriter.write(mChunk, 0, length);
+            } catch (IOException e) {
+                mError = e;
+            }
+        }
+        mBuffer.setLength(0);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+* Copyright 2014 The Android Open Source Project, University of South Florida
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+
+package com.example.android.stepcore;
+
+/**
+ * Counts the events released by an {@link EventReorderBuffer} with a {@link StepEngine} and turns
+ * each counted event into step records. An event is written as one record per step with its
+ * orientation and the running total of that step. Events without steps (e.g. the first step
+ * counter event) are written as a single record without an orientation, the delay of the event is
+ * stored in its last record. When both sensors are registered, the steps of the step counter have
+ * already been written by the step detector, the counter event is written as a single record that
+ * corrects the total.
+ * <p/>
+ * This is the path from the sensor callback to the records that are shared with the UI, it is
+ * used by the collector service and by the tests of the pipeline.
+ */
+public class StepRecorder implements EventReorderBuffer.EventSink {
+
+    /**
+     * Receives the counted events and their records.
+     */
+    public interface Listener {
+        /**
+         * Called before an event is counted.
+         *
+         * @param timestamp timestamp of the event in nanoseconds
+         */
+        public void onEventReleased(long timestamp);
+
+        /**
+         * Called after an event is counted and before its records are written.
+         *
+         * @param timestamp timestamp of the event in nanoseconds
+         */
+        public void onEventCounted(long timestamp);
+
+        /**
+         * @param timestamp   timestamp of the event in nanoseconds
+         * @param count       step total after the step
+         * @param orientation orientation of the step, or NaN
+         * @param delay       delivery delay of the event in ms, or -1
+         */
+        public void onRecord(long timestamp, int count, float orientation, int delay);
+    }
+
+    private final StepEngine mEngine;
+    private final Listener mListener;
+
+    /**
+     * @param engine   engine that counts the events
+     * @param listener
+     */
+    public StepRecorder(StepEngine engine, Listener listener) {
+        mEngine = engine;
+        mListener = listener;
+    }
+
+    @Override
+    public void onEvent(int sensor, float[] values, int length, long timestamp,
+                        long receivedNanos) {
+        mListener.onEventReleased(timestamp);
+        mEngine.process(sensor, values, length, timestamp, receivedNanos);
+        mListener.onEventCounted(timestamp);
+        writeRecords(sensor, values, length, timestamp);
+    }
+
+    private void writeRecords(int sensor, float[] values, int length, long timestamp) {
+        final int steps = mEngine.getSteps();
+        final int delay = (int) mEngine.getNewDelay();
+        final int count = sensor == StepEngine.SENSOR_STEP_COUNTER && mEngine.isCombined()
+                ? 0 : length - 1;
+
+        if (count < 1) {
+            mListener.onRecord(timestamp, steps, Float.NaN, delay);
+        } else {
+            for (int i = 0; i < count; i++) {
+                final boolean last = i == count - 1;
+                mListener.onRecord(timestamp, Math.max(0, steps - (count - 1 - i)),
+                        values[i + 1], last ? delay : -1);
+            }
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/*
+* Copyright 2014 The Android Open Source Project, University of South Florida
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.example.android.stepcore;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A ring of step records in a {@link ByteBuffer}, written by a single writer and read by any
+ * number of readers. The buffer is typically a memory mapped file shared between processes, so
+ * that records do not have to be copied through IPC.
+ * <p/>
+ * The buffer starts with a header followed by {@code capacity} records of {@link #RECORD_SIZE}
+ * bytes. Each record describes one step (or an event without steps) with the timestamp of the
+ * event, the cumulative number of steps, the orientation of the step and the delay of the event.
+ * <p/>
+ * Records are numbered with a sequence number that only grows. The writer appends records and
+ * then publishes the sequence number of the next record in the header with {@link #publish()}.
+ * A reader keeps the sequence number of the next record it wants to read and catches up on all
+ * published records at once, see {@link Reader}. Readers that fell more than {@code capacity}
+ * records behind skip the records that have been overwritten. Before the writer overwrites a
+ * record, it stores the sequence number after the record in the header as the claimed sequence
+ * number; a reader checks it after copying a record, so that a record that was overwritten while
+ * it was copied is skipped instead of being delivered torn. When the writer is reset, the epoch in
+ * the header is incremented and the sequence numbers start at 0 again.
+ * <p/>
+ * There are no memory barriers between the writer and the readers, readers must only read after
+ * they have been notified about new records through a channel that orders memory accesses (e.g.
+ * a Binder or Handler message).
+ */
+public class StepRing {
+
+    // Header layout
+    private static final int MAGIC = 0x53545052; // "STPR"
+    private static final int VERSION = 2;
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_VERSION = 4;
+    private static final int OFFSET_CAPACITY = 8;
+    private static final int OFFSET_EPOCH = 12;
+    private static final int OFFSET_WRITE_SEQ = 16;
+    private static final int OFFSET_CLAIM_SEQ = 24;
+    private static final int HEADER_SIZE = 32;
+
+    // Record layout
+    private static final int RECORD_TIMESTAMP = 0;
+    private static final int RECORD_COUNT = 8;
+    private static final int RECORD_ORIENTATION = 12;
+    private static final int RECORD_DELAY = 16;
+    /**
+     * Size of a record in bytes.
+     */
+    public static final int RECORD_SIZE = 24;
+
+    private final ByteBuffer mBuffer;
+    private final int mCapacity;
+
+    // Sequence number of the next record, only used by the writer
+    private long mNextSeq;
+
+    /**
+     * Returns the size of a buffer that holds the given number of records.
+     *
+     * @param capacity
+     * @return
+     */
+    public static int getBufferSize(int capacity) {
+        return HEADER_SIZE + capacity * RECORD_SIZE;
+    }
+
+    /**
+     * Formats the buffer as an empty ring and returns the ring for writing. If the buffer already
+     * holds a ring, for example a file left behind by a writer that has died, the epoch is
+     * incremented so that attached readers start over.
+     *
+     * @param buffer   buffer of at least {@link #getBufferSize(int)} bytes
+     * @param capacity number of records
+     * @return
+     */
+    public static StepRing format(ByteBuffer buffer, int capacity) {
+        if (capacity < 1 || buffer.capacity() < getBufferSize(capacity)) {
+            throw new IllegalArgumentException("Buffer too small for " + capacity + " records");
+        }
+        final int epoch = buffer.getInt(OFFSET_MAGIC) == MAGIC
+                && buffer.getInt(OFFSET_VERSION) == VERSION ? buffer.getInt(OFFSET_EPOCH) + 1 : 0;
+        buffer.putInt(OFFSET_CAPACITY, capacity);
+        buffer.putInt(OFFSET_EPOCH, epoch);
+        buffer.putLong(OFFSET_WRITE_SEQ, 0);
+        buffer.putLong(OFFSET_CLAIM_SEQ, 0);
+        buffer.putInt(OFFSET_VERSION, VERSION);
+        buffer.putInt(OFFSET_MAGIC, MAGIC);
+        return new StepRing(buffer, capacity);
+    }
+
+    /**
+     * Attaches to a buffer that has been formatted by {@link #format(ByteBuffer, int)}.
+     *
+     * @param buffer
+     * @return
+     * @throws IllegalArgumentException if the buffer is not a ring
+     */
+    public static StepRing attach(ByteBuffer buffer) {
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(OFFSET_MAGIC) != MAGIC
+                || buffer.getInt(OFFSET_VERSION) != VERSION) {
+            throw new IllegalArgumentException("Buffer is not a step ring");
+        }
+        final int capacity = buffer.getInt(OFFSET_CAPACITY);
+        if (capacity < 1 || buffer.capacity() < getBufferSize(capacity)) {
+            throw new IllegalArgumentException("Step ring is truncated");
+        }
+        return new StepRing(buffer, capacity);
+    }
+
+    private StepRing(ByteBuffer buffer, int capacity) {
+        mBuffer = buffer;
+        mCapacity = capacity;
+        mNextSeq = buffer.getLong(OFFSET_WRITE_SEQ);
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Returns the current epoch, it changes every time the writer is reset.
+     */
+    public int getEpoch() {
+        return mBuffer.getInt(OFFSET_EPOCH);
+    }
+
+    /**
+     * Returns the sequence number of the next record that will be published.
+     */
+    public long getWriteSeq() {
+        return mBuffer.getLong(OFFSET_WRITE_SEQ);
+    }
+
+    /**
+     * Drops all records and starts a new epoch.
+     */
+    public void reset() {
+        mNextSeq = 0;
+        mBuffer.putLong(OFFSET_WRITE_SEQ, 0);
+        mBuffer.putLong(OFFSET_CLAIM_SEQ, 0);
+        mBuffer.putInt(OFFSET_EPOCH, getEpoch() + 1);
+    }
+
+    /**
+     * Appends a record. It is not visible to readers until {@link #publish()} is called.
+     *
+     * @param timestamp   timestamp of the event in nanoseconds
+     * @param count       total number of steps after this step
+     * @param orientation orientation of the step, or NaN for an event without steps
+     * @param delay       delay of the event in ms, or -1
+     */
+    public void append(long timestamp, int count, float orientation, int delay) {
+        // Claim the slot before it is overwritten, see Reader.read()
+        mBuffer.putLong(OFFSET_CLAIM_SEQ, mNextSeq + 1);
+        final int offset = getOffset(mNextSeq);
+        mBuffer.putLong(offset + RECORD_TIMESTAMP, timestamp);
+        mBuffer.putInt(offset + RECORD_COUNT, count);
+        mBuffer.putFloat(offset + RECORD_ORIENTATION, orientation);
+        mBuffer.putInt(offset + RECORD_DELAY, delay);
+        mNextSeq++;
+    }
+
+    /**
+     * Makes all appended records visible to readers.
+     */
+    public void publish() {
+        mBuffer.putLong(OFFSET_WRITE_SEQ, mNextSeq);
+    }
+
+    private int getOffset(long seq) {
+        return HEADER_SIZE + (int) (seq % mCapacity) * RECORD_SIZE;
+    }
+
+    /**
+     * Receives the records read by a {@link Reader}.
+     */
+    public interface RecordHandler {
+        /**
+         * Called when the writer has been reset since the last read, before the records of the
+         * new epoch are delivered.
+         */
+        public void onRingReset();
+
+        public void onRecord(long timestamp, int count, float orientation, int delay);
+    }
+
+    /**
+     * Reads the records of a ring in bulk. A reader keeps its position between reads and does not
+     * allocate.
+     */
+    public static class Reader {
+        private final StepRing mRing;
+        private int mEpoch = -1;
+        private long mReadSeq = 0;
+        private long mSkipped = 0;
+
+        public Reader(StepRing ring) {
+            mRing = ring;
+        }
+
+        /**
+         * Delivers all records that have been published since the last read. Records that the
+         * writer overwrites before or while they are copied are skipped, see
+         * {@link #getSkippedCount()}.
+         *
+         * @param handler
+         * @return the number of records delivered
+         */
+        public int read(RecordHandler handler) {
+            final ByteBuffer buffer = mRing.mBuffer;
+            final int capacity = mRing.mCapacity;
+
+            final int epoch = mRing.getEpoch();
+            if (epoch != mEpoch) {
+                mEpoch = epoch;
+                mReadSeq = 0;
+                handler.onRingReset();
+            }
+
+            final long writeSeq = mRing.getWriteSeq();
+            int read = 0;
+            while (mReadSeq < writeSeq) {
+                final int offset = mRing.getOffset(mReadSeq);
+                final long timestamp = buffer.getLong(offset + RECORD_TIMESTAMP);
+                final int count = buffer.getInt(offset + RECORD_COUNT);
+                final float orientation = buffer.getFloat(offset + RECORD_ORIENTATION);
+                final int delay = buffer.getInt(offset + RECORD_DELAY);
+
+                // Check after the copy whether the writer has claimed the slot in the meantime
+                if (mRing.getEpoch() != epoch) {
+                    // Reset while reading, the next read starts over
+                    break;
+                }
+                final long oldestSeq = buffer.getLong(OFFSET_CLAIM_SEQ) - capacity;
+                if (mReadSeq < oldestSeq) {
+                    // Fell behind, the record and the ones after it up to the oldest record that
+                    // is still intact have been overwritten
+                    mSkipped += oldestSeq - mReadSeq;
+                    mReadSeq = oldestSeq;
+                    continue;
+                }
+
+                handler.onRecord(timestamp, count, orientation, delay);
+                mReadSeq++;
+                read++;
+            }
+            return read;
+        }
+
+        /**
+         * Returns the number of records that were overwritten before they could be read.
+         */
+        public long getSkippedCount() {
+            return mSkipped;
+        }
+    }
+}
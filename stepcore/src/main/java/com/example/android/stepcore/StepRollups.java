@@ -0,0 +1,282 @@
+/*
+* Copyright 2014 The Android Open Source Project, University of South Florida
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.example.android.stepcore;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Per minute, per hour and per day rollups of the number of steps and the heading of the steps,
+ * kept in a {@link ByteBuffer}. The buffer is typically a memory mapped file, so the rollups are
+ * persisted as they are updated and survive restarts of the writer.
+ * <p/>
+ * Each resolution is a table of buckets indexed by the bucket number (the local time divided by
+ * the size of a bucket) modulo the number of buckets. A bucket stores its bucket number, so stale
+ * buckets of an earlier period are recognized and reused. Adding steps and reading a bucket are
+ * O(1), queries over a time range are O(buckets in the range) and do not depend on the number of
+ * steps. The oldest buckets are overwritten, after one day for minutes, {@link #HOUR_BUCKETS}
+ * hours and {@link #DAY_BUCKETS} days.
+ * <p/>
+ * The heading of a bucket is kept as the sum of the unit vectors of the step orientations, the
+ * dominant heading of a range is their circular mean.
+ * <p/>
+ * Timestamps of steps are in nanoseconds of the sensor time base, they are converted to local
+ * time in milliseconds with the offset set by {@link #setClockOffset(long)}. Queries take the
+ * local time.
+ */
+public class StepRollups implements StepEngine.OrientationListener {
+
+    /**
+     * Resolutions of the rollups.
+     */
+    public static final int MINUTES = 0;
+    public static final int HOURS = 1;
+    public static final int DAYS = 2;
+
+    public static final int MINUTE_BUCKETS = 24 * 60;
+    public static final int HOUR_BUCKETS = 62 * 24;
+    public static final int DAY_BUCKETS = 3 * 366;
+
+    private static final long MILLIS_PER_MINUTE = 60 * 1000L;
+    private static final long MILLIS_PER_HOUR = 60 * MILLIS_PER_MINUTE;
+    private static final long MILLIS_PER_DAY = 24 * MILLIS_PER_HOUR;
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    private static final long[] BUCKET_MILLIS = {MILLIS_PER_MINUTE, MILLIS_PER_HOUR,
+            MILLIS_PER_DAY};
+    private static final int[] BUCKET_COUNTS = {MINUTE_BUCKETS, HOUR_BUCKETS, DAY_BUCKETS};
+
+    // Header layout
+    private static final int MAGIC = 0x5354504C; // "STPL"
+    private static final int VERSION = 1;
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_VERSION = 4;
+    private static final int HEADER_SIZE = 16;
+
+    // Bucket layout
+    private static final int BUCKET_KEY = 0;
+    private static final int BUCKET_STEPS = 4;
+    private static final int BUCKET_SIN = 8;
+    private static final int BUCKET_COS = 12;
+    private static final int BUCKET_SIZE = 16;
+
+    private static final int[] TABLE_OFFSETS = {HEADER_SIZE,
+            HEADER_SIZE + MINUTE_BUCKETS * BUCKET_SIZE,
+            HEADER_SIZE + (MINUTE_BUCKETS + HOUR_BUCKETS) * BUCKET_SIZE};
+
+    // Bucket number of an empty bucket, bucket numbers of local times after 1970 are positive
+    private static final int EMPTY = -1;
+
+    private final ByteBuffer mBuffer;
+    private long mClockOffsetMillis = 0;
+
+    /**
+     * Returns the size of a buffer that holds the rollups.
+     */
+    public static int getBufferSize() {
+        return TABLE_OFFSETS[DAYS] + DAY_BUCKETS * BUCKET_SIZE;
+    }
+
+    /**
+     * Attaches to the rollups in the buffer, or formats the buffer as empty rollups if it does not
+     * hold rollups yet.
+     *
+     * @param buffer buffer of at least {@link #getBufferSize()} bytes
+     * @return
+     */
+    public static StepRollups open(ByteBuffer buffer) {
+        if (buffer.capacity() < getBufferSize()) {
+            throw new IllegalArgumentException("Buffer too small for the rollups");
+        }
+        if (buffer.getInt(OFFSET_MAGIC) != MAGIC || buffer.getInt(OFFSET_VERSION) != VERSION) {
+            for (int offset = HEADER_SIZE; offset < getBufferSize(); offset += BUCKET_SIZE) {
+                buffer.putInt(offset + BUCKET_KEY, EMPTY);
+            }
+            buffer.putInt(OFFSET_VERSION, VERSION);
+            buffer.putInt(OFFSET_MAGIC, MAGIC);
+        }
+        return new StepRollups(buffer);
+    }
+
+    /**
+     * Attaches to rollups that have been written by {@link #open(ByteBuffer)}, for reading.
+     *
+     * @param buffer
+     * @return
+     * @throws IllegalArgumentException if the buffer does not hold rollups
+     */
+    public static StepRollups attach(ByteBuffer buffer) {
+        if (buffer.capacity() < getBufferSize() || buffer.getInt(OFFSET_MAGIC) != MAGIC
+                || buffer.getInt(OFFSET_VERSION) != VERSION) {
+            throw new IllegalArgumentException("Buffer does not hold rollups");
+        }
+        return new StepRollups(buffer);
+    }
+
+    private StepRollups(ByteBuffer buffer) {
+        mBuffer = buffer;
+    }
+
+    /**
+     * Set the offset from the time base of the step timestamps to the local time, in
+     * milliseconds. It includes the time zone offset.
+     *
+     * @param offsetMillis
+     */
+    public void setClockOffset(long offsetMillis) {
+        mClockOffsetMillis = offsetMillis;
+    }
+
+    private long toLocalMillis(long timestampNanos) {
+        return timestampNanos / NANOS_PER_MILLI + mClockOffsetMillis;
+    }
+
+    /**
+     * Adds steps at the time of a step to all resolutions. Negative steps correct a previous
+     * count.
+     *
+     * @param timestampNanos
+     * @param steps
+     */
+    public void addSteps(long timestampNanos, int steps) {
+        if (steps == 0) {
+            return;
+        }
+        final long local = toLocalMillis(timestampNanos);
+        for (int resolution = MINUTES; resolution <= DAYS; resolution++) {
+            final int offset = getBucket(resolution, local);
+            mBuffer.putInt(offset + BUCKET_STEPS, mBuffer.getInt(offset + BUCKET_STEPS) + steps);
+        }
+    }
+
+    @Override
+    public void onOrientations(float[] values, int offset, int count, long timestamp) {
+        float sin = 0;
+        float cos = 0;
+        for (int i = 0; i < count; i++) {
+            final float orientation = values[offset + i];
+            if (!Float.isNaN(orientation)) {
+                final double radians = Math.toRadians(orientation);
+                sin += (float) Math.sin(radians);
+                cos += (float) Math.cos(radians);
+            }
+        }
+        final long local = toLocalMillis(timestamp);
+        for (int resolution = MINUTES; resolution <= DAYS; resolution++) {
+            final int bucket = getBucket(resolution, local);
+            mBuffer.putFloat(bucket + BUCKET_SIN, mBuffer.getFloat(bucket + BUCKET_SIN) + sin);
+            mBuffer.putFloat(bucket + BUCKET_COS, mBuffer.getFloat(bucket + BUCKET_COS) + cos);
+        }
+    }
+
+    /**
+     * Returns the offset of the bucket of a local time, the bucket is cleared if it holds an
+     * earlier period.
+     */
+    private int getBucket(int resolution, long localMillis) {
+        final int key = getKey(resolution, localMillis);
+        final int offset = getOffset(resolution, key);
+        if (mBuffer.getInt(offset + BUCKET_KEY) != key) {
+            mBuffer.putInt(offset + BUCKET_STEPS, 0);
+            mBuffer.putFloat(offset + BUCKET_SIN, 0);
+            mBuffer.putFloat(offset + BUCKET_COS, 0);
+            mBuffer.putInt(offset + BUCKET_KEY, key);
+        }
+        return offset;
+    }
+
+    private static int getKey(int resolution, long localMillis) {
+        return (int) (localMillis / BUCKET_MILLIS[resolution]);
+    }
+
+    private static int getOffset(int resolution, int key) {
+        return TABLE_OFFSETS[resolution] + (key % BUCKET_COUNTS[resolution]) * BUCKET_SIZE;
+    }
+
+    /**
+     * Returns the number of steps in the buckets from the bucket of {@code fromMillis} to the
+     * bucket of {@code toMillis}, both included. Buckets that have been overwritten count as 0.
+     *
+     * @param resolution {@link #MINUTES}, {@link #HOURS} or {@link #DAYS}
+     * @param fromMillis local time
+     * @param toMillis   local time
+     * @return
+     */
+    public int getSteps(int resolution, long fromMillis, long toMillis) {
+        final int from = getKey(resolution, fromMillis);
+        final int to = getKey(resolution, toMillis);
+        int steps = 0;
+        for (int key = Math.max(from, to - BUCKET_COUNTS[resolution] + 1); key <= to; key++) {
+            final int offset = getOffset(resolution, key);
+            if (mBuffer.getInt(offset + BUCKET_KEY) == key) {
+                steps += mBuffer.getInt(offset + BUCKET_STEPS);
+            }
+        }
+        return steps;
+    }
+
+    /**
+     * Returns the dominant heading of the steps in the buckets from the bucket of
+     * {@code fromMillis} to the bucket of {@code toMillis}, in degrees between 0 and 360, or NaN if
+     * there are no orientations in the range.
+     *
+     * @param resolution {@link #MINUTES}, {@link #HOURS} or {@link #DAYS}
+     * @param fromMillis local time
+     * @param toMillis   local time
+     * @return
+     */
+    public float getDominantHeading(int resolution, long fromMillis, long toMillis) {
+        final int from = getKey(resolution, fromMillis);
+        final int to = getKey(resolution, toMillis);
+        double sin = 0;
+        double cos = 0;
+        for (int key = Math.max(from, to - BUCKET_COUNTS[resolution] + 1); key <= to; key++) {
+            final int offset = getOffset(resolution, key);
+            if (mBuffer.getInt(offset + BUCKET_KEY) == key) {
+                sin += mBuffer.getFloat(offset + BUCKET_SIN);
+                cos += mBuffer.getFloat(offset + BUCKET_COS);
+            }
+        }
+        if (sin == 0 && cos == 0) {
+            return Float.NaN;
+        }
+        final double heading = Math.toDegrees(Math.atan2(sin, cos));
+        return (float) (heading < 0 ? heading + 360 : heading);
+    }
+
+    /**
+     * Returns the number of steps of the day of a local time.
+     *
+     * @param localMillis
+     * @return
+     */
+    public int getStepsOfDay(long localMillis) {
+        return getSteps(DAYS, localMillis, localMillis);
+    }
+
+    /**
+     * Returns the number of steps of the given number of days up to and including the day of a
+     * local time.
+     *
+     * @param localMillis
+     * @param days
+     * @return
+     */
+    public int getStepsOfDays(long localMillis, int days) {
+        return getSteps(DAYS, localMillis - (days - 1) * MILLIS_PER_DAY, localMillis);
+    }
+}
@@ -0,0 +1,75 @@
+/*
+* Copyright 2014 The Android Open Source Project, University of South Florida
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.example.android.stepcore;
+
+/**
+ * Estimates the length of a step for dead reckoning, see {@link PathBuilder}.
+ */
+public abstract class StrideModel {
+
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    /**
+     * Returns the length of a step in meters.
+     *
+     * @param stepIntervalNanos time since the previous step in nanoseconds, or 0 if unknown
+     * @return
+     */
+    public abstract float getStrideLength(long stepIntervalNanos);
+
+    /**
+     * Returns a model in which every step has the same length.
+     *
+     * @param length stride length in meters
+     * @return
+     */
+    public static StrideModel constant(final float length) {
+        return new StrideModel() {
+            @Override
+            public float getStrideLength(long stepIntervalNanos) {
+                return length;
+            }
+        };
+    }
+
+    /**
+     * Returns a model in which the stride length grows linearly with the step frequency, longer
+     * steps are taken when walking faster: {@code length = base + perHz * frequency}, clamped to
+     * {@code min} and {@code max}. Steps with an unknown interval have the {@code fallback} length.
+     *
+     * @param base     stride length at a frequency of 0 in meters
+     * @param perHz    increase of the stride length per step per second in meters
+     * @param min      shortest stride length in meters
+     * @param max      longest stride length in meters
+     * @param fallback stride length of steps with an unknown interval in meters
+     * @return
+     */
+    public static StrideModel linear(final float base, final float perHz, final float min,
+                                     final float max, final float fallback) {
+        return new StrideModel() {
+            @Override
+            public float getStrideLength(long stepIntervalNanos) {
+                if (stepIntervalNanos <= 0) {
+                    return fallback;
+                }
+                final float frequency = (float) (NANOS_PER_SECOND / stepIntervalNanos);
+                return Math.max(min, Math.min(max, base + perHz * frequency));
+            }
+        };
+    }
+}
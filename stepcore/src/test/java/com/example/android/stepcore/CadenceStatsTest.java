@@ -0,0 +1,141 @@
+/*
+* Copyright 2014 The Android Open Source Project, University of South Florida
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+
+package com.example.android.stepcore;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CadenceStatsTest {
+
+    private static final long MILLI = 1000000L;
+    private static final long SECOND = 1000 * MILLI;
+    private static final long IDLE_GAP = 2 * SECOND;
+
+    @Test
+    public void firstCallOnlySetsTheTotal() {
+        final CadenceStats stats = new CadenceStats(4, IDLE_GAP);
+        stats.add(0, 1000);
+
+        assertEquals(0, stats.getSegmentCount());
+        assertEquals(Float.NaN, stats.getCadence(), 0.f);
+        assertFalse(stats.isWalking(0));
+    }
+
+    @Test
+    public void stepsWithTheSameTimestampAreMerged() {
+        final CadenceStats stats = new CadenceStats(4, IDLE_GAP);
+        stats.add(0, 0);
+        stats.add(SECOND, 1);
+        stats.add(2 * SECOND, 2);
+        // A second event of the same batch, two steps in one second
+        stats.add(2 * SECOND, 3);
+
+        assertEquals(120.f, stats.getCadence(), 0.01f);
+        assertEquals(0.f, stats.getCadenceVariability(), 0.001f);
+        assertEquals(1, stats.getSegmentCount());
+        assertEquals(SECOND, stats.getWalkingTime());
+    }
+
+    @Test
+    public void stepsOutOfOrderAreIgnored() {
+        final CadenceStats stats = new CadenceStats(4, IDLE_GAP);
+        stats.add(0, 0);
+        stats.add(SECOND, 1);
+        stats.add(2 * SECOND, 2);
+        stats.add(SECOND + SECOND / 2, 3);
+
+        assertEquals(60.f, stats.getCadence(), 0.01f);
+        assertEquals(SECOND, stats.getWalkingTime());
+    }
+
+    @Test
+    public void oldestEntryIsEvictedFromTheWindow() {
+        final CadenceStats stats = new CadenceStats(3, IDLE_GAP);
+        stats.add(0, 0);
+        for (int i = 1; i <= 3; i++) {
+            stats.add(i * SECOND, i);
+        }
+        assertEquals(60.f, stats.getCadence(), 0.01f);
+
+        // The window holds the steps at 2s, 3s and 3.5s
+        stats.add(3 * SECOND + SECOND / 2, 4);
+        assertEquals(80.f, stats.getCadence(), 0.01f);
+        assertEquals(1.f / 3, stats.getCadenceVariability(), 0.001f);
+
+        // Only the faster steps are left in the window
+        stats.add(4 * SECOND, 5);
+        assertEquals(120.f, stats.getCadence(), 0.01f);
+        assertEquals(0.f, stats.getCadenceVariability(), 0.001f);
+        assertEquals(3 * SECOND, stats.getWalkingTime());
+    }
+
+    @Test
+    public void idleGapEndsTheSegment() {
+        final CadenceStats stats = new CadenceStats(4, IDLE_GAP);
+        stats.add(0, 0);
+        for (int i = 1; i <= 3; i++) {
+            stats.add(i * SECOND, i);
+        }
+        assertTrue(stats.isWalking(5 * SECOND));
+        assertFalse(stats.isWalking(5 * SECOND + 1));
+
+        stats.add(10 * SECOND, 4);
+        // The cadence of the new segment is not known before its second step
+        assertEquals(Float.NaN, stats.getCadence(), 0.f);
+        assertEquals(2, stats.getSegmentCount());
+        assertEquals(10 * SECOND, stats.getSegmentStart());
+
+        stats.add(11 * SECOND, 5);
+        stats.add(11 * SECOND + SECOND / 2, 6);
+        assertEquals(80.f, stats.getCadence(), 0.01f);
+        assertEquals(2, stats.getSegmentCount());
+        assertEquals(2 * SECOND + 1500 * MILLI, stats.getWalkingTime());
+        assertEquals(7 * SECOND, stats.getIdleTime());
+    }
+
+    @Test
+    public void stepsWithinTheIdleGapContinueTheSegment() {
+        final CadenceStats stats = new CadenceStats(4, IDLE_GAP);
+        stats.add(0, 0);
+        stats.add(SECOND, 1);
+        stats.add(SECOND + IDLE_GAP, 2);
+
+        assertEquals(1, stats.getSegmentCount());
+        assertEquals(IDLE_GAP, stats.getWalkingTime());
+        assertEquals(0, stats.getIdleTime());
+    }
+
+    @Test
+    public void resetStartsOver() {
+        final CadenceStats stats = new CadenceStats(4, IDLE_GAP);
+        stats.add(0, 0);
+        stats.add(SECOND, 1);
+        stats.add(2 * SECOND, 2);
+        stats.reset();
+
+        // The first call after a reset is the baseline again
+        stats.add(3 * SECOND, 100);
+        assertEquals(0, stats.getSegmentCount());
+        assertEquals(0, stats.getWalkingTime());
+        assertEquals(Long.MIN_VALUE, stats.getSegmentStart());
+    }
+}
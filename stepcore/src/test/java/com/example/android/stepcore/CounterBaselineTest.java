@@ -0,0 +1,156 @@
+/*
+* Copyright 2014 The Android Open Source Project, University of South Florida
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.example.android.stepcore;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CounterBaselineTest {
+
+    private static final int COUNTER = StepEngine.SENSOR_STEP_COUNTER;
+    private static final long SECOND = 1000000000L;
+    private static final int SESSION = 7;
+    private static final int PID = 1234;
+
+    private ByteBuffer mCheckpoint;
+
+    @Before
+    public void setUp() {
+        mCheckpoint = ByteBuffer.allocate(CounterBaseline.CHECKPOINT_SIZE);
+    }
+
+    @Test
+    public void updateStitchesResets() {
+        final CounterBaseline baseline = new CounterBaseline();
+        baseline.start(0, 100);
+
+        assertEquals(5, baseline.update(105));
+        // The counter started again at 0 and has counted 2 steps since
+        assertEquals(7, baseline.update(2));
+        assertEquals(15, baseline.update(10));
+        assertEquals(1, baseline.getResetCount());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void updateRequiresAStartedBaseline() {
+        new CounterBaseline().update(1);
+    }
+
+    @Test
+    public void resetThroughReorderBufferIsStitched() {
+        final StepEngine engine = new StepEngine(10, 10);
+        final EventReorderBuffer buffer = new EventReorderBuffer(8, 5, 0,
+                new EventReorderBuffer.EventSink() {
+                    @Override
+                    public void onEvent(int sensor, float[] values, int length, long timestamp,
+                                        long receivedNanos) {
+                        engine.process(sensor, values, length, timestamp, receivedNanos);
+                    }
+                });
+
+        buffer.offer(COUNTER, new float[]{100}, SECOND, SECOND);
+        buffer.offer(COUNTER, new float[]{110}, 2 * SECOND, 2 * SECOND);
+        // The sensor service was restarted within the process
+        buffer.offer(COUNTER, new float[]{3}, 3 * SECOND, 3 * SECOND);
+        buffer.offer(COUNTER, new float[]{8}, 4 * SECOND, 4 * SECOND);
+        buffer.flush();
+
+        assertEquals(18, engine.getSteps());
+        assertEquals(1, engine.getCounterBaseline().getResetCount());
+        assertEquals(0, buffer.getStaleCount());
+    }
+
+    @Test
+    public void resumesFromACheckpointOfTheSameInstance() {
+        final StepEngine engine = new StepEngine(10, 10);
+        engine.process(COUNTER, new float[]{100}, SECOND, SECOND);
+        engine.process(COUNTER, new float[]{110}, 2 * SECOND, 2 * SECOND);
+        engine.getCounterBaseline().save(mCheckpoint, SESSION, PID, engine.getSteps());
+
+        // The engine is recreated, the counter has counted 5 more steps meanwhile
+        final CounterBaseline loaded = new CounterBaseline();
+        final int steps = loaded.load(mCheckpoint, SESSION, PID);
+        assertEquals(10, steps);
+        final StepEngine resumed = new StepEngine(10, 10);
+        resumed.restore(steps, loaded);
+        resumed.process(COUNTER, new float[]{115}, 3 * SECOND, 3 * SECOND);
+
+        assertEquals(15, resumed.getSteps());
+        assertEquals(0, resumed.getCounterBaseline().getResetCount());
+    }
+
+    @Test
+    public void resumesFromACheckpointOfAnotherInstance() {
+        final StepEngine engine = new StepEngine(10, 10);
+        engine.process(COUNTER, new float[]{100}, SECOND, SECOND);
+        engine.process(COUNTER, new float[]{110}, 2 * SECOND, 2 * SECOND);
+        engine.getCounterBaseline().save(mCheckpoint, SESSION, PID, engine.getSteps());
+
+        // The process was killed, the counter of the new process has counted 120 steps already,
+        // more than the last saved value, so the reset is not visible in the raw value
+        final CounterBaseline loaded = new CounterBaseline();
+        final int steps = loaded.load(mCheckpoint, SESSION, PID + 1);
+        final StepEngine resumed = new StepEngine(10, 10);
+        resumed.restore(steps, loaded);
+        resumed.process(COUNTER, new float[]{120}, 3 * SECOND, 3 * SECOND);
+
+        assertEquals(130, resumed.getSteps());
+        assertEquals(1, resumed.getCounterBaseline().getResetCount());
+    }
+
+    @Test
+    public void loadRejectsOtherTagsAndTornWrites() {
+        final CounterBaseline baseline = new CounterBaseline();
+        baseline.start(0, 100);
+        baseline.save(mCheckpoint, SESSION, PID, 0);
+
+        final CounterBaseline loaded = new CounterBaseline();
+        assertEquals(-1, loaded.load(mCheckpoint, SESSION + 1, PID));
+        assertFalse(loaded.isStarted());
+
+        // A write that was interrupted leaves an odd sequence number
+        mCheckpoint.putInt(4, mCheckpoint.getInt(4) | 1);
+        assertEquals(-1, loaded.load(mCheckpoint, SESSION, PID));
+        assertEquals(-1, loaded.load(ByteBuffer.allocate(CounterBaseline.CHECKPOINT_SIZE),
+                SESSION, PID));
+    }
+
+    @Test
+    public void checkpointBeforeTheBaselineKeepsTheSteps() {
+        new CounterBaseline().save(mCheckpoint, SESSION, PID, 42);
+
+        final CounterBaseline loaded = new CounterBaseline();
+        loaded.start(0, 5);
+        assertEquals(42, loaded.load(mCheckpoint, SESSION, PID));
+        assertFalse(loaded.isStarted());
+
+        // The first counter event after the restore is the baseline
+        final StepEngine engine = new StepEngine(10, 10);
+        engine.restore(42, loaded);
+        engine.process(COUNTER, new float[]{300}, SECOND, SECOND);
+        engine.process(COUNTER, new float[]{302}, 2 * SECOND, 2 * SECOND);
+        assertEquals(44, engine.getSteps());
+        assertTrue(engine.getCounterBaseline().isStarted());
+    }
+}
@@ -0,0 +1,254 @@
+/*
+* Copyright 2014 The Android Open Source Project, University of South Florida
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.example.android.stepcore;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class EventReorderBufferTest {
+
+    private static final int DETECTOR = StepEngine.SENSOR_STEP_DETECTOR;
+    private static final int COUNTER = StepEngine.SENSOR_STEP_COUNTER;
+    private static final long WINDOW = 200 * 1000000L;
+    private static final long SECOND = 1000000000L;
+
+    /**
+     * Keeps copies of the released events.
+     */
+    private static class RecordingSink implements EventReorderBuffer.EventSink {
+        final ArrayList<float[]> values = new ArrayList<float[]>();
+        final ArrayList<Long> timestamps = new ArrayList<Long>();
+        final ArrayList<Integer> sensors = new ArrayList<Integer>();
+
+        @Override
+        public void onEvent(int sensor, float[] v, int length, long timestamp,
+                            long receivedNanos) {
+            sensors.add(sensor);
+            values.add(Arrays.copyOf(v, length));
+            timestamps.add(timestamp);
+        }
+
+        float first(int i) {
+            return values.get(i)[0];
+        }
+    }
+
+    private RecordingSink mSink;
+    private EventReorderBuffer mBuffer;
+
+    @Before
+    public void setUp() {
+        mSink = new RecordingSink();
+        mBuffer = new EventReorderBuffer(8, 5, WINDOW, mSink);
+    }
+
+    @Test
+    public void releasesEventsInTimestampOrder() {
+        // Overlapping batches received at the same time
+        mBuffer.offer(DETECTOR, new float[]{1}, 3 * SECOND, SECOND);
+        mBuffer.offer(DETECTOR, new float[]{1}, 2 * SECOND, SECOND);
+        mBuffer.offer(DETECTOR, new float[]{1}, SECOND, SECOND);
+        assertEquals(0, mSink.values.size());
+
+        mBuffer.flush();
+        assertEquals(Arrays.asList(SECOND, 2 * SECOND, 3 * SECOND), mSink.timestamps);
+        assertEquals(0, mBuffer.getLateCount());
+    }
+
+    @Test
+    public void releasesEventsHeldForTheWindow() {
+        mBuffer.offer(DETECTOR, new float[]{1}, SECOND, SECOND);
+        mBuffer.offer(DETECTOR, new float[]{1}, SECOND + WINDOW, SECOND + WINDOW);
+
+        assertEquals(1, mSink.values.size());
+        assertEquals(1, mBuffer.size());
+        assertEquals(SECOND + 2 * WINDOW, mBuffer.getReleaseTime());
+    }
+
+    @Test
+    public void holdsBatchedEventsByTheirReceiveTime() {
+        // A batch that is delivered 10s after its steps
+        mBuffer.offer(DETECTOR, new float[]{1}, SECOND, 11 * SECOND);
+        mBuffer.offer(DETECTOR, new float[]{1}, 3 * SECOND, 11 * SECOND);
+        assertEquals(0, mSink.values.size());
+
+        // An overlapping batch with an older step is delivered a bit later
+        mBuffer.offer(DETECTOR, new float[]{1}, 2 * SECOND, 11 * SECOND + WINDOW / 2);
+        mBuffer.release(11 * SECOND + WINDOW);
+        // The newer step of the first batch waits for the step of the second batch
+        assertEquals(Arrays.asList(SECOND), mSink.timestamps);
+
+        mBuffer.release(11 * SECOND + 2 * WINDOW);
+        assertEquals(Arrays.asList(SECOND, 2 * SECOND, 3 * SECOND), mSink.timestamps);
+        assertEquals(0, mBuffer.getLateCount());
+    }
+
+    @Test
+    public void dropsDuplicates() {
+        mBuffer.offer(DETECTOR, new float[]{1}, SECOND, SECOND);
+        mBuffer.offer(DETECTOR, new float[]{1}, SECOND, SECOND);
+        mBuffer.flush();
+        // A duplicate of an event that has already been released
+        mBuffer.offer(DETECTOR, new float[]{1}, SECOND, 2 * SECOND);
+        mBuffer.flush();
+
+        assertEquals(1, mSink.values.size());
+        assertEquals(2, mBuffer.getDuplicateCount());
+    }
+
+    @Test
+    public void dropsDetectorEventsThatWereReleasedBefore() {
+        mBuffer.offer(DETECTOR, new float[]{1}, SECOND, SECOND);
+        mBuffer.offer(DETECTOR, new float[]{1}, 2 * SECOND, 2 * SECOND);
+        mBuffer.offer(DETECTOR, new float[]{1}, 3 * SECOND, 3 * SECOND);
+        mBuffer.flush();
+        // The batch is delivered again after it has been released
+        mBuffer.offer(DETECTOR, new float[]{1}, SECOND, 4 * SECOND);
+        mBuffer.offer(DETECTOR, new float[]{1}, 2 * SECOND, 4 * SECOND);
+        mBuffer.flush();
+
+        assertEquals(3, mSink.values.size());
+        assertEquals(2, mBuffer.getDuplicateCount());
+        assertEquals(0, mBuffer.getLateCount());
+    }
+
+    @Test
+    public void releasesLateDetectorEventsWithTheLastTimestamp() {
+        mBuffer.offer(DETECTOR, new float[]{1}, 2 * SECOND, 2 * SECOND);
+        mBuffer.flush();
+        mBuffer.offer(DETECTOR, new float[]{1}, SECOND, 3 * SECOND);
+        mBuffer.flush();
+
+        assertEquals(2, mSink.values.size());
+        assertEquals(2 * SECOND, (long) mSink.timestamps.get(1));
+        assertEquals(1, mBuffer.getLateCount());
+    }
+
+    @Test
+    public void releasesTheCounterBaselineRightAway() {
+        mBuffer.offer(COUNTER, new float[]{1000}, SECOND, SECOND);
+
+        assertEquals(1, mSink.values.size());
+        assertEquals(0, mBuffer.size());
+    }
+
+    @Test
+    public void dropsStaleCounterEvents() {
+        mBuffer.offer(COUNTER, new float[]{100}, SECOND, SECOND);
+        mBuffer.offer(COUNTER, new float[]{105}, 3 * SECOND, 3 * SECOND);
+        mBuffer.flush();
+        // Older than the last released total
+        mBuffer.offer(COUNTER, new float[]{103}, 2 * SECOND, 4 * SECOND);
+        // Repeats the last released total
+        mBuffer.offer(COUNTER, new float[]{105}, 3 * SECOND, 4 * SECOND);
+        mBuffer.flush();
+
+        assertEquals(2, mSink.values.size());
+        assertEquals(2, mBuffer.getStaleCount());
+    }
+
+    @Test
+    public void releasesCounterResets() {
+        mBuffer.offer(COUNTER, new float[]{100}, SECOND, SECOND);
+        mBuffer.offer(COUNTER, new float[]{105}, 2 * SECOND, 2 * SECOND);
+        // The counter was restarted
+        mBuffer.offer(COUNTER, new float[]{2}, 3 * SECOND, 3 * SECOND);
+        mBuffer.offer(COUNTER, new float[]{4}, 4 * SECOND, 4 * SECOND);
+        // The same total again later is not stale
+        mBuffer.offer(COUNTER, new float[]{4}, 5 * SECOND, 5 * SECOND);
+        mBuffer.flush();
+
+        assertEquals(5, mSink.values.size());
+        assertEquals(2.f, mSink.first(2), 0.f);
+        assertEquals(4.f, mSink.first(3), 0.f);
+        assertEquals(0, mBuffer.getStaleCount());
+    }
+
+    @Test
+    public void splitsLongDetectorEvents() {
+        // 10 steps with orientations do not fit into slots of 4 orientations
+        final float[] values = new float[11];
+        values[0] = 10;
+        for (int i = 1; i < values.length; i++) {
+            values[i] = i;
+        }
+        mBuffer.offer(DETECTOR, values, SECOND, SECOND);
+        mBuffer.flush();
+
+        assertEquals(3, mSink.values.size());
+        assertArrayEquals(new float[]{4, 1, 2, 3, 4}, mSink.values.get(0), 0.f);
+        assertArrayEquals(new float[]{4, 5, 6, 7, 8}, mSink.values.get(1), 0.f);
+        assertArrayEquals(new float[]{2, 9, 10}, mSink.values.get(2), 0.f);
+        assertEquals(Arrays.asList(SECOND, SECOND, SECOND), mSink.timestamps);
+        assertEquals(1, mBuffer.getSplitCount());
+        assertEquals(0, mBuffer.getTruncatedCount());
+        assertEquals(0, mBuffer.getDuplicateCount());
+    }
+
+    @Test
+    public void splitsLongCounterEvents() {
+        mBuffer.offer(COUNTER, new float[]{100}, SECOND, SECOND);
+        final float[] values = {106, 1, 2, 3, 4, 5, 6};
+        mBuffer.offer(COUNTER, values, 2 * SECOND, 2 * SECOND);
+        mBuffer.flush();
+
+        assertEquals(3, mSink.values.size());
+        assertArrayEquals(new float[]{104, 1, 2, 3, 4}, mSink.values.get(1), 0.f);
+        assertArrayEquals(new float[]{106, 5, 6}, mSink.values.get(2), 0.f);
+        assertEquals(0, mBuffer.getStaleCount());
+    }
+
+    @Test
+    public void dropsDuplicatesOfSplitEvents() {
+        final float[] values = {6, 1, 2, 3, 4, 5, 6};
+        mBuffer.offer(DETECTOR, values, SECOND, SECOND);
+        mBuffer.offer(DETECTOR, values, SECOND, SECOND);
+        mBuffer.flush();
+        mBuffer.offer(DETECTOR, values, SECOND, 2 * SECOND);
+        mBuffer.flush();
+
+        assertEquals(2, mSink.values.size());
+        assertEquals(2, mBuffer.getDuplicateCount());
+    }
+
+    @Test
+    public void truncatesEventsLargerThanTheBuffer() {
+        // 8 slots of 4 orientations hold 32 orientations
+        final float[] values = new float[41];
+        values[0] = 40;
+        mBuffer.offer(DETECTOR, values, SECOND, SECOND);
+        mBuffer.flush();
+
+        int steps = 0;
+        int orientations = 0;
+        for (float[] v : mSink.values) {
+            steps += (int) v[0];
+            orientations += v.length - 1;
+        }
+        // All steps are counted, only the orientations are dropped
+        assertEquals(40, steps);
+        assertEquals(32, orientations);
+        assertEquals(1, mBuffer.getTruncatedCount());
+    }
+}
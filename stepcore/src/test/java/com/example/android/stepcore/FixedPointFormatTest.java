@@ -0,0 +1,83 @@
+/*
+* Copyright 2014 The Android Open Source Project, University of South Florida
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.example.android.stepcore;
+
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class FixedPointFormatTest {
+
+    private static String format(long value, int scale, int decimals) {
+        return FixedPointFormat.append(new StringBuilder(), value, scale, decimals).toString();
+    }
+
+    @Test
+    public void formatsWithFixedDecimals() {
+        assertEquals("1.23", format(1234, 3, 2));
+        assertEquals("0.05", format(50, 3, 2));
+        assertEquals("12", format(12, 0, 0));
+        assertEquals("0.000001", format(1, 6, 6));
+        assertEquals("3.0", format(3000000000L, 9, 1));
+    }
+
+    @Test
+    public void roundsHalfUp() {
+        assertEquals("0.01", format(5, 3, 2));
+        assertEquals("0.00", format(4, 3, 2));
+        assertEquals("1.00", format(995, 3, 2));
+        assertEquals("-0.01", format(-5, 3, 2));
+    }
+
+    @Test
+    public void matchesBigDecimal() {
+        final Random random = new Random(38);
+        final StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 200000; i++) {
+            final long value = random.nextLong() >> random.nextInt(64);
+            final int scale = random.nextInt(10);
+            final int decimals = random.nextInt(scale + 1);
+            builder.setLength(0);
+            FixedPointFormat.append(builder, value, scale, decimals);
+
+            final BigDecimal rounded = BigDecimal.valueOf(value, scale)
+                    .setScale(decimals, RoundingMode.HALF_UP);
+            // Like Formatter, negative values that round to zero keep their sign
+            final String expected = (value < 0 && rounded.signum() == 0 ? "-" : "")
+                    + rounded.toPlainString();
+            assertEquals(expected, builder.toString());
+        }
+    }
+
+    @Test
+    public void appendsToTheBuilder() {
+        final StringBuilder builder = new StringBuilder("delay ");
+        FixedPointFormat.append(builder, 1500, 3, 1).append('s');
+
+        assertEquals("delay 1.5s", builder.toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsMoreDecimalsThanTheScale() {
+        format(1, 2, 3);
+    }
+}
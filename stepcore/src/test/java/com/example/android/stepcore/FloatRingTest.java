@@ -0,0 +1,63 @@
+/*
+* Copyright 2014 The Android Open Source Project, University of South Florida
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.example.android.stepcore;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FloatRingTest {
+
+    @Test
+    public void addEvictsOldestWhenFull() {
+        final FloatRing ring = new FloatRing(3);
+        for (int i = 1; i <= 5; i++) {
+            ring.add(i * 10.f);
+        }
+
+        assertTrue(ring.isFull());
+        assertEquals(3, ring.size());
+        assertEquals(30.f, ring.get(0), 0.f);
+        assertEquals(40.f, ring.get(1), 0.f);
+        assertEquals(50.f, ring.get(2), 0.f);
+    }
+
+    @Test
+    public void keepsNaN() {
+        final FloatRing ring = new FloatRing(2);
+        ring.add(Float.NaN);
+
+        assertTrue(Float.isNaN(ring.get(0)));
+    }
+
+    @Test
+    public void clearEmptiesTheRing() {
+        final FloatRing ring = new FloatRing(2);
+        ring.add(1.f);
+        ring.clear();
+
+        assertEquals(0, ring.size());
+        assertEquals(2, ring.capacity());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void getOutsideOfTheRingThrows() {
+        new FloatRing(2).get(0);
+    }
+}
@@ -0,0 +1,143 @@
+/*
+* Copyright 2014 The Android Open Source Project, University of South Florida
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+
+package com.example.android.stepcore;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HeadingStatsTest {
+
+    private static final int WINDOW = 5;
+    private static final float TURN_THRESHOLD = 60.f;
+    private static final float MIN_CONCENTRATION = 0.8f;
+
+    private static HeadingStats create() {
+        return new HeadingStats(WINDOW, TURN_THRESHOLD, MIN_CONCENTRATION);
+    }
+
+    private static void walk(HeadingStats stats, float heading, int steps) {
+        for (int i = 0; i < steps; i++) {
+            stats.add(heading);
+        }
+    }
+
+    @Test
+    public void meanHeadingWrapsAroundNorth() {
+        final HeadingStats stats = create();
+        stats.add(350.f);
+        stats.add(30.f);
+
+        assertEquals(10.f, stats.getMeanHeading(), 0.01f);
+        assertEquals(2, stats.getCount());
+    }
+
+    @Test
+    public void varianceOfOppositeHeadingsIsOne() {
+        final HeadingStats stats = create();
+        walk(stats, 90.f, 2);
+        assertEquals(0.f, stats.getCircularVariance(), 0.001f);
+
+        walk(stats, 270.f, 2);
+        assertEquals(1.f, stats.getCircularVariance(), 0.001f);
+    }
+
+    @Test
+    public void windowKeepsTheNewestSteps() {
+        final HeadingStats stats = create();
+        walk(stats, 0.f, 3 * WINDOW);
+        walk(stats, 90.f, WINDOW);
+
+        assertEquals(WINDOW, stats.getCount());
+        assertEquals(90.f, stats.getMeanHeading(), 0.01f);
+        assertEquals(0.f, stats.getCircularVariance(), 0.001f);
+    }
+
+    @Test
+    public void headingsWithoutOrientationAreIgnored() {
+        final HeadingStats stats = create();
+        assertEquals(Float.NaN, stats.getMeanHeading(), 0.f);
+        stats.add(Float.NaN);
+        assertEquals(0, stats.getCount());
+
+        stats.add(45.f);
+        stats.onOrientations(new float[]{Float.NaN, 45.f, Float.NaN}, 0, 3, 0);
+        assertEquals(2, stats.getCount());
+        assertEquals(45.f, stats.getMeanHeading(), 0.01f);
+    }
+
+    @Test
+    public void turnIsCountedOnce() {
+        final HeadingStats stats = create();
+        walk(stats, 0.f, 2 * WINDOW);
+        assertFalse(stats.isTurning());
+
+        walk(stats, 90.f, WINDOW);
+        assertTrue(stats.isTurning());
+        assertEquals(90.f, stats.getLastTurn(), 0.01f);
+
+        // Both windows point in the new direction again
+        walk(stats, 90.f, WINDOW);
+        assertFalse(stats.isTurning());
+        assertEquals(1, stats.getTurnCount());
+
+        walk(stats, 0.f, 2 * WINDOW);
+        assertEquals(2, stats.getTurnCount());
+        assertEquals(-90.f, stats.getLastTurn(), 0.01f);
+    }
+
+    @Test
+    public void scatteredHeadingsAreNoTurn() {
+        final HeadingStats stats = create();
+        for (int i = 0; i < 10 * WINDOW; i++) {
+            stats.add(i * 97.f);
+        }
+
+        assertEquals(0, stats.getTurnCount());
+    }
+
+    @Test
+    public void runningSumsStayAccurate() {
+        final HeadingStats stats = create();
+        // Many times the resum interval
+        for (int i = 0; i < 10000; i++) {
+            stats.add(i * 37.f);
+        }
+        walk(stats, 123.f, WINDOW);
+
+        assertEquals(123.f, stats.getMeanHeading(), 0.001f);
+        assertEquals(0.f, stats.getCircularVariance(), 0.0001f);
+    }
+
+    @Test
+    public void resetClearsTheWindowsAndTurns() {
+        final HeadingStats stats = create();
+        walk(stats, 0.f, 2 * WINDOW);
+        walk(stats, 90.f, 2 * WINDOW);
+        stats.reset();
+
+        assertEquals(0, stats.getCount());
+        assertEquals(0, stats.getTurnCount());
+        assertFalse(stats.isTurning());
+        walk(stats, 180.f, WINDOW);
+        assertEquals(180.f, stats.getMeanHeading(), 0.01f);
+    }
+}
@@ -0,0 +1,90 @@
+/*
+* Copyright 2014 The Android Open Source Project, University of South Florida
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.example.android.stepcore;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LongRingTest {
+
+    @Test
+    public void addKeepsValuesFromOldestToNewest() {
+        final LongRing ring = new LongRing(4);
+        ring.add(1);
+        ring.add(2);
+        ring.add(3);
+
+        assertEquals(3, ring.size());
+        assertEquals(1, ring.get(0));
+        assertEquals(3, ring.get(2));
+    }
+
+    @Test
+    public void addEvictsOldestWhenFull() {
+        final LongRing ring = new LongRing(3);
+        for (int i = 1; i <= 5; i++) {
+            ring.add(i);
+        }
+
+        assertTrue(ring.isFull());
+        assertEquals(3, ring.size());
+        assertEquals(3, ring.get(0));
+        assertEquals(5, ring.get(2));
+    }
+
+    @Test
+    public void removeOldestWrapsAround() {
+        final LongRing ring = new LongRing(3);
+        for (int i = 1; i <= 4; i++) {
+            ring.add(i);
+        }
+
+        assertEquals(2, ring.removeOldest());
+        ring.add(5);
+        assertEquals(3, ring.removeOldest());
+        assertEquals(4, ring.removeOldest());
+        assertEquals(5, ring.removeOldest());
+        assertEquals(0, ring.size());
+    }
+
+    @Test
+    public void clearEmptiesTheRing() {
+        final LongRing ring = new LongRing(2);
+        ring.add(1);
+        ring.add(2);
+        ring.clear();
+
+        assertEquals(0, ring.size());
+        ring.add(3);
+        assertEquals(3, ring.get(0));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void getOutsideOfTheRingThrows() {
+        final LongRing ring = new LongRing(2);
+        ring.add(1);
+        ring.get(1);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void removeOldestOfEmptyRingThrows() {
+        new LongRing(2).removeOldest();
+    }
+}
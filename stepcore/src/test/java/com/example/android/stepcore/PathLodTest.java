@@ -0,0 +1,186 @@
+/*
+* Copyright 2014 The Android Open Source Project, University of South Florida
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+
+package com.example.android.stepcore;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PathLodTest {
+
+    private static final float TOLERANCE = 1.f;
+    private static final int LEVELS = 4;
+    private static final float ALL = 1e6f;
+
+    /**
+     * Keeps the segments of a query.
+     */
+    private static class RecordingHandler implements PathLod.SegmentHandler {
+        final float[] segments = new float[4 * 4096];
+        int count = 0;
+
+        @Override
+        public void onSegment(float x0, float y0, float x1, float y1) {
+            segments[4 * count] = x0;
+            segments[4 * count + 1] = y0;
+            segments[4 * count + 2] = x1;
+            segments[4 * count + 3] = y1;
+            count++;
+        }
+
+        /**
+         * Returns the distance from a point to the nearest segment.
+         */
+        float distance(float x, float y) {
+            double nearest = Double.MAX_VALUE;
+            for (int i = 0; i < count; i++) {
+                final double ax = segments[4 * i];
+                final double ay = segments[4 * i + 1];
+                final double dx = segments[4 * i + 2] - ax;
+                final double dy = segments[4 * i + 3] - ay;
+                final double lengthSquared = dx * dx + dy * dy;
+                double t = lengthSquared > 0 ? ((x - ax) * dx + (y - ay) * dy) / lengthSquared : 0;
+                t = Math.max(0, Math.min(1, t));
+                nearest = Math.min(nearest, Math.hypot(x - ax - t * dx, y - ay - t * dy));
+            }
+            return (float) nearest;
+        }
+    }
+
+    private static Polyline line(int points) {
+        final Polyline path = new Polyline();
+        for (int i = 0; i < points; i++) {
+            path.add(i, 0.f);
+        }
+        return path;
+    }
+
+    private static PathLod index(Polyline path) {
+        final PathLod lod = new PathLod(path, TOLERANCE, LEVELS);
+        lod.update();
+        return lod;
+    }
+
+    @Test
+    public void levelZeroKeepsAllPoints() {
+        final PathLod lod = index(line(100));
+        final RecordingHandler handler = new RecordingHandler();
+
+        assertEquals(100, lod.getVertexCount(0));
+        assertEquals(99, lod.query(0, -ALL, -ALL, ALL, ALL, handler));
+        assertEquals(99, handler.count);
+    }
+
+    @Test
+    public void straightLineIsReducedToFewVertices() {
+        final PathLod lod = index(line(1000));
+        final RecordingHandler handler = new RecordingHandler();
+        final int segments = lod.query(1, -ALL, -ALL, ALL, ALL, handler);
+
+        assertTrue(lod.getVertexCount(1) <= 1000 / 16);
+        // The segments still run from the first to the newest point
+        assertEquals(0.f, handler.segments[0], 0.f);
+        assertEquals(999.f, handler.segments[4 * segments - 2], 0.f);
+    }
+
+    @Test
+    public void newestPointIsJoinedToTheLastVertex() {
+        final PathLod lod = index(line(10));
+        final RecordingHandler handler = new RecordingHandler();
+
+        // Only the first point is a vertex of level 1, the others are within the tolerance
+        assertEquals(1, lod.getVertexCount(1));
+        assertEquals(1, lod.query(1, -ALL, -ALL, ALL, ALL, handler));
+        assertEquals(9.f, handler.segments[2], 0.f);
+    }
+
+    @Test
+    public void levelsStayWithinTheirTolerance() {
+        final Random random = new Random(42);
+        final Polyline path = new Polyline();
+        float x = 0;
+        float y = 0;
+        float heading = 0;
+        for (int i = 0; i < 2000; i++) {
+            heading += (float) (random.nextGaussian() * 0.2);
+            x += 0.7f * Math.cos(heading);
+            y += 0.7f * Math.sin(heading);
+            path.add(x, y);
+        }
+        final PathLod lod = index(path);
+
+        for (int level = 1; level < LEVELS; level++) {
+            final RecordingHandler handler = new RecordingHandler();
+            lod.query(level, -ALL, -ALL, ALL, ALL, handler);
+            // Every level simplifies the one below, so the errors of the levels add up
+            final float tolerance = TOLERANCE * ((1 << level) - 1) + 0.001f;
+            for (int i = 0; i < path.size(); i++) {
+                assertTrue("level " + level + ", point " + i,
+                        handler.distance(path.getX(i), path.getY(i)) <= tolerance);
+            }
+            assertTrue(lod.getVertexCount(level) < lod.getVertexCount(level - 1));
+        }
+    }
+
+    @Test
+    public void queryOnlyDeliversVisibleChunks() {
+        final PathLod lod = index(line(10 * PathLod.CHUNK_SIZE));
+        final RecordingHandler handler = new RecordingHandler();
+
+        // Only the first chunk intersects the area
+        assertEquals(PathLod.CHUNK_SIZE, lod.query(0, 0.f, -1.f, 10.f, 1.f, handler));
+        // The first two chunks share the vertex at their boundary
+        assertEquals(2 * PathLod.CHUNK_SIZE,
+                lod.query(0, 0.f, -1.f, PathLod.CHUNK_SIZE, 1.f, new RecordingHandler()));
+        assertEquals(0, lod.query(0, 0.f, 5.f, ALL, 10.f, new RecordingHandler()));
+    }
+
+    @Test
+    public void selectLevelPicksTheCoarsestFittingLevel() {
+        final PathLod lod = index(line(10));
+
+        assertEquals(0, lod.selectLevel(0.5f));
+        assertEquals(1, lod.selectLevel(1.f));
+        assertEquals(2, lod.selectLevel(3.f));
+        assertEquals(LEVELS - 1, lod.selectLevel(100.f));
+    }
+
+    @Test
+    public void updateIsIncrementalAndRebuildsAClearedPath() {
+        final Polyline path = line(50);
+        final PathLod lod = index(path);
+        for (int i = 50; i < 80; i++) {
+            path.add(i, 0.f);
+        }
+        lod.update();
+        assertEquals(80, lod.getVertexCount(0));
+
+        path.clear();
+        path.add(0.f, 0.f);
+        path.add(0.f, 5.f);
+        lod.update();
+        assertEquals(2, lod.getVertexCount(0));
+        final RecordingHandler handler = new RecordingHandler();
+        assertEquals(1, lod.query(0, -ALL, -ALL, ALL, ALL, handler));
+        assertEquals(5.f, handler.segments[3], 0.f);
+    }
+}
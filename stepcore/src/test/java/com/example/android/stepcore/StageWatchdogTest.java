@@ -0,0 +1,160 @@
+/*
+* Copyright 2014 The Android Open Source Project, University of South Florida
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+
+package com.example.android.stepcore;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StageWatchdogTest {
+
+    private static final long MILLI = 1000000L;
+    private static final long BUDGET = 5 * MILLI;
+
+    private StageWatchdog mWatchdog;
+
+    // Last reported overrun
+    private int mOverruns;
+    private String mStage;
+    private String mInnerStage;
+    private long mDuration;
+    private int mBatchSize;
+    private StackTraceElement[] mStack;
+
+    @Before
+    public void setUp() {
+        mWatchdog = new StageWatchdog(Thread.currentThread(), BUDGET,
+                new StageWatchdog.OverrunListener() {
+                    @Override
+                    public void onOverrun(String stage, String innerStage, long durationNanos,
+                                          int batchSize, StackTraceElement[] stack) {
+                        mOverruns++;
+                        mStage = stage;
+                        mInnerStage = innerStage;
+                        mDuration = durationNanos;
+                        mBatchSize = batchSize;
+                        mStack = stack;
+                    }
+                });
+    }
+
+    @After
+    public void tearDown() {
+        mWatchdog.stop();
+    }
+
+    @Test
+    public void overrunIsReportedWithTheStackOfTheInnerStage() throws InterruptedException {
+        mWatchdog.start();
+        mWatchdog.begin("outer", 1);
+        mWatchdog.begin("inner", 2);
+        Thread.sleep(100);
+        mWatchdog.end();
+        mWatchdog.setBatchSize(3);
+        mWatchdog.end();
+
+        assertEquals(1, mOverruns);
+        assertEquals("outer", mStage);
+        assertEquals("inner", mInnerStage);
+        assertEquals(3, mBatchSize);
+        assertTrue(mDuration >= 100 * MILLI);
+        assertNotNull(mStack);
+        assertTrue(containsMethod(mStack, "overrunIsReportedWithTheStackOfTheInnerStage"));
+        assertEquals(1, mWatchdog.getOverrunCount());
+        assertEquals(mDuration, mWatchdog.getMaxDuration());
+    }
+
+    @Test
+    public void stagesWithinTheBudgetAreNotReported() {
+        mWatchdog.start();
+        for (int i = 0; i < 1000; i++) {
+            mWatchdog.begin("short", 1);
+            mWatchdog.end();
+        }
+        assertEquals(0, mOverruns);
+    }
+
+    @Test
+    public void overrunIsReportedWithoutTheSampler() throws InterruptedException {
+        mWatchdog.begin("unsampled", 1);
+        Thread.sleep(20);
+        mWatchdog.end();
+
+        assertEquals(1, mOverruns);
+        assertNull(mStack);
+        assertNull(mInnerStage);
+    }
+
+    @Test
+    public void samplerParksWhenStagesStop() throws InterruptedException {
+        mWatchdog.start();
+        // Frequent stages are polled for
+        for (int i = 0; i < 50; i++) {
+            mWatchdog.begin("frame", 1);
+            Thread.sleep(1);
+            mWatchdog.end();
+            Thread.sleep(4);
+        }
+        assertTrue(waitForParkedSampler());
+
+        // The first stage after the quiet period wakes the sampler, it is sampled in time
+        mWatchdog.begin("late", 1);
+        Thread.sleep(100);
+        mWatchdog.end();
+        assertEquals("late", mStage);
+        assertNotNull(mStack);
+        assertTrue(waitForParkedSampler());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void endRequiresAStage() {
+        mWatchdog.end();
+    }
+
+    /**
+     * Waits until the sampler thread is parked without a timeout, it only wakes up again when a
+     * stage begins.
+     */
+    private boolean waitForParkedSampler() throws InterruptedException {
+        for (int i = 0; i < 200; i++) {
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                if (thread.getName().equals("StageWatchdog")
+                        && thread.getState() == Thread.State.WAITING) {
+                    return true;
+                }
+            }
+            Thread.sleep(5);
+        }
+        return false;
+    }
+
+    private static boolean containsMethod(StackTraceElement[] stack, String method) {
+        for (StackTraceElement element : stack) {
+            if (element.getMethodName().equals(method)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
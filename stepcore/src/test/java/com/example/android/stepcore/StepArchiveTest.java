@@ -0,0 +1,267 @@
+/*
+* Copyright 2014 The Android Open Source Project, University of South Florida
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+
+package com.example.android.stepcore;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StepArchiveTest {
+
+    private static final long START = 1400000000000L;
+
+    @Rule
+    public final TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mFile;
+
+    /**
+     * A record as it was appended or read.
+     */
+    private static class Record {
+        final long time;
+        final int count;
+        final float orientation;
+        final int delay;
+
+        Record(long time, int count, float orientation, int delay) {
+            this.time = time;
+            this.count = count;
+            this.orientation = orientation;
+            this.delay = delay;
+        }
+    }
+
+    /**
+     * Keeps the records read from an archive.
+     */
+    private static class RecordingHandler implements StepArchive.RecordHandler {
+        final ArrayList<Record> records = new ArrayList<Record>();
+
+        @Override
+        public void onRecord(long timeMillis, int count, float orientation, int delay) {
+            records.add(new Record(timeMillis, count, orientation, delay));
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = new File(mFolder.getRoot(), "steps.bin");
+    }
+
+    private static void append(StepArchive.Writer writer, ArrayList<Record> records)
+            throws IOException {
+        for (Record record : records) {
+            writer.append(record.time, record.count, record.orientation, record.delay);
+        }
+    }
+
+    private ArrayList<Record> readAll() throws IOException {
+        return read(Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    private ArrayList<Record> read(long fromMillis, long toMillis) throws IOException {
+        final StepArchive.Reader reader = new StepArchive.Reader(mFile);
+        try {
+            final RecordingHandler handler = new RecordingHandler();
+            assertEquals(reader.read(fromMillis, toMillis, handler), handler.records.size());
+            return handler.records;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void assertRecords(ArrayList<Record> expected, ArrayList<Record> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).time, actual.get(i).time);
+            assertEquals(expected.get(i).count, actual.get(i).count);
+            assertEquals(expected.get(i).orientation, actual.get(i).orientation,
+                    StepArchive.ORIENTATION_RESOLUTION / 2);
+            assertEquals(expected.get(i).delay, actual.get(i).delay);
+        }
+    }
+
+    /**
+     * Returns the records of a walk with a step about every 500ms, delivered in batches of 20
+     * steps whose last record carries the delay.
+     */
+    private static ArrayList<Record> walk(int steps, long seed) {
+        final Random random = new Random(seed);
+        final ArrayList<Record> records = new ArrayList<Record>();
+        long time = START;
+        float heading = 90.f;
+        for (int i = 0; i < steps; i++) {
+            time += 480 + random.nextInt(41);
+            heading += random.nextFloat() * 0.4f - 0.2f;
+            records.add(new Record(time, i + 1, heading + (float) random.nextGaussian(),
+                    i % 20 == 19 ? 9800 + random.nextInt(400) : -1));
+        }
+        return records;
+    }
+
+    @Test
+    public void roundTripsIrregularRecords() throws IOException {
+        final ArrayList<Record> records = new ArrayList<Record>();
+        // Irregular times, a clock that is set back and the same time twice
+        records.add(new Record(START, 10, 0.f, -1));
+        records.add(new Record(START + 7, 11, 359.9f, -1));
+        records.add(new Record(START + 3000, 12, Float.NaN, 120));
+        records.add(new Record(START - 60000, 13, -45.25f, -1));
+        records.add(new Record(START - 60000, 14, 180.f, 0));
+        // The counter was reset, the totals start over
+        records.add(new Record(START - 59000, 0, Float.NaN, -1));
+        records.add(new Record(START - 58000, 1, 12.34f, Integer.MAX_VALUE));
+        records.add(new Record(Long.MAX_VALUE / 2, Integer.MAX_VALUE, 1.f, -1));
+
+        final StepArchive.Writer writer = new StepArchive.Writer(mFile);
+        append(writer, records);
+        writer.close();
+
+        final ArrayList<Record> read = readAll();
+        assertRecords(records, read);
+        assertTrue(Float.isNaN(read.get(2).orientation));
+        assertTrue(Float.isNaN(read.get(5).orientation));
+    }
+
+    @Test
+    public void flushWritesPartialBlocks() throws IOException {
+        final ArrayList<Record> records = walk(20, 1);
+        StepArchive.Writer writer = new StepArchive.Writer(mFile);
+        append(writer, new ArrayList<Record>(records.subList(0, 3)));
+        writer.flush();
+        append(writer, new ArrayList<Record>(records.subList(3, 8)));
+        writer.close();
+
+        // A reopened archive is appended to
+        writer = new StepArchive.Writer(mFile);
+        append(writer, new ArrayList<Record>(records.subList(8, 20)));
+        writer.close();
+
+        final StepArchive.Reader reader = new StepArchive.Reader(mFile);
+        assertEquals(3, reader.getBlockCount());
+        assertEquals(20, reader.getRecordCount());
+        assertEquals(records.get(0).time, reader.getFirstTime());
+        assertEquals(records.get(19).time, reader.getLastTime());
+        reader.close();
+        assertRecords(records, readAll());
+    }
+
+    @Test
+    public void rangeReadsCrossBlockBoundaries() throws IOException {
+        final ArrayList<Record> records = walk(3 * StepArchive.BLOCK_SIZE + 100, 2);
+        final StepArchive.Writer writer = new StepArchive.Writer(mFile);
+        append(writer, records);
+        writer.close();
+
+        // From the end of the first block to the start of the third block
+        final int from = StepArchive.BLOCK_SIZE - 10;
+        final int to = 2 * StepArchive.BLOCK_SIZE + 10;
+        assertRecords(new ArrayList<Record>(records.subList(from, to + 1)),
+                read(records.get(from).time, records.get(to).time));
+        // Between two records, and after the last record
+        assertEquals(0, read(records.get(from).time + 1, records.get(from + 1).time - 1).size());
+        assertEquals(0, read(records.get(records.size() - 1).time + 1, Long.MAX_VALUE).size());
+        // The last block is only written when the writer is closed
+        final StepArchive.Reader reader = new StepArchive.Reader(mFile);
+        assertEquals(4, reader.getBlockCount());
+        reader.close();
+    }
+
+    @Test
+    public void recoverDropsATruncatedBlock() throws IOException {
+        final ArrayList<Record> records = walk(2 * StepArchive.BLOCK_SIZE + 10, 3);
+        StepArchive.Writer writer = new StepArchive.Writer(mFile);
+        append(writer, records);
+        writer.close();
+
+        // The last block was not completely written
+        truncate(mFile, 5);
+        writer = new StepArchive.Writer(mFile);
+        final ArrayList<Record> more = walk(5, 4);
+        append(writer, more);
+        writer.close();
+
+        final ArrayList<Record> expected =
+                new ArrayList<Record>(records.subList(0, 2 * StepArchive.BLOCK_SIZE));
+        expected.addAll(more);
+        assertRecords(expected, readAll());
+    }
+
+    @Test
+    public void recoverDropsATruncatedIndexEntry() throws IOException {
+        final ArrayList<Record> records = walk(StepArchive.BLOCK_SIZE + 10, 5);
+        StepArchive.Writer writer = new StepArchive.Writer(mFile);
+        append(writer, records);
+        writer.close();
+        final long dataLength = mFile.length();
+
+        // The index entry of the last block was not completely written
+        truncate(StepArchive.getIndexFile(mFile), 3);
+        writer = new StepArchive.Writer(mFile);
+        writer.close();
+        assertTrue(mFile.length() < dataLength);
+        assertRecords(new ArrayList<Record>(records.subList(0, StepArchive.BLOCK_SIZE)),
+                readAll());
+
+        // New records follow the last complete block
+        writer = new StepArchive.Writer(mFile);
+        final ArrayList<Record> more = walk(5, 6);
+        append(writer, more);
+        writer.close();
+        final ArrayList<Record> expected =
+                new ArrayList<Record>(records.subList(0, StepArchive.BLOCK_SIZE));
+        expected.addAll(more);
+        assertRecords(expected, readAll());
+    }
+
+    @Test
+    public void walkIsAnOrderOfMagnitudeSmallerThanRingRecords() throws IOException {
+        // An hour of walking
+        final ArrayList<Record> records = walk(7200, 7);
+        final StepArchive.Writer writer = new StepArchive.Writer(mFile);
+        append(writer, records);
+        writer.close();
+
+        final long bytes = mFile.length() + StepArchive.getIndexFile(mFile).length();
+        assertTrue("bytes per record: " + (float) bytes / records.size(),
+                bytes * 10 <= (long) records.size() * StepRing.RECORD_SIZE);
+        assertTrue(writer.getBytesPerRecord() * 10 <= StepRing.RECORD_SIZE);
+        assertRecords(records, readAll());
+    }
+
+    private static void truncate(File file, int bytes) throws IOException {
+        final RandomAccessFile out = new RandomAccessFile(file, "rw");
+        try {
+            out.setLength(out.length() - bytes);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+* Copyright 2014 The Android Open Source Project, University of South Florida
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+package com.example.android.stepcore;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StepEngineTest {
+
+    private static final int DETECTOR = StepEngine.SENSOR_STEP_DETECTOR;
+    private static final int COUNTER = StepEngine.SENSOR_STEP_COUNTER;
+    private static final long SECOND = 1000000000L;
+    private static final long MILLI = 1000000L;
+
+    private StepEngine mEngine;
+
+    @Before
+    public void setUp() {
+        mEngine = new StepEngine(10, 10);
+    }
+
+    @Test
+    public void detectorCountsEveryStep() {
+        assertEquals(1, mEngine.process(DETECTOR, new float[]{1, 90.f}, SECOND, SECOND + MILLI));
+        assertEquals(1, mEngine.process(DETECTOR, new float[]{1, 91.f}, 2 * SECOND,
+                2 * SECOND + 5 * MILLI));
+
+        assertEquals(2, mEngine.getSteps());
+        assertEquals(5, mEngine.getNewDelay());
+        assertEquals(1, mEngine.getNewOrientationCount());
+        assertEquals(91.f, mEngine.getStepOrientations().get(1), 0.f);
+    }
+
+    @Test
+    public void detectorCountsBatchedSteps() {
+        final float[] values = {5, 1.f, 2.f, 3.f, 4.f, 5.f};
+        assertEquals(5, mEngine.process(DETECTOR, values, SECOND, SECOND));
+
+        assertEquals(5, mEngine.getSteps());
+        assertEquals(5, mEngine.getNewOrientationCount());
+        assertEquals(5, mEngine.getStepOrientations().size());
+    }
+
+    @Test
+    public void counterFirstEventIsTheBaseline() {
+        assertTrue(mEngine.isWaitingForBaseline());
+        assertEquals(0, mEngine.process(COUNTER, new float[]{1200}, SECOND, SECOND));
+        assertFalse(mEngine.isWaitingForBaseline());
+        // The baseline is not a step and has no delay
+        assertEquals(0, mEngine.getEventDelays().size());
+
+        assertEquals(3, mEngine.process(COUNTER, new float[]{1203, 1.f, 2.f, 3.f}, 2 * SECOND,
+                2 * SECOND));
+        assertEquals(3, mEngine.getSteps());
+        assertEquals(3, mEngine.getNewOrientationCount());
+    }
+
+    @Test
+    public void counterContinuesFromRestoredSteps() {
+        mEngine.restore(50);
+        mEngine.process(COUNTER, new float[]{7}, SECOND, SECOND);
+        mEngine.process(COUNTER, new float[]{9}, 2 * SECOND, 2 * SECOND);
+
+        assertEquals(52, mEngine.getSteps());
+    }
+
+    @Test
+    public void counterResetIsStitched() {
+        mEngine.process(COUNTER, new float[]{100}, SECOND, SECOND);
+        mEngine.process(COUNTER, new float[]{105}, 2 * SECOND, 2 * SECOND);
+        // The sensor service was restarted, the counter starts again at 0
+        assertEquals(2, mEngine.process(COUNTER, new float[]{2}, 3 * SECOND, 3 * SECOND));
+
+        assertEquals(7, mEngine.getSteps());
+        assertEquals(1, mEngine.getCounterBaseline().getResetCount());
+    }
+
+    @Test
+    public void combinedCountsDetectorStepsUntilCovered() {
+        mEngine.setCombined(true);
+        mEngine.process(COUNTER, new float[]{100}, SECOND, SECOND);
+
+        mEngine.process(DETECTOR, new float[]{1, 10.f}, 2 * SECOND, 2 * SECOND);
+        mEngine.process(DETECTOR, new float[]{1, 20.f}, 3 * SECOND, 3 * SECOND);
+        assertEquals(2, mEngine.getSteps());
+
+        // The counter covers both detector steps
+        assertEquals(0, mEngine.process(COUNTER, new float[]{102, 99.f, 99.f}, 3 * SECOND,
+                3 * SECOND));
+        assertEquals(2, mEngine.getSteps());
+        assertEquals(0, mEngine.getCountDiscrepancy());
+        // Orientations are only taken from the detector
+        assertEquals(2, mEngine.getStepOrientations().size());
+        assertEquals(20.f, mEngine.getStepOrientations().get(1), 0.f);
+    }
+
+    @Test
+    public void combinedCorrectsMissedDetectorSteps() {
+        mEngine.setCombined(true);
+        mEngine.process(COUNTER, new float[]{100}, SECOND, SECOND);
+        mEngine.process(DETECTOR, new float[]{1, 10.f}, 2 * SECOND, 2 * SECOND);
+
+        // The counter counted a step the detector missed
+        assertEquals(1, mEngine.process(COUNTER, new float[]{102}, 2 * SECOND, 2 * SECOND));
+        assertEquals(2, mEngine.getSteps());
+        assertEquals(1, mEngine.getCountDiscrepancy());
+
+        // A newer detector step is counted until the counter catches up
+        mEngine.process(DETECTOR, new float[]{1, 10.f}, 4 * SECOND, 4 * SECOND);
+        assertEquals(3, mEngine.getSteps());
+        mEngine.process(COUNTER, new float[]{102}, 3 * SECOND, 3 * SECOND);
+        assertEquals(3, mEngine.getSteps());
+    }
+
+    @Test
+    public void combinedTotalDoesNotDecreaseWhenCounterLags() {
+        mEngine.setCombined(true);
+        mEngine.process(COUNTER, new float[]{100}, SECOND, SECOND);
+        mEngine.process(DETECTOR, new float[]{3, 1.f, 2.f, 3.f}, 2 * SECOND, 2 * SECOND);
+        assertEquals(3, mEngine.getSteps());
+
+        // The counter event covers the detector steps but has only counted one of them
+        assertEquals(0, mEngine.process(COUNTER, new float[]{101}, 2 * SECOND, 2 * SECOND));
+        assertEquals(3, mEngine.getSteps());
+        assertEquals(-2, mEngine.getCountDiscrepancy());
+
+        // The total is held until the counter has caught up
+        assertEquals(0, mEngine.process(COUNTER, new float[]{103}, 3 * SECOND, 3 * SECOND));
+        assertEquals(1, mEngine.process(COUNTER, new float[]{104}, 4 * SECOND, 4 * SECOND));
+        assertEquals(4, mEngine.getSteps());
+    }
+
+    @Test
+    public void combinedKeepsPendingStepsBeyondTheRing() {
+        mEngine.setCombined(true);
+        mEngine.process(COUNTER, new float[]{0}, SECOND, SECOND);
+        // More detector steps than the pending ring holds arrive before the next counter event
+        for (int i = 0; i < 500; i++) {
+            assertEquals(1, mEngine.process(DETECTOR, new float[]{1, 0.f}, (2 + i) * SECOND,
+                    (2 + i) * SECOND));
+        }
+        assertEquals(500, mEngine.getSteps());
+
+        // The counter has counted half of them, the total is held
+        assertEquals(0, mEngine.process(COUNTER, new float[]{250}, 251 * SECOND, 251 * SECOND));
+        assertEquals(500, mEngine.getSteps());
+
+        assertEquals(0, mEngine.process(COUNTER, new float[]{500}, 501 * SECOND, 501 * SECOND));
+        assertEquals(500, mEngine.getSteps());
+        assertEquals(0, mEngine.getCountDiscrepancy());
+    }
+
+    @Test
+    public void averageUpdateInterval() {
+        assertEquals(-1, mEngine.getAverageUpdateInterval());
+        mEngine.process(DETECTOR, new float[]{1}, SECOND, SECOND);
+        mEngine.process(DETECTOR, new float[]{1}, 2 * SECOND, 2 * SECOND);
+        mEngine.process(DETECTOR, new float[]{1}, 4 * SECOND, 4 * SECOND);
+
+        assertEquals(3 * SECOND / 2, mEngine.getAverageUpdateInterval());
+    }
+
+    @Test
+    public void resetClearsTheCount() {
+        mEngine.process(DETECTOR, new float[]{3, 1.f, 2.f, 3.f}, SECOND, SECOND);
+        mEngine.reset();
+
+        assertEquals(0, mEngine.getSteps());
+        assertEquals(0, mEngine.getStepOrientations().size());
+        assertTrue(mEngine.isWaitingForBaseline());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownSensorThrows() {
+        mEngine.process(3, new float[]{1}, SECOND, SECOND);
+    }
+}
@@ -0,0 +1,355 @@
+/*
+* Copyright 2014 The Android Open Source Project, University of South Florida
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+
+package com.example.android.stepcore;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Drives scripted sensor event streams through the same pipeline as the step collector service:
+ * {@link EventReorderBuffer}, {@link StepRecorder} with a {@link StepEngine}, and a
+ * {@link StepRing} that is read back by a {@link StepRing.Reader}.
+ */
+public class StepPipelineTest {
+
+    private static final int DETECTOR = StepEngine.SENSOR_STEP_DETECTOR;
+    private static final int COUNTER = StepEngine.SENSOR_STEP_COUNTER;
+    private static final long MILLI = 1000000L;
+    private static final long SECOND = 1000 * MILLI;
+    // Same sizes as the service and the channel
+    private static final long WINDOW = 200 * MILLI;
+    private static final int REORDER_CAPACITY = 128;
+    private static final int REORDER_MAX_VALUES = 33;
+    private static final int RING_CAPACITY = 512;
+    private static final int BURST = 500;
+
+    private StepEngine mEngine;
+    private EventReorderBuffer mBuffer;
+    private StepRing mRing;
+    private StepRing.Reader mReader;
+
+    // Records read from the ring, the newest RECORDS records are kept
+    private static final int RECORDS = 4096;
+    private final long[] mTimestamps = new long[RECORDS];
+    private final int[] mCounts = new int[RECORDS];
+    private final float[] mOrientations = new float[RECORDS];
+    private final int[] mDelays = new int[RECORDS];
+    private int mRecordCount;
+    private int mResetCount;
+    // Counts of the records must never decrease
+    private boolean mMonotonic;
+
+    private final StepRing.RecordHandler mHandler = new StepRing.RecordHandler() {
+        @Override
+        public void onRingReset() {
+            mResetCount++;
+        }
+
+        @Override
+        public void onRecord(long timestamp, int count, float orientation, int delay) {
+            final int i = mRecordCount % RECORDS;
+            if (mRecordCount > 0 && count < mCounts[(mRecordCount - 1) % RECORDS]) {
+                mMonotonic = false;
+            }
+            mTimestamps[i] = timestamp;
+            mCounts[i] = count;
+            mOrientations[i] = orientation;
+            mDelays[i] = delay;
+            mRecordCount++;
+        }
+    };
+
+    // Preallocated events of the scripts
+    private final float[] mStep = new float[2];
+    private final float[] mBurst = new float[BURST + 1];
+    private final float[] mTotal = new float[1];
+    private int mDeliveries;
+
+    @Before
+    public void setUp() {
+        mEngine = new StepEngine(10, 15);
+        mBuffer = new EventReorderBuffer(REORDER_CAPACITY, REORDER_MAX_VALUES, WINDOW,
+                new StepRecorder(mEngine, new StepRecorder.Listener() {
+                    @Override
+                    public void onEventReleased(long timestamp) {
+                    }
+
+                    @Override
+                    public void onEventCounted(long timestamp) {
+                    }
+
+                    @Override
+                    public void onRecord(long timestamp, int count, float orientation,
+                                         int delay) {
+                        mRing.append(timestamp, count, orientation, delay);
+                    }
+                }));
+        mRing = StepRing.format(ByteBuffer.allocate(StepRing.getBufferSize(RING_CAPACITY)),
+                RING_CAPACITY);
+        mReader = new StepRing.Reader(mRing);
+        mRecordCount = 0;
+        mResetCount = 0;
+        mMonotonic = true;
+        mDeliveries = 0;
+    }
+
+    /**
+     * Delivers an event, then publishes the released records and reads them back.
+     */
+    private void deliver(int sensor, float[] values, long timestamp, long receivedNanos) {
+        mBuffer.offer(sensor, values, timestamp, receivedNanos);
+        mDeliveries++;
+        mRing.publish();
+        mReader.read(mHandler);
+    }
+
+    private void flush() {
+        mBuffer.flush();
+        mRing.publish();
+        mReader.read(mHandler);
+    }
+
+    private float[] step(float orientation) {
+        mStep[0] = 1;
+        mStep[1] = orientation;
+        return mStep;
+    }
+
+    private float[] total(int total) {
+        mTotal[0] = total;
+        return mTotal;
+    }
+
+    /**
+     * Fills the burst with one step per orientation, the walker turns around in the middle.
+     */
+    private float[] burst() {
+        mBurst[0] = BURST;
+        for (int i = 1; i <= BURST; i++) {
+            mBurst[i] = i <= BURST / 2 ? 10.f : 190.f;
+        }
+        return mBurst;
+    }
+
+    private int lastCount() {
+        return mCounts[(mRecordCount - 1) % RECORDS];
+    }
+
+    @Test
+    public void steadyWalkingWritesOneRecordPerStep() {
+        // One step every 500ms, delivered 50ms later
+        for (int i = 1; i <= 20; i++) {
+            deliver(DETECTOR, step(i), i * SECOND / 2, i * SECOND / 2 + 50 * MILLI);
+        }
+        flush();
+
+        assertEquals(20, mEngine.getSteps());
+        assertEquals(20, mRecordCount);
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i + 1, mCounts[i]);
+            assertEquals(i + 1, mOrientations[i], 0.f);
+            assertEquals(50, mDelays[i]);
+        }
+        assertEquals(1, mResetCount);
+        assertEquals(0, mReader.getSkippedCount());
+    }
+
+    @Test
+    public void burstIsSplitWithoutLosingSteps() {
+        deliver(DETECTOR, step(0), SECOND, SECOND);
+        // A batch of 500 steps, more than a slot of the reorder buffer holds
+        deliver(DETECTOR, burst(), 2 * SECOND, 12 * SECOND);
+        deliver(DETECTOR, step(0), 3 * SECOND, 12 * SECOND);
+        flush();
+
+        assertEquals(BURST + 2, mEngine.getSteps());
+        assertEquals(BURST + 2, mRecordCount);
+        assertTrue(mMonotonic);
+        for (int i = 1; i <= BURST; i++) {
+            assertEquals(i + 1, mCounts[i]);
+            assertEquals(i <= BURST / 2 ? 10.f : 190.f, mOrientations[i], 0.f);
+            assertEquals(2 * SECOND, mTimestamps[i]);
+        }
+        // Only the last record of the burst carries its delay
+        assertEquals(-1, mDelays[BURST - 1]);
+        assertEquals(10000, mDelays[BURST]);
+        assertEquals(1, mBuffer.getSplitCount());
+        assertEquals(0, mBuffer.getTruncatedCount());
+        assertEquals(0, mReader.getSkippedCount());
+    }
+
+    @Test
+    public void outOfOrderDeliveryIsWrittenInOrder() {
+        // Two batches overlap, the newer one is delivered first
+        deliver(DETECTOR, step(3), 3 * SECOND, 3 * SECOND + 10 * MILLI);
+        deliver(DETECTOR, step(1), SECOND, 3 * SECOND + 20 * MILLI);
+        deliver(DETECTOR, step(2), 2 * SECOND, 3 * SECOND + 30 * MILLI);
+        // Redelivered after a sensor service restart
+        deliver(DETECTOR, step(2), 2 * SECOND, 3 * SECOND + 40 * MILLI);
+        deliver(DETECTOR, step(4), 4 * SECOND, 4 * SECOND);
+        flush();
+
+        assertEquals(4, mEngine.getSteps());
+        assertEquals(4, mRecordCount);
+        for (int i = 0; i < 4; i++) {
+            assertEquals((i + 1) * SECOND, mTimestamps[i]);
+            assertEquals(i + 1, mCounts[i]);
+            assertEquals(i + 1, mOrientations[i], 0.f);
+        }
+        assertEquals(1, mBuffer.getDuplicateCount());
+        assertEquals(0, mBuffer.getLateCount());
+    }
+
+    @Test
+    public void overlappingBatchesAreCountedOnce() {
+        // Both sensors are batched with a max delay of 10s
+        mBuffer.setWindowNanos(10 * SECOND + WINDOW);
+        mEngine.setCombined(true);
+        deliver(COUNTER, total(1000), 0, 0);
+
+        // A step every 500ms, the first batch has the steps up to 10s
+        for (int i = 1; i <= 20; i++) {
+            deliver(DETECTOR, step(i), i * SECOND / 2, 10 * SECOND);
+        }
+        deliver(COUNTER, total(1010), 5 * SECOND, 10 * SECOND);
+        deliver(COUNTER, total(1020), 10 * SECOND, 10 * SECOND);
+        // The second batch overlaps the first one by 5s and has the steps up to 15s
+        for (int i = 11; i <= 30; i++) {
+            deliver(DETECTOR, step(i), i * SECOND / 2, 15 * SECOND);
+        }
+        deliver(COUNTER, total(1020), 10 * SECOND, 15 * SECOND);
+        deliver(COUNTER, total(1030), 15 * SECOND, 15 * SECOND);
+        // The first batch is delivered again after its steps have been released
+        mBuffer.release(21 * SECOND);
+        for (int i = 1; i <= 20; i++) {
+            deliver(DETECTOR, step(i), i * SECOND / 2, 22 * SECOND);
+        }
+        flush();
+
+        assertEquals(30, mEngine.getSteps());
+        assertEquals(0, mEngine.getCountDiscrepancy());
+        assertEquals(30, lastCount());
+        assertTrue(mMonotonic);
+        for (int i = 0, step = 1; i < mRecordCount; i++) {
+            if (!Float.isNaN(mOrientations[i])) {
+                // The steps are written once and in order
+                assertEquals(step, mOrientations[i], 0.f);
+                assertEquals(step * SECOND / 2, mTimestamps[i]);
+                step++;
+            }
+        }
+        assertEquals(0, mBuffer.getLateCount());
+        // 10 buffered steps and the counter total of the second batch, 20 released steps
+        assertEquals(31, mBuffer.getDuplicateCount());
+    }
+
+    @Test
+    public void counterResetsAreStitched() {
+        deliver(COUNTER, total(1000), SECOND, SECOND);
+        deliver(COUNTER, total(1050), 2 * SECOND, 2 * SECOND);
+        // A batch of 500 steps
+        deliver(COUNTER, total(1550), 3 * SECOND, 3 * SECOND);
+        // The counter starts again at 0, the events arrive out of order
+        deliver(COUNTER, total(12), 5 * SECOND, 5 * SECOND);
+        deliver(COUNTER, total(5), 4 * SECOND, 5 * SECOND + 10 * MILLI);
+        deliver(COUNTER, total(20), 6 * SECOND, 6 * SECOND);
+        flush();
+
+        assertEquals(570, mEngine.getSteps());
+        assertEquals(1, mEngine.getCounterBaseline().getResetCount());
+        assertEquals(6, mRecordCount);
+        assertEquals(570, lastCount());
+        assertTrue(mMonotonic);
+        assertEquals(0, mBuffer.getStaleCount());
+    }
+
+    @Test
+    public void combinedTotalFollowsTheDetectorThroughABurst() {
+        mEngine.setCombined(true);
+        deliver(COUNTER, total(200), SECOND, SECOND);
+        deliver(DETECTOR, burst(), 2 * SECOND, 11 * SECOND);
+        // The counter lags behind the detector, then catches up
+        deliver(COUNTER, total(400), 3 * SECOND, 11 * SECOND);
+        deliver(COUNTER, total(700), 4 * SECOND, 12 * SECOND);
+        flush();
+
+        assertEquals(BURST, mEngine.getSteps());
+        assertEquals(0, mEngine.getCountDiscrepancy());
+        // The baseline, one record per step and one per counter event
+        assertEquals(BURST + 3, mRecordCount);
+        assertEquals(BURST, lastCount());
+        assertTrue(mMonotonic);
+    }
+
+    @Test
+    public void deliveryDoesNotAllocate() {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported());
+        final com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) bean;
+        allocations.setThreadAllocatedMemoryEnabled(true);
+        final long thread = Thread.currentThread().getId();
+
+        mEngine.setCombined(true);
+        deliver(COUNTER, total(0), 0, 0);
+        long time = runScript(1, 200);
+        final int deliveriesStart = mDeliveries;
+        final long allocatedStart = allocations.getThreadAllocatedBytes(thread);
+        time = runScript(time, 1000);
+        final long allocated = allocations.getThreadAllocatedBytes(thread) - allocatedStart;
+        final int deliveries = mDeliveries - deliveriesStart;
+        flush();
+
+        // The VM itself may allocate a few bytes on the thread now and then, a single object per
+        // event would be at least 16 bytes per event
+        assertEquals(0, allocated / deliveries);
+        assertEquals(mEngine.getSteps(), lastCount());
+        assertTrue(mMonotonic);
+        assertTrue(time > 0);
+    }
+
+    /**
+     * Delivers rounds of walking with out of order batches, a 500 step burst every tenth round
+     * and a lagging step counter.
+     *
+     * @param time   timestamp of the first round
+     * @param rounds
+     * @return timestamp of the next round
+     */
+    private long runScript(long time, int rounds) {
+        for (int round = 0; round < rounds; round++) {
+            deliver(DETECTOR, step(2), time + 2 * MILLI, time + 3 * MILLI);
+            deliver(DETECTOR, step(1), time + MILLI, time + 4 * MILLI);
+            if (round % 10 == 0) {
+                deliver(DETECTOR, burst(), time + 5 * MILLI, time + 6 * MILLI);
+            }
+            deliver(COUNTER, total(mEngine.getSteps()), time + 5 * MILLI, time + 300 * MILLI);
+            time += SECOND;
+        }
+        return time;
+    }
+}
@@ -0,0 +1,177 @@
+/*
+* Copyright 2014 The Android Open Source Project, University of South Florida
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+*     http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing, software
+* distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+
+
+package com.example.android.stepcore;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+
+public class StepRingTest {
+
+    private static final int CAPACITY = 4;
+
+    /**
+     * Keeps the counts of the delivered records.
+     */
+    private static class RecordingHandler implements StepRing.RecordHandler {
+        final ArrayList<Integer> counts = new ArrayList<Integer>();
+        int resets = 0;
+
+        @Override
+        public void onRingReset() {
+            resets++;
+        }
+
+        @Override
+        public void onRecord(long timestamp, int count, float orientation, int delay) {
+            assertEquals(count * 1000L, timestamp);
+            assertEquals(count, orientation, 0.f);
+            assertEquals(-count, delay);
+            counts.add(count);
+        }
+    }
+
+    private ByteBuffer mBuffer;
+    private StepRing mRing;
+    private StepRing.Reader mReader;
+    private RecordingHandler mHandler;
+
+    @Before
+    public void setUp() {
+        mBuffer = ByteBuffer.allocate(StepRing.getBufferSize(CAPACITY));
+        mRing = StepRing.format(mBuffer, CAPACITY);
+        mReader = new StepRing.Reader(StepRing.attach(mBuffer));
+        mHandler = new RecordingHandler();
+    }
+
+    private void append(int first, int last) {
+        for (int count = first; count <= last; count++) {
+            mRing.append(count * 1000L, count, count, -count);
+        }
+    }
+
+    private static ArrayList<Integer> range(int first, int last) {
+        final ArrayList<Integer> counts = new ArrayList<Integer>();
+        for (int count = first; count <= last; count++) {
+            counts.add(count);
+        }
+        return counts;
+    }
+
+    @Test
+    public void readsOnlyPublishedRecords() {
+        append(1, 3);
+        assertEquals(0, mReader.read(mHandler));
+
+        mRing.publish();
+        assertEquals(3, mReader.read(mHandler));
+        assertEquals(0, mReader.read(mHandler));
+        assertEquals(range(1, 3), mHandler.counts);
+        assertEquals(1, mHandler.resets);
+    }
+
+    @Test
+    public void readsAcrossTheWraparound() {
+        for (int i = 0; i < 5; i++) {
+            append(3 * i + 1, 3 * i + 3);
+            mRing.publish();
+            mReader.read(mHandler);
+        }
+
+        assertEquals(range(1, 15), mHandler.counts);
+        assertEquals(15, mRing.getWriteSeq());
+        assertEquals(0, mReader.getSkippedCount());
+    }
+
+    @Test
+    public void skipsRecordsThatWereOverwrittenBeforeTheRead() {
+        append(1, 2);
+        mRing.publish();
+        mReader.read(mHandler);
+        append(3, 10);
+        mRing.publish();
+
+        assertEquals(CAPACITY, mReader.read(mHandler));
+        assertEquals(range(1, 2), mHandler.counts.subList(0, 2));
+        assertEquals(range(7, 10), mHandler.counts.subList(2, 6));
+        assertEquals(4, mReader.getSkippedCount());
+    }
+
+    @Test
+    public void skipsRecordsThatAreOverwrittenWhileTheyAreRead() {
+        append(1, 4);
+        mRing.publish();
+        final RecordingHandler handler = new RecordingHandler() {
+            @Override
+            public void onRecord(long timestamp, int count, float orientation, int delay) {
+                super.onRecord(timestamp, count, orientation, delay);
+                if (count == 1) {
+                    // The writer wraps around and overwrites the next two records before they are
+                    // copied, the new records are not published yet
+                    append(5, 7);
+                }
+            }
+        };
+
+        assertEquals(2, mReader.read(handler));
+        assertEquals(2, mReader.getSkippedCount());
+        assertEquals(1, (int) handler.counts.get(0));
+        assertEquals(4, (int) handler.counts.get(1));
+
+        mRing.publish();
+        mReader.read(handler);
+        assertEquals(range(5, 7), handler.counts.subList(2, 5));
+        assertEquals(2, mReader.getSkippedCount());
+    }
+
+    @Test
+    public void startsOverAfterAReset() {
+        append(1, 3);
+        mRing.publish();
+        mReader.read(mHandler);
+
+        mRing.reset();
+        append(1, 2);
+        mRing.publish();
+        assertEquals(2, mReader.read(mHandler));
+        assertEquals(2, mHandler.resets);
+        assertEquals(range(1, 2), mHandler.counts.subList(3, 5));
+        assertEquals(0, mReader.getSkippedCount());
+    }
+
+    @Test
+    public void formatOfAnExistingRingStartsANewEpoch() {
+        append(1, 3);
+        mRing.publish();
+        final int epoch = mRing.getEpoch();
+
+        final StepRing ring = StepRing.format(mBuffer, CAPACITY);
+        assertEquals(epoch + 1, ring.getEpoch());
+        assertEquals(0, ring.getWriteSeq());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void attachRejectsOtherBuffers() {
+        StepRing.attach(ByteBuffer.allocate(StepRing.getBufferSize(CAPACITY)));
+    }
+}